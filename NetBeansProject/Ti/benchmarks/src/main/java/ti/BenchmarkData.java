@@ -0,0 +1,133 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The data shared by the benchmarks: the collections, the queries and their indexes.
+ * <p>
+ * Paths are relative to the directory of the project, given by the {@code ti.home} system property ({@code ..} by
+ * default, so that the benchmarks run from the {@code benchmarks} directory). The indexes are built under
+ * {@code target/indexes} the first time they are needed and reused afterwards, also by the forked JVMs of later
+ * benchmarks.
+ */
+public class BenchmarkData
+{
+    public static final String COLLECTION = "2011-documentos";
+    public static final String SMALL_COLLECTION = "peq";
+    public static final String QUERIES = "2011-topics.xml";
+    public static final String STOP_WORDS = "stop-words.txt";
+
+    /**
+     * Returns a file of the project.
+     *
+     * @param name the path of the file, relative to the project.
+     * @return the file.
+     */
+    public static File getFile(String name)
+    {
+        return new File(System.getProperty("ti.home", ".."), name);
+    }
+
+    /**
+     * Creates the document processor used to build the indexes and run the queries.
+     *
+     * @return the document processor.
+     * @throws IOException if an error occurs while reading the stop words.
+     */
+    public static HtmlProcessor createProcessor() throws IOException
+    {
+        return new HtmlProcessor(BenchmarkData.getFile(STOP_WORDS));
+    }
+
+    /**
+     * Returns the documents of a collection, in the order they are indexed.
+     *
+     * @param collection the name of the collection.
+     * @param max        the maximum number of documents to return.
+     * @return the document files.
+     */
+    public static ArrayList<File> listDocuments(String collection, int max)
+    {
+        ArrayList<File> documents = new ArrayList<>();
+        File[] subDirs = BenchmarkData.getFile(collection).listFiles();
+        if (subDirs == null)
+            throw new IllegalStateException("Collection " + collection + " not found in " + BenchmarkData.getFile(""));
+        Arrays.sort(subDirs);
+        for (File subDir : subDirs) {
+            File[] docFiles = subDir.listFiles();
+            if (subDir.getName().startsWith(".") || docFiles == null)
+                continue;
+            Arrays.sort(docFiles);
+            for (File docFile : docFiles) {
+                if (documents.size() == max)
+                    return documents;
+                if (docFile.getPath().endsWith(".html"))
+                    documents.add(docFile);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Reads and decodes a document, as the indexer does.
+     *
+     * @param docFile the document file.
+     * @return the HTML text of the document.
+     * @throws IOException if an error occurs while reading the document.
+     */
+    public static String readDocument(File docFile) throws IOException
+    {
+        return Indexer.decodeDocument(Indexer.readDocument(docFile));
+    }
+
+    /**
+     * Returns the text of the queries of {@link #QUERIES}.
+     *
+     * @return the queries, in the order of the file.
+     * @throws Exception if an error occurs while reading the file.
+     */
+    public static ArrayList<String> readQueries() throws Exception
+    {
+        ArrayList<String> queries = new ArrayList<>();
+        for (Tuple<String, String> query : Batch.readQueries(BenchmarkData.getFile(QUERIES)))
+            queries.add(query.item2);
+        return queries;
+    }
+
+    /**
+     * Returns the path of the index of a collection, building it if it does not exist or cannot be loaded.
+     *
+     * @param collection the name of the collection.
+     * @return the path to the index.
+     * @throws Exception if an error occurs while building the index.
+     */
+    public static synchronized File getIndex(String collection) throws Exception
+    {
+        File pathToIndex = new File("target/indexes", collection);
+        if (pathToIndex.isDirectory()) {
+            try {
+                Index.open(pathToIndex.getPath());
+                return pathToIndex;
+            } catch (Exception ex) {
+                System.err.println("Rebuilding index " + pathToIndex + ": " + ex.getMessage());
+            }
+        }
+        BenchmarkData.delete(pathToIndex);
+        pathToIndex.mkdirs();
+        new ParallelIndexer(pathToIndex, BenchmarkData.getFile(collection), BenchmarkData.createProcessor(),
+                Runtime.getRuntime().availableProcessors()).run();
+        return pathToIndex;
+    }
+
+    protected static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                BenchmarkData.delete(child);
+        file.delete();
+    }
+}
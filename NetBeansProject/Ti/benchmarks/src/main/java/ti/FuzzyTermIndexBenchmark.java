@@ -0,0 +1,88 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@link FuzzyTermIndex} of a loaded index: the lookup of the terms similar to a misspelled term, one
+ * of the terms of the vocabulary with a random character removed, within edit distance 1 and 2, and its correction
+ * by a {@link TermCorrector}, which widens the distance only if needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FuzzyTermIndexBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    protected Index index;
+    protected String[] typos;
+    protected TermCorrector corrector;
+    protected int next;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.index = Index.open(BenchmarkData.getIndex(this.collection).getPath(),
+                EnumSet.of(Index.Component.FUZZY_TERMS));
+        ArrayList<String> terms = this.index.getTermsInRange("", null);
+        Random random = new Random(42);
+        Collections.shuffle(terms, random);
+        ArrayList<String> typos = new ArrayList<>();
+        for (String term : terms) {
+            if (term.length() < TermCorrector.DEFAULT_MIN_LENGTH + 1)
+                continue;
+            int pos = random.nextInt(term.length());
+            String typo = term.substring(0, pos) + term.substring(pos + 1);
+            if (this.index.getTerm(typo) == null)
+                typos.add(typo);
+        }
+        this.typos = typos.toArray(new String[typos.size()]);
+        this.corrector = new TermCorrector(TermCorrector.DEFAULT_MAX_DISTANCE, 1, TermCorrector.DEFAULT_MIN_LENGTH);
+    }
+
+    protected String nextTypo()
+    {
+        int i = this.next;
+        this.next = i + 1 == this.typos.length ? 0 : i + 1;
+        return this.typos[i];
+    }
+
+    @Benchmark
+    public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms1()
+    {
+        return this.index.getSimilarTerms(this.nextTypo(), 1);
+    }
+
+    @Benchmark
+    public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms2()
+    {
+        return this.index.getSimilarTerms(this.nextTypo(), 2);
+    }
+
+    @Benchmark
+    public ArrayList<String> correct()
+    {
+        ArrayList<String> terms = new ArrayList<>(1);
+        terms.add(this.nextTypo());
+        return this.corrector.correct(terms, this.index);
+    }
+}
@@ -0,0 +1,57 @@
+package ti;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Index#open}, the time to get an index ready to run queries, with the files in the page cache.
+ * The index is opened with the {@link Index#CORE_COMPONENTS} only, with the components required by plain cosine, or
+ * with all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexLoadBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    @Param({ "core", "cosine", "all" })
+    public String components;
+
+    protected String pathToIndex;
+    protected Set<Index.Component> required;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.pathToIndex = BenchmarkData.getIndex(this.collection).getPath();
+        if (this.components.equals("core"))
+            this.required = EnumSet.noneOf(Index.Component.class);
+        else if (this.components.equals("cosine"))
+            this.required = new Cosine().getRequiredComponents();
+        else
+            this.required = EnumSet.allOf(Index.Component.class);
+    }
+
+    @Benchmark
+    public Index load() throws Exception
+    {
+        return Index.open(this.pathToIndex, this.required);
+    }
+}
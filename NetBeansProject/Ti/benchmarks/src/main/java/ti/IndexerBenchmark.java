@@ -0,0 +1,69 @@
+package ti;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Indexer#processDocument}, one document per operation: reading the file, processing it and adding
+ * its postings to an index in memory. Every iteration starts with an empty index, so the vocabulary grows during the
+ * iteration as it does in the first pass of the indexer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexerBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    @Param({ "false", "true" })
+    public boolean positional;
+
+    protected Indexer indexer;
+    protected File[] files;
+    protected Index index;
+    protected int next;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        ArrayList<File> documents = BenchmarkData.listDocuments(this.collection, Integer.MAX_VALUE);
+        this.files = documents.toArray(new File[documents.size()]);
+        this.indexer = new Indexer(new File("target/indexes/unused"), BenchmarkData.getFile(this.collection),
+                BenchmarkData.createProcessor());
+        this.indexer.setPositional(this.positional);
+    }
+
+    @Setup(Level.Iteration)
+    public void createIndex()
+    {
+        this.index = new Index("target/indexes/unused");
+        this.index.setPositional(this.positional);
+        this.next = 0;
+    }
+
+    @Benchmark
+    public Index processDocument() throws Exception
+    {
+        int i = this.next;
+        this.next = i + 1 == this.files.length ? 0 : i + 1;
+        this.indexer.processDocument(this.files[i], this.index);
+        return this.index;
+    }
+}
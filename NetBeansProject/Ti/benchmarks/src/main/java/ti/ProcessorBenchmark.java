@@ -0,0 +1,107 @@
+package ti;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the stages of {@link HtmlProcessor}: parsing, tokenizing and stemming, one document per operation.
+ * <p>
+ * The documents are the first ones of the collection, read into memory beforehand. {@link #stem} goes through the
+ * {@link StemCache} of the processor, which is warm after the first iteration, and {@link #stemUncached} calls the
+ * {@link Stemmer} directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    @Param("200")
+    public int documents;
+
+    protected HtmlProcessor processor;
+    protected String[] html;
+    protected String[] bodies;
+    protected String[][] terms;
+    protected int next;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.processor = BenchmarkData.createProcessor();
+        ArrayList<File> files = BenchmarkData.listDocuments(this.collection, this.documents);
+        this.html = new String[files.size()];
+        this.bodies = new String[files.size()];
+        this.terms = new String[files.size()][];
+        for (int i = 0; i < files.size(); i++) {
+            this.html[i] = BenchmarkData.readDocument(files.get(i));
+            Tuple<String, String> parsed = this.processor.parse(this.html[i]);
+            this.bodies[i] = parsed == null ? "" : parsed.item1 + " " + parsed.item2;
+            ArrayList<String> normalized = new ArrayList<>();
+            for (String token : this.processor.tokenize(this.bodies[i])) {
+                String term = this.processor.normalize(token).item2;
+                if (!term.isEmpty() && !this.processor.isStopWord(term))
+                    normalized.add(term);
+            }
+            this.terms[i] = normalized.toArray(new String[normalized.size()]);
+        }
+    }
+
+    protected int nextDocument()
+    {
+        int i = this.next;
+        this.next = i + 1 == this.html.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public Tuple<String, String> parse()
+    {
+        return this.processor.parse(this.html[this.nextDocument()]);
+    }
+
+    @Benchmark
+    public ArrayList<String> tokenize()
+    {
+        return this.processor.tokenize(this.bodies[this.nextDocument()]);
+    }
+
+    @Benchmark
+    public void stem(Blackhole bh)
+    {
+        for (String term : this.terms[this.nextDocument()])
+            bh.consume(this.processor.stem(term));
+    }
+
+    @Benchmark
+    public void stemUncached(Blackhole bh)
+    {
+        for (String term : this.terms[this.nextDocument()])
+            bh.consume(Stemmer.stemWord(term));
+    }
+
+    @Benchmark
+    public ArrayList<String> processParsed()
+    {
+        int i = this.nextDocument();
+        return this.processor.processParsed(new Tuple<>("", this.bodies[i]));
+    }
+}
@@ -0,0 +1,89 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the latency of the retrieval models, one query of {@link BenchmarkData#QUERIES} per operation, in the
+ * order of the file. The models are configured as in the batch command. With the {@code conjunctive} syntax, the
+ * words of every query are joined with {@code AND}, so that only the documents with all of them are ranked (see
+ * {@link BooleanQuery}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    @Param({ "cosine", "okapi", "feedback" })
+    public String model;
+
+    @Param({ "true", "false" })
+    public boolean pruning;
+
+    @Param({ "plain", "conjunctive" })
+    public String syntax;
+
+    protected Index index;
+    protected DocumentProcessor docProcessor;
+    protected RetrievalModel retrievalModel;
+    protected String[] queries;
+    protected int next;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.docProcessor = BenchmarkData.createProcessor();
+        ArrayList<String> queries = BenchmarkData.readQueries();
+        this.queries = queries.toArray(new String[queries.size()]);
+        if (this.syntax.equals("conjunctive")) {
+            for (int i = 0; i < this.queries.length; i++)
+                this.queries[i] = String.join(" AND ", this.queries[i].trim().split("\\s+"));
+        }
+        switch (this.model) {
+            case "cosine":
+                Cosine cosine = new Cosine();
+                cosine.setPruning(this.pruning);
+                this.retrievalModel = cosine;
+                break;
+            case "okapi":
+                Okapi okapi = new Okapi();
+                okapi.setPruning(this.pruning);
+                this.retrievalModel = okapi;
+                break;
+            case "feedback":
+                CosineWithFeedback feedback = new CosineWithFeedback(25, 2, 0.25, 0.1);
+                feedback.setPruning(this.pruning);
+                this.retrievalModel = feedback;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown model " + this.model);
+        }
+        this.index = Index.open(BenchmarkData.getIndex(this.collection).getPath(),
+                this.retrievalModel.getRequiredComponents());
+    }
+
+    @Benchmark
+    public ArrayList<Tuple<Integer, Double>> runQuery()
+    {
+        int i = this.next;
+        this.next = i + 1 == this.queries.length ? 0 : i + 1;
+        return this.retrievalModel.runQuery(this.queries[i], this.index, this.docProcessor, Batch.RESULTS_PER_QUERY);
+    }
+}
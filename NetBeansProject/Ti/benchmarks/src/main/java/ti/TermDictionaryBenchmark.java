@@ -0,0 +1,67 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@link TermDictionary} of a loaded index: the lookup of a term, one of the terms of the vocabulary
+ * in random order per operation, and the enumeration of the terms with a prefix, the first three bytes of a term.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TermDictionaryBenchmark
+{
+    @Param({ BenchmarkData.COLLECTION, BenchmarkData.SMALL_COLLECTION })
+    public String collection;
+
+    protected Index index;
+    protected String[] terms;
+    protected String[] prefixes;
+    protected int next;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.index = Index.open(BenchmarkData.getIndex(this.collection).getPath(), EnumSet.noneOf(Index.Component.class));
+        ArrayList<String> terms = this.index.getTermsInRange("", null);
+        Collections.shuffle(terms, new Random(42));
+        this.terms = terms.toArray(new String[terms.size()]);
+        this.prefixes = new String[this.terms.length];
+        for (int i = 0; i < this.terms.length; i++)
+            this.prefixes[i] = this.terms[i].substring(0, Math.min(3, this.terms[i].length()));
+    }
+
+    @Benchmark
+    public Tuple<Integer, Double> getTerm()
+    {
+        int i = this.next;
+        this.next = i + 1 == this.terms.length ? 0 : i + 1;
+        return this.index.getTerm(this.terms[i]);
+    }
+
+    @Benchmark
+    public ArrayList<String> getTermsWithPrefix()
+    {
+        int i = this.next;
+        this.next = i + 1 == this.prefixes.length ? 0 : i + 1;
+        return this.index.getTermsWithPrefix(this.prefixes[i]);
+    }
+}
@@ -0,0 +1,116 @@
+package ti;
+
+import java.util.Arrays;
+
+/**
+ * A growable {@link PostingsList} backed by two parallel primitive arrays, one for ids and one for weights.
+ * <p>
+ * It is used while the index is being built and whenever postings live in the heap.
+ */
+public class ArrayPostingsList implements PostingsList
+{
+    protected int[] ids;
+    protected double[] weights;
+    protected int size;
+
+    /**
+     * Creates a new empty postings list.
+     */
+    public ArrayPostingsList()
+    {
+        this(4);
+    }
+
+    /**
+     * Creates a new empty postings list with room for the specified number of postings.
+     *
+     * @param capacity the initial capacity.
+     */
+    public ArrayPostingsList(int capacity)
+    {
+        this.ids = new int[capacity];
+        this.weights = new double[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Creates a postings list over the given arrays, which are not copied.
+     *
+     * @param ids     the {@code id} of each posting.
+     * @param weights the weight of each posting.
+     * @param size    the number of postings in the arrays.
+     */
+    public ArrayPostingsList(int[] ids, double[] weights, int size)
+    {
+        this.ids = ids;
+        this.weights = weights;
+        this.size = size;
+    }
+
+    /**
+     * Appends a posting at the end of the list.
+     *
+     * @param id     the {@code docID} or {@code termID} of the posting.
+     * @param weight the weight of the posting.
+     */
+    public void add(int id, double weight)
+    {
+        if (this.size == this.ids.length) {
+            int capacity = Math.max(4, this.size + (this.size >> 1));
+            this.ids = Arrays.copyOf(this.ids, capacity);
+            this.weights = Arrays.copyOf(this.weights, capacity);
+        }
+        this.ids[this.size] = id;
+        this.weights[this.size] = weight;
+        this.size++;
+    }
+
+    /**
+     * Sets the weight of the {@code i}-th posting.
+     *
+     * @param i      the position of the posting in the list.
+     * @param weight the new weight.
+     */
+    public void setWeight(int i, double weight)
+    {
+        this.weights[i] = weight;
+    }
+
+    /**
+     * Releases the unused capacity of the list.
+     */
+    public void trim()
+    {
+        if (this.size < this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size);
+            this.weights = Arrays.copyOf(this.weights, this.size);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getID(int i)
+    {
+        return this.ids[i];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getWeight(int i)
+    {
+        return this.weights[i];
+    }
+}
@@ -4,19 +4,46 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class contains the logic to run the retrieval process of the search engine in batch mode.
+ * <p>
+ * Queries may run concurrently on a pool of threads, all sharing the same model, index and document processor, which
+ * must therefore be safe to use from several threads. Results are always printed in the order of the query file.
  */
 public class Batch
 {
+	protected static final int RESULTS_PER_QUERY = 500;
+
+	/**
+	 * The results of one query, with the counters of the work it took.
+	 */
+	protected static class QueryResult
+	{
+		protected ArrayList<Tuple<Integer, Double>> results;
+		protected QueryStats stats;
+	}
+
 	protected File pathToQueries;
 
 	protected RetrievalModel model;
-	protected Index index;
+	protected SearchableIndex index;
 	protected DocumentProcessor docProcessor;
+	protected int threads = 1;
+	protected File pathToMetrics;
+	protected boolean printQueryStats;
 
 	/**
 	 * Creates a new batch retriever for the queries in the specified path and using the given model.
@@ -26,7 +53,7 @@ public class Batch
 	 * @param index         the index.
 	 * @param docProcessor  the processor to extract query terms.
 	 */
-	public Batch(File pathToQueries, RetrievalModel model, Index index, DocumentProcessor docProcessor)
+	public Batch(File pathToQueries, RetrievalModel model, SearchableIndex index, DocumentProcessor docProcessor)
 	{
 		this.pathToQueries = pathToQueries;
 		this.model = model;
@@ -34,6 +61,39 @@ public class Batch
 		this.docProcessor = docProcessor;
 	}
 
+	/**
+	 * Sets the number of threads to run queries on.
+	 *
+	 * @param threads the number of threads.
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the file to write the counters of every query to, as tab-separated values in the format of
+	 * {@link QueryMetrics#write}. The time of each stage is only measured if {@link QueryStats#setTiming timing} is
+	 * enabled.
+	 *
+	 * @param pathToMetrics the path to the file, or {@code null} not to write the counters.
+	 */
+	public void setMetricsOutput(File pathToMetrics)
+	{
+		this.pathToMetrics = pathToMetrics;
+	}
+
+	/**
+	 * Sets whether to print the postings scored and skipped by each query to {@link System#err}. The totals of all the
+	 * queries are always printed.
+	 *
+	 * @param printQueryStats whether to print the counters of each query.
+	 */
+	public void setPrintQueryStats(boolean printQueryStats)
+	{
+		this.printQueryStats = printQueryStats;
+	}
+
 	/**
 	 * Reads the queries in the specified file path.
 	 *
@@ -67,27 +127,96 @@ public class Batch
 		ArrayList<Tuple<String, String>> queries = Batch.readQueries(this.pathToQueries);
 
 		// Run the model with each query
-		for (Tuple<String, String> query : queries) {
-			String queryId = query.item1;
-			String queryText = query.item2;
+		long startTime = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		long totalScored = 0;
+		long totalSkipped = 0;
+		try {
+			ArrayList<Future<QueryResult>> futures = new ArrayList<>();
+			for (final Tuple<String, String> query : queries) {
+				futures.add(executor.submit(new Callable<QueryResult>()
+				{
+					@Override
+					public QueryResult call()
+					{
+						return Batch.this.runQuery(query.item2);
+					}
+				}));
+			}
 
-			ArrayList<Tuple<Integer, Double>> results = this.model.runQuery(queryText, this.index, this.docProcessor);
-			this.printResults(results, queryId);
+			// Print in the order of the query file, as soon as each query is done
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+			BufferedWriter metrics = null;
+			if (this.pathToMetrics != null) {
+				metrics = Files.newBufferedWriter(this.pathToMetrics.toPath(), StandardCharsets.UTF_8);
+				QueryMetrics.writeHeader(metrics);
+			}
+			try {
+				for (int q = 0; q < queries.size(); q++) {
+					String queryId = queries.get(q).item1;
+					QueryResult result = futures.get(q).get();
+					futures.set(q, null);
+					this.printResults(result.results, queryId, out);
+					if (metrics != null)
+						QueryMetrics.write(metrics, queryId, result.stats);
+					if (this.printQueryStats && result.stats.postingsSkipped > 0)
+						System.err.println("  Query " + queryId + ": scored " + result.stats.postingsScored
+								+ " postings, skipped " + result.stats.postingsSkipped + ".");
+					totalScored += result.stats.postingsScored;
+					totalSkipped += result.stats.postingsSkipped;
+				}
+			} finally {
+				if (metrics != null)
+					metrics.close();
+			}
+			out.flush();
+		} finally {
+			executor.shutdownNow();
 		}
+
+		DecimalFormat df = new DecimalFormat("#.##");
+		double totalTime = (System.currentTimeMillis() - startTime) / 1000d;
+		if (totalSkipped > 0)
+			System.err.println("Dynamic pruning: scored " + totalScored + " postings, skipped " + totalSkipped + " ("
+					+ df.format(100d * totalSkipped / (totalScored + totalSkipped)) + "%).");
+		System.err.println("Ran " + queries.size() + " queries on " + this.threads + (this.threads == 1 ? " thread in " : " threads in ")
+				+ df.format(totalTime) + " seconds (" + df.format(queries.size() / totalTime) + " queries/s).");
+	}
+
+	/**
+	 * Runs one query with the model, in the current thread.
+	 *
+	 * @param queryText the text of the query.
+	 * @return the results of the query.
+	 */
+	protected QueryResult runQuery(String queryText)
+	{
+		QueryStats stats = QueryStats.current();
+		stats.reset();
+		QueryResult result = new QueryResult();
+		long start = System.nanoTime();
+		result.results = this.model.search(queryText, this.index, this.docProcessor, RESULTS_PER_QUERY);
+		stats.totalNanos = System.nanoTime() - start;
+		result.stats = stats.copy();
+		return result;
 	}
 
 	/**
-	 * Prints the results in TREC format to {@link System#out}.
+	 * Prints the results in TREC format to the given writer.
 	 *
 	 * @param results the retrieval results. A list of {@link Tuple}s where the first item is the {@code docID} and the
 	 *                second one is the similarty score.
 	 * @param queryId the {@code queryID} to print in the results.
+	 * @param out     the writer to print to.
+	 * @throws IOException if an error occurs while writing.
 	 */
-	protected void printResults(ArrayList<Tuple<Integer, Double>> results, String queryId)
+	protected void printResults(ArrayList<Tuple<Integer, Double>> results, String queryId, BufferedWriter out)
+			throws IOException
 	{
-		for (int i = 0; i < results.size() && i < 500; i++) {
-			String docName = this.index.documents.get(results.get(i).item1).item1;
-			System.out.println(queryId + "\tQ0\t" + docName + "\t" + (i + 1) + "\t" + results.get(i).item2 + "\tsys");
+		for (int i = 0; i < results.size() && i < RESULTS_PER_QUERY; i++) {
+			String docName = this.index.getDocumentName(results.get(i).item1);
+			out.write(queryId + "\tQ0\t" + docName + "\t" + (i + 1) + "\t" + results.get(i).item2 + "\tsys");
+			out.newLine();
 		}
 	}
 }
\ No newline at end of file
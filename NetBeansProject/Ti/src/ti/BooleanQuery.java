@@ -0,0 +1,581 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * The Boolean part of a query: terms that documents must contain, must not contain or may contain, grouped with
+ * parentheses.
+ * <p>
+ * A term prefixed with {@code +} is required and one prefixed with {@code -} is excluded, as in
+ * {@code solar +energy -nuclear}; the other terms are optional, and rank the documents that match but do not filter
+ * them unless the query has no required terms, in which case documents must contain one of them. {@code a AND b}
+ * requires both sides and binds tighter than the sequence, {@code NOT a} is {@code -a}, and {@code OR} is the default
+ * between clauses. Operators are only recognized in uppercase, and parentheses group clauses, as in
+ * {@code (solar OR wind) AND energy NOT nuclear}. A phrase between double quotes requires all its words, whose
+ * positions are then matched by {@link PositionalQuery} on positional indexes; an excluded phrase excludes the
+ * documents with all its words. Every word is analyzed by the {@link DocumentProcessor} on its own, and matches any
+ * of the terms it produces; stop words are ignored.
+ * <p>
+ * Matching documents are found before ranking, one document at a time. Each conjunction is planned by the number of
+ * postings of its clauses: the rarest one leads, and the others are only looked up at its documents with
+ * {@link PostingsList#seek}, which gallops over the postings in between, while exclusions are checked last. Only the
+ * matching documents are then scored by the retrieval model, looking their postings up the same way, so a restrictive
+ * query touches a small part of the postings of its terms.
+ */
+public class BooleanQuery
+{
+    protected static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    protected final Index index;
+    protected final DocumentProcessor docProcessor;
+    protected final TermCorrector corrector;
+    protected final ArrayList<String> tokens;
+    protected int next;
+    protected Node root;
+    protected int[] matches;
+
+    /**
+     * A clause of a query, which iterates over the documents that match it in increasing order of {@code docID}.
+     */
+    protected abstract static class Node
+    {
+        protected int doc = -1;
+
+        /**
+         * Returns an upper bound of the number of documents that match the clause, to plan conjunctions.
+         */
+        protected abstract long cost();
+
+        /**
+         * Moves to the first matching document not lower than {@code target}, and returns it, or
+         * {@link #NO_MORE_DOCS} if there is none. Targets must not decrease.
+         */
+        protected abstract int advance(int target);
+
+        /**
+         * Adds the terms and the text of the clause, except those of its exclusions.
+         */
+        protected abstract void collect(ArrayList<String> terms, StringBuilder text);
+    }
+
+    /**
+     * A word of the query, which matches the documents with any of its terms.
+     */
+    protected static class Word extends Node
+    {
+        protected final String text;
+        protected final ArrayList<String> terms;
+        protected final PostingsList[] postings;
+        protected final int[] next;
+
+        protected Word(Index index, String text, ArrayList<String> terms)
+        {
+            this.text = text;
+            this.terms = terms;
+            ArrayList<PostingsList> postings = new ArrayList<>();
+            for (String term : new HashSet<>(terms)) {
+                Tuple<Integer, Double> t = index.getTerm(term);
+                if (t != null)
+                    postings.add(index.getInvertedPostings(t.item1));
+            }
+            this.postings = postings.toArray(new PostingsList[postings.size()]);
+            this.next = new int[this.postings.length];
+        }
+
+        @Override
+        protected long cost()
+        {
+            long cost = 0;
+            for (PostingsList p : this.postings)
+                cost += p.size();
+            return cost;
+        }
+
+        @Override
+        protected int advance(int target)
+        {
+            if (this.doc >= target)
+                return this.doc;
+            int doc = NO_MORE_DOCS;
+            for (int t = 0; t < this.postings.length; t++) {
+                this.next[t] = this.postings[t].seek(this.next[t], target);
+                if (this.next[t] < this.postings[t].size())
+                    doc = Math.min(doc, this.postings[t].getID(this.next[t]));
+            }
+            return this.doc = doc;
+        }
+
+        @Override
+        protected void collect(ArrayList<String> terms, StringBuilder text)
+        {
+            terms.addAll(this.terms);
+            text.append(' ').append(this.text);
+        }
+    }
+
+    /**
+     * A group of clauses: documents must match all the required ones or, if there are none, some optional one, and
+     * none of the excluded ones. A group without required or optional clauses matches nothing.
+     */
+    protected static class Group extends Node
+    {
+        protected final Node[] required;
+        protected final Node[] optional;
+        protected final Node[] excluded;
+        protected String phrase;
+
+        protected Group(ArrayList<Node> required, ArrayList<Node> optional, ArrayList<Node> excluded)
+        {
+            // Plan: la cláusula con menos documentos lleva la iteración, y las demás solo se buscan en sus documentos
+            this.required = required.toArray(new Node[required.size()]);
+            Arrays.sort(this.required, Comparator.comparingLong(Node::cost));
+            this.optional = optional.toArray(new Node[optional.size()]);
+            this.excluded = excluded.toArray(new Node[excluded.size()]);
+        }
+
+        @Override
+        protected long cost()
+        {
+            if (this.required.length > 0)
+                return this.required[0].cost();
+            long cost = 0;
+            for (Node n : this.optional)
+                cost += n.cost();
+            return cost;
+        }
+
+        @Override
+        protected int advance(int target)
+        {
+            if (this.doc >= target)
+                return this.doc;
+            while (true) {
+                int doc = this.required.length > 0 ? this.nextRequired(target) : this.nextOptional(target);
+                if (doc == NO_MORE_DOCS || !this.isExcluded(doc))
+                    return this.doc = doc;
+                target = doc + 1;
+            }
+        }
+
+        // El primer documento desde target que tienen todas las cláusulas obligatorias
+        protected int nextRequired(int target)
+        {
+            int doc = this.required[0].advance(target);
+            for (int i = 1; i < this.required.length && doc != NO_MORE_DOCS; ) {
+                int d = this.required[i].advance(doc);
+                if (d == doc) {
+                    i++;
+                } else {
+                    doc = this.required[0].advance(d);
+                    i = 1;
+                }
+            }
+            return doc;
+        }
+
+        // El primer documento desde target que tiene alguna cláusula opcional
+        protected int nextOptional(int target)
+        {
+            int doc = NO_MORE_DOCS;
+            for (Node n : this.optional)
+                doc = Math.min(doc, n.advance(target));
+            return doc;
+        }
+
+        protected boolean isExcluded(int doc)
+        {
+            for (Node n : this.excluded)
+                if (n.advance(doc) == doc)
+                    return true;
+            return false;
+        }
+
+        @Override
+        protected void collect(ArrayList<String> terms, StringBuilder text)
+        {
+            int length = text.length();
+            for (Node n : this.required)
+                n.collect(terms, text);
+            for (Node n : this.optional)
+                n.collect(terms, text);
+            if (this.phrase != null) {
+                text.setLength(length);
+                text.append(' ').append(this.phrase);
+            }
+        }
+    }
+
+    /**
+     * A clause with the way it occurs in its group: {@code '+'} if required, {@code '-'} if excluded and {@code ' '}
+     * if optional. Its node is {@code null} if it has no terms, like a stop word, and then it is ignored.
+     */
+    protected static class Clause
+    {
+        protected final Node node;
+        protected final char occur;
+
+        protected Clause(Node node, char occur)
+        {
+            this.node = node;
+            this.occur = occur;
+        }
+    }
+
+    protected BooleanQuery(Index index, DocumentProcessor docProcessor, TermCorrector corrector, ArrayList<String> tokens)
+    {
+        this.index = index;
+        this.docProcessor = docProcessor;
+        this.corrector = corrector;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Parses the Boolean part of a query.
+     *
+     * @param queryText    the text of the query.
+     * @param index        the index to search in.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @param corrector    the corrector of the terms that are not in the index, or {@code null} not to correct them.
+     * @return the Boolean query, or {@code null} if the query has no operators, prefixes or parentheses, and is then
+     * run as a plain disjunctive query.
+     */
+    public static BooleanQuery create(String queryText, Index index, DocumentProcessor docProcessor,
+                                      TermCorrector corrector)
+    {
+        ArrayList<String> tokens = tokenize(queryText);
+        if (!isBoolean(tokens))
+            return null;
+        BooleanQuery query = new BooleanQuery(index, docProcessor, corrector, tokens);
+        query.root = query.parseSequence(false);
+        return query;
+    }
+
+    /**
+     * Restricts the documents that match a query to those that match the phrases of its {@link PositionalQuery}, so
+     * that a retrieval model only scores documents that match both, instead of ranking the whole collection and then
+     * dropping those without the phrases.
+     *
+     * @param query      the Boolean part of the query, or {@code null} if it has none.
+     * @param positional the positional part of the query, or {@code null} if it has none.
+     * @param index      the index to search in.
+     * @return the query to score documents with, which has the terms and text of {@code query}, or {@code query} if
+     * there are no phrases.
+     */
+    public static BooleanQuery restrict(BooleanQuery query, PositionalQuery positional, Index index)
+    {
+        if (positional == null || !positional.hasPhrases())
+            return query;
+        long start = QueryStats.start();
+        BooleanQuery restricted = query == null ? new BooleanQuery(index, null, null, new ArrayList<>())
+                : new BooleanQuery(index, query.docProcessor, query.corrector, query.tokens);
+        if (query != null)
+            restricted.root = query.root;
+        restricted.matches = query == null ? positional.getPhraseMatches()
+                : PositionalQuery.intersect(query.getMatches(), positional.getPhraseMatches());
+        QueryStats.current().scoringNanos += QueryStats.elapsed(start);
+        return restricted;
+    }
+
+    /**
+     * Describes the Boolean part of a query by its operators and the terms of its words, so that two queries with the
+     * same description match the same documents on any index, and it can identify the query in a cache.
+     *
+     * @param queryText    the text of the query.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @return the description, or {@code null} if the query has no Boolean part.
+     */
+    public static String describe(String queryText, DocumentProcessor docProcessor)
+    {
+        ArrayList<String> tokens = tokenize(queryText);
+        if (!isBoolean(tokens))
+            return null;
+        StringBuilder description = new StringBuilder();
+        for (String token : tokens) {
+            if (isOperator(token)) {
+                description.append(token);
+            } else {
+                ArrayList<String> terms = docProcessor.processText(token);
+                terms = terms == null ? new ArrayList<>() : new ArrayList<>(terms);
+                Collections.sort(terms);
+                description.append(token.startsWith("\"") ? "\"" : "").append(String.join("\u0001", terms));
+            }
+            description.append('\u0002');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Splits the text of a query into parentheses, operators, {@code +} and {@code -} prefixes, phrases with their
+     * quotes and words.
+     */
+    protected static ArrayList<String> tokenize(String queryText)
+    {
+        ArrayList<String> tokens = new ArrayList<>();
+        int n = queryText.length();
+        for (int i = 0; i < n; ) {
+            char c = queryText.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if ((c == '+' || c == '-') && i + 1 < n && !Character.isWhitespace(queryText.charAt(i + 1))) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '"') {
+                int end = queryText.indexOf('"', i + 1);
+                if (end >= 0)
+                    tokens.add(queryText.substring(i, end + 1));
+                i = end < 0 ? i + 1 : end + 1;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(queryText.charAt(i)) && "()\"".indexOf(queryText.charAt(i)) < 0)
+                    i++;
+                tokens.add(queryText.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    protected static boolean isOperator(String token)
+    {
+        switch (token) {
+            case "AND":
+            case "OR":
+            case "NOT":
+            case "+":
+            case "-":
+            case "(":
+            case ")":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    protected static boolean isBoolean(ArrayList<String> tokens)
+    {
+        for (String token : tokens)
+            if (isOperator(token))
+                return true;
+        return false;
+    }
+
+    // Secuencia de cláusulas hasta el final o, dentro de paréntesis, hasta el que la cierra
+    protected Node parseSequence(boolean nested)
+    {
+        ArrayList<Node> required = new ArrayList<>();
+        ArrayList<Node> optional = new ArrayList<>();
+        ArrayList<Node> excluded = new ArrayList<>();
+        while (this.next < this.tokens.size()) {
+            String token = this.tokens.get(this.next);
+            if (token.equals(")") && nested)
+                break;
+            if (token.equals(")") || token.equals("OR") || token.equals("AND")) {
+                this.next++;
+                continue;
+            }
+            Clause clause = this.parseConjunction();
+            if (clause.node == null)
+                continue;
+            if (clause.occur == '+')
+                required.add(clause.node);
+            else if (clause.occur == '-')
+                excluded.add(clause.node);
+            else
+                optional.add(clause.node);
+        }
+        if (excluded.isEmpty() && required.size() + optional.size() == 1)
+            return required.isEmpty() ? optional.get(0) : required.get(0);
+        if (excluded.isEmpty() && required.isEmpty() && optional.isEmpty())
+            return null;
+        return new Group(required, optional, excluded);
+    }
+
+    // Cláusulas unidas por AND, que son todas obligatorias salvo las negadas
+    protected Clause parseConjunction()
+    {
+        Clause first = this.parseUnary();
+        if (this.next >= this.tokens.size() || !this.tokens.get(this.next).equals("AND"))
+            return first;
+        ArrayList<Node> required = new ArrayList<>();
+        ArrayList<Node> excluded = new ArrayList<>();
+        this.addConjunct(first, required, excluded);
+        while (this.next < this.tokens.size() && this.tokens.get(this.next).equals("AND")) {
+            this.next++;
+            this.addConjunct(this.parseUnary(), required, excluded);
+        }
+        if (required.isEmpty() && excluded.isEmpty())
+            return new Clause(null, ' ');
+        if (excluded.isEmpty() && required.size() == 1)
+            return new Clause(required.get(0), ' ');
+        return new Clause(new Group(required, new ArrayList<>(), excluded), ' ');
+    }
+
+    protected void addConjunct(Clause clause, ArrayList<Node> required, ArrayList<Node> excluded)
+    {
+        if (clause.node == null)
+            return;
+        // Un grupo solo de exclusiones, como (NOT a), excluye sus cláusulas de la conjunción
+        if (clause.node instanceof Group && clause.occur != '-') {
+            Group group = (Group) clause.node;
+            if (group.required.length == 0 && group.optional.length == 0) {
+                excluded.addAll(Arrays.asList(group.excluded));
+                return;
+            }
+        }
+        (clause.occur == '-' ? excluded : required).add(clause.node);
+    }
+
+    protected Clause parseUnary()
+    {
+        if (this.next >= this.tokens.size())
+            return new Clause(null, ' ');
+        String token = this.tokens.get(this.next++);
+        switch (token) {
+            case "NOT":
+            case "-": {
+                Clause clause = this.parseUnary();
+                return new Clause(clause.node, clause.occur == '-' ? '+' : '-');
+            }
+            case "+": {
+                Clause clause = this.parseUnary();
+                return new Clause(clause.node, clause.occur == '-' ? '-' : '+');
+            }
+            case "(": {
+                Node node = this.parseSequence(true);
+                if (this.next < this.tokens.size())
+                    this.next++;
+                return new Clause(node, ' ');
+            }
+            case ")":
+            case "AND":
+            case "OR":
+                this.next--;
+                return new Clause(null, ' ');
+            default:
+                return new Clause(token.startsWith("\"") ? this.analyzePhrase(token) : this.analyzeWord(token), ' ');
+        }
+    }
+
+    protected Word analyzeWord(String text)
+    {
+        ArrayList<String> terms = this.docProcessor.processText(text);
+        if (terms == null || terms.isEmpty())
+            return null;
+        if (this.corrector != null)
+            terms = this.corrector.correct(terms, this.index);
+        return new Word(this.index, text, terms);
+    }
+
+    protected Node analyzePhrase(String text)
+    {
+        ArrayList<Node> words = new ArrayList<>();
+        for (String word : text.substring(1, text.length() - 1).split("\\s+")) {
+            Word w = word.isEmpty() ? null : this.analyzeWord(word);
+            if (w != null)
+                words.add(w);
+        }
+        if (words.isEmpty())
+            return null;
+        Group group = new Group(words, new ArrayList<>(), new ArrayList<>());
+        group.phrase = text;
+        return group;
+    }
+
+    /**
+     * Returns the terms of the query that are not excluded, with repetitions, to compute the query vector.
+     *
+     * @return the terms.
+     */
+    public ArrayList<String> getTerms()
+    {
+        ArrayList<String> terms = new ArrayList<>();
+        if (this.root != null)
+            this.root.collect(terms, new StringBuilder());
+        return terms;
+    }
+
+    /**
+     * Returns the text of the words and phrases of the query that are not excluded, without operators, for the
+     * {@link PositionalQuery}.
+     *
+     * @return the text.
+     */
+    public String getText()
+    {
+        StringBuilder text = new StringBuilder();
+        if (this.root != null)
+            this.root.collect(new ArrayList<>(), text);
+        return text.toString().trim();
+    }
+
+    /**
+     * Returns the documents that match the query.
+     *
+     * @return the sorted {@code docID}s of the documents.
+     */
+    public int[] getMatches()
+    {
+        if (this.matches != null)
+            return this.matches;
+        int numMatches = 0;
+        int[] matches = new int[16];
+        for (int doc = this.root == null ? NO_MORE_DOCS : this.root.advance(0); doc != NO_MORE_DOCS;
+             doc = this.root.advance(doc + 1)) {
+            if (numMatches == matches.length)
+                matches = Arrays.copyOf(matches, 2 * numMatches);
+            matches[numMatches++] = doc;
+        }
+        return this.matches = Arrays.copyOf(matches, numMatches);
+    }
+
+    /**
+     * Scores the documents that match the query and returns the best ones. The postings of every query term are only
+     * looked up at those documents, and scores are added in query term order, so a document gets the same score as
+     * when scoring every posting.
+     *
+     * @param lists  the postings list of each query term, sorted by {@code docID}.
+     * @param scorer the function to compute partial scores.
+     * @param k      the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the score,
+     * sorted by decreasing score.
+     */
+    public ArrayList<Tuple<Integer, Double>> rank(PostingsList[] lists, MaxScore.PostingScorer scorer, int k)
+    {
+        long start = QueryStats.start();
+        int[] matches = this.getMatches();
+        long totalPostings = 0;
+        for (PostingsList list : lists)
+            totalPostings += list.size();
+
+        int[] pos = new int[lists.length];
+        long scored = 0;
+        TopKHeap heap = new TopKHeap(Math.min(k, matches.length));
+        for (int doc : matches) {
+            double score = 0;
+            for (int t = 0; t < lists.length; t++) {
+                pos[t] = lists[t].seek(pos[t], doc);
+                if (pos[t] < lists[t].size() && lists[t].getID(pos[t]) == doc) {
+                    score += scorer.score(t, doc, lists[t].getWeight(pos[t]));
+                    scored++;
+                }
+            }
+            heap.offer(doc, score);
+        }
+
+        QueryStats stats = QueryStats.current();
+        stats.postingsScored += scored;
+        stats.postingsSkipped += totalPostings - scored;
+        stats.accumulators += matches.length;
+        stats.scoringNanos += QueryStats.elapsed(start);
+        start = QueryStats.start();
+        ArrayList<Tuple<Integer, Double>> results = heap.toSortedList();
+        stats.sortingNanos += QueryStats.elapsed(start);
+        return results;
+    }
+}
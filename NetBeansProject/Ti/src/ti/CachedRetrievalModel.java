@@ -0,0 +1,152 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link RetrievalModel} that caches the results of another one in a {@link QueryCache}.
+ * <p>
+ * Results are cached by the analyzed query instead of its text: the sorted terms that the {@link DocumentProcessor}
+ * extracts from it, the description of its Boolean part by {@link BooleanQuery#describe} if it has one and, on
+ * positional indexes, the description of its phrases and positions by {@link PositionalQuery#describe}. Queries that
+ * only differ in case, punctuation, stop words or the order of their terms share their results, as long as the model
+ * would return the same for them. The key also holds the parameters of the model (see
+ * {@link RetrievalModel#getParameters}), the number of results and the generation of the index.
+ * <p>
+ * Analyzing a query is much cheaper than running it, but it still parses the text, so the keys of the most recent
+ * query texts are kept too. The model is safe to use from several threads if the wrapped model is, and several models
+ * may share a cache.
+ */
+public class CachedRetrievalModel implements RetrievalModel
+{
+    protected static final int MAX_ANALYZED_QUERIES = 1024;
+
+    protected final RetrievalModel model;
+    protected final QueryCache cache;
+    protected DocumentProcessor analyzedBy;
+    protected final LinkedHashMap<String, String> analyzedQueries; // [positional + query text] -> analyzed query
+
+    /**
+     * Creates a new cached model.
+     *
+     * @param model the model to run the queries that are not cached.
+     * @param cache the cache of results.
+     */
+    public CachedRetrievalModel(RetrievalModel model, QueryCache cache)
+    {
+        this.model = model;
+        this.cache = cache;
+        this.analyzedQueries = new LinkedHashMap<String, String>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return this.size() > MAX_ANALYZED_QUERIES;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache of results.
+     *
+     * @return the cache.
+     */
+    public QueryCache getCache()
+    {
+        return this.cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<String> getQueryTerms(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
+    {
+        return this.model.getQueryTerms(queryText, index, docProcessor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getParameters()
+    {
+        return this.model.getParameters();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Index.Component> getRequiredComponents()
+    {
+        return this.model.getRequiredComponents();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The results come from the cache as in {@link #search}.
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k)
+    {
+        return this.search(queryText, index, docProcessor, k);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The results come from the cache if the same analyzed query was run before on the same generation of the index.
+     * On a {@link ShardedIndex} they are cached once for the whole index, not for every shard.
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> search(String queryText, SearchableIndex index, DocumentProcessor docProcessor,
+                                                    int k)
+    {
+        String key = this.model.getParameters() + '\u0000' + k + '\u0000' + this.analyze(queryText, index, docProcessor);
+        ArrayList<Tuple<Integer, Double>> results = this.cache.get(index, key);
+        if (results == null) {
+            results = this.model.search(queryText, index, docProcessor, k);
+            this.cache.put(index, key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the analyzed form of a query, which identifies its results.
+     */
+    protected String analyze(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
+    {
+        boolean positional = index.isPositional();
+        String textKey = (positional ? "P" : "T") + queryText;
+        synchronized (this.analyzedQueries) {
+            if (this.analyzedBy != docProcessor) {
+                this.analyzedQueries.clear();
+                this.analyzedBy = docProcessor;
+            }
+            String analyzed = this.analyzedQueries.get(textKey);
+            if (analyzed != null)
+                return analyzed;
+        }
+
+        ArrayList<String> terms = docProcessor.processText(queryText);
+        terms = terms == null ? new ArrayList<>() : new ArrayList<>(terms);
+        Collections.sort(terms);
+        String analyzed = String.join("\u0001", terms);
+        if (positional)
+            analyzed += '\u0000' + PositionalQuery.describe(queryText, docProcessor);
+        String filter = BooleanQuery.describe(queryText, docProcessor);
+        if (filter != null)
+            analyzed += '\u0000' + filter;
+
+        synchronized (this.analyzedQueries) {
+            if (this.analyzedBy == docProcessor)
+                this.analyzedQueries.put(textKey, analyzed);
+        }
+        return analyzed;
+    }
+}
@@ -0,0 +1,173 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Collection statistics for probabilistic retrieval models such as {@link Okapi}, computed when the index is saved.
+ * <p>
+ * The length of a document is its number of indexed tokens, that is, the sum of the raw frequencies of its terms. The
+ * file holds:
+ * <pre>
+ * magic numLengths numTerms numDocuments totalLength length[numLengths] df[numTerms] cf[numTerms]
+ * </pre>
+ * The number of documents and the total length are those of the whole collection, which is larger than the documents
+ * with a length in the file for the shards of a {@link ShardedIndex}. A number of documents of {@code 0} stands for
+ * {@code numLengths}.
+ * It is small enough to be read whole into the arrays of this class when the index is loaded.
+ */
+public class CollectionStatistics
+{
+    protected static final int MAGIC = 0x54494331; // TIC1
+
+    /**
+     * The number of tokens in the collection.
+     */
+    public final long totalLength;
+    /**
+     * The number of documents in the collection, which is less than the length of {@link #documentLengths} when some
+     * {@code docID}s belong to deleted documents.
+     */
+    public final int numDocuments;
+    /**
+     * The average number of tokens per document.
+     */
+    public final double averageDocumentLength;
+    /**
+     * The number of tokens of each document, by {@code docID}.
+     */
+    public final int[] documentLengths;
+    /**
+     * The number of documents each term appears in, by {@code termID}.
+     */
+    public final int[] documentFrequencies;
+    /**
+     * The number of occurrences of each term in the collection, by {@code termID}.
+     */
+    public final long[] collectionFrequencies;
+
+    protected CollectionStatistics(int[] documentLengths, int[] documentFrequencies, long[] collectionFrequencies)
+    {
+        this(documentLengths, documentLengths.length, documentFrequencies, collectionFrequencies);
+    }
+
+    protected CollectionStatistics(int[] documentLengths, int numDocuments, int[] documentFrequencies,
+                                   long[] collectionFrequencies)
+    {
+        this(documentLengths, numDocuments, sum(documentLengths), documentFrequencies, collectionFrequencies);
+    }
+
+    /**
+     * Creates the statistics of a part of a larger collection.
+     *
+     * @param documentLengths       the number of tokens of each document of the part, by {@code docID}.
+     * @param numDocuments          the number of documents in the whole collection.
+     * @param totalLength           the number of tokens in the whole collection.
+     * @param documentFrequencies   the number of documents of the whole collection each term appears in.
+     * @param collectionFrequencies the number of occurrences of each term in the whole collection.
+     */
+    public CollectionStatistics(int[] documentLengths, int numDocuments, long totalLength, int[] documentFrequencies,
+                                long[] collectionFrequencies)
+    {
+        this.totalLength = totalLength;
+        this.numDocuments = numDocuments;
+        this.averageDocumentLength = numDocuments == 0 ? 0 : (double) totalLength / numDocuments;
+        this.documentLengths = documentLengths;
+        this.documentFrequencies = documentFrequencies;
+        this.collectionFrequencies = collectionFrequencies;
+    }
+
+    protected static long sum(int[] documentLengths)
+    {
+        long total = 0;
+        for (int length : documentLengths)
+            total += length;
+        return total;
+    }
+
+    /**
+     * Returns the number of documents in the collection.
+     *
+     * @return the number of documents.
+     */
+    public int getNumDocuments()
+    {
+        return this.numDocuments;
+    }
+
+    /**
+     * Computes the statistics of an index whose structures are in the heap.
+     *
+     * @param index the index, with the raw term frequencies of its postings.
+     * @return the collection statistics.
+     */
+    public static CollectionStatistics compute(Index index)
+    {
+        int[] lengths = new int[index.documents.size()];
+        int[] df = new int[index.invertedIndex.size()];
+        long[] cf = new long[index.invertedIndex.size()];
+        for (int termID = 0; termID < index.invertedIndex.size(); termID++) {
+            ArrayPostingsList postings = index.invertedIndex.get(termID);
+            int[] tf = index.frequencies.get(termID);
+            df[termID] = postings.size();
+            for (int i = 0; i < postings.size(); i++) {
+                lengths[postings.getID(i)] += tf[i];
+                cf[termID] += tf[i];
+            }
+        }
+        return new CollectionStatistics(lengths, df, cf);
+    }
+
+    /**
+     * Reads the statistics from the file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the collection statistics.
+     * @throws IOException if an error occurs while reading the file.
+     */
+    public static CollectionStatistics load(File path) throws IOException
+    {
+        // Se lee entero, así que el fichero se libera en cuanto se ha leído
+        try (MappedFile file = new MappedFile(path)) {
+            file.checkMagic(0, MAGIC);
+            int[] lengths = new int[file.getInt(4)];
+            int[] df = new int[file.getInt(8)];
+            int numDocuments = file.getInt(12) == 0 ? lengths.length : file.getInt(12);
+            long totalLength = file.getLong(16);
+            long[] cf = new long[df.length];
+            long pos = 24;
+            for (int i = 0; i < lengths.length; i++, pos += 4)
+                lengths[i] = file.getInt(pos);
+            for (int i = 0; i < df.length; i++, pos += 4)
+                df[i] = file.getInt(pos);
+            pos = MappedFile.align(pos);
+            for (int i = 0; i < cf.length; i++, pos += 8)
+                cf[i] = file.getLong(pos);
+            return new CollectionStatistics(lengths, numDocuments, totalLength, df, cf);
+        }
+    }
+
+    /**
+     * Writes the statistics to the specified path.
+     *
+     * @param path the path to the file.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public void write(File path) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(this.documentLengths.length);
+            out.writeInt(this.documentFrequencies.length);
+            out.writeInt(this.numDocuments);
+            out.writeLong(this.totalLength);
+            for (int length : this.documentLengths)
+                out.writeInt(length);
+            for (int df : this.documentFrequencies)
+                out.writeInt(df);
+            out.align();
+            for (long cf : this.collectionFrequencies)
+                out.writeLong(cf);
+        }
+    }
+}
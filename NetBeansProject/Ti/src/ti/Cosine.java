@@ -8,79 +8,219 @@ import java.lang.Math;
  */
 public class Cosine implements RetrievalModel
 {
+	protected boolean pruning = true;
+	protected double proximityWeight;
+	protected TermCorrector corrector;
+
 	public Cosine(){}
 
+	/**
+	 * Sets whether to use {@link MaxScore} dynamic pruning when only the top {@code k} documents are requested.
+	 * Pruning returns exactly the same documents and scores as scoring every posting.
+	 *
+	 * @param pruning {@code true} to enable dynamic pruning.
+	 */
+	public void setPruning(boolean pruning)
+	{
+		this.pruning = pruning;
+	}
+
+	/**
+	 * Sets the weight of the proximity boost of {@link PositionalQuery}, used when the index is positional. Phrases
+	 * between double quotes are matched on positional indexes regardless of the weight.
+	 *
+	 * @param proximityWeight the weight, or {@code 0} not to boost by proximity.
+	 */
+	public void setProximityWeight(double proximityWeight)
+	{
+		this.proximityWeight = proximityWeight;
+	}
+
+	/**
+	 * Sets the corrector of the query terms that are not in the index, which requires the
+	 * {@link Index.Component#FUZZY_TERMS fuzzy term index}.
+	 *
+	 * @param corrector the corrector, or {@code null} to ignore those terms.
+	 */
+	public void setCorrector(TermCorrector corrector)
+	{
+		this.corrector = corrector;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The terms that are not in the index are replaced with their corrections, if the model has a corrector.
+	 */
+	@Override
+	public ArrayList<String> getQueryTerms(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
+	{
+		ArrayList<String> terms = RetrievalModel.super.getQueryTerms(queryText, index, docProcessor);
+		return this.corrector == null ? terms : this.corrector.correct(terms, index);
+	}
+
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * Pruning is not included, as it does not change the results.
 	 */
 	@Override
-	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor)
+	public String getParameters()
+	{
+		return this.getClass().getName() + "(proximity=" + this.proximityWeight
+				+ (this.corrector == null ? "" : ", " + this.corrector.getParameters()) + ")";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Cosine only scores with the inverted index, the term statistics when pruning and the positions when boosting by
+	 * proximity. The positions of phrases between double quotes are opened on first use.
+	 */
+	@Override
+	public Set<Index.Component> getRequiredComponents()
+	{
+		EnumSet<Index.Component> components = EnumSet.copyOf(Index.CORE_COMPONENTS);
+		if (this.pruning)
+			components.add(Index.Component.TERM_STATISTICS);
+		if (this.proximityWeight > 0)
+			components.add(Index.Component.POSITIONS);
+		if (this.corrector != null)
+			components.add(Index.Component.FUZZY_TERMS);
+		return components;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k)
 	{
             // P1
-            // extraer términos de la consulta
-            ArrayList<String> queryTokens = docProcessor.processText(queryText);
+            QueryStats stats = QueryStats.current();
+            // extraer términos de la consulta, su parte booleana si la tiene, y frases y proximidad si el índice tiene posiciones
+            long start = QueryStats.start();
+            BooleanQuery filter = BooleanQuery.create(queryText, index, docProcessor, corrector);
+            ArrayList<String> queryTokens = filter != null ? filter.getTerms() : docProcessor.processText(queryText);
+            if(filter == null && corrector != null)
+                queryTokens = corrector.correct(queryTokens, index);
+            PositionalQuery positional = PositionalQuery.create(filter != null ? filter.getText() : queryText, index, docProcessor, proximityWeight);
+            stats.analysisNanos += QueryStats.elapsed(start);
             // calcular el vector consulta
+            start = QueryStats.start();
             ArrayList<Tuple<Integer, Double>> queryVector = computeVector(queryTokens, index);
-            // calcular similitud de documentos
-            ArrayList<Tuple<Integer, Double>> res = computeScores(queryVector, index);
+            stats.vectorNanos += QueryStats.elapsed(start);
+            stats.queryTerms += queryVector.size();
+            // calcular similitud de documentos, solo de los que contienen las frases si las hay
+            ArrayList<Tuple<Integer, Double>> res = computeScores(queryVector, index, positional == null ? k : positional.getDepth(k), BooleanQuery.restrict(filter, positional, index));
+            if(positional != null){
+                start = QueryStats.start();
+                res = positional.rerank(res, proximityWeight, k);
+                stats.scoringNanos += QueryStats.elapsed(start);
+            }
              
             return res; // devolver resultados
 	}
 
 	/**
-	 * Returns the list of documents in the specified index sorted by similarity with the specified query vector.
+	 * Returns the {@code k} documents in the specified index most similar to the specified query vector, sorted by
+	 * similarity. If the query has a Boolean part, only the documents that match it are scored.
 	 *
 	 * @param queryVector the vector with query term weights.
 	 * @param index       the index to search in.
+	 * @param k           the maximum number of documents to return.
+	 * @param filter      the Boolean part of the query, or {@code null} to score every document.
 	 * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
 	 */
-	protected ArrayList<Tuple<Integer, Double>> computeScores(ArrayList<Tuple<Integer, Double>> queryVector, Index index)
+	protected ArrayList<Tuple<Integer, Double>> computeScores(ArrayList<Tuple<Integer, Double>> queryVector, Index index, int k, BooleanQuery filter)
 	{   
-            ArrayList<Tuple<Integer, Double>> results = new ArrayList<>();
-            HashMap<Integer,Double> res  = new HashMap<Integer,Double>();
-                
             double normWtq = 0.0;
             for(Tuple<Integer,Double> qw : queryVector)
 		normWtq += qw.item2 * qw.item2;
             normWtq = Math.sqrt(normWtq);
+            QueryStats stats = QueryStats.current();
+            stats.postingLists += queryVector.size();
                 
+            if(filter != null)
+                return similitudBooleana(queryVector, index, normWtq, k, filter);
+            if(pruning && k < index.getNumDocuments())
+                return similitudMaxScore(queryVector, index, normWtq, k);
+
+            long start = QueryStats.start();
+            ScoreAccumulator res = ScoreAccumulator.get(index.getNumDocuments());
             similitudNormal(queryVector, index, normWtq, res);
-            for(Map.Entry<Integer,Double> e : res.entrySet() ){
-                results.add(new Tuple<Integer, Double>(e.getKey(),e.getValue()));
-            }
+            stats.scoringNanos += QueryStats.elapsed(start);
+            stats.accumulators += res.size();
 
             // Ordenar documentos por similitud y devolver
-            Collections.sort(results, new Comparator<Tuple<Integer, Double>>(){
-                @Override
-                public int compare(Tuple<Integer, Double> o1, Tuple<Integer, Double> o2){
-                    return o2.item2.compareTo(o1.item2);
-                }
-            });
-            return results;
+            start = QueryStats.start();
+            ArrayList<Tuple<Integer, Double>> top = res.topK(k);
+            stats.sortingNanos += QueryStats.elapsed(start);
+            return top;
 	}
         
         
         // Método que hace uso del cálculo de la similitud por defecto.
-        void similitudNormal(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, HashMap<Integer,Double> res){
+        void similitudNormal(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, ScoreAccumulator res){
+            QueryStats stats = QueryStats.current();
             for(Tuple<Integer,Double> qw : queryVector){//for each query word
-                for(Tuple<Integer, Double> docsW : index.invertedIndex.get(qw.item1)) {
-                    if(res.containsKey(docsW.item1) == false)
-                        res.put(docsW.item1, 0.0);
-                    res.replace(docsW.item1,  res.get(docsW.item1) + (((docsW.item2) * (qw.item2))/((index.documents.get(docsW.item1).item2)*(normWtq))));  
+                PostingsList postings = index.getInvertedPostings(qw.item1);
+                stats.postingsScored += postings.size();
+                for(int i = 0; i < postings.size(); i++) {
+                    int docID = postings.getID(i);
+                    res.add(docID, (((postings.getWeight(i)) * (qw.item2))/((index.getDocumentNorm(docID))*(normWtq))));  
                 }
             }          
         }
         
+        // Igual que similitudNormal, pero con poda dinámica MaxScore para obtener solo los k mejores documentos.
+        // La cota de cada término es su mayor peso normalizado en el índice por su peso en la consulta.
+        ArrayList<Tuple<Integer, Double>> similitudMaxScore(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, int k){
+            final PostingsList[] lists = new PostingsList[queryVector.size()];
+            final double[] queryWeights = new double[queryVector.size()];
+            double[] upperBounds = new double[queryVector.size()];
+            double[] maxNormWeight = index.getTermStatistics().maxNormWeight;
+            for(int t = 0; t < queryVector.size(); t++){
+                Tuple<Integer,Double> qw = queryVector.get(t);
+                lists[t] = index.getInvertedPostings(qw.item1);
+                queryWeights[t] = qw.item2;
+                upperBounds[t] = Math.max(0, maxNormWeight[qw.item1] * qw.item2 / normWtq);
+            }
+            return MaxScore.run(lists, upperBounds, new MaxScore.PostingScorer(){
+                @Override
+                public double score(int term, int docID, double weight){
+                    return ((weight) * (queryWeights[term]))/((index.getDocumentNorm(docID))*(normWtq));
+                }
+            }, k);
+        }
+        
+        // Igual que similitudNormal, pero solo para los documentos que cumplen la parte booleana de la consulta,
+        // que se buscan en las postings de cada término en lugar de recorrerlas enteras.
+        ArrayList<Tuple<Integer, Double>> similitudBooleana(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, int k, BooleanQuery filter){
+            final PostingsList[] lists = new PostingsList[queryVector.size()];
+            final double[] queryWeights = new double[queryVector.size()];
+            for(int t = 0; t < queryVector.size(); t++){
+                lists[t] = index.getInvertedPostings(queryVector.get(t).item1);
+                queryWeights[t] = queryVector.get(t).item2;
+            }
+            return filter.rank(lists, new MaxScore.PostingScorer(){
+                @Override
+                public double score(int term, int docID, double weight){
+                    return ((weight) * (queryWeights[term]))/((index.getDocumentNorm(docID))*(normWtq));
+                }
+            }, k);
+        }
+        
         // Método Dice
         // En teoría o en el enlace inferior.
         // https://en.wikipedia.org/wiki/S%C3%B8rensen%E2%80%93Dice_coefficient Mitad de la página. (Valor absoluto no es necesario en nuestro caso)
-        void DiceScore(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, HashMap<Integer,Double> res){
+        void DiceScore(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, ScoreAccumulator res){
             for(Tuple<Integer,Double> qw : queryVector){//for each query word
-                for(Tuple<Integer, Double> docsW : index.invertedIndex.get(qw.item1)) {
-                    if(res.containsKey(docsW.item1) == false)
-                        res.put(docsW.item1, 0.0);
-                    res.replace(docsW.item1,  res.get(docsW.item1) + (2 * (docsW.item2) * (qw.item2))
-                    /(Math.pow(index.documents.get(docsW.item1).item2, 2) + Math.pow(normWtq, 2)));
+                PostingsList postings = index.getInvertedPostings(qw.item1);
+                for(int i = 0; i < postings.size(); i++) {
+                    int docID = postings.getID(i);
+                    res.add(docID, (2 * (postings.getWeight(i)) * (qw.item2))
+                    /(Math.pow(index.getDocumentNorm(docID), 2) + Math.pow(normWtq, 2)));
                 }
             }  
         }
@@ -88,16 +228,18 @@ public class Cosine implements RetrievalModel
         // Método de Jaccard
         // En teoría o en enlace inferior.
         // https://en.wikipedia.org/wiki/Jaccard_index  Al final de la página.
-        void JaccardScore(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, HashMap<Integer,Double> res){
+        void JaccardScore(ArrayList<Tuple<Integer, Double>> queryVector, Index index, double normWtq, ScoreAccumulator res){
             for(Tuple<Integer,Double> qw : queryVector){//for each query word
-                for(Tuple<Integer, Double> docsW : index.invertedIndex.get(qw.item1)) {
-                    if(res.containsKey(docsW.item1) == false)
-                        res.put(docsW.item1, 0.0);
-                    res.replace(docsW.item1,  res.get(docsW.item1) + ((docsW.item2) * (qw.item2)));
+                PostingsList postings = index.getInvertedPostings(qw.item1);
+                for(int i = 0; i < postings.size(); i++) {
+                    int docID = postings.getID(i);
+                    res.add(docID, ((postings.getWeight(i)) * (qw.item2)));
                 }
             }
-            for(Integer key : res.keySet())
-                res.replace(key, (res.get(key))/(Math.pow(index.documents.get(key).item2, 2) + Math.pow(normWtq, 2) - res.get(key)));
+            for(int i = 0; i < res.size(); i++){
+                int key = res.getDoc(i);
+                res.setScore(key, (res.getScore(key))/(Math.pow(index.getDocumentNorm(key), 2) + Math.pow(normWtq, 2) - res.getScore(key)));
+            }
         }
         
         
@@ -130,7 +272,7 @@ public class Cosine implements RetrievalModel
                     
             int id_term;
             for(Map.Entry<String,Integer> e : ftqAll.entrySet() ){
-                Tuple<Integer, Double> termInfo = index.vocabulary.get(e.getKey());
+                Tuple<Integer, Double> termInfo = index.getTerm(e.getKey());
                 if(termInfo == null)continue;
                 id_term = termInfo.item1; idft = termInfo.item2;
                 tftq = 1 + Math.log(e.getValue());
@@ -1,8 +1,8 @@
 package ti;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Set;
 
 /**
  * Implements retrieval in a vector space with the cosine similarity function and a TFxIDF weight formulation,
@@ -10,10 +10,23 @@ import java.util.Map;
  */
 public class CosineWithFeedback extends Cosine
 {
+	/**
+	 * The default maximum number of terms that relevance feedback adds to the query.
+	 */
+	public static final int DEFAULT_EXPANSION_TERMS = 50;
+	/**
+	 * The maximum number of expansion terms that adds every term with a positive weight, as the original feedback.
+	 */
+	public static final int UNBOUNDED_EXPANSION = Integer.MAX_VALUE;
+
 	protected int feedbackDepth;
 	protected double feedbackAlpha;
 	protected double feedbackBeta;
         protected double feedbackGamma;
+	protected int expansionTerms = DEFAULT_EXPANSION_TERMS;
+
+	// Vector de cada hilo para calcular la consulta expandida, indexado por termID
+	protected static final ThreadLocal<ScoreAccumulator> FEEDBACK_VECTORS = ThreadLocal.withInitial(ScoreAccumulator::new);
 
 	/**
 	 * Creates a new retriver with the specified pseudorelevance feedback parameters.
@@ -31,40 +44,108 @@ public class CosineWithFeedback extends Cosine
 		this.feedbackGamma = feedbackGamma;
 	}
 
+	/**
+	 * Sets the maximum number of terms that relevance feedback adds to the query, those with the highest weight, which
+	 * is {@link #DEFAULT_EXPANSION_TERMS} by default. The terms of the original query are always kept if their weight
+	 * is positive.
+	 *
+	 * @param expansionTerms the maximum number of terms to add, or {@link #UNBOUNDED_EXPANSION} to add all of them.
+	 */
+	public void setExpansionTerms(int expansionTerms)
+	{
+		this.expansionTerms = expansionTerms;
+	}
+
+	/**
+	 * Returns the maximum number of terms that relevance feedback adds to the query.
+	 *
+	 * @return the maximum number of terms, as {@link #setExpansionTerms}.
+	 */
+	public int getExpansionTerms()
+	{
+		return this.expansionTerms;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor)
+	public String getParameters()
+	{
+		return this.getClass().getName() + "(proximity=" + this.proximityWeight + ", depth=" + this.feedbackDepth
+				+ ", alpha=" + this.feedbackAlpha + ", beta=" + this.feedbackBeta + ", gamma=" + this.feedbackGamma
+				+ ", expansion=" + this.expansionTerms
+				+ (this.corrector == null ? "" : ", " + this.corrector.getParameters()) + ")";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Feedback also reads the direct postings of the top documents, the weight sums of the term statistics and the
+	 * number of documents.
+	 */
+	@Override
+	public Set<Index.Component> getRequiredComponents()
+	{
+		Set<Index.Component> components = super.getRequiredComponents();
+		components.add(Index.Component.DIRECT);
+		components.add(Index.Component.TERM_STATISTICS);
+		components.add(Index.Component.COLLECTION_STATISTICS);
+		return components;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k)
 	{
             // P4
+            QueryStats stats = QueryStats.current();
             // calcular resultados iniciales
-            // Extraer los términos de la consulta.
-            ArrayList<String> queryTokens = docProcessor.processText(queryText); 
+            // Extraer los términos de la consulta, su parte booleana si la tiene, y las frases si el índice tiene posiciones.
+            long start = QueryStats.start();
+            BooleanQuery filter = BooleanQuery.create(queryText, index, docProcessor, corrector);
+            ArrayList<String> queryTokens = filter != null ? filter.getTerms() : docProcessor.processText(queryText); 
+            if(filter == null && corrector != null)
+                queryTokens = corrector.correct(queryTokens, index);
+            PositionalQuery positional = PositionalQuery.create(filter != null ? filter.getText() : queryText, index, docProcessor, proximityWeight);
+            stats.analysisNanos += QueryStats.elapsed(start);
             // Calcular el vector inicial.
+            start = QueryStats.start();
             ArrayList<Tuple<Integer, Double>> queryVector = super.computeVector(queryTokens, index);
+            stats.vectorNanos += QueryStats.elapsed(start);
+            stats.queryTerms += queryVector.size();
             
-            // calcular similitud de documentos
-            ArrayList<Tuple<Integer, Double>> similDocs = super.computeScores(queryVector, index);
-            
-            //Obtener los primeros k documentos para q0
-            ArrayList<Tuple<Integer, Double>> docs = new ArrayList<Tuple<Integer, Double>>(similDocs.subList(0, feedbackDepth));
+            // calcular similitud de documentos y obtener los primeros feedbackDepth documentos para q0
+            ArrayList<Tuple<Integer, Double>> docs = super.computeScores(queryVector, index, feedbackDepth, filter);
             
             // actualizar vector consulta
+            start = QueryStats.start();
             queryVector = computeFeedbackVector(queryVector, docs, index);
+            stats.feedbackNanos += QueryStats.elapsed(start);
+            stats.feedbackTerms += queryVector.size();
 	    
-            // volver a ejecutar consulta
-            ArrayList<Tuple<Integer, Double>> docsWithFeedback = super.computeScores(queryVector, index);
-            
-            return new ArrayList<Tuple<Integer, Double>>(docsWithFeedback.subList(0, 
-                    (500 > docsWithFeedback.size() ? docsWithFeedback.size() : 500))); // y devolver resultados
+            // volver a ejecutar consulta, con frases y proximidad si el índice tiene posiciones
+            if(positional == null)
+                return super.computeScores(queryVector, index, k, filter); // y devolver resultados
+            ArrayList<Tuple<Integer, Double>> res = super.computeScores(queryVector, index, positional.getDepth(k), BooleanQuery.restrict(filter, positional, index));
+            start = QueryStats.start();
+            res = positional.rerank(res, proximityWeight, k);
+            stats.scoringNanos += QueryStats.elapsed(start);
+            return res;
         }
 
 	/**
-	 * Computes the modified query vector for relevance feedback.
+	 * Computes the modified query vector for relevance feedback, with the Rocchio formula.
+	 * <p>
+	 * The centroid of the relevant documents is computed from their direct postings. The centroid of the non-relevant
+	 * ones, the rest of the collection, comes from the sums of weights of the {@link TermStatistics} minus those of the
+	 * relevant documents, so it costs the same for any term. Only the terms with a positive weight are kept and, of
+	 * those not in the original query, only the best ones, up to the limit of {@link #setExpansionTerms}.
 	 *
 	 * @param queryVector the original query vector.
-	 * @param results     the results with the original query.
+	 * @param results     the results with the original query, which are considered relevant.
 	 * @param index       the index to search in.
 	 * @return a list of {@code Tuple}s with the {@code termID} as first item and the weight as second one.
 	 */
@@ -72,42 +153,41 @@ public class CosineWithFeedback extends Cosine
 	                                                                  ArrayList<Tuple<Integer, Double>> results,
 	                                                                  Index index)
 	{
-            HashMap<Integer, Double> newVocab = new HashMap<>();
-           
-            for(Tuple<Integer, Double> queryTerm : queryVector){
-                if(newVocab.containsKey(queryTerm.item1) == false)
-                    newVocab.put(queryTerm.item1, 0.0);
-                newVocab.put(queryTerm.item1, feedbackAlpha * queryTerm.item2); //primera parte de la ecuacion de rocchio 
-            }
-            
-            HashMap<Integer, Double> relevantsDocs = new HashMap<>();
-            for(Tuple<Integer, Double> doc : results)
-                relevantsDocs.put(doc.item1, doc.item2);
-            
-            for(Map.Entry<Integer, Double> doc : relevantsDocs.entrySet()){
-                for(Tuple<Integer, Double> term : index.directIndex.get(doc.getKey())){
-                    if(newVocab.containsKey(term.item1) == false)
-                        newVocab.put(term.item1, 0.0);
-                    newVocab.put(term.item1, newVocab.get(term.item1) + (feedbackBeta * 1/feedbackDepth * term.item2));
-                }
+            ScoreAccumulator weights = FEEDBACK_VECTORS.get();
+            weights.reset(index.getNumTerms());
+            int[] queryTerms = new int[queryVector.size()];
+            for(int t = 0; t < queryVector.size(); t++){
+                queryTerms[t] = queryVector.get(t).item1;
+                weights.add(queryTerms[t], feedbackAlpha * queryVector.get(t).item2); //primera parte de la ecuacion de rocchio
             }
-            
-            int docsNotRelevant = index.documents.size() - feedbackDepth;
-            for(Map.Entry<Integer, Double> e : newVocab.entrySet()){
-                for(Tuple<Integer, Double> docWeight : index.invertedIndex.get(e.getKey())){
-                    if(relevantsDocs.containsKey(e.getKey()) == false)
-                        newVocab.put(e.getKey(), newVocab.get(e.getKey()) - (feedbackGamma * 1/(docsNotRelevant) * docWeight.item2));
-                }
+            Arrays.sort(queryTerms);
+
+            // beta/|R| * sum(R) - gamma/|NR| * (sum(C) - sum(R)) = (beta/|R| + gamma/|NR|) * sum(R) - gamma/|NR| * sum(C)
+            int docsRelevant = results.size();
+            int docsNotRelevant = index.getCollectionStatistics().getNumDocuments() - docsRelevant;
+            double gamma = docsNotRelevant > 0 ? feedbackGamma / docsNotRelevant : 0;
+            double relevantFactor = (docsRelevant > 0 ? feedbackBeta / docsRelevant : 0) + gamma;
+            for(Tuple<Integer, Double> doc : results){
+                PostingsList terms = index.getDirectPostings(doc.item1);
+                for(int i = 0; i < terms.size(); i++)
+                    weights.add(terms.getID(i), relevantFactor * terms.getWeight(i));
             }
+            double[] weightSum = index.getTermStatistics().weightSum;
             
-            // P4
-            // Creo que no es necesario.
-            ArrayList<Tuple<Integer, Double>> weights = new ArrayList<>();
-            for(Map.Entry<Integer, Double> e : newVocab.entrySet()){
-                if(e.getValue() > 0)
-                    weights.add(new Tuple<Integer, Double>(e.getKey(), e.getValue()));
+            // Los términos de la consulta se mantienen siempre; los añadidos se limitan a los expansionTerms mejores
+            ArrayList<Tuple<Integer, Double>> vector = new ArrayList<>();
+            TopKHeap expansion = new TopKHeap(Math.min(expansionTerms, weights.size()));
+            for(int i = 0; i < weights.size(); i++){
+                int termID = weights.getDoc(i);
+                double weight = weights.getScore(termID) - gamma * weightSum[termID];
+                if(weight <= 0)
+                    continue;
+                if(Arrays.binarySearch(queryTerms, termID) >= 0)
+                    vector.add(new Tuple<Integer, Double>(termID, weight));
+                else
+                    expansion.offer(termID, weight);
             }
-            
-            return weights;
+            vector.addAll(expansion.toSortedList());
+            return vector;
 	}
 }
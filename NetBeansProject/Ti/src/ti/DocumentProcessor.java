@@ -23,4 +23,38 @@ public interface DocumentProcessor
 	 * @return the list of index terms.
 	 */
 	ArrayList<String> processText(String text);
+
+	/**
+	 * Process a document already split by {@link #parse} and return the list of terms to index.
+	 * <p>
+	 * It lets the indexer parse and analyze documents in separate steps. The default implementation processes the
+	 * title followed by the body with {@link #processText}; processors whose {@link #processText} parses the raw
+	 * document itself override it to skip parsing again.
+	 *
+	 * @param parsed a {@link Tuple} with the document title and the main body text, or {@code null} if the document
+	 *               could not be parsed.
+	 * @return the list of index terms, or {@code null} if there is nothing to index.
+	 */
+	default ArrayList<String> processParsed(Tuple<String, String> parsed)
+	{
+		if (parsed == null)
+			return null;
+		return this.processText(parsed.item1 + " " + parsed.item2);
+	}
+
+	/**
+	 * Process a document already split by {@link #parse} as {@link #processParsed(Tuple)} does, and record where each
+	 * term occurs in the document.
+	 * <p>
+	 * The default implementation records nothing, so snippets of the document are built from its beginning.
+	 *
+	 * @param parsed  a {@link Tuple} with the document title and the main body text, or {@code null} if the document
+	 *                could not be parsed.
+	 * @param offsets the object to record the offsets of the terms in, or {@code null} not to record them.
+	 * @return the list of index terms, or {@code null} if there is nothing to index.
+	 */
+	default ArrayList<String> processParsed(Tuple<String, String> parsed, TermOffsets offsets)
+	{
+		return this.processParsed(parsed);
+	}
 }
@@ -0,0 +1,497 @@
+package ti;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only store with the title and body of every document, used as the cache of the original documents.
+ * <p>
+ * Documents are compressed one per block with raw deflate, all with the same preset dictionary, which is sampled from
+ * the first documents added. The dictionary lets small blocks compress almost as well as large ones while any document
+ * can still be decoded on its own. Blocks are appended to segment files of up to {@code 2^30} bytes, and a table maps
+ * every {@code docID} to the position of its block:
+ * <pre>
+ * dictionary: bytes
+ * segmentN:   (compressedLength rawLength bytes[compressedLength])*
+ * offsets:    magic count pointer[count]
+ * </pre>
+ * where each pointer holds the segment in its high 32 bits and the position in the segment in the low ones, or is
+ * {@code -1} if the document is not stored. A decoded block is {@code titleLength title bodyLength body offsets}, with
+ * the title and body in UTF-8 and the {@link TermOffsets} of the document, if any, at the end.
+ * <p>
+ * Segments are read through {@link MappedFile}s, and the most recently read documents are kept decoded in memory.
+ * All methods are safe to call from several threads.
+ */
+public class DocumentStore implements Closeable
+{
+    protected static final int MAGIC = 0x54494453; // TIDS
+    protected static final long SEGMENT_SIZE = 1L << 30;
+    protected static final int DICTIONARY_SIZE = 32 * 1024;
+    protected static final int DICTIONARY_DOCUMENTS = 64;
+    protected static final int CACHE_DOCUMENTS = 1024;
+
+    protected final File directory;
+    protected byte[] dictionary;
+    protected ArrayList<byte[]> pending = new ArrayList<>();
+
+    protected long[] entryPointers = new long[16]; // [entry] -> pointer
+    protected int numEntries;
+    protected int[] documentEntries = new int[16]; // [docID] -> entry
+    protected int numDocuments;
+
+    protected OutputStream out;
+    protected Deflater deflater;
+    protected int segment;
+    protected long segmentLength;
+
+    protected final ArrayList<MappedFile> segments = new ArrayList<>();
+    protected final ThreadLocal<Inflater> inflaters = new ThreadLocal<>();
+    protected final LinkedHashMap<Integer, StoredDocument> cache;
+
+    protected DocumentStore(File directory)
+    {
+        this.directory = directory;
+        this.cache = new LinkedHashMap<Integer, StoredDocument>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, StoredDocument> eldest)
+            {
+                return this.size() > CACHE_DOCUMENTS;
+            }
+        };
+        Arrays.fill(this.documentEntries, -1);
+    }
+
+    /**
+     * Creates a new empty store in the specified directory, replacing any store already there.
+     *
+     * @param directory the directory of the store.
+     * @return the store, ready to append documents.
+     * @throws IOException if the directory can not be created.
+     */
+    public static DocumentStore create(File directory) throws IOException
+    {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Can not create directory " + directory + ".");
+        for (File file : directory.listFiles())
+            file.delete();
+        return new DocumentStore(directory);
+    }
+
+    /**
+     * Opens the store in the specified directory, to read documents or append new ones.
+     *
+     * @param directory the directory of the store.
+     * @return the store.
+     * @throws IOException if an error occurs while reading the store.
+     */
+    public static DocumentStore open(File directory) throws IOException
+    {
+        DocumentStore store = new DocumentStore(directory);
+        File dictionary = new File(directory, "dictionary");
+        if (dictionary.exists())
+            store.dictionary = Files.readAllBytes(dictionary.toPath());
+        MappedFile offsets = new MappedFile(new File(directory, "offsets"));
+        offsets.checkMagic(0, MAGIC);
+        int count = offsets.getInt(4);
+        store.entryPointers = new long[Math.max(16, count)];
+        store.documentEntries = new int[Math.max(16, count)];
+        Arrays.fill(store.documentEntries, -1);
+        for (int docID = 0; docID < count; docID++) {
+            store.entryPointers[docID] = offsets.getLong(8 + 8L * docID);
+            if (store.entryPointers[docID] >= 0)
+                store.documentEntries[docID] = docID;
+        }
+        offsets.close();
+        store.numEntries = count;
+        store.numDocuments = count;
+        while (new File(directory, "segment" + store.segment).exists())
+            store.segment++;
+        store.segment = Math.max(0, store.segment - 1);
+        store.segmentLength = new File(directory, "segment" + store.segment).length();
+        return store;
+    }
+
+    /**
+     * Appends a document without term offsets to the store.
+     *
+     * @param doc a {@link Tuple} with the title and body of the document.
+     * @return the entry of the document in the store, numbered in order of appending.
+     * @throws IOException if an error occurs while writing the document.
+     * @see #append(Tuple, TermOffsets)
+     */
+    public int append(Tuple<String, String> doc) throws IOException
+    {
+        return this.append(doc, null);
+    }
+
+    /**
+     * Appends a document to the store. It is not associated with any {@code docID} until {@link #setDocument} is
+     * called with the entry returned here.
+     *
+     * @param doc     a {@link Tuple} with the title and body of the document.
+     * @param offsets the offsets of the terms of the document, or {@code null} if they are not known.
+     * @return the entry of the document in the store, numbered in order of appending.
+     * @throws IOException if an error occurs while writing the document.
+     */
+    public synchronized int append(Tuple<String, String> doc, TermOffsets offsets) throws IOException
+    {
+        byte[] title = doc.item1.getBytes(StandardCharsets.UTF_8);
+        byte[] body = doc.item2.getBytes(StandardCharsets.UTF_8);
+        byte[] terms = offsets == null ? new byte[0] : offsets.toByteArray();
+        byte[] raw = new byte[8 + title.length + body.length + terms.length];
+        putInt(raw, 0, title.length);
+        System.arraycopy(title, 0, raw, 4, title.length);
+        putInt(raw, 4 + title.length, body.length);
+        System.arraycopy(body, 0, raw, 8 + title.length, body.length);
+        System.arraycopy(terms, 0, raw, 8 + title.length + body.length, terms.length);
+
+        if (this.numEntries == this.entryPointers.length)
+            this.entryPointers = Arrays.copyOf(this.entryPointers, 2 * this.numEntries);
+        int entry = this.numEntries++;
+        if (this.dictionary == null) {
+            // Hold the first documents back until there are enough samples for the dictionary
+            this.pending.add(raw);
+            if (this.pending.size() == DICTIONARY_DOCUMENTS)
+                this.flushPending();
+        } else {
+            this.entryPointers[entry] = this.write(raw);
+        }
+        return entry;
+    }
+
+    /**
+     * Associates a {@code docID} with a document appended to the store.
+     *
+     * @param docID the ID of the document.
+     * @param entry the entry returned by {@link #append}, or {@code -1} to remove the document.
+     */
+    public synchronized void setDocument(int docID, int entry)
+    {
+        if (docID >= this.documentEntries.length) {
+            int length = this.documentEntries.length;
+            this.documentEntries = Arrays.copyOf(this.documentEntries, Math.max(2 * length, docID + 1));
+            Arrays.fill(this.documentEntries, length, this.documentEntries.length, -1);
+        }
+        this.documentEntries[docID] = entry;
+        this.numDocuments = Math.max(this.numDocuments, docID + 1);
+        this.cache.remove(docID);
+    }
+
+    /**
+     * Returns the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return a {@link Tuple} containing the document title and its body, or {@code null} if it is not stored.
+     * @throws IOException if an error occurs while reading the document.
+     */
+    public Tuple<String, String> get(int docID) throws IOException
+    {
+        StoredDocument doc = this.getStored(docID);
+        return doc == null ? null : doc.text;
+    }
+
+    /**
+     * Returns the offsets of the terms of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return the offsets, or {@code null} if the document is not stored or was stored without offsets.
+     * @throws IOException if an error occurs while reading the document.
+     */
+    public TermOffsets getTermOffsets(int docID) throws IOException
+    {
+        StoredDocument doc = this.getStored(docID);
+        return doc == null ? null : doc.offsets;
+    }
+
+    /**
+     * Returns the specified document from the in-memory cache, or reads and decodes it.
+     */
+    protected StoredDocument getStored(int docID) throws IOException
+    {
+        long pointer;
+        byte[] raw = null;
+        synchronized (this) {
+            StoredDocument doc = this.cache.get(docID);
+            if (doc != null)
+                return doc;
+            int entry = docID < this.numDocuments ? this.documentEntries[docID] : -1;
+            if (entry < 0)
+                return null;
+            if (this.dictionary == null)
+                raw = this.pending.get(entry - (this.numEntries - this.pending.size()));
+            else if (this.out != null)
+                this.out.flush();
+            pointer = this.entryPointers[entry];
+        }
+        if (raw == null)
+            raw = this.read(pointer);
+        int titleLength = getInt(raw, 0);
+        int bodyLength = getInt(raw, 4 + titleLength);
+        int offsetsStart = 8 + titleLength + bodyLength;
+        StoredDocument doc = new StoredDocument(new Tuple<>(new String(raw, 4, titleLength, StandardCharsets.UTF_8),
+                new String(raw, 8 + titleLength, bodyLength, StandardCharsets.UTF_8)),
+                offsetsStart == raw.length ? null : TermOffsets.fromByteArray(raw, offsetsStart, raw.length));
+        synchronized (this) {
+            this.cache.put(docID, doc);
+        }
+        return doc;
+    }
+
+    protected static void putInt(byte[] data, int pos, int value)
+    {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    protected static int getInt(byte[] data, int pos)
+    {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8)
+                | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Returns the number of {@code docID}s in the table of the store, whether they are stored or not.
+     *
+     * @return the number of documents.
+     */
+    public synchronized int size()
+    {
+        return this.numDocuments;
+    }
+
+    /**
+     * Returns the total size of the segment files.
+     *
+     * @return the size in bytes.
+     */
+    public long getSegmentsLength()
+    {
+        return getSegmentsLength(this.directory);
+    }
+
+    /**
+     * Returns the total size of the segment files of the store in the specified directory, without opening it.
+     *
+     * @param directory the directory of the store.
+     * @return the size in bytes.
+     */
+    public static long getSegmentsLength(File directory)
+    {
+        long length = 0;
+        for (int s = 0; new File(directory, "segment" + s).exists(); s++)
+            length += new File(directory, "segment" + s).length();
+        return length;
+    }
+
+    /**
+     * Writes the pending documents and the table of offsets, so the store can be opened later.
+     *
+     * @throws IOException if an error occurs while writing.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (this.dictionary == null)
+            this.flushPending();
+        if (this.out != null)
+            this.out.flush();
+        try (IndexOutput offsets = new IndexOutput(new File(this.directory, "offsets"))) {
+            offsets.writeInt(MAGIC);
+            offsets.writeInt(this.numDocuments);
+            for (int docID = 0; docID < this.numDocuments; docID++) {
+                int entry = this.documentEntries[docID];
+                offsets.writeLong(entry < 0 ? -1 : this.entryPointers[entry]);
+            }
+        }
+    }
+
+    /**
+     * Flushes the store and closes the segment being written.
+     *
+     * @throws IOException if an error occurs while writing.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        this.flush();
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+        if (this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+        }
+    }
+
+    /**
+     * Unmaps the segments read so far, as {@link MappedFile#close}. They are mapped again if the store is read later.
+     */
+    public synchronized void unmapSegments()
+    {
+        for (MappedFile file : this.segments) {
+            if (file != null)
+                file.close();
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * Builds the dictionary from the documents held back so far, and writes them.
+     */
+    protected void flushPending() throws IOException
+    {
+        this.dictionary = buildDictionary(this.pending);
+        Files.write(new File(this.directory, "dictionary").toPath(), this.dictionary);
+        int first = this.numEntries - this.pending.size();
+        for (int i = 0; i < this.pending.size(); i++)
+            this.entryPointers[first + i] = this.write(this.pending.get(i));
+        this.pending = null;
+    }
+
+    /**
+     * Builds a preset dictionary from sample documents.
+     * <p>
+     * Deflate matches against the end of the dictionary first, so the dictionary is made of the beginning of every
+     * sample (where titles, navigation and other boilerplate usually are) up to {@link #DICTIONARY_SIZE} bytes.
+     *
+     * @param samples the decoded blocks of the sample documents.
+     * @return the dictionary.
+     */
+    protected static byte[] buildDictionary(ArrayList<byte[]> samples)
+    {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(DICTIONARY_SIZE);
+        int perSample = samples.isEmpty() ? 0 : DICTIONARY_SIZE / samples.size();
+        for (byte[] sample : samples)
+            dictionary.write(sample, 4, Math.min(perSample, sample.length - 8));
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Compresses a decoded block and appends it to the current segment.
+     *
+     * @return the pointer to the block.
+     */
+    protected long write(byte[] raw) throws IOException
+    {
+        if (this.deflater == null)
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.deflater.reset();
+        if (this.dictionary.length > 0)
+            this.deflater.setDictionary(this.dictionary);
+        this.deflater.setInput(raw);
+        this.deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!this.deflater.finished()) {
+            int n = this.deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+
+        long blockLength = 8 + compressed.size();
+        if (this.out != null && this.segmentLength + blockLength > SEGMENT_SIZE) {
+            this.out.close();
+            this.out = null;
+            this.segment++;
+            this.segmentLength = 0;
+        }
+        if (this.out == null)
+            this.out = new BufferedOutputStream(new FileOutputStream(new File(this.directory, "segment" + this.segment), true), 1 << 16);
+        DataOutputStream data = new DataOutputStream(this.out);
+        data.writeInt(compressed.size());
+        data.writeInt(raw.length);
+        compressed.writeTo(this.out);
+
+        long pointer = ((long) this.segment << 32) | this.segmentLength;
+        this.segmentLength += blockLength;
+        return pointer;
+    }
+
+    /**
+     * Reads and decompresses the block at the given pointer.
+     */
+    protected byte[] read(long pointer) throws IOException
+    {
+        int s = (int) (pointer >>> 32);
+        long pos = pointer & 0xffffffffL;
+        MappedFile file = this.getSegment(s, pos + 8);
+        int compressedLength = file.getInt(pos);
+        int rawLength = file.getInt(pos + 4);
+        file = this.getSegment(s, pos + 8 + compressedLength);
+        byte[] compressed = new byte[compressedLength];
+        file.getBytes(pos + 8, compressed, 0, compressedLength);
+
+        Inflater inflater = this.inflaters.get();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            this.inflaters.set(inflater);
+        }
+        inflater.reset();
+        if (this.dictionary.length > 0)
+            inflater.setDictionary(this.dictionary);
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += read;
+            }
+            if (n != rawLength)
+                throw new IOException("Truncated document in " + this.directory + ".");
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt document in " + this.directory + ".", ex);
+        }
+        return raw;
+    }
+
+    /**
+     * Returns the mapping of a segment that covers at least up to the given position, mapping it again if it has
+     * grown since it was mapped.
+     */
+    protected synchronized MappedFile getSegment(int s, long end) throws IOException
+    {
+        while (this.segments.size() <= s)
+            this.segments.add(null);
+        MappedFile file = this.segments.get(s);
+        if (file == null || file.length() < end) {
+            file = new MappedFile(new File(this.directory, "segment" + s));
+            this.segments.set(s, file);
+        }
+        return file;
+    }
+
+    /**
+     * A decoded document, as kept in the in-memory cache.
+     */
+    protected static class StoredDocument
+    {
+        protected final Tuple<String, String> text;
+        protected final TermOffsets offsets;
+
+        protected StoredDocument(Tuple<String, String> text, TermOffsets offsets)
+        {
+            this.text = text;
+            this.offsets = offsets;
+        }
+    }
+}
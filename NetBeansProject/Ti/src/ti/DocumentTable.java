@@ -0,0 +1,124 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * The list of documents of a loaded index, read in place from a {@link MappedFile}.
+ * <p>
+ * {@code [docID] -> (docName, norm)}
+ * <p>
+ * Norms are stored as a column indexed by {@code docID}, and names as UTF-8 bytes located through an offsets column:
+ * <pre>
+ * magic count norm[count] nameOffset[count+1] nameBytes
+ * </pre>
+ */
+public class DocumentTable
+{
+    protected static final int MAGIC = 0x54494431; // TID1
+
+    protected final MappedFile file;
+    protected final int count;
+    protected final long normsPos;
+    protected final long offsetsPos;
+    protected final long bytesPos;
+
+    protected DocumentTable(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        this.file = file;
+        this.count = file.getInt(4);
+        this.normsPos = 8;
+        this.offsetsPos = this.normsPos + 8L * this.count;
+        this.bytesPos = this.offsetsPos + 8L * (this.count + 1);
+    }
+
+    /**
+     * Maps the documents file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the document table.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static DocumentTable open(File path) throws IOException
+    {
+        return new DocumentTable(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the given documents to the specified path.
+     *
+     * @param path      the path to the file.
+     * @param documents the documents, where the {@code i}-th element contains the name and norm of the document
+     *                  with {@code docID=i}.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, ArrayList<Tuple<String, Double>> documents) throws IOException
+    {
+        ArrayList<byte[]> names = new ArrayList<>(documents.size());
+        for (Tuple<String, Double> doc : documents)
+            names.add(doc.item1.getBytes(StandardCharsets.UTF_8));
+
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(documents.size());
+            for (Tuple<String, Double> doc : documents)
+                out.writeDouble(doc.item2);
+            long offset = 0;
+            out.writeLong(offset);
+            for (byte[] name : names) {
+                offset += name.length;
+                out.writeLong(offset);
+            }
+            for (byte[] name : names)
+                out.write(name);
+        }
+    }
+
+    /**
+     * Returns the number of documents in the table.
+     *
+     * @return the number of documents.
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Returns the name of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return the document name.
+     */
+    public String getName(int docID)
+    {
+        long start = this.file.getLong(this.offsetsPos + 8L * docID);
+        long end = this.file.getLong(this.offsetsPos + 8L * (docID + 1));
+        byte[] name = new byte[(int) (end - start)];
+        for (int i = 0; i < name.length; i++)
+            name[i] = this.file.getByte(this.bytesPos + start + i);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the vector norm of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return the document norm.
+     */
+    public double getNorm(int docID)
+    {
+        return this.file.getDouble(this.normsPos + 8L * docID);
+    }
+}
@@ -0,0 +1,132 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A file with the raw frequency of every posting of the inverted index, read through a {@link MappedFile}.
+ * <p>
+ * The frequencies of each term are stored in the same order as its postings in the inverted index, so the {@code i}-th
+ * frequency of a term belongs to its {@code i}-th posting:
+ * <pre>
+ * magic count offset[count+1] (tf[size])[count]
+ * </pre>
+ * where {@code offset} is the position in the file of the frequencies of each term.
+ */
+public class FrequencyFile
+{
+    protected static final int MAGIC = 0x54494631; // TIF1
+
+    protected final MappedFile file;
+    protected final int count;
+    protected final long offsetsPos;
+
+    protected FrequencyFile(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        this.file = file;
+        this.count = file.getInt(4);
+        this.offsetsPos = 8;
+    }
+
+    /**
+     * Maps the frequency file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the frequency file.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static FrequencyFile open(File path) throws IOException
+    {
+        return new FrequencyFile(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the given frequencies to the specified path.
+     *
+     * @param path        the path to the file.
+     * @param frequencies the raw frequencies of the postings of each term.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, ArrayList<int[]> frequencies) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(frequencies.size());
+            long pos = 8 + 8L * (frequencies.size() + 1);
+            for (int[] tf : frequencies) {
+                out.writeLong(pos);
+                pos += 4L * tf.length;
+            }
+            out.writeLong(pos);
+            for (int[] tf : frequencies)
+                for (int f : tf)
+                    out.writeInt(f);
+        }
+    }
+
+    /**
+     * Returns the postings of a term with their raw frequencies as weights.
+     *
+     * @param termID   the {@code termID}.
+     * @param postings the postings list of the term in the inverted index.
+     * @return the postings list with the raw frequencies.
+     */
+    public PostingsList get(int termID, PostingsList postings)
+    {
+        return new FrequencyPostingsList(postings, this.file, this.file.getLong(this.offsetsPos + 8L * termID), null);
+    }
+
+    /**
+     * A view of a postings list whose weights are the raw term frequencies, read from a {@link FrequencyFile} or from
+     * an array in the heap.
+     */
+    protected static class FrequencyPostingsList implements PostingsList
+    {
+        protected final PostingsList postings;
+        protected final MappedFile file;
+        protected final long pos;
+        protected final int[] tf;
+
+        protected FrequencyPostingsList(PostingsList postings, MappedFile file, long pos, int[] tf)
+        {
+            this.postings = postings;
+            this.file = file;
+            this.pos = pos;
+            this.tf = tf;
+        }
+
+        @Override
+        public int size()
+        {
+            return this.postings.size();
+        }
+
+        @Override
+        public int getID(int i)
+        {
+            return this.postings.getID(i);
+        }
+
+        @Override
+        public double getWeight(int i)
+        {
+            return this.tf != null ? this.tf[i] : this.file.getInt(this.pos + 4L * i);
+        }
+
+        @Override
+        public int seek(int from, int target)
+        {
+            return this.postings.seek(from, target);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package ti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Finds the terms of a loaded index within a small edit distance of a term, read in place from a {@link MappedFile},
+ * with the symmetric delete algorithm of SymSpell.
+ * <p>
+ * Every term of the vocabulary is stored under each of the strings obtained by deleting up to {@link #MAX_DISTANCE}
+ * characters from its first {@link #PREFIX_LENGTH} characters. The deletes of a query term then find all the terms
+ * within that distance with a few hash lookups, whose candidates are checked with the Damerau-Levenshtein distance:
+ * <pre>
+ * magic maxDistance prefixLength numTerms bucketBits df[numTerms] termStart[numTerms+1] bucketStart[2^bucketBits+1]
+ * terms keys
+ * key: hash length term+
+ * </pre>
+ * Terms are identified by their position in the sort order of the {@link TermDictionary}, and stored again in UTF-8
+ * without front coding, so that each candidate is read directly instead of decoding its block of the dictionary. The
+ * keys are the hashes of the deletes, grouped in buckets by their top bits, each followed by the length in bytes of
+ * its list of terms, whose positions are stored as variable-byte deltas. The document frequency of every term is
+ * stored to rank the candidates without loading the {@link CollectionStatistics}.
+ */
+public class FuzzyTermIndex
+{
+    protected static final int MAGIC = 0x54494631; // TIF1
+    public static final int MAX_DISTANCE = 2;
+    public static final int PREFIX_LENGTH = 7;
+    protected static final int KEYS_PER_BUCKET = 4;
+
+    protected final MappedFile file;
+    protected final int maxDistance;
+    protected final int prefixLength;
+    protected final int numTerms;
+    protected final int bucketBits;
+    protected final long dfPos;
+    protected final long termStartPos;
+    protected final long bucketsPos;
+    protected final long termsPos;
+    protected final long keysPos;
+
+    protected FuzzyTermIndex(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        this.file = file;
+        this.maxDistance = file.getInt(4);
+        this.prefixLength = file.getInt(8);
+        this.numTerms = file.getInt(12);
+        this.bucketBits = file.getInt(16);
+        this.dfPos = 20;
+        this.termStartPos = this.dfPos + 4L * this.numTerms;
+        this.bucketsPos = this.termStartPos + 4L * (this.numTerms + 1);
+        this.termsPos = this.bucketsPos + 4L * ((1 << this.bucketBits) + 1);
+        this.keysPos = this.termsPos + file.getInt(this.termStartPos + 4L * this.numTerms);
+    }
+
+    /**
+     * Maps the fuzzy term index file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the fuzzy term index.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static FuzzyTermIndex open(File path) throws IOException
+    {
+        return new FuzzyTermIndex(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the fuzzy term index of the given vocabulary to the specified path.
+     *
+     * @param path       the path to the file.
+     * @param vocabulary the vocabulary, mapping each term onto its {@code termID} and IDF.
+     * @param df         the document frequency of every term, by {@code termID}.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, HashMap<String, Tuple<Integer, Double>> vocabulary, int[] df) throws IOException
+    {
+        // Mismo orden que el TermDictionary, cuyas posiciones identifican los términos
+        String[] terms = vocabulary.keySet().toArray(new String[vocabulary.size()]);
+        Arrays.sort(terms, TermDictionary.ORDER);
+
+        // Cada entrada es el hash del borrado en los 32 bits altos y el término en los bajos, ordenadas sin signo
+        long[] entries = new long[16];
+        int numEntries = 0;
+        int numKeys = 0;
+        HashSet<String> deletes = new HashSet<>();
+        for (int pos = 0; pos < terms.length; pos++) {
+            deletes.clear();
+            addDeletes(prefix(terms[pos], PREFIX_LENGTH), MAX_DISTANCE, deletes);
+            for (String delete : deletes) {
+                if (numEntries == entries.length)
+                    entries = Arrays.copyOf(entries, 2 * numEntries);
+                entries[numEntries++] = ((long) hash(delete) << 32 | pos) ^ Long.MIN_VALUE;
+            }
+        }
+        Arrays.sort(entries, 0, numEntries);
+        for (int i = 0; i < numEntries; i++) {
+            if (i == 0 || entries[i] >>> 32 != entries[i - 1] >>> 32)
+                numKeys++;
+        }
+
+        int bucketBits = 1;
+        while (bucketBits < 30 && (1 << bucketBits) * KEYS_PER_BUCKET < numKeys)
+            bucketBits++;
+        int[] bucketStart = new int[(1 << bucketBits) + 1];
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        int bucket = 0;
+        for (int i = 0; i < numEntries; ) {
+            int h = (int) ((entries[i] ^ Long.MIN_VALUE) >>> 32);
+            for (int b = bucket(h, bucketBits); bucket < b; )
+                bucketStart[++bucket] = keys.size();
+            list.reset();
+            int previous = 0;
+            for (; i < numEntries && (int) ((entries[i] ^ Long.MIN_VALUE) >>> 32) == h; i++) {
+                TermDictionary.writeVInt(list, (int) entries[i] - previous);
+                previous = (int) entries[i];
+            }
+            keys.write(h >>> 24);
+            keys.write(h >>> 16);
+            keys.write(h >>> 8);
+            keys.write(h);
+            TermDictionary.writeVInt(keys, list.size());
+            list.writeTo(keys);
+        }
+        while (bucket < bucketStart.length - 1)
+            bucketStart[++bucket] = keys.size();
+
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(MAX_DISTANCE);
+            out.writeInt(PREFIX_LENGTH);
+            out.writeInt(terms.length);
+            out.writeInt(bucketBits);
+            for (String term : terms)
+                out.writeInt(df[vocabulary.get(term).item1]);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            out.writeInt(0);
+            for (String term : terms) {
+                bytes.write(term.getBytes(StandardCharsets.UTF_8));
+                out.writeInt(bytes.size());
+            }
+            for (int start : bucketStart)
+                out.writeInt(start);
+            bytes.writeTo(out);
+            keys.writeTo(out);
+        }
+    }
+
+    /**
+     * Returns the maximum edit distance of the terms that can be found.
+     *
+     * @return the maximum distance.
+     */
+    public int getMaxDistance()
+    {
+        return this.maxDistance;
+    }
+
+    /**
+     * Finds the terms of the dictionary within the specified edit distance of a term, counting insertions, deletions,
+     * substitutions and transpositions of adjacent characters.
+     *
+     * @param term        the term, which does not need to be in the dictionary.
+     * @param maxDistance the maximum distance, up to {@link #getMaxDistance}.
+     * @return the terms found, the nearest first and, at the same distance, the most frequent first.
+     */
+    public ArrayList<Suggestion> lookup(String term, int maxDistance)
+    {
+        maxDistance = Math.min(maxDistance, this.maxDistance);
+        ArrayList<Suggestion> suggestions = new ArrayList<>();
+        HashSet<String> deletes = new HashSet<>();
+        addDeletes(prefix(term, this.prefixLength), maxDistance, deletes);
+        int[] candidates = new int[64];
+        int numCandidates = 0;
+        long[] cursor = new long[1];
+        for (String delete : deletes) {
+            int h = hash(delete);
+            int b = bucket(h, this.bucketBits);
+            long pos = this.keysPos + this.file.getInt(this.bucketsPos + 4L * b);
+            long end = this.keysPos + this.file.getInt(this.bucketsPos + 4L * (b + 1));
+            while (pos < end) {
+                int keyHash = this.file.getInt(pos);
+                cursor[0] = pos + 4;
+                int length = readVInt(cursor);
+                pos = cursor[0] + length;
+                if (keyHash != h)
+                    continue;
+                int termPos = 0;
+                while (cursor[0] < pos) {
+                    termPos += readVInt(cursor);
+                    if (numCandidates == candidates.length)
+                        candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+                    candidates[numCandidates++] = termPos;
+                }
+            }
+        }
+        // Un término puede aparecer bajo varios borrados
+        Arrays.sort(candidates, 0, numCandidates);
+        char[] query = term.toCharArray();
+        byte[] bytes = new byte[64];
+        char[] chars = new char[64];
+        for (int i = 0; i < numCandidates; i++) {
+            int termPos = candidates[i];
+            if (i > 0 && termPos == candidates[i - 1])
+                continue;
+            long start = this.file.getInt(this.termStartPos + 4L * termPos);
+            int length = (int) (this.file.getInt(this.termStartPos + 4L * termPos + 4) - start);
+            // Un término nunca tiene más caracteres que bytes
+            if (length < query.length - maxDistance)
+                continue;
+            if (bytes.length < length) {
+                bytes = new byte[2 * length];
+                chars = new char[2 * length];
+            }
+            this.file.getBytes(this.termsPos + start, bytes, 0, length);
+            // Los términos ASCII se comparan sin crear un String, que solo se crea si está a la distancia buscada
+            String candidate = null;
+            char[] candidateChars = chars;
+            int numChars = length;
+            for (int c = 0; c < length && candidate == null; c++) {
+                if (bytes[c] < 0) {
+                    candidate = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    candidateChars = candidate.toCharArray();
+                    numChars = candidateChars.length;
+                }
+                chars[c] = (char) bytes[c];
+            }
+            int distance = distance(query, query.length, candidateChars, numChars, maxDistance);
+            if (distance > maxDistance)
+                continue;
+            if (candidate == null)
+                candidate = new String(chars, 0, numChars);
+            suggestions.add(new Suggestion(candidate, distance, this.file.getInt(this.dfPos + 4L * termPos)));
+        }
+        suggestions.sort((s1, s2) -> s1.distance != s2.distance ? s1.distance - s2.distance
+                : s1.df != s2.df ? s2.df - s1.df : TermDictionary.ORDER.compare(s1.term, s2.term));
+        return suggestions;
+    }
+
+    /**
+     * Sorts suggestions for the same term from several dictionaries, merging the ones of the same term, whose
+     * document frequencies are added up.
+     *
+     * @param suggestions the suggestions.
+     * @return the merged suggestions, in the order of {@link #lookup}.
+     */
+    public static ArrayList<Suggestion> merge(ArrayList<Suggestion> suggestions)
+    {
+        HashMap<String, Suggestion> byTerm = new HashMap<>();
+        for (Suggestion s : suggestions)
+            byTerm.merge(s.term, s, (s1, s2) -> new Suggestion(s1.term, s1.distance, s1.df + s2.df));
+        ArrayList<Suggestion> merged = new ArrayList<>(byTerm.values());
+        merged.sort((s1, s2) -> s1.distance != s2.distance ? s1.distance - s2.distance
+                : s1.df != s2.df ? s2.df - s1.df : TermDictionary.ORDER.compare(s1.term, s2.term));
+        return merged;
+    }
+
+    /**
+     * Computes the Damerau-Levenshtein distance between two strings, in its optimal string alignment variant, giving
+     * up as soon as it exceeds the maximum.
+     *
+     * @param s1          the first string.
+     * @param s2          the second string.
+     * @param maxDistance the maximum distance of interest.
+     * @return the distance, or {@code maxDistance + 1} if it is greater than the maximum.
+     */
+    public static int distance(String s1, String s2, int maxDistance)
+    {
+        return distance(s1.toCharArray(), s1.length(), s2.toCharArray(), s2.length(), maxDistance);
+    }
+
+    protected static int distance(char[] s1, int n, char[] s2, int m, int maxDistance)
+    {
+        int max = maxDistance + 1;
+        if (Math.abs(n - m) >= max)
+            return max;
+        // Tres filas de la matriz: la anterior a la anterior, la anterior y la actual. Solo se calcula la banda de
+        // celdas a menos de max de la diagonal, las de fuera valen max
+        int[] prev2 = new int[m + 1];
+        int[] prev = new int[m + 1];
+        int[] row = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            prev[j] = Math.min(j, max);
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - maxDistance);
+            int to = Math.min(m, i + maxDistance);
+            row[0] = Math.min(i, max);
+            row[from - 1] = from == 1 ? row[0] : max;
+            if (to < m)
+                row[to + 1] = max;
+            int min = row[from - 1];
+            for (int j = from; j <= to; j++) {
+                int cost = s1[i - 1] == s2[j - 1] ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && s1[i - 1] == s2[j - 2] && s1[i - 2] == s2[j - 1])
+                    d = Math.min(d, prev2[j - 2] + 1);
+                row[j] = d;
+                min = Math.min(min, d);
+            }
+            if (min >= max)
+                return max;
+            int[] t = prev2;
+            prev2 = prev;
+            prev = row;
+            row = t;
+        }
+        return Math.min(prev[m], max);
+    }
+
+    // Lee un entero de longitud variable en la posición del cursor, y la avanza
+    protected int readVInt(long[] cursor)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.file.getByte(cursor[0]++);
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    protected static String prefix(String term, int length)
+    {
+        return term.length() <= length ? term : term.substring(0, length);
+    }
+
+    // Añade el término y todos los que resultan de borrarle hasta distance caracteres
+    protected static void addDeletes(String term, int distance, HashSet<String> deletes)
+    {
+        // Un borrado siempre se alcanza con la misma distancia restante, así que no se repite
+        if (!deletes.add(term) || distance == 0)
+            return;
+        for (int i = 0; i < term.length(); i++)
+            addDeletes(term.substring(0, i) + term.substring(i + 1), distance - 1, deletes);
+    }
+
+    protected static int hash(String delete)
+    {
+        return delete.hashCode() * 0x9e3779b9;
+    }
+
+    protected static int bucket(int hash, int bucketBits)
+    {
+        return hash >>> (32 - bucketBits);
+    }
+
+    /**
+     * A term found by a {@link FuzzyTermIndex}.
+     */
+    public static class Suggestion
+    {
+        /**
+         * The term of the dictionary.
+         */
+        public final String term;
+        /**
+         * Its edit distance to the term looked up.
+         */
+        public final int distance;
+        /**
+         * Its document frequency.
+         */
+        public final int df;
+
+        public Suggestion(String term, int distance, int df)
+        {
+            this.term = term;
+            this.distance = distance;
+            this.df = df;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.term + " (" + this.distance + ", " + this.df + ")";
+        }
+    }
+}
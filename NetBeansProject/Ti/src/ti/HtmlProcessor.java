@@ -7,7 +7,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import org.jsoup.*;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -20,6 +20,10 @@ public class HtmlProcessor implements DocumentProcessor
 
     // P3
     HashSet<String> stopWords;
+    protected final LongAdder tokenizedChars = new LongAdder();
+    protected final LongAdder tokenizeNanos = new LongAdder();
+    protected static final int STEM_CACHE_SIZE = 1 << 16;
+    protected final StemCache stemCache = new StemCache(STEM_CACHE_SIZE);
     /**
      * Creates a new HTML processor.
      *
@@ -64,37 +68,48 @@ public class HtmlProcessor implements DocumentProcessor
      */
     public ArrayList<String> processText(String text)
     {
-        ArrayList<String> terms = new ArrayList<>();
         // P3
-        // tokenizar, normalizar, stopword, stem, etc.
         //parse
-        Tuple<String, String> parsed = this.parse(text);
-        if(parsed == null)return null;
+        return this.processParsed(this.parse(text));
+    }
 
-        //tokenize
-        Tuple<ArrayList<String> , ArrayList<String> > tokenized  = new Tuple<>(this.tokenize(parsed.item1),this.tokenize(parsed.item2));
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<String> processParsed(Tuple<String, String> parsed)
+    {
+        return this.processParsed(parsed, null);
+    }
 
-        //Normalize
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<String> processParsed(Tuple<String, String> parsed, TermOffsets offsets)
+    {
+        ArrayList<String> terms = new ArrayList<>();
+        // tokenizar, normalizar, stopword, stem, etc.
+        if(parsed == null)return null;
+
+        //tokenize y normalize en una sola pasada
+        long start = System.nanoTime();
         ArrayList<String> termsNormalized = new ArrayList<>();
-        for(String s : tokenized.item1){
-            Tuple<String, String> normTerms = this.normalize(s);
-            if(normTerms.item1.length() > 1)
-                termsNormalized.add(normTerms.item1);
-            if(normTerms.item2.length() > 1)
-                termsNormalized.add(normTerms.item2);
-        }
-        for(String s : tokenized.item2){
-            Tuple<String, String> normTerms = this.normalize(s);
-            if(normTerms.item1.length() > 1)
-                termsNormalized.add(normTerms.item1);
-            if(normTerms.item2.length() > 1)
-                termsNormalized.add(normTerms.item2);
-        }
+        NormalizingSink sink = new NormalizingSink(termsNormalized, offsets != null);
+        this.scan(parsed.item1, sink);
+        sink.base = parsed.item1.length() + 1;
+        sink.position++; // para que ninguna frase cruce del título al cuerpo
+        this.scan(parsed.item2, sink);
+        this.tokenizedChars.add(parsed.item1.length() + parsed.item2.length());
+        this.tokenizeNanos.add(System.nanoTime() - start);
+
         //Stopwords y stemmer
         for(int i = 0 ; i < termsNormalized.size() ; ++i){
             if(isStopWord(termsNormalized.get(i)) == false){
                 String stemmed = stem(termsNormalized.get(i));
                 terms.add(stemmed);
+                if(offsets != null)
+                    offsets.add(stemmed, sink.spans[3 * i], sink.spans[3 * i + 1], sink.spans[3 * i + 2]);
             }
         }
         
@@ -112,6 +127,137 @@ public class HtmlProcessor implements DocumentProcessor
         return terms;
     }
 
+    /**
+     * Returns the throughput of tokenization and normalization so far, over all threads.
+     *
+     * @return the throughput in MB of text (one byte per character) per second, or {@code 0} if nothing has been
+     * tokenized yet.
+     */
+    public double getTokenizerThroughput()
+    {
+        long nanos = this.tokenizeNanos.sum();
+        return nanos == 0 ? 0 : this.tokenizedChars.sum() / 1024d / 1024d / (nanos / 1e9);
+    }
+
+    /**
+     * Receives the tokens found by {@link #scan}, as ranges of the scanned text.
+     */
+    protected interface TokenSink
+    {
+        void token(String text, int start, int end);
+    }
+
+    /**
+     * Normalizes every token as {@link #normalize} does, and adds the normalized term and its lowercase version
+     * when they are longer than one character. Discarded tokens are never copied out of the text.
+     * <p>
+     * It can also record the span of every term, as the start and end of its token plus {@link #base}, and its
+     * position, in {@link #spans}. The position counts the distinct starts of all tokens, kept or not, so terms from the
+     * same token share a position and discarded words still separate the words around them.
+     */
+    protected static class NormalizingSink implements TokenSink
+    {
+        protected final ArrayList<String> terms;
+        protected int[] spans; // [3 * i] -> start, [3 * i + 1] -> end, [3 * i + 2] -> position
+        protected int base;
+        protected int position = -1;
+        protected int lastStart = -1;
+
+        protected NormalizingSink(ArrayList<String> terms, boolean recordSpans)
+        {
+            this.terms = terms;
+            if (recordSpans)
+                this.spans = new int[256];
+        }
+
+        @Override
+        public void token(String text, int start, int end)
+        {
+            if (this.base + start != this.lastStart) {
+                this.lastStart = this.base + start;
+                this.position++;
+            }
+            if (end - start < 2)
+                return;
+            int kept = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9')
+                    return;
+                if (HtmlProcessor.isKeptByNormalize(c))
+                    kept++;
+            }
+            if (kept < 2)
+                return;
+            String normalized;
+            if (kept == end - start) {
+                normalized = text.substring(start, end);
+            } else {
+                char[] chars = new char[kept];
+                kept = 0;
+                for (int i = start; i < end; i++) {
+                    char c = text.charAt(i);
+                    if (HtmlProcessor.isKeptByNormalize(c))
+                        chars[kept++] = c;
+                }
+                normalized = new String(chars);
+            }
+            if (this.spans != null) {
+                // El span va del primer al último carácter que se conserva, sin la puntuación de los extremos
+                while (!HtmlProcessor.isKeptByNormalize(text.charAt(start)))
+                    start++;
+                while (!HtmlProcessor.isKeptByNormalize(text.charAt(end - 1)))
+                    end--;
+                int n = 3 * this.terms.size();
+                if (this.spans.length < n + 6)
+                    this.spans = Arrays.copyOf(this.spans, 2 * this.spans.length);
+                this.spans[n] = this.spans[n + 3] = this.base + start;
+                this.spans[n + 1] = this.spans[n + 4] = this.base + end;
+                this.spans[n + 2] = this.spans[n + 5] = this.position;
+            }
+            this.terms.add(normalized);
+            this.terms.add(normalized.toLowerCase());
+        }
+    }
+
+    // Caracteres que forman palabras; el resto separa palabras. El guión también separa, así que nunca hay palabras
+    // con guión.
+    protected static final boolean[] WORD_CHARS = new boolean[128];
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            WORD_CHARS[c] = WORD_CHARS[c - 'a' + 'A'] = true;
+        for (char c = '0'; c <= '9'; c++)
+            WORD_CHARS[c] = true;
+        for (char c : "':/*+=>?@.".toCharArray())
+            WORD_CHARS[c] = true;
+    }
+
+    protected static final int SPLIT_DOT = 1;
+    protected static final int SPLIT_AT = 2;
+    protected static final int SPLIT_URL = 4; // '/' y ':'
+
+    protected static boolean isWordChar(char c)
+    {
+        return c < 128 ? WORD_CHARS[c] : c == '’';
+    }
+
+    protected static boolean isAsciiLetterOrDigit(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    protected static boolean isKeptByNormalize(char c)
+    {
+        return (c >= 'A' && c <= 'z') || c == '-' || c == '@';
+    }
+
+    protected static boolean isSeparator(char c, int separators)
+    {
+        return ((separators & SPLIT_DOT) != 0 && c == '.')
+                || ((separators & SPLIT_AT) != 0 && c == '@')
+                || ((separators & SPLIT_URL) != 0 && (c == '/' || c == ':'));
+    }
+
     /**
      * Tokenize the given text.
      *
@@ -121,175 +267,163 @@ public class HtmlProcessor implements DocumentProcessor
     protected ArrayList<String> tokenize(String text)
     {
         // P3
-        ArrayList<String> tokens = new ArrayList<>();
-        
-        // Eliminamos puntos, comillas, símbolos varios y carácteres no ascii.
-        List<String> wordsSplited = Arrays.asList(text.replaceAll("[^A-Za-z0-9'’:/*+=-@.]", " ").split("\\s+"));
-        for(String word : wordsSplited){
-            
-            // Ejemplo parseo email.
-            //word = "nom.estudiant.upf@hotmail.com";
-            // Ejemplo parseo web.
-            //word = "http://youtube.com";
-            //word = "https://www.youtube.com.de.fr.org";
-            // Ejemplo parseo puntos.
-            //word = "www.upf.edu.org.j.p.k-d.es";
-            // Ejemplo hyphen
-            //word = "prueba-hyphen";
-            
-            // Mirar de parsear cosas como web2.0 a web2.0 web y 2.0.
-            
-            // Primero añadimos la palabra completa. Si no es valida será normalizada después.
-            tokens.add(word);
-            
-            // Ahora obtenemos otras posibles palabras a partir de la dada.
-            // Parsea URLS
-            if(parseWebsites(tokens, word));
-            else if(parseEmails(tokens, word));
-            else{
-                if(!parseWordsWithPoints(tokens, word)); // Si no contenia no habremos realizado ninguna comprovación de guiones.
-                    parseHyphenWords(tokens, word);
-            } 
-        }
-        
+        final ArrayList<String> tokens = new ArrayList<>();
+        this.scan(text, new TokenSink()
+        {
+            @Override
+            public void token(String text, int start, int end)
+            {
+                tokens.add(text.substring(start, end));
+            }
+        });
         return tokens;
     }
-    
-    // Parsea cosas tipo http:// o https://
-    // Dado https://www.youtube.com.de.fr.org ->
-    // Con add combinaciones y el primer substring obtenemos:
-    // www.youtube.com.de.fr.org, youtube.com.de.fr.org, com.de.fr.org, de.fr.org,
-    // fr.org, org, 
-    // Posteriormente con el bucle for:
-    // www, youtube, com, de, fr, org
-    protected boolean parseWebsites(ArrayList<String> tokens, String word){
-        
-        if(word.contains("http://")){
-            word = word.substring(7, word.length());
-            tokens.add(word);
-            
-            addCombinaciones(tokens, word);
-            
-            List<String> splitedWebpage = Arrays.asList(word.replaceAll("[./:]", " ").split("\\s+"));
-            for(String webWord : splitedWebpage){           
-                tokens.add(webWord);
-                parseHyphenWords(tokens, webWord);
-            }
-            return true;
+
+    /**
+     * Scans the given text in a single pass and sends its tokens to the sink, without regular expressions or
+     * intermediate strings.
+     * <p>
+     * Words are the runs of letters, digits and the characters {@code ' ’ : / * + = > ? @ .}; anything else,
+     * including hyphens, separates them. Every word is a token, followed by the sub-tokens of {@link #scanWord}.
+     * As the text used to be split with {@code split("\\s+")}, an empty token comes first if the text starts with a
+     * separator, and an empty text is a single empty token.
+     *
+     * @param text the text to tokenize.
+     * @param sink the sink that receives the tokens.
+     */
+    protected void scan(String text, TokenSink sink)
+    {
+        int length = text.length();
+        if (length == 0) {
+            sink.token(text, 0, 0);
+            return;
         }
-        else if(word.contains("https://")){
-            word = word.substring(8, word.length());
-            tokens.add(word);
-            
-            addCombinaciones(tokens, word);
-            
-            List<String> splitedWebpage = Arrays.asList(word.replaceAll("[./:]", " ").split("\\s+"));
-            for(String webWord : splitedWebpage){           
-                tokens.add(webWord);
-                parseHyphenWords(tokens, webWord);
-            }
-            return true;
+        boolean leadingSeparator = !isWordChar(text.charAt(0));
+        boolean first = true;
+        int i = 0;
+        while (true) {
+            while (i < length && !isWordChar(text.charAt(i)))
+                i++;
+            if (i == length)
+                break;
+            if (first && leadingSeparator)
+                sink.token(text, 0, 0);
+            first = false;
+            int start = i;
+            while (i < length && isWordChar(text.charAt(i)))
+                i++;
+            this.scanWord(text, start, i, sink);
         }
-        return false;
     }
-    
-    // Parsea emails.
-    // nom.estudiant.upf@hotmail.com -> 
-    // En el primer bucle for obtenemos: 
-    // nom.estudiant.upf@hotmail.com, nom.estudiant.upf, hotmail.com,
-    // estudiant.upf, upf, com.
-    // En el segundo:
-    // nom, estudiant, upf, hotmail, com
+
+    // Cada palabra se añade completa, y después las subpalabras que se obtienen de ella:
+    //
+    // URLs. Dado https://www.youtube.com.de.fr.org ->
+    // www.youtube.com.de.fr.org, youtube.com.de.fr.org, com.de.fr.org, de.fr.org, fr.org, org,
+    // y separando por [./:]: www, youtube, com, de, fr, org
+    // Se quitan los 7 u 8 primeros caracteres de la palabra, esté donde esté el http:// o https://.
+    //
+    // Emails. Dado nom.estudiant.upf@hotmail.com ->
+    // separando por @ y con sus sufijos: nom.estudiant.upf, estudiant.upf, upf, hotmail.com, com,
+    // y separando por @ y puntos: nom, estudiant, upf, hotmail, com
     // Aqui sacamos los puntos o de otra forma si tuvieran números al normalizar perderíamos datos.
-    protected boolean parseEmails(ArrayList<String> tokens, String word){
-        
-        if(word.contains("@")){
-            List<String> splitedWebpage = Arrays.asList(word.replace("@", " ").split("\\s+"));
-            for(String webWord : splitedWebpage){
-                tokens.add(webWord);
-                addCombinaciones(tokens, webWord);
-                parseHyphenWords(tokens,webWord);
-            }
-            
-            splitedWebpage = Arrays.asList(word.replace("@", " ").replace(".", " ").split("\\s+"));
-            for(String webWord : splitedWebpage){
-                tokens.add(webWord);
-                parseHyphenWords(tokens,webWord);
-            }
-            
-            return true;
+    //
+    // Palabras con puntos. Dado www.upf.edu.com -> www, upf, edu, com
+    protected void scanWord(String text, int start, int end, TokenSink sink)
+    {
+        sink.token(text, start, end);
+        int http = indexOf(text, start, end, "http://");
+        if (http >= 0 || indexOf(text, start, end, "https://") >= 0) {
+            int from = start + (http >= 0 ? 7 : 8);
+            sink.token(text, from, end);
+            addSuffixes(text, from, end, sink);
+            split(text, from, end, SPLIT_DOT | SPLIT_URL, false, sink);
+        } else if (indexOf(text, start, end, '@') >= 0) {
+            split(text, start, end, SPLIT_AT, true, sink);
+            split(text, start, end, SPLIT_AT | SPLIT_DOT, false, sink);
+        } else if (indexOf(text, start, end, '.') >= 0) {
+            split(text, start, end, SPLIT_DOT, false, sink);
         }
-        
-        return false;
     }
-    
-    // Dado www.upf.edu.org -> www.upf.edu.org, upf.edu.org, edu.org, org
-    protected void addCombinaciones(ArrayList<String> tokens, String word){
-        
-        String aux = word;
-        int pointPos = aux.indexOf(".");
-        while(pointPos != -1){
-            aux = aux.substring(aux.indexOf(".")+1, aux.length());
-            tokens.add(aux);
-            pointPos = aux.indexOf(".");
+
+    // Dado www.upf.edu.org -> upf.edu.org, edu.org, org
+    protected static void addSuffixes(String text, int start, int end, TokenSink sink)
+    {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '.')
+                sink.token(text, i + 1, end);
         }
     }
-    
-    // Parsea palabras con puntos. www.upf.edu.com -> www, upf, edu, com, también devuelve los resultado de hyphens si hay.
-    protected boolean  parseWordsWithPoints(ArrayList<String> tokens, String word){
-        
-        if(word.contains(".")){ // Parsea palabras con punto tipo www.web.com o hotmail.com cogemos www web y com o hotmail y com
-            List<String> splitedWebpage = Arrays.asList(word.replace(".", " ").split("\\s+"));
-            for(String webWord : splitedWebpage){
-                tokens.add(webWord);
-                parseHyphenWords(tokens, webWord);
-            }
-            return true;
+
+    // Separa como replace(separadores, " ").split("\\s+"): con una parte vacía al principio si empieza por un
+    // separador, ninguna al final, y una sola parte vacía si el texto es vacío.
+    protected static void split(String text, int start, int end, int separators, boolean suffixes, TokenSink sink)
+    {
+        if (start == end) {
+            sink.token(text, start, end);
+            return;
         }
+        boolean first = true;
+        int i = start;
+        while (true) {
+            while (i < end && isSeparator(text.charAt(i), separators))
+                i++;
+            if (i == end)
+                break;
+            if (first && i > start)
+                sink.token(text, start, start);
+            first = false;
+            int partStart = i;
+            while (i < end && !isSeparator(text.charAt(i), separators))
+                i++;
+            sink.token(text, partStart, i);
+            if (suffixes)
+                addSuffixes(text, partStart, i, sink);
+        }
+    }
 
-        return false;
+    protected static int indexOf(String text, int start, int end, String target)
+    {
+        for (int i = start; i + target.length() <= end; i++) {
+            if (text.startsWith(target, i))
+                return i;
+        }
+        return -1;
     }
-    
-    // Parsea palabras con guion. prueba1-prueba2 -> prueba1-prueba2, prueba1 prueba2, prueba1prueba2, prueba1, prueba2
-    protected void parseHyphenWords(ArrayList<String> tokens, String word){
-        
-        // Si tenemos palabras con guión las obtenemos de otra forma.
-        List<String> wordsWithoutSymbols = Arrays.asList(word.split("-"));
-        if(wordsWithoutSymbols.size() >  1  ){
-            //total 30000 palabras mas al añadir esto
-            
-            // Creo que este no es necesario ya teniendo en cuenta que se normaliza. Comprovar antes de eliminar.
-            tokens.add(word.replace("-", " "));      //Add the word as the same with spaces
-            
-            
-            tokens.add(word.replace("-", ""));      //Add the word as the same without -
-
-            for(String wordWithoutSymbols : wordsWithoutSymbols)
-                tokens.add(wordWithoutSymbols);   
+
+    protected static int indexOf(String text, int start, int end, char target)
+    {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == target)
+                return i;
         }
+        return -1;
     }
 
     /**
      * Normalize the given term.
+     * <p>
+     * Terms with digits, or made of a single character other than a letter or a digit, normalize to {@code ""}.
+     * Otherwise only letters, {@code -} and {@code @} are kept.
      *
      * @param text the term to normalize.
-     * @return the normalized term.
+     * @return the normalized term and its lowercase version.
      */
     protected Tuple<String,String> normalize(String text)
     {
-
         String normalized = "";
-
-        if(!text.matches("[^a-zA-Z0-9]")){ // Si contiene números o letras. Filtra cosas tipo: #--~//// o --
-            // Transformamos las palabras a minúsculas.
-            if(text.matches(".*\\d+.*")){ // Si contiene un número dentro.
-                if(normalized.endsWith(".")) // Le quitamos el último punto si lo tiene.
-                    normalized = normalized.substring(0, normalized.length()-1);
-                }
-            else
-                normalized = text.replaceAll("[^A-za-z-@]", "");
-            }
-        //System.out.println(normalized + " " + normalized.toLowerCase());
+        boolean digits = false;
+        StringBuilder kept = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits = true;
+            else if (isKeptByNormalize(c))
+                kept.append(c);
+        }
+        boolean singleSymbol = text.length() == 1 && !isAsciiLetterOrDigit(text.charAt(0));
+        if (!digits && !singleSymbol)
+            normalized = kept.toString();
 
         // Añadimos su versión en mayúsucula. Así podemos dar algo más de importancia a York ciudad que york jamon por e.j.
         return new Tuple<String, String>(normalized, normalized.toLowerCase());
@@ -316,16 +450,16 @@ public class HtmlProcessor implements DocumentProcessor
     protected String stem(String term)
     {
         // P3	
-        Stemmer stemer = new Stemmer();
-        char[] w = new char[term.length()];
-        term.getChars(0, term.length(), w, 0);
-        for(int i = 0 ; i < term.length() ; ++i){
-            stemer.add(w[i]);
-        }
-
-        stemer.stem();
-        String stem = stemer.toString();
+        return this.stemCache.stem(term);
+    }
 
-        return stem;
+    /**
+     * Returns the cache of stems of this processor, shared by all threads that use it.
+     *
+     * @return the stem cache.
+     */
+    public StemCache getStemCache()
+    {
+        return this.stemCache;
     }
 }
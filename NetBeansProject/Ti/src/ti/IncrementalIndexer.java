@@ -0,0 +1,426 @@
+package ti;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates an existing index without rebuilding it, by adding new segments to its {@link SegmentManifest}.
+ * <p>
+ * Every call to {@link #add} indexes the given documents into a new segment, a complete index in a subdirectory built
+ * with the same two passes as the {@link Indexer}. Adding a document with the name of one already in the index
+ * replaces it. Deleted and replaced documents are only marked in the manifest, so updates take time proportional to
+ * the new documents and the index built from the whole collection is never rewritten. The {@link SegmentedIndex}
+ * combines the segments at query time, with the statistics of the whole index that {@link #close} writes once for the
+ * last version of the manifest.
+ * <p>
+ * After every update a background thread merges small segments, so their number stays logarithmic in the number of
+ * documents added: whenever {@link #MERGE_FACTOR} segments have a similar number of documents, they are rewritten as
+ * one without their deleted documents. Segments with more than {@link #MAX_DELETED_RATIO} of their documents deleted
+ * are rewritten alone. The base segment is never merged; indexing the collection again with the {@link Indexer}
+ * replaces the whole index, segments included, with a new base segment.
+ * <p>
+ * Only one indexer may update an index at a time, which it ensures by locking the file {@link #LOCK_FILE} of the index
+ * until it is closed. The index can be read while it is updated. If a background merge fails, the segments it was
+ * merging stay as they were and {@link #close} reports the error.
+ */
+public class IncrementalIndexer extends Indexer implements Closeable
+{
+    public static final int MERGE_FACTOR = 4;
+    public static final double MAX_DELETED_RATIO = 0.5;
+    public static final String LOCK_FILE = "write.lock";
+
+    protected SegmentManifest manifest;
+    protected ExecutorService merger;
+    protected FileChannel lockChannel;
+    protected volatile IOException mergeError;
+
+    /**
+     * Creates a new incremental indexer for the index in the specified directory.
+     * New segments are positional and compressed if the base segment is.
+     * @param pathToIndex path to the index directory, which must hold an index built by the {@link Indexer}.
+     * @param docProcessor document processor to extract terms, as the one the index was built with.
+     * @throws IOException if an error occurs while reading the index, or if another indexer is updating it.
+     */
+    public IncrementalIndexer(File pathToIndex, DocumentProcessor docProcessor) throws IOException
+    {
+        super(pathToIndex, null, docProcessor);
+        // El cerrojo se toma antes de leer el manifiesto, para no partir de una versión que otro proceso va a sustituir
+        this.lockChannel = FileChannel.open(new File(pathToIndex, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = this.lockChannel.tryLock();
+            if (lock == null)
+                throw new IOException("The index " + pathToIndex + " is being updated by another process.");
+            this.manifest = SegmentManifest.read(pathToIndex);
+            this.positional = new File(pathToIndex, "positions").exists();
+            PostingsFile inverted = PostingsFile.open(new File(pathToIndex, "inverted"));
+            this.compress = inverted.isCompressed();
+            inverted.close();
+        } catch (IOException | RuntimeException ex) {
+            this.lockChannel.close();
+            throw ex;
+        }
+        this.merger = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Indexes the specified documents into a new segment, replacing the documents of the index with the same names.
+     * @param docFiles the paths to the original document files.
+     * @throws IOException if an error occurs while writing the segment.
+     */
+    public void add(List<File> docFiles) throws IOException
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        long startTime = System.currentTimeMillis();
+        String name;
+        synchronized (this) {
+            name = SegmentManifest.SEGMENT_PREFIX + this.manifest.nextSegment++;
+        }
+        File directory = new File(this.pathToIndex, name);
+
+        System.err.println("Adding " + docFiles.size() + " documents to " + name + "...");
+        Index ind = new Index(directory.getPath());
+        ind.setPositional(this.positional);
+        this.documentStore = DocumentStore.create(new File(directory, "docstore"));
+        long totalBytesDocuments = 0;
+        for (File docFile : docFiles) {
+            try {
+                this.processDocument(docFile, ind);
+                totalBytesDocuments += docFile.length();
+            } catch (IOException ex) {
+                System.err.println("  Exception indexing file " + docFile.getName() + ": " + ex.getMessage());
+            }
+        }
+        if (ind.documents.isEmpty()) {
+            this.documentStore.close();
+            deleteDirectory(directory);
+            System.err.println("...no documents added.");
+            return;
+        }
+
+        // Si un nombre se repite, solo cuenta el último documento
+        HashMap<String, Integer> names = new HashMap<>();
+        BitSet deleted = new BitSet();
+        for (int docID = 0; docID < ind.documents.size(); docID++) {
+            Integer previous = names.put(ind.documents.get(docID).item1, docID);
+            if (previous != null)
+                deleted.set(previous);
+        }
+        for (int docID = 0; docID < ind.documentEntries.size(); docID++)
+            this.documentStore.setDocument(docID, ind.documentEntries.get(docID));
+        this.secondPass(ind);
+        ind.setCompressed(this.compress);
+        ind.setDocumentStore(this.documentStore);
+        ind.save();
+        this.documentStore.close();
+
+        int replaced;
+        synchronized (this) {
+            replaced = this.markDeleted(names.keySet());
+            this.manifest.segments.add(new SegmentManifest.Segment(name, ind.documents.size(), deleted));
+            this.manifest.write(this.pathToIndex);
+        }
+        this.scheduleMerge();
+
+        long endTime = System.currentTimeMillis();
+        double totalTime = (endTime - startTime) / 1000d;
+        System.err.println("...done:");
+        System.err.println("  - Documents: " + ind.documents.size() + " (" + df.format(totalBytesDocuments / 1024d / 1024d)
+                + " MB), " + replaced + " replaced.");
+        System.err.println("  - Time: " + df.format(totalTime) + " seconds.");
+    }
+
+    /**
+     * Deletes the documents with the specified names from the index.
+     * @param names the names of the documents, as in the results of the search engine.
+     * @return the number of documents deleted.
+     * @throws IOException if an error occurs while writing the manifest.
+     */
+    public int delete(Collection<String> names) throws IOException
+    {
+        int count;
+        synchronized (this) {
+            count = this.markDeleted(new HashSet<>(names));
+            if (count > 0)
+                this.manifest.write(this.pathToIndex);
+        }
+        if (count > 0)
+            this.scheduleMerge();
+        return count;
+    }
+
+    /**
+     * Marks as deleted the documents of the current segments with any of the specified names.
+     * @param names the names of the documents.
+     * @return the number of documents marked.
+     * @throws IOException if an error occurs while reading the names of the documents.
+     */
+    protected synchronized int markDeleted(Collection<String> names) throws IOException
+    {
+        int count = 0;
+        for (SegmentManifest.Segment segment : this.manifest.segments) {
+            File directory = SegmentManifest.getDirectory(this.pathToIndex, segment);
+            DocumentTable documents = DocumentTable.open(new File(directory, "documents"));
+            try {
+                for (int docID = 0; docID < segment.numDocuments; docID++) {
+                    if (!segment.deleted.get(docID) && names.contains(documents.getName(docID))) {
+                        segment.deleted.set(docID);
+                        count++;
+                    }
+                }
+            } finally {
+                // Sin liberar el fichero, una fusión posterior no podría borrar el segmento en Windows
+                documents.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts merging segments in the background, if the merge policy finds any to merge.
+     * If a merge fails, no more merges are started, and the error is thrown by {@link #close}.
+     */
+    protected void scheduleMerge()
+    {
+        this.merger.submit(() -> {
+            if (this.mergeError != null)
+                return;
+            try {
+                List<SegmentManifest.Segment> sources;
+                while ((sources = this.findMerge()) != null)
+                    this.merge(sources);
+            } catch (IOException | RuntimeException ex) {
+                this.mergeError = ex instanceof IOException ? (IOException) ex
+                        : new IOException("Error merging segments: " + ex.getMessage(), ex);
+            }
+        });
+    }
+
+    /**
+     * Returns the next segments to merge according to the merge policy.
+     * @return the segments, or {@code null} if there is nothing to merge.
+     */
+    protected synchronized List<SegmentManifest.Segment> findMerge()
+    {
+        // El segmento base (el primero) nunca se fusiona
+        HashMap<Integer, List<SegmentManifest.Segment>> levels = new HashMap<>();
+        for (int s = 1; s < this.manifest.segments.size(); s++) {
+            SegmentManifest.Segment segment = this.manifest.segments.get(s);
+            if (segment.deleted.cardinality() > MAX_DELETED_RATIO * segment.numDocuments) {
+                List<SegmentManifest.Segment> single = new ArrayList<>();
+                single.add(segment);
+                return single;
+            }
+            int level = (int) (Math.log(Math.max(1, segment.getNumLiveDocuments())) / Math.log(MERGE_FACTOR));
+            List<SegmentManifest.Segment> segments = levels.computeIfAbsent(level, l -> new ArrayList<>());
+            segments.add(segment);
+            if (segments.size() == MERGE_FACTOR)
+                return segments;
+        }
+        return null;
+    }
+
+    /**
+     * Merges the specified segments into a new one without their deleted documents, and replaces them in the manifest.
+     * Documents deleted while the segments are merged are deleted from the new segment.
+     * @param sources the segments to merge, in the order of the manifest.
+     * @throws IOException if an error occurs while writing the new segment.
+     */
+    protected void merge(List<SegmentManifest.Segment> sources) throws IOException
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        long startTime = System.currentTimeMillis();
+        int number;
+        BitSet[] deleted = new BitSet[sources.size()];
+        synchronized (this) {
+            number = this.manifest.nextSegment++;
+            for (int s = 0; s < sources.size(); s++)
+                deleted[s] = (BitSet) sources.get(s).deleted.clone();
+        }
+        String name = SegmentManifest.SEGMENT_PREFIX + number;
+        File directory = new File(this.pathToIndex, name);
+        StringBuilder names = new StringBuilder();
+        for (SegmentManifest.Segment source : sources)
+            names.append(names.length() == 0 ? "" : ", ").append(source.name);
+        System.err.println("Merging " + names + " into " + name + "...");
+
+        int[][] docMap = new int[sources.size()][]; // [source][local docID] -> docID in the new segment, or -1
+        int numDocuments;
+        boolean committed = false;
+        try {
+            try (DocumentStore store = DocumentStore.create(new File(directory, "docstore"))) {
+                Index ind = new Index(directory.getPath());
+                ind.setPositional(this.positional);
+                for (int s = 0; s < sources.size(); s++) {
+                    Index source = new Index(SegmentManifest.getDirectory(this.pathToIndex, sources.get(s)).getPath());
+                    try {
+                        this.copySegment(source, sources.get(s), deleted[s], ind, store, docMap, s);
+                    } finally {
+                        // Nadie más lee estos ficheros, así que se liberan ya en lugar de esperar al recolector
+                        source.close();
+                    }
+                }
+                numDocuments = ind.documents.size();
+                if (numDocuments > 0) {
+                    for (int docID = 0; docID < numDocuments; docID++)
+                        store.setDocument(docID, ind.documentEntries.get(docID));
+                    this.secondPass(ind);
+                    ind.setCompressed(this.compress);
+                    ind.setDocumentStore(store);
+                    ind.save();
+                }
+            }
+
+            synchronized (this) {
+                BitSet newDeleted = new BitSet();
+                for (int s = 0; s < sources.size(); s++) {
+                    BitSet current = sources.get(s).deleted;
+                    for (int docID = current.nextSetBit(0); docID >= 0; docID = current.nextSetBit(docID + 1)) {
+                        if (docMap[s][docID] >= 0)
+                            newDeleted.set(docMap[s][docID]);
+                    }
+                }
+                ArrayList<SegmentManifest.Segment> previous = new ArrayList<>(this.manifest.segments);
+                int position = this.manifest.segments.indexOf(sources.get(0));
+                this.manifest.segments.removeAll(sources);
+                if (numDocuments > 0)
+                    this.manifest.segments.add(position, new SegmentManifest.Segment(name, numDocuments, newDeleted));
+                try {
+                    this.manifest.write(this.pathToIndex);
+                } catch (IOException ex) {
+                    this.manifest.segments.clear();
+                    this.manifest.segments.addAll(previous);
+                    throw ex;
+                }
+                committed = true;
+            }
+        } finally {
+            if (!committed) {
+                // Una fusión fallida no deja el segmento a medio escribir, ni gasta su número si nadie tomó otro
+                deleteDirectory(directory);
+                synchronized (this) {
+                    if (this.manifest.nextSegment == number + 1)
+                        this.manifest.nextSegment = number;
+                }
+            }
+        }
+        // Los lectores que ya abrieron los segmentos antiguos siguen leyendo sus ficheros mapeados
+        for (SegmentManifest.Segment source : sources)
+            deleteDirectory(SegmentManifest.getDirectory(this.pathToIndex, source));
+        if (numDocuments == 0)
+            deleteDirectory(directory);
+
+        double totalTime = (System.currentTimeMillis() - startTime) / 1000d;
+        System.err.println("...done: " + numDocuments + " documents in " + df.format(totalTime) + " seconds.");
+    }
+
+    /**
+     * Adds the documents of a segment that are not deleted to the segment being merged, with their raw frequencies,
+     * positions and cached documents.
+     * @param source  the index of the segment, not loaded yet.
+     * @param segment the segment.
+     * @param deleted the documents of the segment deleted when the merge started.
+     * @param ind     the index of the new segment.
+     * @param store   the document store of the new segment.
+     * @param docMap  the map from the documents of every segment to their {@code docID} in the new segment, where the
+     *                one of this segment is set.
+     * @param s       the position of the segment among those merged.
+     * @throws IOException if an error occurs while reading the segment.
+     */
+    protected void copySegment(Index source, SegmentManifest.Segment segment, BitSet deleted, Index ind,
+            DocumentStore store, int[][] docMap, int s) throws IOException
+    {
+        try {
+            source.load();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Can not load " + segment.name + ": " + ex.getMessage(), ex);
+        }
+        DocumentStore sourceStore = source.getDocumentStore();
+        docMap[s] = new int[source.getNumDocuments()];
+        for (int docID = 0; docID < docMap[s].length; docID++) {
+            if (deleted.get(docID)) {
+                docMap[s][docID] = -1;
+                continue;
+            }
+            docMap[s][docID] = ind.documents.size();
+            ind.documents.add(new Tuple<>(source.getDocumentName(docID), 0.0));
+            ind.directIndex.add(new ArrayPostingsList());
+            Tuple<String, String> doc = sourceStore == null ? null : sourceStore.get(docID);
+            ind.documentEntries.add(doc == null ? -1 : store.append(doc, sourceStore.getTermOffsets(docID)));
+        }
+
+        // Copiar las frecuencias sin procesar, que el segundo pase convierte en pesos
+        String[] terms = source.termDictionary.getTerms();
+        for (int local = 0; local < terms.length; local++) {
+            PostingsList tf = source.getFrequencyPostings(local);
+            PositionsFile.Cursor positions = this.positional ? source.getPositions(local) : null;
+            Tuple<Integer, Double> term = null;
+            for (int i = 0; i < tf.size(); i++) {
+                int docID = docMap[s][tf.getID(i)];
+                if (docID < 0)
+                    continue;
+                if (term == null && (term = ind.vocabulary.get(terms[local])) == null) {
+                    term = new Tuple<>(ind.vocabulary.size(), 0.0);
+                    ind.vocabulary.put(terms[local], term);
+                    ind.invertedIndex.add(new ArrayPostingsList());
+                    if (ind.positions != null)
+                        ind.positions.add(new PositionsFile.Builder());
+                }
+                ind.invertedIndex.get(term.item1).add(docID, tf.getWeight(i));
+                if (positions != null)
+                    ind.positions.get(term.item1).add(positions.get(i));
+            }
+        }
+    }
+
+    protected static void deleteDirectory(File directory)
+    {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory())
+                deleteDirectory(file);
+            else
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Waits for the background merges to finish, writes the statistics of the {@link SegmentedIndex} for the final
+     * version of the manifest and releases the lock of the index.
+     * @throws IOException if it is interrupted while waiting, if a merge failed or if the statistics can not be written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.merger.shutdown();
+        try {
+            this.merger.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            // Con el cerrojo aún tomado nadie cambia el manifiesto mientras se calculan
+            SegmentedIndex.writeStatistics(this.pathToIndex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging segments.", ex);
+        } finally {
+            this.lockChannel.close();
+        }
+        if (this.mergeError != null)
+            throw new IOException("Error merging segments: " + this.mergeError.getMessage(), this.mergeError);
+    }
+}
@@ -4,21 +4,65 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class represents the index of the search engine.
  * <p>
- * The structures it holds are: the term and document information, an inverse index, a direct index, and a cached version of the documents.
+ * The structures it holds are: the term and document information, an inverse index, a direct index, and a cached version of the documents in a {@link DocumentStore}.
  * <p>
  * The index can be loaded from and saved to some specified directory.
+ * <p>
+ * While an index is being built its structures live in the heap, in the public fields of this class. A loaded index
+ * maps the files in its directory instead (see {@link MappedFile}) and reads them in place, so those fields stay
+ * empty and the index must be accessed through methods such as {@link #getTerm} or {@link #getInvertedPostings}.
+ * <p>
+ * Each file of a loaded index is a {@link Component}. The vocabulary, the documents and the inverted index, which every
+ * retrieval model needs, are opened by {@link #load()}; the rest are opened on first use, or in advance and in
+ * parallel with {@link #load(Set)}.
+ * <p>
+ * An index is a {@link SearchableIndex} that is searched by running a {@link RetrievalModel} on its postings.
  */
-public class Index
+public class Index implements SearchableIndex
 {
-    protected final int DOCS_PER_CACHE_BLOCK = 20;
+    /**
+     * The components of a loaded index, each stored in its own file.
+     */
+    public enum Component
+    {
+        VOCABULARY("vocabulary"),
+        DOCUMENTS("documents"),
+        INVERTED("inverted"),
+        DIRECT("direct"),
+        FREQUENCIES("frequencies"),
+        POSITIONS("positions"),
+        TERM_STATISTICS("termstats"),
+        COLLECTION_STATISTICS("collection"),
+        FUZZY_TERMS("fuzzy");
+
+        /**
+         * The name of the file of the component in the directory of the index.
+         */
+        public final String fileName;
+
+        Component(String fileName)
+        {
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * The components opened by {@link #load()}, which all retrieval models use.
+     */
+    public static final Set<Component> CORE_COMPONENTS = EnumSet.of(Component.VOCABULARY, Component.DOCUMENTS,
+            Component.INVERTED);
 
     protected String path;
     /**
@@ -38,25 +82,58 @@ public class Index
      * The {@link Tuple} contains the {@code name} of the document and its vector {@code norm}.
      */
     public ArrayList<Tuple<String, Double>> documents; // [docID] -> (docName, norm)
-    public HashMap<Integer, Integer> documentsOkapi; // [docID] -> (length)
     /**
      * The inverted index.
      * <p>
      * {@code [termID] -> (docID, weight)+}
      * </p>
      * The {@code i}-th element corresponds to the postings list of the term with {@code termID=i}.
-     * Each posting is a {@link Tuple} containing a {@code docID} and the {@code weight} of the term in that document.
+     * Each posting contains a {@code docID} and the {@code weight} of the term in that document.
      */
-    public ArrayList<ArrayList<Tuple<Integer, Double>>> invertedIndex; // [termID] -> (docID, weight)+
+    public ArrayList<ArrayPostingsList> invertedIndex; // [termID] -> (docID, weight)+
     /**
      * The direct index.
      * <p>
      * {@code [docID] -> (termID, weight)+}
      * <p>
      * The {@code i}-th element corresponds to the postings list of the document with {@code docID=i}.
-     * Each posting is a {@link Tuple} containing a {@code termID} and the {@code weight} of that term in the document.
+     * Each posting contains a {@code termID} and the {@code weight} of that term in the document.
+     */
+    public ArrayList<ArrayPostingsList> directIndex; // [docID] -> (termID, weight)+
+    /**
+     * The raw term frequencies of the inverted index.
+     * <p>
+     * {@code [termID] -> tf+}
+     * <p>
+     * The {@code i}-th element holds the number of occurrences of the term with {@code termID=i} in each document of
+     * its postings list, in the same order.
+     */
+    public ArrayList<int[]> frequencies; // [termID] -> tf+
+    /**
+     * The positions of the postings of the inverted index, or {@code null} if the index is not positional.
+     * <p>
+     * {@code [termID] -> (position+)+}
+     * <p>
+     * The {@code i}-th element holds the positions of the term with {@code termID=i} in each document of its postings
+     * list, in the same order. See {@link #setPositional}.
      */
-    public ArrayList<ArrayList<Tuple<Integer, Double>>> directIndex; // [docID] -> (termID, weight)+
+    public ArrayList<PositionsFile.Builder> positions; // [termID] -> (position+)+
+
+    protected TermDictionary termDictionary;
+    protected DocumentTable documentTable;
+    protected PostingsFile invertedFile;
+    protected volatile PostingsFile directFile;
+    protected volatile FrequencyFile frequencyFile;
+    protected volatile PositionsFile positionsFile;
+    protected volatile FuzzyTermIndex fuzzyTermIndex;
+    protected TermStatistics termStatistics;
+    protected CollectionStatistics collectionStatistics;
+    protected boolean loaded;
+    protected boolean hasPositions;
+    protected final EnumMap<Component, Long> loadTimes = new EnumMap<>(Component.class); // [component] -> nanoseconds
+    protected DocumentStore documentStore;
+    protected ArrayList<Integer> documentEntries; // [docID] -> entry in the document store, while building
+    protected boolean compressed;
 
     /**
      * Creates a new index to be loaded from or stored in the specified directory.
@@ -67,121 +144,502 @@ public class Index
         this.path = path;
         this.vocabulary = new HashMap<>();
         this.documents = new ArrayList<>();
-        this.documentsOkapi = new HashMap<>();
         this.invertedIndex = new ArrayList<>();
         this.directIndex = new ArrayList<>();
+        this.frequencies = new ArrayList<>();
+        this.documentEntries = new ArrayList<>();
+    }
+
+    /**
+     * Sets whether {@link #save} compresses the inverted and direct indexes with the {@link PostingsCodec}.
+     * <p>
+     * Compressed files take a fraction of the space, but weights are quantized, so scores may differ slightly.
+     * @param compressed {@code true} to compress the postings lists.
+     */
+    public void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+    /**
+     * Runs the query with the specified model on this index, as {@link RetrievalModel#runQuery}.
+     * @param model the model to run the query with.
+     * @param queryText the text of the query.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @param k the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText, DocumentProcessor docProcessor,
+                                                    int k)
+    {
+        return model.runQuery(queryText, this, docProcessor, k);
+    }
+    /**
+     * Looks up the specified term in the vocabulary.
+     * @param term the term.
+     * @return a {@link Tuple} containing the {@code termID} and its IDF score, or {@code null} if the term is not in
+     * the vocabulary.
+     */
+    public Tuple<Integer, Double> getTerm(String term)
+    {
+        if (this.termDictionary != null)
+            return this.termDictionary.get(term);
+        return this.vocabulary.get(term);
+    }
+    /**
+     * Returns the terms of the vocabulary from {@code from}, inclusive, to {@code to}, exclusive, in the order of the
+     * {@link TermDictionary}.
+     * @param from the first term of the range, which does not need to be in the vocabulary.
+     * @param to the end of the range, or {@code null} for no end.
+     * @return the terms in the range.
+     */
+    public ArrayList<String> getTermsInRange(String from, String to)
+    {
+        if (this.termDictionary != null)
+            return this.termDictionary.getTermsInRange(from, to);
+        ArrayList<String> terms = new ArrayList<>();
+        for (String term : this.vocabulary.keySet()) {
+            if (TermDictionary.ORDER.compare(term, from) >= 0 && (to == null || TermDictionary.ORDER.compare(term, to) < 0))
+                terms.add(term);
+        }
+        terms.sort(TermDictionary.ORDER);
+        return terms;
+    }
+    /**
+     * Returns the terms of the vocabulary that start with the specified prefix, in the order of the
+     * {@link TermDictionary}, such as every term starting with {@code youtube.}.
+     * @param prefix the prefix.
+     * @return the terms with the prefix.
+     */
+    public ArrayList<String> getTermsWithPrefix(String prefix)
+    {
+        return this.getTermsInRange(prefix, TermDictionary.getPrefixEnd(prefix));
+    }
+    /**
+     * Returns the terms of the vocabulary within the specified edit distance of a term, which is usually not in the
+     * vocabulary, from the {@link FuzzyTermIndex} of a loaded index, opened on first use.
+     * @param term the term.
+     * @param maxDistance the maximum edit distance, up to {@link FuzzyTermIndex#MAX_DISTANCE}.
+     * @return the terms found, the nearest first and, at the same distance, the most frequent first.
+     */
+    public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance)
+    {
+        return this.getComponent(Component.FUZZY_TERMS, this.fuzzyTermIndex).lookup(term, maxDistance);
+    }
+    /**
+     * Returns the number of terms in the vocabulary.
+     * @return the number of terms.
+     */
+    public int getNumTerms()
+    {
+        if (this.termDictionary != null)
+            return this.termDictionary.size();
+        return this.vocabulary.size();
+    }
+    /**
+     * Returns the number of documents in the index.
+     * @return the number of documents.
+     */
+    public int getNumDocuments()
+    {
+        if (this.documentTable != null)
+            return this.documentTable.size();
+        return this.documents.size();
+    }
+    /**
+     * Returns the name of the specified document.
+     * @param docID the ID of the document.
+     * @return the document name.
+     */
+    public String getDocumentName(int docID)
+    {
+        if (this.documentTable != null)
+            return this.documentTable.getName(docID);
+        return this.documents.get(docID).item1;
+    }
+    /**
+     * Returns the vector norm of the specified document.
+     * @param docID the ID of the document.
+     * @return the document norm.
+     */
+    public double getDocumentNorm(int docID)
+    {
+        if (this.documentTable != null)
+            return this.documentTable.getNorm(docID);
+        return this.documents.get(docID).item2;
+    }
+    /**
+     * Returns the postings list of the specified term in the inverted index.
+     * @param termID the ID of the term.
+     * @return the postings list, with a {@code docID} and the {@code weight} of the term in that document.
+     */
+    public PostingsList getInvertedPostings(int termID)
+    {
+        if (this.invertedFile != null)
+            return this.invertedFile.get(termID);
+        return this.invertedIndex.get(termID);
+    }
+    /**
+     * Returns the postings list of the specified document in the direct index.
+     * @param docID the ID of the document.
+     * @return the postings list, with a {@code termID} and the {@code weight} of that term in the document.
+     */
+    public PostingsList getDirectPostings(int docID)
+    {
+        if (this.loaded)
+            return this.getComponent(Component.DIRECT, this.directFile).get(docID);
+        return this.directIndex.get(docID);
+    }
+    /**
+     * Returns the postings list of the specified term with the raw term frequencies as weights, instead of the TFxIDF
+     * weights of {@link #getInvertedPostings}.
+     * @param termID the ID of the term.
+     * @return the postings list, with a {@code docID} and the number of occurrences of the term in that document.
+     */
+    public PostingsList getFrequencyPostings(int termID)
+    {
+        if (this.loaded)
+            return this.getComponent(Component.FREQUENCIES, this.frequencyFile).get(termID, this.getInvertedPostings(termID));
+        return new FrequencyFile.FrequencyPostingsList(this.invertedIndex.get(termID), null, 0, this.frequencies.get(termID));
+    }
+    /**
+     * Returns the collection statistics of the index: document lengths, document and collection frequencies.
+     * They are read from disk on first use for a loaded index, and computed on first use for an index that has not
+     * been saved.
+     * @return the collection statistics.
+     */
+    public synchronized CollectionStatistics getCollectionStatistics()
+    {
+        if (this.collectionStatistics == null && this.loaded)
+            this.getComponent(Component.COLLECTION_STATISTICS, null);
+        if (this.collectionStatistics == null)
+            this.collectionStatistics = CollectionStatistics.compute(this);
+        return this.collectionStatistics;
+    }
+    /**
+     * Returns the per-term statistics of the index, with the score upper bounds used for dynamic pruning.
+     * They are read from disk on first use for a loaded index, and computed on first use for an index that has not
+     * been saved.
+     * @return the term statistics.
+     */
+    public synchronized TermStatistics getTermStatistics()
+    {
+        if (this.termStatistics == null && this.loaded)
+            this.getComponent(Component.TERM_STATISTICS, null);
+        if (this.termStatistics == null)
+            this.termStatistics = TermStatistics.compute(this, this.compressed);
+        return this.termStatistics;
+    }
+    /**
+     * Returns the postings of the specified term as {@link Tuple}s, as the inverted index used to store them.
+     * @param termID the ID of the term.
+     * @return a list of {@link Tuple}s containing a {@code docID} and the {@code weight} of the term in that document.
+     */
+    public ArrayList<Tuple<Integer, Double>> getInvertedTuples(int termID)
+    {
+        return this.getInvertedPostings(termID).asTuples();
+    }
+    /**
+     * Returns the postings of the specified document as {@link Tuple}s, as the direct index used to store them.
+     * @param docID the ID of the document.
+     * @return a list of {@link Tuple}s containing a {@code termID} and the {@code weight} of that term in the document.
+     */
+    public ArrayList<Tuple<Integer, Double>> getDirectTuples(int docID)
+    {
+        return this.getDirectPostings(docID).asTuples();
     }
 
+    /**
+     * Returns the document store with the cached version of the documents, opening it on first use.
+     * @return the document store, or {@code null} if the index has none.
+     * @throws IOException if an error occurs while opening the store.
+     */
+    public synchronized DocumentStore getDocumentStore() throws IOException
+    {
+        if (this.documentStore == null && Paths.get(this.path, "docstore", "offsets").toFile().exists())
+            this.documentStore = DocumentStore.open(Paths.get(this.path, "docstore").toFile());
+        return this.documentStore;
+    }
+    /**
+     * Sets the document store of the index, which {@link #save} will flush.
+     * @param documentStore the document store.
+     */
+    public synchronized void setDocumentStore(DocumentStore documentStore)
+    {
+        this.documentStore = documentStore;
+    }
+    /**
+     * Sets whether the index keeps the positions of its postings, which {@link #save} writes to a separate file for
+     * phrase and proximity queries. It must be set before adding any document.
+     * @param positional {@code true} to keep the positions.
+     */
+    public void setPositional(boolean positional)
+    {
+        this.positions = positional ? new ArrayList<>() : null;
+    }
+    /**
+     * Returns whether the loaded index has the positions of its postings.
+     * @return {@code true} if the index has a positions file.
+     */
+    public boolean isPositional()
+    {
+        return this.hasPositions;
+    }
+    /**
+     * Returns a cursor over the positions of the postings of the specified term, in a loaded positional index.
+     * @param termID the ID of the term.
+     * @return the cursor, or {@code null} if the index has no positions file.
+     */
+    public PositionsFile.Cursor getPositions(int termID)
+    {
+        return this.hasPositions ? this.getComponent(Component.POSITIONS, this.positionsFile).get(termID) : null;
+    }
+    /**
+     * Returns the generation of the index, which changes every time the index is updated. Results computed on an index
+     * are valid for any index with the same path and generation.
+     * @return the generation, always {@code 0} for an index that is not updated incrementally.
+     */
+    public long getGeneration()
+    {
+        return 0;
+    }
+    /**
+     * Returns the directory of the index.
+     * @return the path given to the {@link Index#Index constructor}.
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
     /**
      * Returns the cached version of the specified document.
      * @param docID the ID of the document.
      * @return a {@link Tuple} containing the document title and its body.
-     * @throws Exception if an error occurs while accessing the cache.
+     * @throws IOException if an error occurs while accessing the cache, or if the document is not in the cache.
      */
-    public Tuple<String,String> getCachedDocument(int docID) throws Exception
+    public Tuple<String,String> getCachedDocument(int docID) throws IOException
     {
-        int block = docID % this.DOCS_PER_CACHE_BLOCK;
-        File blockPath = Paths.get(this.path, "cache"+block).toFile();
-        File filePath = new File(blockPath, docID+"");
-
-        ObjectInput ois = new ObjectInputStream(new GZIPInputStream(new FileInputStream(filePath)));
-        String title = (String)ois.readObject();
-        String body = (String)ois.readObject();
-        ois.close();
-
-        return new Tuple<>(title, body);
+        DocumentStore store = this.getDocumentStore();
+        Tuple<String, String> doc = store == null ? null : store.get(docID);
+        if (doc == null)
+            throw new IOException("Document " + docID + " is not in the cache.");
+        return doc;
+    }
+    /**
+     * Returns the offsets of the terms of the specified document, recorded when it was indexed.
+     * @param docID the ID of the document.
+     * @return the {@link TermOffsets} of the document, or {@code null} if they were not recorded.
+     * @throws IOException if an error occurs while accessing the cache.
+     */
+    public TermOffsets getCachedTermOffsets(int docID) throws IOException
+    {
+        DocumentStore store = this.getDocumentStore();
+        return store == null ? null : store.getTermOffsets(docID);
     }
     /**
      * Sets the cached version of the specified document.
      * @param docID the ID of the document.
      * @param docText a {@link Tuple} containing the document title and its body.
-     *                @throws IOException  if an error occurs while accessing the cache.
+     * @throws IOException  if an error occurs while accessing the cache.
      */
     public void setCachedDocument(int docID, Tuple<String,String> docText) throws IOException
     {
-        int block = docID % this.DOCS_PER_CACHE_BLOCK;
-        File blockPath = Paths.get(this.path, "cache"+block).toFile();
-        if(!blockPath.exists())
-            blockPath.mkdirs();
-
-        File filePath = new File(blockPath, docID+"");
-        ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filePath)));
-        oos.writeObject(docText.item1);
-        oos.writeObject(docText.item2);
-        oos.close();
+        DocumentStore store;
+        synchronized (this) {
+            store = this.getDocumentStore();
+            if (store == null)
+                this.documentStore = store = DocumentStore.create(Paths.get(this.path, "docstore").toFile());
+        }
+        store.setDocument(docID, store.append(docText));
     }
 
     /**
-     * Loads the index from the path specified in the {@link Index#Index constructor}.
+     * Loads the index in the specified directory, as a {@link SegmentedIndex} if it has been updated with the
+     * {@link IncrementalIndexer}. A sharded index has no postings of its own, so it is opened with
+     * {@link SearchableIndex#open} instead.
+     * @param path the directory of the index.
+     * @return the loaded index.
+     * @throws Exception if an error occurs while loading the index, or if it is a {@link ShardedIndex}.
+     */
+    public static Index open(String path) throws Exception
+    {
+        return open(path, EnumSet.noneOf(Component.class));
+    }
+    /**
+     * Loads the index in the specified directory as {@link #open(String)}, opening in advance the specified components.
+     * @param path       the directory of the index.
+     * @param components the components to open besides the {@link #CORE_COMPONENTS}, usually the
+     *                   {@link RetrievalModel#getRequiredComponents required} ones by a retrieval model.
+     * @return the loaded index.
+     * @throws Exception if an error occurs while loading the index, or if it is a {@link ShardedIndex}.
+     */
+    public static Index open(String path, Set<Component> components) throws Exception
+    {
+        if (ShardedIndex.exists(new File(path)))
+            throw new IOException("The index " + path + " is sharded; it can only be searched through its shards.");
+        Index index = SegmentManifest.exists(new File(path)) ? new SegmentedIndex(path) : new Index(path);
+        index.load(components);
+        return index;
+    }
+    /**
+     * Loads the index from the path specified in the {@link Index#Index constructor}, opening only the
+     * {@link #CORE_COMPONENTS}. The rest are opened on first use.
+     * <p>
+     * The index files are mapped in memory and read in place, so loading takes the same time regardless of the size
+     * of the index.
      * @throws Exception if an error occurs while loading the index.
      */
     public void load() throws Exception
     {
-        // Vocabulary
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(Paths.get(this.path, "vocabulary").toFile()));
-        int count = ois.readInt();
-        this.vocabulary = new HashMap<>(count);
-        for (int i = 0; i < count; i++) {
-            String term = ois.readUTF();
-            int termID = ois.readInt();
-            double idf = ois.readDouble();
-            this.vocabulary.put(term, new Tuple<>(termID, idf));
+        this.load(EnumSet.noneOf(Component.class));
+    }
+    /**
+     * Loads the index as {@link #load()}, and also opens the specified components, all of them in parallel.
+     * It may be called again on a loaded index to open more components; those already open are skipped.
+     * @param components the components to open besides the {@link #CORE_COMPONENTS}.
+     * @throws Exception if an error occurs while loading the index.
+     */
+    public void load(Set<Component> components) throws Exception
+    {
+        EnumSet<Component> pending = EnumSet.copyOf(CORE_COMPONENTS);
+        pending.addAll(components);
+        synchronized (this.loadTimes) {
+            pending.removeAll(this.loadTimes.keySet());
         }
-        ois.close();
-        // Documents
-        ois = new ObjectInputStream(new FileInputStream(Paths.get(this.path, "documents").toFile()));
-        count = ois.readInt();
-        this.documents = new ArrayList<>(count);
-        for (int i = 0; i < count; i++) {
-            String docName = ois.readUTF();
-            double norm = ois.readDouble();
-            this.documents.add(i, new Tuple<>(docName, norm));
+        this.hasPositions = Paths.get(this.path, Component.POSITIONS.fileName).toFile().exists();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(pending.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (Component component : pending)
+                futures.add(executor.submit(() -> {
+                    this.loadComponent(component);
+                    return null;
+                }));
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        } finally {
+            executor.shutdown();
         }
-        ois.close();
-        // Inverted
-        ois = new ObjectInputStream(new FileInputStream(Paths.get(this.path, "inverted").toFile()));
-        count = ois.readInt();
-        this.invertedIndex = new ArrayList<>(count);
-        for (int i = 0; i < count; i++) {
-            int count2 = ois.readInt();
-            ArrayList<Tuple<Integer, Double>> entry = new ArrayList<>(count2);
-            for (int i2 = 0; i2 < count2; i2++) {
-                int item1 = ois.readInt();
-                double item2 = ois.readDouble();
-                entry.add(i2, new Tuple<>(item1, item2));
-            }
-            this.invertedIndex.add(i, entry);
+        this.loaded = true;
+    }
+    /**
+     * Opens a component of the index and records the time it took.
+     * @param component the component.
+     * @throws IOException if an error occurs while opening the file of the component.
+     */
+    protected void loadComponent(Component component) throws IOException
+    {
+        long start = System.nanoTime();
+        File file = Paths.get(this.path, component.fileName).toFile();
+        switch (component) {
+            case VOCABULARY:
+                this.termDictionary = TermDictionary.open(file);
+                break;
+            case DOCUMENTS:
+                this.documentTable = DocumentTable.open(file);
+                break;
+            case INVERTED:
+                this.invertedFile = PostingsFile.open(file);
+                break;
+            case DIRECT:
+                this.directFile = PostingsFile.open(file);
+                break;
+            case FREQUENCIES:
+                this.frequencyFile = FrequencyFile.open(file);
+                break;
+            case POSITIONS:
+                if (file.exists())
+                    this.positionsFile = PositionsFile.open(file);
+                break;
+            case TERM_STATISTICS:
+                this.termStatistics = TermStatistics.load(file);
+                break;
+            case COLLECTION_STATISTICS:
+                this.collectionStatistics = CollectionStatistics.load(file);
+                break;
+            case FUZZY_TERMS:
+                this.fuzzyTermIndex = FuzzyTermIndex.open(file);
+                break;
         }
-        
-        
-        for (Tuple<Integer, Double> word : vocabulary.values()) { // Termino
-            
-            for(int j = 0; j < invertedIndex.get(word.item1).size(); j++){ // Doc Id
-                if(documentsOkapi.containsKey(invertedIndex.get(word.item1).get(j).item1) == false)
-                    documentsOkapi.put(invertedIndex.get(word.item1).get(j).item1, 0);
-                double length = invertedIndex.get(word.item1).get(j).item2/word.item2; // weigth / idf = tft
-                //length = Math.exp(length - 1); // Calculamos td
-                documentsOkapi.replace(invertedIndex.get(word.item1).get(j).item1, 
-                        documentsOkapi.get(invertedIndex.get(word.item1).get(j).item1) + (int)length);
-            }
+        synchronized (this.loadTimes) {
+            this.loadTimes.put(component, System.nanoTime() - start);
         }
-        
-        ois.close();
-        // Direct
-        ois = new ObjectInputStream(new FileInputStream(Paths.get(this.path, "direct").toFile()));
-        count = ois.readInt();
-        this.directIndex = new ArrayList<>(count);
-        for (int i = 0; i < count; i++) {
-            int count2 = ois.readInt();
-            ArrayList<Tuple<Integer, Double>> entry = new ArrayList<>(count2);
-            for (int i2 = 0; i2 < count2; i2++) {
-                int item1 = ois.readInt();
-                double item2 = ois.readDouble();
-                entry.add(i2, new Tuple<>(item1, item2));
+    }
+    /**
+     * Returns a component that is opened on first use, opening it if it was not.
+     * @param component the component.
+     * @param current   the current value of the field of the component.
+     * @return the value of the field of the component, once opened.
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> T getComponent(Component component, T current)
+    {
+        // Solo se sincroniza la primera vez; después el campo ya no es null
+        if (current != null)
+            return current;
+        synchronized (this) {
+            boolean open;
+            synchronized (this.loadTimes) {
+                open = this.loadTimes.containsKey(component);
+            }
+            if (!open) {
+                try {
+                    this.loadComponent(component);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Could not open the " + component.fileName + " of the index "
+                            + this.path + ".", ex);
+                }
             }
-            this.directIndex.add(i, entry);
         }
-        ois.close();
+        switch (component) {
+            case DIRECT:
+                return (T) this.directFile;
+            case FREQUENCIES:
+                return (T) this.frequencyFile;
+            case POSITIONS:
+                return (T) this.positionsFile;
+            case FUZZY_TERMS:
+                return (T) this.fuzzyTermIndex;
+            default:
+                return current;
+        }
+    }
+    /**
+     * Returns the time it took to open each component of the index that has been opened so far.
+     * @return a map from each opened component to the time it took to open it, in nanoseconds.
+     */
+    public EnumMap<Component, Long> getLoadTimes()
+    {
+        synchronized (this.loadTimes) {
+            return new EnumMap<>(this.loadTimes);
+        }
+    }
+    /**
+     * Unmaps the files of the index opened so far, as {@link MappedFile#close}, instead of leaving them to the garbage
+     * collector. The index can not be used afterwards, so it must only be closed when no other thread reads it.
+     * @throws IOException if an error occurs while closing the index.
+     */
+    public void close() throws IOException
+    {
+        if (this.termDictionary != null)
+            this.termDictionary.close();
+        if (this.documentTable != null)
+            this.documentTable.close();
+        if (this.invertedFile != null)
+            this.invertedFile.close();
+        if (this.directFile != null)
+            this.directFile.close();
+        if (this.frequencyFile != null)
+            this.frequencyFile.close();
+        if (this.positionsFile != null)
+            this.positionsFile.close();
+        if (this.fuzzyTermIndex != null)
+            this.fuzzyTermIndex.close();
+        if (this.documentStore != null)
+            this.documentStore.unmapSegments();
     }
     /**
      * Saves the index to the path specified in the {@link Index#Index constructor}.
@@ -193,82 +651,101 @@ public class Index
         if (!di.exists())
             di.mkdir();
 
-        // Vocabulary
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(Paths.get(this.path, "vocabulary").toFile()));
-        oos.writeInt(this.vocabulary.size());
-        for (Map.Entry<String, Tuple<Integer, Double>> entry : this.vocabulary.entrySet()) {
-            oos.writeUTF(entry.getKey());
-            oos.writeInt(entry.getValue().item1);
-            oos.writeDouble(entry.getValue().item2);
-        }
-        oos.close();
-        // Documents
-        oos = new ObjectOutputStream(new FileOutputStream(Paths.get(this.path, "documents").toFile()));
-        oos.writeInt(this.documents.size());
-        for (Tuple<String, Double> entry : this.documents) {
-            oos.writeUTF(entry.item1);
-            oos.writeDouble(entry.item2);
-        }
-        oos.close();
-        // Inverted
-        oos = new ObjectOutputStream(new FileOutputStream(Paths.get(this.path, "inverted").toFile()));
-        oos.writeInt(this.invertedIndex.size());
-        for (ArrayList<Tuple<Integer, Double>> entry : this.invertedIndex) {
-            oos.writeInt(entry.size());
-            for (Tuple<Integer, Double> entry2 : entry) {
-                oos.writeInt(entry2.item1);
-                oos.writeDouble(entry2.item2);
-            }
-        }
-        oos.close();
-        // Direct
-        oos = new ObjectOutputStream(new FileOutputStream(Paths.get(this.path, "direct").toFile()));
-        oos.writeInt(this.directIndex.size());
-        for (ArrayList<Tuple<Integer, Double>> entry : this.directIndex) {
-            oos.writeInt(entry.size());
-            for (Tuple<Integer, Double> entry2 : entry) {
-                oos.writeInt(entry2.item1);
-                oos.writeDouble(entry2.item2);
-            }
-        }
-        oos.close();
+        TermDictionary.write(Paths.get(this.path, "vocabulary").toFile(), this.vocabulary);
+        DocumentTable.write(Paths.get(this.path, "documents").toFile(), this.documents);
+        PostingsFile.write(Paths.get(this.path, "inverted").toFile(), this.invertedIndex, this.compressed);
+        PostingsFile.write(Paths.get(this.path, "direct").toFile(), this.directIndex, this.compressed);
+        // Las estadísticas ya asignadas son las de una colección mayor, como en los shards de un ShardedIndex
+        if (this.termStatistics == null)
+            this.termStatistics = TermStatistics.compute(this, this.compressed);
+        this.termStatistics.write(Paths.get(this.path, "termstats").toFile());
+        FrequencyFile.write(Paths.get(this.path, "frequencies").toFile(), this.frequencies);
+        if (this.collectionStatistics == null)
+            this.collectionStatistics = CollectionStatistics.compute(this);
+        this.collectionStatistics.write(Paths.get(this.path, "collection").toFile());
+        FuzzyTermIndex.write(Paths.get(this.path, "fuzzy").toFile(), this.vocabulary,
+                this.collectionStatistics.documentFrequencies);
+        File positions = Paths.get(this.path, "positions").toFile();
+        if (this.positions != null)
+            PositionsFile.write(positions, this.positions);
+        else
+            positions.delete();
+        if (this.documentStore != null)
+            this.documentStore.flush();
     }
+
     /**
      * Prints statistics about the index to {@link System#err}.
      * The statistics include the number of terms in the vocabulary and its size, the number of documents and the size
-     * of the cache, and the size of the direct and inverted indexes.
+     * of the cache, and the size of the direct and inverted indexes. Components that were not loaded are not opened:
+     * only the size of their files is printed.
      */
     public void printStatistics()
+    {
+        this.printStatistics(false);
+    }
+
+    /**
+     * Prints statistics about the index to {@link System#err}, as {@link #printStatistics()}.
+     * For compressed postings that are loaded it includes their compression ratio. Measuring the decoding throughput
+     * opens the postings files that were not loaded, and decodes all of their lists.
+     * @param measureDecoding whether to decode all postings lists to measure the decoding throughput.
+     */
+    public void printStatistics(boolean measureDecoding)
     {
         DecimalFormat df = new DecimalFormat("#.##");
 
-        System.err.print("  - Vocabulary: " + this.vocabulary.size() + " terms");
+        System.err.print("  - Vocabulary: " + this.getNumTerms() + " terms");
         File file = Paths.get(this.path, "vocabulary").toFile();
         if (file.exists())
             System.err.print(" (" + df.format(file.length() / 1024d / 1024d) + " MB)");
         System.err.println(".");
 
-        System.err.print("  - Documents: " + this.documents.size() + " documents");
+        System.err.print("  - Documents: " + this.getNumDocuments() + " documents");
         file = Paths.get(this.path, "documents").toFile();
         if (file.exists())
             System.err.print(" (" + df.format(file.length() / 1024d) + " KB)");
         System.err.println(".");
 
-        file = Paths.get(this.path, "inverted").toFile();
+        this.printPostingsStatistics("Inverted", "inverted", this.invertedFile, measureDecoding);
+        this.printPostingsStatistics("Direct", "direct", this.directFile, measureDecoding);
+        file = Paths.get(this.path, "positions").toFile();
         if (file.exists())
-            System.err.println("  - Inverted: " + df.format(file.length() / 1024d / 1024d) + " MB.");
+            System.err.println("  - Positions: " + df.format(file.length() / 1024d / 1024d) + " MB.");
 
-        file = Paths.get(this.path, "direct").toFile();
-        if (file.exists())
-            System.err.println("  - Direct: " + df.format(file.length() / 1024d / 1024d) + " MB.");
+        File store = Paths.get(this.path, "docstore").toFile();
+        if (this.documentStore != null || new File(store, "offsets").exists())
+            System.err.println("  - Cache: " + df.format(DocumentStore.getSegmentsLength(store) / 1024d / 1024d)
+                    + " MB.");
+        else
+            System.err.println("  - Cache: none.");
+    }
 
-        long cacheSize = 0;
-        for(int block = 0; block < this.DOCS_PER_CACHE_BLOCK; block++){
-            File blockPath = Paths.get(this.path, "cache"+block).toFile();
-            if(blockPath.exists())
-                for(File docFile : blockPath.listFiles())
-                    cacheSize += docFile.length();
+    // Imprime el tamaño de un fichero de postings y, si están cargados o se mide la decodificación, su compresión
+    protected void printPostingsStatistics(String label, String fileName, PostingsFile postings, boolean measureDecoding)
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        File file = Paths.get(this.path, fileName).toFile();
+        if (!file.exists())
+            return;
+
+        System.err.print("  - " + label + ": " + df.format(file.length() / 1024d / 1024d) + " MB");
+        PostingsFile opened = null;
+        try {
+            if (postings == null && measureDecoding)
+                postings = opened = PostingsFile.open(file);
+            if (postings != null && postings.isCompressed()) {
+                System.err.print(" (compressed " + df.format(postings.getCompressionRatio()) + "x");
+                if (measureDecoding)
+                    System.err.print(", decoding " + df.format(postings.measureDecodeThroughput()) + " MB/s");
+                System.err.print(")");
+            }
+        } catch (IOException ex) {
+            // Solo se conoce el tamaño del fichero
+        } finally {
+            if (opened != null)
+                opened.close();
         }
-        System.err.println("  - Cache: " + df.format(cacheSize / 1024d / 1024d) + " MB.");
+        System.err.println(".");
     }
 }
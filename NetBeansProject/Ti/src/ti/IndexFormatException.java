@@ -0,0 +1,22 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Signals that a file of the index is not in the format of this version, usually because the index was built by an
+ * older version and must be built again with the {@code index} command.
+ */
+public class IndexFormatException extends IOException
+{
+    /**
+     * Creates the exception for the specified file.
+     *
+     * @param file the file of the index that could not be read.
+     */
+    public IndexFormatException(File file)
+    {
+        super("Unrecognized index file " + file
+                + "; it may have been written by an older version, rebuild it with the index command.");
+    }
+}
@@ -0,0 +1,73 @@
+package ti;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered {@link DataOutputStream} to write index files that are later read with a {@link MappedFile}.
+ * <p>
+ * It keeps track of the current position in the file, so that sections can be aligned as {@link MappedFile} expects.
+ */
+public class IndexOutput extends DataOutputStream
+{
+    /**
+     * Creates a new output to write the specified file.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file can not be created.
+     */
+    public IndexOutput(File file) throws IOException
+    {
+        super(new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)));
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return the current position in the file.
+     */
+    public long position()
+    {
+        return ((CountingOutputStream) this.out).count;
+    }
+
+    /**
+     * Writes zeros until the current position is a multiple of 8.
+     *
+     * @throws IOException if an error occurs while writing.
+     */
+    public void align() throws IOException
+    {
+        while ((this.position() & 7) != 0)
+            this.writeByte(0);
+    }
+
+    protected static class CountingOutputStream extends FilterOutputStream
+    {
+        protected long count;
+
+        public CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
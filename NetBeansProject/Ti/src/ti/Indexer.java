@@ -1,12 +1,14 @@
 package ti;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Map;
-import java.io.FileReader;
 import static java.lang.Math.log;
 import static java.lang.Math.sqrt;
 
@@ -18,6 +20,9 @@ public class Indexer
     protected File pathToIndex;
     protected File pathToCollection;
     protected DocumentProcessor docProcessor;
+    protected boolean compress;
+    protected boolean positional;
+    protected DocumentStore documentStore;
 
 	/**
      * Creates a new indexer with the given paths and document processor.
@@ -32,22 +37,59 @@ public class Indexer
         this.docProcessor = docProcessor;
     }
 
+    /**
+     * Sets whether to keep the positions of the postings, as in {@link Index#setPositional}.
+     * @param positional {@code true} to build a positional index.
+     */
+    public void setPositional(boolean positional)
+    {
+        this.positional = positional;
+    }
+    /**
+     * Sets whether to compress the postings lists of the index, as in {@link Index#setCompressed}.
+     * @param compress {@code true} to compress the postings lists.
+     */
+    public void setCompress(boolean compress)
+    {
+        this.compress = compress;
+    }
+
 	/**
      * Run the indexing process in two passes and save the index to disk.
+     * Any segments added to a previous index in the same directory by the {@link IncrementalIndexer}, or the shards of
+     * a previous {@link ShardedIndex}, are removed.
      * @throws IOException if an error occurs while indexing.
      */
     public void run() throws IOException
     {
+        // El índice nuevo sustituye a los segmentos que se añadieron al anterior, o a sus shards
+        SegmentManifest.clear(this.pathToIndex);
+        ShardedIndex.clear(this.pathToIndex);
         Index ind = new Index(this.pathToIndex.getPath());
+        ind.setPositional(this.positional);
+        this.documentStore = DocumentStore.create(new File(this.pathToIndex, "docstore"));
         this.firstPass(ind);
+        for (int docID = 0; docID < ind.documentEntries.size(); docID++)
+            this.documentStore.setDocument(docID, ind.documentEntries.get(docID));
+        if (this.docProcessor instanceof HtmlProcessor) {
+            HtmlProcessor html = (HtmlProcessor) this.docProcessor;
+            DecimalFormat df = new DecimalFormat("#.##");
+            System.err.println("  - Tokenizer: " + df.format(html.getTokenizerThroughput()) + " MB/s.");
+            StemCache stems = html.getStemCache();
+            System.err.println("  - Stem cache: " + df.format(100 * stems.getHitRate()) + "% hits (" + stems.getHits()
+                    + " hits, " + stems.getMisses() + " misses, " + stems.getEvictions() + " evictions).");
+        }
         this.secondPass(ind);
 
         // Save index
         System.err.print("Saving index...");
+        ind.setCompressed(this.compress);
+        ind.setDocumentStore(this.documentStore);
         ind.save();
+        this.documentStore.close();
         System.err.println("done.");
         System.err.println("Index statistics:");
-        ind.printStatistics();
+        ind.printStatistics(this.compress);
     }
     /**
      * Runs the first pass of the indexer.
@@ -109,25 +151,36 @@ public class Indexer
         // P2
         // recorrer el índice para calcular IDF y actualizar pesos
         double nd = ind.documents.size();
+        ind.frequencies = new ArrayList<>(ind.invertedIndex.size());
+        for(int i = 0; i < ind.invertedIndex.size(); i++)
+            ind.frequencies.add(null);
         for(Map.Entry<String,Tuple<Integer,Double> > e : ind.vocabulary.entrySet() ){
             Tuple<Integer,Double> termdoc = e.getValue();
             int termid = termdoc.item1;
-            int ct = ind.invertedIndex.get(termid).size();
+            ArrayPostingsList postings = ind.invertedIndex.get(termid);
+            int ct = postings.size();
             
-            termdoc.item2 = log(1 + (nd/ct));
-            for(Tuple<Integer,Double> t : ind.invertedIndex.get(termid) ){
-                t.item2 = termdoc.item2 * (1 + log(t.item2));
-                ind.documents.get(t.item1).item2 += t.item2 * t.item2;
+            termdoc.item2 = this.getIDF(e.getKey(), ct, nd);
+            int[] tf = new int[ct]; // Guardamos las frecuencias sin procesar para los modelos probabilísticos
+            for(int j = 0; j < ct; j++){
+                tf[j] = (int) postings.getWeight(j);
+                double weight = termdoc.item2 * (1 + log(postings.getWeight(j)));
+                postings.setWeight(j, weight);
+                ind.documents.get(postings.getID(j)).item2 += weight * weight;
             }
-            
+            postings.trim();
+            ind.frequencies.set(termid, tf);
         }
         
         // Inverted Index [termID] -> (docID, weight)+
         // Direct Index [docID] -> (termID, weight)+
         for(int i = 0; i < ind.invertedIndex.size(); i++){
-            for(Tuple<Integer, Double> doc : ind.invertedIndex.get(i))
-                ind.directIndex.get(doc.item1).add(new Tuple<>(i, doc.item2));
+            ArrayPostingsList postings = ind.invertedIndex.get(i);
+            for(int j = 0; j < postings.size(); j++)
+                ind.directIndex.get(postings.getID(j)).add(i, postings.getWeight(j));
         }
+        for(ArrayPostingsList postings : ind.directIndex)
+            postings.trim();
         
         // Traverse all terms to compute IDF, direct postings, and norm summations
 
@@ -145,6 +198,17 @@ public class Indexer
         System.err.println("done.");
         System.err.println("...done");
         System.err.println("  - Time: " + df.format(totalTime) + " seconds.");
+    }
+    /**
+     * Returns the IDF of a term, as computed by {@link #secondPass}.
+     * @param term the term.
+     * @param df the number of documents of the index the term appears in.
+     * @param numDocuments the number of documents of the index.
+     * @return the IDF of the term.
+     */
+    protected double getIDF(String term, int df, double numDocuments)
+    {
+        return log(1 + (numDocuments / df));
     }
 	/**
      * Process the original document in the specified path and add it to the given index.
@@ -159,25 +223,49 @@ public class Indexer
     {
         // P2
         
-        //BufferedReader b = new BufferedReader(docFile.);
         // leer documento desde disco        
-        String pfile;
-        String file = new String();
-        BufferedReader br = null;
-        br = new BufferedReader(new FileReader(docFile.getAbsolutePath()));
-        while((pfile = br.readLine()) != null){
-            file += pfile + " ";
-        }
+        String file = Indexer.decodeDocument(Indexer.readDocument(docFile));
 
-        // procesarlo para obtener los términos
+        // procesarlo para obtener los términos, y guardarlo en la caché de documentos con sus posiciones
+        Tuple<String, String> parsed = docProcessor.parse(file);
+        TermOffsets offsets = this.documentStore == null && !this.positional ? null : new TermOffsets();
+        ArrayList<String> tokens = docProcessor.processParsed(parsed, offsets);
+        int storeEntry = this.storeDocument(parsed, offsets);
+        this.addDocument(docFile, tokens, offsets, storeEntry, ind);
+    }
+    /**
+     * Appends a parsed document to the {@link DocumentStore} being built.
+     * @param parsed a {@link Tuple} with the document title and body, or {@code null} if it could not be parsed.
+     * @param offsets the offsets of the terms of the document, or {@code null} if they were not recorded.
+     * @return the entry of the document in the store, or {@code -1} if it was not stored.
+     * @throws IOException if an error occurs while writing the document.
+     */
+    protected int storeDocument(Tuple<String, String> parsed, TermOffsets offsets) throws IOException
+    {
+        if (parsed == null || this.documentStore == null)
+            return -1;
+        return this.documentStore.append(parsed, offsets);
+    }
+    /**
+     * Adds a processed document to the given index.
+     * <p>
+     * It populates the vocabulary and document structures, and adds the corresponding postings to the inverted index.
+     * @param docFile the path to the original document file.
+     * @param tokens the terms of the document, or {@code null} if it has no text to index.
+     * @param offsets the offsets and positions of the terms, needed if the index is positional.
+     * @param storeEntry the entry of the document in the {@link DocumentStore}, or {@code -1} if it was not stored.
+     * @param ind the index to add the document to.
+     */
+    protected void addDocument(File docFile, ArrayList<String> tokens, TermOffsets offsets, int storeEntry, Index ind)
+    {
         // calcular pesos
         // actualizar estructuras del índice: vocabulary documents e invertedIndex
         int docId = ind.documents.size();
         ind.documents.add(new Tuple(docFile.getName().replaceAll(".html", ""), 0.0));
         //P4
-        ind.directIndex.add(new ArrayList<>());
+        ind.directIndex.add(new ArrayPostingsList());
         //--P4
-        ArrayList<String> tokens = docProcessor.processText(file);
+        ind.documentEntries.add(storeEntry);
         if(tokens == null)return;
         for (String token : tokens){
             
@@ -185,26 +273,76 @@ public class Indexer
             
             if(term == null){
                 int sz = ind.vocabulary.size(); 
-                ind.invertedIndex.add(new ArrayList<>());  //[termID] -> (docID, weight)+
+                ind.invertedIndex.add(new ArrayPostingsList());  //[termID] -> (docID, weight)+
+                if(ind.positions != null)
+                    ind.positions.add(new PositionsFile.Builder());
                 term = new Tuple(sz, 0.0); // Termino ID e IDF
                 ind.vocabulary.put(token, term);
 
             }
             
-            ArrayList<Tuple<Integer,Double> > docs = ind.invertedIndex.get(term.item1);
+            ArrayPostingsList docs = ind.invertedIndex.get(term.item1);
             int docsInTerm = docs.size();
 
             // Si el término no contiene el documento añadimos una tupla.
             // Esto puede ocurrir tanto si el término es nuevo docsInTerm == 0
             // Como si el término ya existe y contiene documentos pero no el actual.
-            if(docsInTerm == 0 || docs.get(docsInTerm-1).item1 != docId ){
-                docs.add(new Tuple<Integer,Double>(docId,0.0));
+            if(docsInTerm == 0 || docs.getID(docsInTerm-1) != docId ){
+                docs.add(docId, 0.0);
+                // las posiciones de todas las apariciones se guardan con la primera
+                if(ind.positions != null)
+                    ind.positions.get(term.item1).add(offsets.getPositions(token));
                 //P4
                 //ind.directIndex.get(docId).add(new Tuple<Integer,Double>(term.item1 , term.item2));
                 //--P4
             }
-            Tuple<Integer,Double> tuple = docs.get(docs.size()-1); // Guardamos el ftd para calcular posteriormente tf e IDF.
-            tuple.item2 += 1.0;
+            int last = docs.size()-1; // Guardamos el ftd para calcular posteriormente tf e IDF.
+            docs.setWeight(last, docs.getWeight(last) + 1.0);
+        }
+    }
+
+    /**
+     * Reads the whole contents of the specified document file with a single {@link FileChannel}.
+     * @param docFile the path to the document file.
+     * @return a buffer with the contents of the file, ready to be read.
+     * @throws IOException if an error occurs while reading the file.
+     */
+    protected static ByteBuffer readDocument(File docFile) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(docFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+            return buffer;
+        }
+    }
+    /**
+     * Decodes the contents of a document file with the default charset, and joins its lines.
+     * <p>
+     * Every line is followed by a single space instead of its terminator ({@code \n}, {@code \r} or
+     * {@code \r\n}), including the last one, so the text is the same as reading the file line by line.
+     * @param bytes the contents of the file.
+     * @return the text of the document.
+     */
+    protected static String decodeDocument(ByteBuffer bytes)
+    {
+        CharSequence chars = Charset.defaultCharset().decode(bytes);
+        int length = chars.length();
+        StringBuilder text = new StringBuilder(length + 1);
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c == '\r') {
+                text.append(' ');
+                if (i + 1 < length && chars.charAt(i + 1) == '\n')
+                    i++;
+            } else if (c == '\n') {
+                text.append(' ');
+            } else {
+                text.append(c);
+            }
         }
+        if (length > 0 && chars.charAt(length - 1) != '\n' && chars.charAt(length - 1) != '\r')
+            text.append(' ');
+        return text.toString();
     }
-}
\ No newline at end of file
+}
@@ -1,16 +1,29 @@
 package ti;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
 
 /**
  * This class contains the logic to run the retrieval process of the search engine in interactive mode.
+ * <p>
+ * Each query is run once for its first {@link #MAX_RESULTS} results, which are then shown in pages of
+ * {@link #PAGE_SIZE} without running the query again. The highlighted terms are those that the model searched, so if
+ * it corrected any of them the corrected query is shown.
  */
 public class Interactive
 {
+	protected static final int PAGE_SIZE = 10;
+	protected static final int MAX_RESULTS = 100;
+	protected static final String NEXT_PAGE = "+";
+	protected static final String PREVIOUS_PAGE = "-";
+
 	protected RetrievalModel model;
-	protected Index index;
+	protected SearchableIndex index;
 	protected DocumentProcessor docProcessor;
+	protected SnippetGenerator snippets;
+	protected ArrayList<String> queryTerms;
 
 	/**
 	 * Creates a new interactive retriever using the given model.
@@ -19,16 +32,18 @@ public class Interactive
 	 * @param index        the index.
 	 * @param docProcessor the processor to extract query terms.
 	 */
-	public Interactive(RetrievalModel model, Index index, DocumentProcessor docProcessor)
+	public Interactive(RetrievalModel model, SearchableIndex index, DocumentProcessor docProcessor)
 	{
 		this.model = model;
 		this.index = index;
 		this.docProcessor = docProcessor;
+		this.snippets = new SnippetGenerator(index, docProcessor, SnippetGenerator.DEFAULT_LENGTH, "[", "]");
 	}
 
 	/**
 	 * Runs the interactive retrieval process. It asks the user for a query, and then it prints the results to
 	 * {@link System#out} showing the document title and a snippet, highlighting important terms for the query.
+	 * Entering {@code +} or {@code -} instead of a query shows the next or previous page of results.
 	 *
 	 * @throws Exception in an error occurs during the process.
 	 */
@@ -37,18 +52,36 @@ public class Interactive
 		// Run prompt loop
 		Scanner scan = new Scanner(System.in);
 		String input;
-		do {
+		ArrayList<Tuple<Integer, Double>> results = null;
+		int page = 0;
+		while (true) {
 			System.out.println();
-			System.out.print("Query (empty to exit): ");
+			System.out.print("Query (empty to exit, " + NEXT_PAGE + "/" + PREVIOUS_PAGE + " to change page): ");
 			scan.reset();
-			input = scan.nextLine();
-
-			ArrayList<Tuple<Integer, Double>> results = this.model.runQuery(input, this.index, this.docProcessor);
+			if (!scan.hasNextLine())
+				break;
+			input = scan.nextLine().trim();
+			if (input.isEmpty())
+				break;
 
 			// P5
-			// paginar resultados
-			this.printResults(results, 0, 10);
-		} while (!input.isEmpty());
+			// paginar resultados sin volver a ejecutar la consulta
+			if (input.equals(NEXT_PAGE) || input.equals(PREVIOUS_PAGE)) {
+				if (results == null)
+					continue;
+				int lastPage = Math.max(0, (results.size() - 1) / PAGE_SIZE);
+				page = Math.max(0, Math.min(lastPage, page + (input.equals(NEXT_PAGE) ? 1 : -1)));
+			} else {
+				results = this.model.search(input, this.index, this.docProcessor, MAX_RESULTS);
+				// resaltar los términos buscados, con sus correcciones si las hay
+				this.queryTerms = new ArrayList<>(new LinkedHashSet<>(
+						this.model.getQueryTerms(input, this.index, this.docProcessor)));
+				if (!this.queryTerms.equals(this.snippets.getQueryTerms(input)))
+					System.out.println("Showing results for: " + String.join(" ", this.queryTerms));
+				page = 0;
+			}
+			this.printResults(results, page * PAGE_SIZE, PAGE_SIZE);
+		}
 	}
 
 	/**
@@ -62,5 +95,31 @@ public class Interactive
 	protected void printResults(ArrayList<Tuple<Integer, Double>> results, int from, int count)
 	{
 		// P5
+		if (results.isEmpty()) {
+			System.out.println("No results.");
+			return;
+		}
+		long startTime = System.nanoTime();
+		int to = Math.min(results.size(), from + count);
+		StringBuilder page = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			int docID = results.get(i).item1;
+			page.append(i + 1).append(". ");
+			try {
+				Tuple<String, String> snippet = this.snippets.getSnippet(docID, this.queryTerms);
+				page.append(snippet.item1.isEmpty() ? "(no title)" : snippet.item1);
+				page.append("  [").append(this.index.getDocumentName(docID)).append(", ")
+						.append(String.format("%.4f", results.get(i).item2)).append("]\n");
+				page.append("   ").append(snippet.item2).append("\n");
+			} catch (IOException ex) {
+				page.append(this.index.getDocumentName(docID)).append("  (").append(ex.getMessage()).append(")\n");
+			}
+		}
+		double millis = (System.nanoTime() - startTime) / 1e6;
+		System.out.println();
+		System.out.print(page);
+		System.out.println();
+		System.out.println("Results " + (from + 1) + "-" + to + " of " + results.size() + " ("
+				+ String.format("%.2f", millis) + " ms to build snippets).");
 	}
-}
\ No newline at end of file
+}
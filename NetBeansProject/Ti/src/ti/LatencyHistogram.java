@@ -0,0 +1,109 @@
+package ti;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with a bounded relative error, safe to record from several threads.
+ * <p>
+ * As in HDR histograms, buckets are linear within each power of two: values below {@code 2^8} have a bucket each, and
+ * every larger power of two is split into {@code 128} buckets, so percentiles are reported with less than 1% of error
+ * for any value, from nanoseconds to hours, in a fixed array of counters. Recording a value does not allocate or lock.
+ */
+public class LatencyHistogram
+{
+    protected static final int PRECISION_BITS = 8;
+    protected static final int HALF = 1 << (PRECISION_BITS - 1);
+
+    protected final AtomicLongArray counts = new AtomicLongArray((64 - PRECISION_BITS + 2) * HALF);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+    protected final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, usually in nanoseconds. Negative values are recorded as {@code 0}.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        this.counts.incrementAndGet(getBucket(value));
+        this.count.increment();
+        this.sum.add(value);
+        if (value > this.max.get())
+            this.max.accumulateAndGet(value, Math::max);
+    }
+
+    protected static int getBucket(long value)
+    {
+        if (value < 2 * HALF)
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+        return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // El mayor valor que cae en el bucket
+    protected static long getHighestValue(int bucket)
+    {
+        if (bucket < 2 * HALF)
+            return bucket;
+        int shift = bucket / HALF - 1;
+        long mantissa = bucket % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of values.
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean, or {@code 0} if there are no values.
+     */
+    public double getMean()
+    {
+        long count = this.count.sum();
+        return count == 0 ? 0 : (double) this.sum.sum() / count;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return the maximum, or {@code 0} if there are no values.
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values fall.
+     *
+     * @param percentile the percentage, between {@code 0} and {@code 100}.
+     * @return the highest value equivalent to the percentile within the precision of the histogram, or {@code 0} if
+     * there are no values.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = this.count.sum();
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < this.counts.length(); bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= target)
+                return Math.min(getHighestValue(bucket), this.getMax());
+        }
+        return this.getMax();
+    }
+}
@@ -0,0 +1,167 @@
+package ti;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file mapped in memory with {@link FileChannel#map}.
+ * <p>
+ * Files larger than what a single {@link MappedByteBuffer} can address are mapped as consecutive regions of
+ * {@code 2^30} bytes. Index files align every {@code int}, {@code long} and {@code double} to its own size, so no
+ * value ever crosses the boundary between two regions.
+ * <p>
+ * The contents are read in place from the page cache, which is shared by every process mapping the same file.
+ * Reads use absolute positions only, so a mapped file can be shared by several threads. The mapping is released when
+ * the garbage collector frees the buffers, or at once with {@link #close}.
+ */
+public class MappedFile implements Closeable
+{
+    protected static final int REGION_BITS = 30;
+    protected static final long REGION_SIZE = 1L << REGION_BITS;
+    protected static final long REGION_MASK = REGION_SIZE - 1;
+    protected static final Object UNSAFE;
+    protected static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Sin invokeCleaner (Java 8) los buffers solo se liberan con el recolector de basura
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    protected final File file;
+    protected final long length;
+    protected final MappedByteBuffer[] regions;
+
+    /**
+     * Maps the specified file.
+     *
+     * @param file the file to map.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public MappedFile(File file) throws IOException
+    {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            int count = (int) ((this.length + REGION_SIZE - 1) >>> REGION_BITS);
+            this.regions = new MappedByteBuffer[count];
+            for (int r = 0; r < count; r++) {
+                long start = (long) r << REGION_BITS;
+                this.regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, this.length - start));
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the mapped file.
+     *
+     * @return the length in bytes.
+     */
+    public long length()
+    {
+        return this.length;
+    }
+
+    public byte getByte(long pos)
+    {
+        return this.regions[(int) (pos >>> REGION_BITS)].get((int) (pos & REGION_MASK));
+    }
+
+    public int getInt(long pos)
+    {
+        return this.regions[(int) (pos >>> REGION_BITS)].getInt((int) (pos & REGION_MASK));
+    }
+
+    public long getLong(long pos)
+    {
+        return this.regions[(int) (pos >>> REGION_BITS)].getLong((int) (pos & REGION_MASK));
+    }
+
+    public double getDouble(long pos)
+    {
+        return this.regions[(int) (pos >>> REGION_BITS)].getDouble((int) (pos & REGION_MASK));
+    }
+
+    /**
+     * Copies a range of bytes of the file into the given array.
+     *
+     * @param pos    the position of the first byte.
+     * @param dst    the array to copy to.
+     * @param off    the position in the array of the first byte.
+     * @param length the number of bytes to copy.
+     */
+    public void getBytes(long pos, byte[] dst, int off, int length)
+    {
+        while (length > 0) {
+            ByteBuffer region = this.regions[(int) (pos >>> REGION_BITS)].duplicate();
+            region.position((int) (pos & REGION_MASK));
+            int n = Math.min(length, region.remaining());
+            region.get(dst, off, n);
+            pos += n;
+            off += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Reads a header {@code int} and checks it against the expected magic number of the file.
+     *
+     * @param pos   the position of the magic number.
+     * @param magic the expected magic number.
+     * @throws IndexFormatException if the file does not start with the expected magic number.
+     */
+    public void checkMagic(long pos, int magic) throws IndexFormatException
+    {
+        if (this.length < pos + 4 || this.getInt(pos) != magic)
+            throw new IndexFormatException(this.file);
+    }
+
+    /**
+     * Unmaps the file at once, instead of when the garbage collector frees its buffers, if the JVM allows it.
+     * The file can not be read afterwards, so it must only be closed when no other thread may read it.
+     */
+    @Override
+    public void close()
+    {
+        for (int r = 0; r < this.regions.length; r++) {
+            MappedByteBuffer region = this.regions[r];
+            this.regions[r] = null;
+            if (region != null && INVOKE_CLEANER != null) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, region);
+                } catch (ReflectiveOperationException | RuntimeException ex) {
+                    // Se queda mapeado hasta que lo libere el recolector de basura
+                }
+            }
+        }
+    }
+
+    /**
+     * Rounds the given position up to the next multiple of 8, as index files align every section.
+     *
+     * @param pos the position.
+     * @return the aligned position.
+     */
+    public static long align(long pos)
+    {
+        return (pos + 7) & ~7L;
+    }
+}
@@ -0,0 +1,57 @@
+package ti;
+
+/**
+ * A {@link PostingsList} read in place from a {@link MappedFile}.
+ * <p>
+ * The ids are stored as a column of {@code int}s followed by a column of {@code double} weights.
+ */
+public class MappedPostingsList implements PostingsList
+{
+    protected final MappedFile file;
+    protected final long idsPos;
+    protected final long weightsPos;
+    protected final int size;
+
+    /**
+     * Creates a view of a postings list in the given file.
+     *
+     * @param file       the mapped file.
+     * @param idsPos     the position of the first id.
+     * @param weightsPos the position of the first weight.
+     * @param size       the number of postings.
+     */
+    public MappedPostingsList(MappedFile file, long idsPos, long weightsPos, int size)
+    {
+        this.file = file;
+        this.idsPos = idsPos;
+        this.weightsPos = weightsPos;
+        this.size = size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getID(int i)
+    {
+        return this.file.getInt(this.idsPos + 4L * i);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getWeight(int i)
+    {
+        return this.file.getDouble(this.weightsPos + 8L * i);
+    }
+}
@@ -0,0 +1,151 @@
+package ti;
+
+import java.util.ArrayList;
+
+/**
+ * A document-at-a-time query processor with MaxScore dynamic pruning.
+ * <p>
+ * Each query term has an upper bound of the score it can add to any document. Terms are sorted by upper bound, and
+ * once the {@code k}-th best score found so far exceeds the sum of the lowest bounds, those terms become
+ * non-essential: documents that contain only them can not enter the top {@code k}, so they are never visited, and
+ * non-essential terms are only looked up, skipping over their postings, for documents that may still reach the
+ * threshold.
+ * <p>
+ * Scores are added in query term order, so the top {@code k} documents and their scores are exactly those of scoring
+ * every posting.
+ */
+public class MaxScore
+{
+    // Slack for rounding errors when comparing score bounds with the threshold
+    protected static final double EPSILON = 1e-9;
+
+    /**
+     * Computes the score that a posting adds to a document.
+     */
+    public interface PostingScorer
+    {
+        /**
+         * Returns the score that the specified posting adds to its document.
+         *
+         * @param term   the position of the term in the query.
+         * @param docID  the ID of the document.
+         * @param weight the weight of the posting.
+         * @return the partial score of the document.
+         */
+        double score(int term, int docID, double weight);
+    }
+
+    /**
+     * Runs a query and returns the {@code k} documents with the highest score.
+     *
+     * @param lists       the postings list of each query term, sorted by {@code docID}.
+     * @param upperBounds the maximum score that each query term can add to a document.
+     * @param scorer      the function to compute partial scores.
+     * @param k           the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the score,
+     * sorted by decreasing score.
+     */
+    public static ArrayList<Tuple<Integer, Double>> run(PostingsList[] lists, double[] upperBounds, PostingScorer scorer, int k)
+    {
+        long start = QueryStats.start();
+        int n = lists.length;
+        long totalPostings = 0;
+        for (PostingsList list : lists)
+            totalPostings += list.size();
+
+        // Sort terms by upper bound, and sum the bounds of the lowest ones
+        int[] order = new int[n];
+        for (int j = 0; j < n; j++) {
+            int i = j;
+            while (i > 0 && upperBounds[order[i - 1]] > upperBounds[j]) {
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = j;
+        }
+        double[] prefix = new double[n];
+        for (int j = 0; j < n; j++)
+            prefix[j] = (j > 0 ? prefix[j - 1] : 0) + upperBounds[order[j]] * (1 + EPSILON);
+
+        int[] pos = new int[n];
+        double[] partial = new double[n];
+        boolean[] present = new boolean[n];
+        TopKHeap heap = new TopKHeap(k);
+        double threshold = Double.NEGATIVE_INFINITY;
+        int firstEssential = 0;
+        long scored = 0;
+        long candidates = 0;
+
+        while (true) {
+            // The next candidate is the lowest docID among the essential terms
+            int doc = Integer.MAX_VALUE;
+            for (int j = firstEssential; j < n; j++) {
+                int t = order[j];
+                if (pos[t] < lists[t].size())
+                    doc = Math.min(doc, lists[t].getID(pos[t]));
+            }
+            if (doc == Integer.MAX_VALUE)
+                break;
+
+            double bound = 0;
+            for (int j = 0; j < n; j++)
+                present[j] = false;
+            for (int j = firstEssential; j < n; j++) {
+                int t = order[j];
+                if (pos[t] < lists[t].size() && lists[t].getID(pos[t]) == doc) {
+                    partial[t] = scorer.score(t, doc, lists[t].getWeight(pos[t]));
+                    present[t] = true;
+                    bound += partial[t];
+                    pos[t]++;
+                    scored++;
+                }
+            }
+            // Look the document up in the non-essential terms, while it can still reach the threshold
+            boolean pruned = false;
+            for (int j = firstEssential - 1; j >= 0; j--) {
+                if (!canReach(bound + prefix[j], threshold)) {
+                    pruned = true;
+                    break;
+                }
+                int t = order[j];
+                pos[t] = lists[t].seek(pos[t], doc);
+                if (pos[t] < lists[t].size() && lists[t].getID(pos[t]) == doc) {
+                    partial[t] = scorer.score(t, doc, lists[t].getWeight(pos[t]));
+                    present[t] = true;
+                    bound += partial[t];
+                    pos[t]++;
+                    scored++;
+                }
+            }
+            if (pruned)
+                continue;
+
+            candidates++;
+            double score = 0;
+            for (int t = 0; t < n; t++)
+                if (present[t])
+                    score += partial[t];
+            if (heap.offer(doc, score) && heap.isFull()) {
+                threshold = heap.getMinScore();
+                while (firstEssential < n && !canReach(prefix[firstEssential], threshold))
+                    firstEssential++;
+            }
+        }
+
+        QueryStats stats = QueryStats.current();
+        stats.postingsScored += scored;
+        stats.postingsSkipped += totalPostings - scored;
+        stats.accumulators += candidates;
+        stats.scoringNanos += QueryStats.elapsed(start);
+        start = QueryStats.start();
+        ArrayList<Tuple<Integer, Double>> results = heap.toSortedList();
+        stats.sortingNanos += QueryStats.elapsed(start);
+        return results;
+    }
+
+    // Whether a document whose score is at most the given bound may enter the heap
+    protected static boolean canReach(double bound, double threshold)
+    {
+        return bound > threshold - EPSILON * Math.abs(threshold);
+    }
+}
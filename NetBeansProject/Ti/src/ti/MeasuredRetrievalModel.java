@@ -0,0 +1,95 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * A {@link RetrievalModel} that records the {@link QueryStats} and the latency of every query of another one in a
+ * {@link QueryMetrics}.
+ * <p>
+ * The counters are reset before each query, and are left in {@link QueryStats#current()} afterwards, with the total
+ * time of the query, for callers that also want them query by query. Creating a measured model enables
+ * {@link QueryStats#setTiming timing}, so the stages of the queries are measured too.
+ */
+public class MeasuredRetrievalModel implements RetrievalModel
+{
+    protected final RetrievalModel model;
+    protected final QueryMetrics metrics;
+
+    /**
+     * Creates a new measured model.
+     *
+     * @param model   the model to run the queries.
+     * @param metrics the metrics to record the queries in.
+     */
+    public MeasuredRetrievalModel(RetrievalModel model, QueryMetrics metrics)
+    {
+        this.model = model;
+        this.metrics = metrics;
+        QueryStats.setTiming(true);
+    }
+
+    /**
+     * Returns the metrics of the queries.
+     *
+     * @return the metrics.
+     */
+    public QueryMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<String> getQueryTerms(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
+    {
+        return this.model.getQueryTerms(queryText, index, docProcessor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getParameters()
+    {
+        return this.model.getParameters();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Index.Component> getRequiredComponents()
+    {
+        return this.model.getRequiredComponents();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k)
+    {
+        return this.search(queryText, index, docProcessor, k);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * On a {@link ShardedIndex} the query is recorded once, with the counters of the shards searched in this thread.
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> search(String queryText, SearchableIndex index, DocumentProcessor docProcessor,
+                                                    int k)
+    {
+        QueryStats stats = QueryStats.current();
+        stats.reset();
+        long start = System.nanoTime();
+        ArrayList<Tuple<Integer, Double>> results = this.model.search(queryText, index, docProcessor, k);
+        stats.totalNanos = System.nanoTime() - start;
+        this.metrics.record(stats);
+        return results;
+    }
+}
@@ -8,20 +8,117 @@ import java.lang.Math;
  */
 public class Okapi implements RetrievalModel
 {
+	protected boolean pruning = true;
+	protected double proximityWeight;
+	protected TermCorrector corrector;
+
 	public Okapi(){}
 
+	/**
+	 * Sets whether to use {@link MaxScore} dynamic pruning when only the top {@code k} documents are requested.
+	 * Pruning returns exactly the same documents and scores as scoring every posting.
+	 *
+	 * @param pruning {@code true} to enable dynamic pruning.
+	 */
+	public void setPruning(boolean pruning)
+	{
+		this.pruning = pruning;
+	}
+
+	/**
+	 * Sets the weight of the proximity boost of {@link PositionalQuery}, used when the index is positional. Phrases
+	 * between double quotes are matched on positional indexes regardless of the weight.
+	 *
+	 * @param proximityWeight the weight, or {@code 0} not to boost by proximity.
+	 */
+	public void setProximityWeight(double proximityWeight)
+	{
+		this.proximityWeight = proximityWeight;
+	}
+
+	/**
+	 * Sets the corrector of the query terms that are not in the index, which requires the
+	 * {@link Index.Component#FUZZY_TERMS fuzzy term index}.
+	 *
+	 * @param corrector the corrector, or {@code null} to ignore those terms.
+	 */
+	public void setCorrector(TermCorrector corrector)
+	{
+		this.corrector = corrector;
+	}
+
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * The terms that are not in the index are replaced with their corrections, if the model has a corrector.
 	 */
 	@Override
-	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor)
+	public ArrayList<String> getQueryTerms(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
 	{
-            // extraer términos de la consulta
-            ArrayList<String> queryTokens = docProcessor.processText(queryText);
+		ArrayList<String> terms = RetrievalModel.super.getQueryTerms(queryText, index, docProcessor);
+		return this.corrector == null ? terms : this.corrector.correct(terms, index);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Pruning is not included, as it does not change the results.
+	 */
+	@Override
+	public String getParameters()
+	{
+		return this.getClass().getName() + "(proximity=" + this.proximityWeight
+				+ (this.corrector == null ? "" : ", " + this.corrector.getParameters()) + ")";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Okapi scores with the raw frequencies and the document lengths, and also uses the term statistics when pruning
+	 * and the positions when boosting by proximity.
+	 */
+	@Override
+	public Set<Index.Component> getRequiredComponents()
+	{
+		EnumSet<Index.Component> components = EnumSet.copyOf(Index.CORE_COMPONENTS);
+		components.add(Index.Component.FREQUENCIES);
+		components.add(Index.Component.COLLECTION_STATISTICS);
+		if (this.pruning)
+			components.add(Index.Component.TERM_STATISTICS);
+		if (this.proximityWeight > 0)
+			components.add(Index.Component.POSITIONS);
+		if (this.corrector != null)
+			components.add(Index.Component.FUZZY_TERMS);
+		return components;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k)
+	{
+            QueryStats stats = QueryStats.current();
+            // extraer términos de la consulta, su parte booleana si la tiene, y frases y proximidad si el índice tiene posiciones
+            long start = QueryStats.start();
+            BooleanQuery filter = BooleanQuery.create(queryText, index, docProcessor, corrector);
+            ArrayList<String> queryTokens = filter != null ? filter.getTerms() : docProcessor.processText(queryText);
+            if(filter == null && corrector != null)
+                queryTokens = corrector.correct(queryTokens, index);
+            PositionalQuery positional = PositionalQuery.create(filter != null ? filter.getText() : queryText, index, docProcessor, proximityWeight);
+            stats.analysisNanos += QueryStats.elapsed(start);
             // calcular el vector consulta
+            start = QueryStats.start();
             ArrayList<Tuple<Integer, String>> queryVector = computeVectorOkapiBM25(queryTokens, index);
-            // calcular similitud de documentos
-            ArrayList<Tuple<Integer, Double>> res = computeScoresOkapiBM25(queryVector, index, 2, 0.75);
+            stats.vectorNanos += QueryStats.elapsed(start);
+            stats.queryTerms += queryVector.size();
+            // calcular similitud de documentos, solo de los que contienen las frases si las hay
+            ArrayList<Tuple<Integer, Double>> res = computeScoresOkapiBM25(queryVector, index, 2, 0.75, positional == null ? k : positional.getDepth(k), BooleanQuery.restrict(filter, positional, index));
+            if(positional != null){
+                start = QueryStats.start();
+                res = positional.rerank(res, proximityWeight, k);
+                stats.scoringNanos += QueryStats.elapsed(start);
+            }
                 
             return res; // devolver resultados
 	}
@@ -29,55 +126,97 @@ public class Okapi implements RetrievalModel
         // --------------------------- Métodos Okapi ---------------------------
         // B y K son los pesos, estaría mejor dedicirlos y declararlos como constante.
         // Para eso hará falta realizar evaluaciones.
+        // topK es el número máximo de documentos a devolver.
+        // filter es la parte booleana de la consulta, o null para puntuar todos los documentos.
         protected ArrayList<Tuple<Integer, Double>> computeScoresOkapiBM25(ArrayList<Tuple<Integer, String>> queryVector, 
-                Index index, double k, double b){
+                Index index, double k, double b, int topK, BooleanQuery filter){
             
-            ArrayList<Tuple<Integer, Double>> results = new ArrayList<>();
             // P1
             
-            HashMap<Integer, Double> res  = new HashMap<Integer, Double>();
+            // Las frecuencias sin procesar, las longitudes de los documentos y su media vienen del índice.
+            CollectionStatistics stats = index.getCollectionStatistics();
+            QueryStats queryStats = QueryStats.current();
+            queryStats.postingLists += queryVector.size();
             
-            double avgLength = 0.0;
-            for(Integer length : index.documentsOkapi.values())
-                avgLength += length;
-            avgLength = avgLength/index.documentsOkapi.size();
+            if(filter != null)
+                return computeScoresOkapiBooleana(queryVector, index, k, b, topK, stats, filter);
+            if(pruning && topK < index.getNumDocuments())
+                return computeScoresOkapiMaxScore(queryVector, index, k, b, topK, stats);
             
+            long start = QueryStats.start();
+            ScoreAccumulator res = ScoreAccumulator.get(index.getNumDocuments());
             for(Tuple<Integer, String> qw : queryVector){//for each query word
-                for(Tuple<Integer, Double> docsW : index.invertedIndex.get(qw.item1)) {
-                    if(res.containsKey(docsW.item1) == false)
-                        res.put(docsW.item1, 0.0);
-                    int ct =  index.invertedIndex.get(qw.item1).size();
-                    // Esta función da valores negativos si el término aparece en más de la mitad de los documentos
-                    double idf = Math.log((index.documents.size() - ct + 0.5)/(ct + 0.5));
-                  
-                    // Si ocurre el caso anterior
-                    //double idf = Math.log(index.documents.size()/ct);
-                                
-                                // docsW.item2 es Wtd y index.vocab es idft, así se obtiene tftd
-                                double tftd = docsW.item2/index.vocabulary.get(qw.item2).item2;
-                                
-                                double termSup = ((k+1) * tftd)/(tftd + k * ((1 - b) + b * (index.documentsOkapi.get(docsW.item1)/avgLength)));
-                                res.replace(docsW.item1, res.get(docsW.item1) + termSup * idf);
-                                int pl;
-                                if(res.get(docsW.item1) < 0)
-                                    pl = 0;
-                                    
-                        }
-		}
-		for(Map.Entry<Integer,Double> e : res.entrySet() ){
-			results.add(new Tuple<Integer, Double>(e.getKey(),e.getValue()));
-		}
+                PostingsList postings = index.getFrequencyPostings(qw.item1);
+                queryStats.postingsScored += postings.size();
+                double idf = idf(stats, qw.item1);
+                for(int i = 0; i < postings.size(); i++) {
+                    int docID = postings.getID(i);
+                    res.add(docID, bm25(postings.getWeight(i), stats.documentLengths[docID], stats.averageDocumentLength, idf, k, b));
+                }
+            }
+            queryStats.scoringNanos += QueryStats.elapsed(start);
+            queryStats.accumulators += res.size();
 		
-		// Ordenar documentos por similitud y devolver
-		Collections.sort(results, new Comparator<Tuple<Integer, Double>>()
-		{
-			@Override
-			public int compare(Tuple<Integer, Double> o1, Tuple<Integer, Double> o2)
-			{
-				return o2.item2.compareTo(o1.item2);
-			}
-		});
-		return results;
+            // Ordenar documentos por similitud y devolver
+            start = QueryStats.start();
+            ArrayList<Tuple<Integer, Double>> top = res.topK(topK);
+            queryStats.sortingNanos += QueryStats.elapsed(start);
+            return top;
+        }
+        
+        // Esta función da valores negativos si el término aparece en más de la mitad de los documentos
+        protected static double idf(CollectionStatistics stats, int termID){
+            int ct = stats.documentFrequencies[termID];
+            return Math.log((stats.getNumDocuments() - ct + 0.5)/(ct + 0.5));
+        }
+        
+        // Peso BM25 de un término con frecuencia tftd en un documento de longitud length.
+        protected static double bm25(double tftd, int length, double avgLength, double idf, double k, double b){
+            double termSup = ((k+1) * tftd)/(tftd + k * ((1 - b) + b * (length/avgLength)));
+            return termSup * idf;
+        }
+        
+        // Igual que computeScoresOkapiBM25, pero con poda dinámica MaxScore para obtener solo los topK mejores.
+        // Como bm25 crece con tftd y decrece con la longitud, su cota es la del mayor tftd con longitud 0.
+        protected ArrayList<Tuple<Integer, Double>> computeScoresOkapiMaxScore(ArrayList<Tuple<Integer, String>> queryVector,
+                Index index, final double k, final double b, int topK, final CollectionStatistics stats){
+            
+            final PostingsList[] lists = new PostingsList[queryVector.size()];
+            final double[] idfs = new double[queryVector.size()];
+            double[] upperBounds = new double[queryVector.size()];
+            double[] maxTF = index.getTermStatistics().maxTF;
+            for(int t = 0; t < queryVector.size(); t++){
+                int termID = queryVector.get(t).item1;
+                lists[t] = index.getFrequencyPostings(termID);
+                idfs[t] = idf(stats, termID);
+                upperBounds[t] = idfs[t] > 0 ? idfs[t] * ((k+1) * maxTF[termID])/(maxTF[termID] + k * (1 - b)) : 0;
+            }
+            return MaxScore.run(lists, upperBounds, new MaxScore.PostingScorer(){
+                @Override
+                public double score(int term, int docID, double tftd){
+                    return bm25(tftd, stats.documentLengths[docID], stats.averageDocumentLength, idfs[term], k, b);
+                }
+            }, topK);
+        }
+        
+        // Igual que computeScoresOkapiBM25, pero solo para los documentos que cumplen la parte booleana de la consulta,
+        // que se buscan en las postings de cada término en lugar de recorrerlas enteras.
+        protected ArrayList<Tuple<Integer, Double>> computeScoresOkapiBooleana(ArrayList<Tuple<Integer, String>> queryVector,
+                Index index, final double k, final double b, int topK, final CollectionStatistics stats, BooleanQuery filter){
+            
+            final PostingsList[] lists = new PostingsList[queryVector.size()];
+            final double[] idfs = new double[queryVector.size()];
+            for(int t = 0; t < queryVector.size(); t++){
+                int termID = queryVector.get(t).item1;
+                lists[t] = index.getFrequencyPostings(termID);
+                idfs[t] = idf(stats, termID);
+            }
+            return filter.rank(lists, new MaxScore.PostingScorer(){
+                @Override
+                public double score(int term, int docID, double tftd){
+                    return bm25(tftd, stats.documentLengths[docID], stats.averageDocumentLength, idfs[term], k, b);
+                }
+            }, topK);
         }
         
         // Los valores de este vector son: -Integer: TermId. -String: Término.
@@ -94,7 +233,7 @@ public class Okapi implements RetrievalModel
             
             int id_term;
             for(Map.Entry<String,Integer> e : uniqueTerms.entrySet()){
-                Tuple<Integer, Double> termInfo = index.vocabulary.get(e.getKey());
+                Tuple<Integer, Double> termInfo = index.getTerm(e.getKey());
                 if(termInfo == null)    continue;
                 id_term = termInfo.item1; boolean isRepited = false;					
                 
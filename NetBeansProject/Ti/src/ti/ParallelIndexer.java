@@ -0,0 +1,174 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link Indexer} that runs the first pass on several threads.
+ * <p>
+ * The collection is split in slices, one per subdirectory. Each worker builds a private partial index for a slice,
+ * with its own {@code termID}s and {@code docID}s, by calling {@link #processDocument} as the sequential indexer does.
+ * The partial indexes are then merged in the order the sequential indexer would have visited them: documents are
+ * renumbered after the ones of the previous slices, and every term gets the global {@code termID} of its first
+ * occurrence in the collection. The result is exactly the index of a sequential build, so the files are identical.
+ * <p>
+ * The {@link DocumentProcessor} is shared by all workers, so it must be thread-safe, as {@link HtmlProcessor} is.
+ */
+public class ParallelIndexer extends Indexer
+{
+    protected int numThreads;
+
+    /**
+     * Creates a new parallel indexer with the given paths, document processor and number of threads.
+     * @param pathToIndex path to the index directory.
+     * @param pathToCollection path to the original documents directory.
+     * @param docProcessor document processor to extract terms, shared by all threads.
+     * @param numThreads the number of worker threads.
+     */
+    public ParallelIndexer(File pathToIndex, File pathToCollection, DocumentProcessor docProcessor, int numThreads)
+    {
+        super(pathToIndex, pathToCollection, docProcessor);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Runs the first pass of the indexer on {@link #numThreads} threads, and merges the partial indexes into the
+     * given one.
+     * @param ind the index.
+     * @throws IOException if an error occurs while processing a document.
+     */
+    @Override
+    protected void firstPass(Index ind) throws IOException
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        long startTime = System.currentTimeMillis();
+        int totalDocuments = 0;
+        long totalBytesDocuments = 0;
+
+        System.err.println("Running first pass on " + this.numThreads + " threads...");
+        ArrayList<ArrayList<File>> slices = new ArrayList<>();
+        for (File subDir : this.pathToCollection.listFiles()) {
+            if (!subDir.getName().startsWith(".")) {
+                ArrayList<File> slice = new ArrayList<>();
+                for (File docFile : subDir.listFiles()) {
+                    if (docFile.getPath().endsWith(".html")) {
+                        slice.add(docFile);
+                        totalDocuments++;
+                        totalBytesDocuments += docFile.length();
+                    }
+                }
+                slices.add(slice);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.numThreads);
+        try {
+            ArrayList<Future<Index>> partials = new ArrayList<>();
+            for (final ArrayList<File> slice : slices) {
+                partials.add(executor.submit(new Callable<Index>()
+                {
+                    @Override
+                    public Index call()
+                    {
+                        return ParallelIndexer.this.indexSlice(slice);
+                    }
+                }));
+            }
+            // Merge in order as soon as each slice is ready, so finished partial indexes can be released
+            for (int s = 0; s < partials.size(); s++) {
+                Index partial = partials.get(s).get();
+                partials.set(s, null);
+                this.merge(partial, ind);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing.", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error while indexing: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long endTime = System.currentTimeMillis();
+        double totalTime = (endTime - startTime) / 1000d;
+        double totalMegabytes = totalBytesDocuments / 1024d / 1024d;
+        System.err.println("...done:");
+        System.err.println("  - Documents: " + totalDocuments + " (" + df.format(totalMegabytes) + " MB).");
+        System.err.println("  - Time: " + df.format(totalTime) + " seconds.");
+        System.err.println("  - Throughput: " + df.format(totalMegabytes / totalTime) + " MB/s.");
+    }
+
+    /**
+     * Builds a partial index with the documents of one slice, numbering terms and documents from {@code 0}.
+     * @param slice the document files, in the order the sequential indexer would visit them.
+     * @return the partial index.
+     */
+    protected Index indexSlice(ArrayList<File> slice)
+    {
+        Index partial = new Index(this.pathToIndex.getPath());
+        partial.setPositional(this.positional);
+        int failed = 0;
+        for (File docFile : slice) {
+            try {
+                this.processDocument(docFile, partial);
+            } catch (IOException ex) {
+                System.err.println("  Exception indexing file " + docFile.getName() + ": " + ex.getMessage());
+                failed++;
+            }
+        }
+        File subDir = slice.isEmpty() ? null : slice.get(0).getParentFile();
+        System.err.println("  Indexed " + (subDir == null ? "empty directory" : "directory " + subDir.getName())
+                + ": " + (slice.size() - failed) + " documents, " + partial.vocabulary.size() + " terms.");
+        return partial;
+    }
+
+    /**
+     * Appends a partial index to the given one, renumbering its documents and terms.
+     * <p>
+     * Documents are numbered after the ones already in {@code ind}. Terms already in {@code ind} keep their
+     * {@code termID}, and new terms are numbered in the order of their first occurrence in the partial index.
+     * @param partial the partial index.
+     * @param ind the index to merge into.
+     */
+    protected void merge(Index partial, Index ind)
+    {
+        int docOffset = ind.documents.size();
+        ind.documents.addAll(partial.documents);
+        ind.directIndex.addAll(partial.directIndex);
+        ind.documentEntries.addAll(partial.documentEntries);
+
+        // Local termIDs follow the order of first occurrence, so walking them in order assigns global termIDs
+        // exactly as the sequential indexer does
+        String[] terms = new String[partial.vocabulary.size()];
+        for (Map.Entry<String, Tuple<Integer, Double>> e : partial.vocabulary.entrySet())
+            terms[e.getValue().item1] = e.getKey();
+
+        for (int localID = 0; localID < terms.length; localID++) {
+            Tuple<Integer, Double> term = ind.vocabulary.get(terms[localID]);
+            if (term == null) {
+                term = new Tuple<>(ind.vocabulary.size(), 0.0);
+                ind.vocabulary.put(terms[localID], term);
+                ind.invertedIndex.add(new ArrayPostingsList());
+                if (ind.positions != null)
+                    ind.positions.add(new PositionsFile.Builder());
+            }
+            ArrayPostingsList from = partial.invertedIndex.get(localID);
+            ArrayPostingsList to = ind.invertedIndex.get(term.item1);
+            for (int j = 0; j < from.size(); j++)
+                to.add(from.getID(j) + docOffset, from.getWeight(j));
+            partial.invertedIndex.set(localID, null);
+            if (ind.positions != null) {
+                ind.positions.get(term.item1).addAll(partial.positions.get(localID));
+                partial.positions.set(localID, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Indexer} whose first pass is a pipeline of stages connected by bounded queues.
+ * <p>
+ * The stages are:
+ * <ol>
+ * <li>read: reads each document file into a byte buffer with a {@link java.nio.channels.FileChannel}.</li>
+ * <li>parse: decodes the text and splits it with {@link DocumentProcessor#parse}.</li>
+ * <li>analyze: extracts the terms with {@link DocumentProcessor#processParsed} and stores the document in the
+ * {@link DocumentStore}.</li>
+ * <li>accumulate: adds the postings to the index, on a single thread and in the order of the sequential indexer,
+ * so the index is identical to a sequential build.</li>
+ * </ol>
+ * The first three stages run with their own number of threads. A stage blocks when its output queue is full, so a
+ * slow stage holds back the ones before it instead of letting documents pile up in memory. At the end it prints, for
+ * every stage, its throughput and how long its threads were busy or waiting, and the occupancy of its input queue:
+ * full queues before a stage, or stages blocked on output, point at the bottleneck.
+ * <p>
+ * The {@link DocumentProcessor} is shared by all threads, so it must be thread-safe, as {@link HtmlProcessor} is.
+ */
+public class PipelineIndexer extends Indexer
+{
+    /**
+     * A document flowing through the pipeline.
+     */
+    protected static class PipelineDocument
+    {
+        protected final int seq;
+        protected final File file;
+        protected ByteBuffer bytes;
+        protected String text;
+        protected Tuple<String, String> parsed;
+        protected ArrayList<String> tokens;
+        protected TermOffsets offsets;
+        protected int storeEntry = -1;
+        protected IOException error;
+        protected RuntimeException failure;
+
+        protected PipelineDocument(int seq, File file)
+        {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Marks the end of the documents in a queue.
+     */
+    protected static final PipelineDocument END = new PipelineDocument(-1, null);
+
+    /**
+     * A stage of the pipeline and its counters.
+     */
+    protected static abstract class Stage
+    {
+        protected final String name;
+        protected final int threads;
+        protected final BlockingQueue<PipelineDocument> input;
+        protected BlockingQueue<PipelineDocument> output;
+        protected int outputThreads;
+        protected final AtomicInteger running;
+        protected final AtomicLong documents = new AtomicLong();
+        protected final AtomicLong bytes = new AtomicLong();
+        protected final AtomicLong busyNanos = new AtomicLong();
+        protected final AtomicLong inputWaitNanos = new AtomicLong();
+        protected final AtomicLong outputWaitNanos = new AtomicLong();
+        protected long occupancySum;
+        protected int occupancyMax;
+
+        protected Stage(String name, int threads, int queueCapacity)
+        {
+            this.name = name;
+            this.threads = threads;
+            this.input = new ArrayBlockingQueue<>(queueCapacity);
+            this.running = new AtomicInteger(threads);
+        }
+
+        /**
+         * Processes one document, storing the result in it.
+         * @param doc the document.
+         * @throws IOException if an error occurs while processing the document.
+         */
+        protected abstract void process(PipelineDocument doc) throws IOException;
+
+        /**
+         * Runs one of the threads of the stage until it finds the end of its input. The last thread to finish sends
+         * the end to every thread of the next stage.
+         * @throws InterruptedException if the thread is interrupted while waiting on a queue.
+         */
+        protected void work() throws InterruptedException
+        {
+            try {
+                while (true) {
+                    long start = System.nanoTime();
+                    PipelineDocument doc = this.input.take();
+                    long taken = System.nanoTime();
+                    this.inputWaitNanos.addAndGet(taken - start);
+                    if (doc == END)
+                        break;
+                    if (doc.error == null && doc.failure == null) {
+                        try {
+                            this.process(doc);
+                        } catch (IOException ex) {
+                            doc.error = ex;
+                        } catch (RuntimeException ex) {
+                            doc.failure = ex;
+                        }
+                    }
+                    long processed = System.nanoTime();
+                    this.busyNanos.addAndGet(processed - taken);
+                    this.documents.incrementAndGet();
+                    this.output.put(doc);
+                    this.outputWaitNanos.addAndGet(System.nanoTime() - processed);
+                }
+            } finally {
+                if (this.running.decrementAndGet() == 0) {
+                    for (int i = 0; i < this.outputThreads; i++)
+                        this.output.put(END);
+                }
+            }
+        }
+
+        protected void sampleOccupancy()
+        {
+            int size = this.input.size();
+            this.occupancySum += size;
+            this.occupancyMax = Math.max(this.occupancyMax, size);
+        }
+    }
+
+    protected static final long OCCUPANCY_SAMPLE_MILLIS = 10;
+
+    protected int readThreads;
+    protected int parseThreads;
+    protected int analyzeThreads;
+    protected int queueCapacity;
+
+    /**
+     * Creates a new pipeline indexer with the given paths, document processor and number of threads per stage.
+     * @param pathToIndex path to the index directory.
+     * @param pathToCollection path to the original documents directory.
+     * @param docProcessor document processor to extract terms, shared by all threads.
+     * @param readThreads the number of threads reading files.
+     * @param parseThreads the number of threads parsing documents.
+     * @param analyzeThreads the number of threads extracting terms.
+     * @param queueCapacity the number of documents each queue between stages can hold.
+     */
+    public PipelineIndexer(File pathToIndex, File pathToCollection, DocumentProcessor docProcessor,
+                           int readThreads, int parseThreads, int analyzeThreads, int queueCapacity)
+    {
+        super(pathToIndex, pathToCollection, docProcessor);
+        this.readThreads = readThreads;
+        this.parseThreads = parseThreads;
+        this.analyzeThreads = analyzeThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Runs the first pass of the indexer through the pipeline.
+     * @param ind the index.
+     * @throws IOException if an error occurs while processing a document.
+     */
+    @Override
+    protected void firstPass(Index ind) throws IOException
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        long startTime = System.currentTimeMillis();
+
+        System.err.println("Running first pass with a pipeline of " + this.readThreads + " read, " + this.parseThreads
+                + " parse and " + this.analyzeThreads + " analyze threads...");
+
+        final DocumentProcessor processor = this.docProcessor;
+        final Stage read = new Stage("Read", this.readThreads, this.queueCapacity)
+        {
+            @Override
+            protected void process(PipelineDocument doc) throws IOException
+            {
+                doc.bytes = Indexer.readDocument(doc.file);
+                this.bytes.addAndGet(doc.bytes.remaining());
+            }
+        };
+        final Stage parse = new Stage("Parse", this.parseThreads, this.queueCapacity)
+        {
+            @Override
+            protected void process(PipelineDocument doc)
+            {
+                this.bytes.addAndGet(doc.bytes.remaining());
+                doc.text = Indexer.decodeDocument(doc.bytes);
+                doc.bytes = null;
+                doc.parsed = processor.parse(doc.text);
+                doc.text = null;
+            }
+        };
+        final Stage analyze = new Stage("Analyze", this.analyzeThreads, this.queueCapacity)
+        {
+            @Override
+            protected void process(PipelineDocument doc) throws IOException
+            {
+                if (PipelineIndexer.this.documentStore != null || PipelineIndexer.this.positional)
+                    doc.offsets = new TermOffsets();
+                doc.tokens = processor.processParsed(doc.parsed, doc.offsets);
+                doc.storeEntry = PipelineIndexer.this.storeDocument(doc.parsed, doc.offsets);
+                if (!PipelineIndexer.this.positional)
+                    doc.offsets = null;
+                doc.parsed = null;
+            }
+        };
+        final Stage[] stages = { read, parse, analyze };
+        final BlockingQueue<PipelineDocument> accumulate = new ArrayBlockingQueue<>(this.queueCapacity);
+        read.output = parse.input;
+        read.outputThreads = parse.threads;
+        parse.output = analyze.input;
+        parse.outputThreads = analyze.threads;
+        analyze.output = accumulate;
+        analyze.outputThreads = 1;
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.readThreads + this.parseThreads
+                + this.analyzeThreads + 2);
+        ArrayList<Future<?>> tasks = new ArrayList<>();
+        int samples = 0;
+        int totalDocuments = 0;
+        long totalBytesDocuments = 0;
+        long accumulateNanos = 0;
+        long accumulateWaitNanos = 0;
+        long accumulateOccupancySum = 0;
+        int accumulateOccupancyMax = 0;
+        try {
+            // Feed the documents in the order of the sequential indexer
+            tasks.add(executor.submit(() -> {
+                int seq = 0;
+                for (File subDir : this.pathToCollection.listFiles()) {
+                    if (!subDir.getName().startsWith(".")) {
+                        for (File docFile : subDir.listFiles()) {
+                            if (docFile.getPath().endsWith(".html"))
+                                read.input.put(new PipelineDocument(seq++, docFile));
+                        }
+                    }
+                }
+                for (int i = 0; i < read.threads; i++)
+                    read.input.put(END);
+                return null;
+            }));
+            for (final Stage stage : stages) {
+                for (int i = 0; i < stage.threads; i++) {
+                    tasks.add(executor.submit(() -> {
+                        stage.work();
+                        return null;
+                    }));
+                }
+            }
+
+            // Add the documents to the index in order, holding back the ones that arrive early
+            HashMap<Integer, PipelineDocument> pending = new HashMap<>();
+            int next = 0;
+            long lastSample = System.nanoTime();
+            while (true) {
+                long start = System.nanoTime();
+                PipelineDocument doc = accumulate.take();
+                long taken = System.nanoTime();
+                accumulateWaitNanos += taken - start;
+                if (taken - lastSample >= OCCUPANCY_SAMPLE_MILLIS * 1000000) {
+                    for (Stage stage : stages)
+                        stage.sampleOccupancy();
+                    accumulateOccupancySum += accumulate.size();
+                    accumulateOccupancyMax = Math.max(accumulateOccupancyMax, accumulate.size());
+                    samples++;
+                    lastSample = taken;
+                }
+                if (doc == END)
+                    break;
+                pending.put(doc.seq, doc);
+                while ((doc = pending.remove(next)) != null) {
+                    if (doc.failure != null)
+                        throw doc.failure;
+                    if (doc.error != null) {
+                        System.err.println("  Exception indexing file " + doc.file.getName() + ": "
+                                + doc.error.getMessage());
+                    } else {
+                        this.addDocument(doc.file, doc.tokens, doc.offsets, doc.storeEntry, ind);
+                    }
+                    totalDocuments++;
+                    totalBytesDocuments += doc.file.length();
+                    next++;
+                }
+                accumulateNanos += System.nanoTime() - taken;
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing.", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error while indexing: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long endTime = System.currentTimeMillis();
+        double totalTime = (endTime - startTime) / 1000d;
+        double totalMegabytes = totalBytesDocuments / 1024d / 1024d;
+        System.err.println("...done:");
+        System.err.println("  - Documents: " + totalDocuments + " (" + df.format(totalMegabytes) + " MB).");
+        System.err.println("  - Time: " + df.format(totalTime) + " seconds.");
+        System.err.println("  - Throughput: " + df.format(totalMegabytes / totalTime) + " MB/s.");
+        System.err.println("  - Stages (busy and waiting times are added over the threads of each stage):");
+        for (Stage stage : stages) {
+            double busy = stage.busyNanos.get() / 1e9;
+            System.err.println("    - " + stage.name + " (" + stage.threads + (stage.threads == 1 ? " thread): " : " threads): ")
+                    + df.format(stage.documents.get() / busy * stage.threads) + " docs/s"
+                    + (stage.bytes.get() > 0 ? ", " + df.format(stage.bytes.get() / 1024d / 1024d / busy * stage.threads) + " MB/s" : "")
+                    + "; busy "
+                    + df.format(busy) + " s, waiting for input " + df.format(stage.inputWaitNanos.get() / 1e9)
+                    + " s, blocked on output " + df.format(stage.outputWaitNanos.get() / 1e9) + " s; input queue "
+                    + this.formatOccupancy(stage.occupancySum, stage.occupancyMax, samples, df) + ".");
+        }
+        System.err.println("    - Accumulate (1 thread): "
+                + df.format(totalDocuments / (accumulateNanos / 1e9)) + " docs/s; busy "
+                + df.format(accumulateNanos / 1e9) + " s, waiting for input " + df.format(accumulateWaitNanos / 1e9)
+                + " s; input queue " + this.formatOccupancy(accumulateOccupancySum, accumulateOccupancyMax, samples, df)
+                + ".");
+    }
+
+    protected String formatOccupancy(long sum, int max, int samples, DecimalFormat df)
+    {
+        double average = samples == 0 ? 0 : (double) sum / samples;
+        return "average " + df.format(average) + ", max " + max + " of " + this.queueCapacity;
+    }
+}
@@ -0,0 +1,454 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The positional part of a query on an index with a {@link PositionsFile}: exact phrases and a proximity boost.
+ * <p>
+ * Phrases are written between double quotes, as in {@code "new york" hotels}. A document matches a phrase if its terms
+ * appear at the same relative positions as in the phrase; stop words are not indexed, so they match any word. Phrases
+ * are matched by intersecting the postings of their terms by {@code docID}, with {@link PostingsList#seek}, and then
+ * the positions of the candidate documents only.
+ * <p>
+ * The proximity of a document is measured with the shortest window of positions that contains one occurrence of
+ * every query term in the document. For {@code m} of {@code n} query terms in a window of span {@code s}, it is
+ * {@code (m-1)/(n-1) * (m-1)/max(s, m-1)}: {@code 1} when all terms appear together, and lower as they get fewer or
+ * farther apart. A retrieval model multiplies the score of its best documents by {@code 1 + weight * proximity}.
+ * <p>
+ * Terms produced from the same token share a position, as the lowercase version of a capitalized word; such terms
+ * are alternatives, and any of them matches the position.
+ */
+public class PositionalQuery
+{
+    /**
+     * The number of documents retrieved to be reranked by proximity.
+     */
+    public static final int RERANK_DEPTH = 100;
+
+    protected final Index index;
+    protected final ArrayList<Group[]> phrases = new ArrayList<>();
+    protected Group[] groups;
+    protected int[] phraseMatches;
+
+    /**
+     * The terms of the query at one position, with their postings and positions.
+     */
+    protected static class Group
+    {
+        protected final int offset;
+        protected final int[] termIDs;
+        protected final PostingsList[] postings;
+        protected final PositionsFile.Cursor[] cursors;
+        protected final int[] next;
+
+        protected Group(Index index, int offset, int[] termIDs)
+        {
+            this.offset = offset;
+            this.termIDs = termIDs;
+            this.postings = new PostingsList[termIDs.length];
+            this.cursors = new PositionsFile.Cursor[termIDs.length];
+            this.next = new int[termIDs.length];
+            for (int t = 0; t < termIDs.length; t++) {
+                this.postings[t] = index.getInvertedPostings(termIDs[t]);
+                this.cursors[t] = index.getPositions(termIDs[t]);
+            }
+        }
+
+        /**
+         * Creates a copy of a group that shares its postings, with its own cursors.
+         */
+        protected Group(Index index, Group other)
+        {
+            this.offset = other.offset;
+            this.termIDs = other.termIDs;
+            this.postings = other.postings;
+            this.cursors = new PositionsFile.Cursor[other.cursors.length];
+            for (int t = 0; t < this.cursors.length; t++)
+                this.cursors[t] = index.getPositions(this.termIDs[t]);
+            this.next = new int[other.next.length];
+        }
+
+        protected int size()
+        {
+            int size = 0;
+            for (PostingsList p : this.postings)
+                size += p.size();
+            return size;
+        }
+
+        /**
+         * Returns whether any term of the group appears in the document. Documents must be asked in increasing order.
+         */
+        protected boolean contains(int docID)
+        {
+            boolean found = false;
+            for (int t = 0; t < this.postings.length; t++) {
+                this.next[t] = this.postings[t].seek(this.next[t], docID);
+                found |= this.next[t] < this.postings[t].size() && this.postings[t].getID(this.next[t]) == docID;
+            }
+            return found;
+        }
+
+        /**
+         * Returns the positions of the terms of the group in the document last passed to {@link #contains}.
+         */
+        protected int[] positions(int docID)
+        {
+            int[] positions = new int[0];
+            for (int t = 0; t < this.postings.length; t++) {
+                if (this.next[t] < this.postings[t].size() && this.postings[t].getID(this.next[t]) == docID) {
+                    int[] p = this.cursors[t].get(this.next[t]);
+                    positions = positions.length == 0 ? p : union(positions, p);
+                }
+            }
+            return positions;
+        }
+    }
+
+    protected PositionalQuery(Index index)
+    {
+        this.index = index;
+    }
+
+    /**
+     * Analyzes the positional part of a query.
+     *
+     * @param queryText        the text of the query.
+     * @param index            the index to search in.
+     * @param docProcessor     the {@link DocumentProcessor} to extract query terms.
+     * @param proximityWeight  the weight of the proximity boost, or {@code 0} not to boost.
+     * @return the positional query, or {@code null} if the index has no positions or the query has no phrases and
+     * there is no boost.
+     */
+    public static PositionalQuery create(String queryText, Index index, DocumentProcessor docProcessor,
+                                         double proximityWeight)
+    {
+        int quote = queryText.indexOf('"');
+        boolean hasPhrases = quote >= 0 && queryText.indexOf('"', quote + 1) >= 0;
+        if (!index.isPositional() || (!hasPhrases && proximityWeight <= 0))
+            return null;
+
+        PositionalQuery query = new PositionalQuery(index);
+        for (String phrase : getPhrases(queryText))
+            query.phrases.add(query.analyze(phrase, docProcessor));
+
+        // Todos los términos de la consulta, sin repetir grupos
+        ArrayList<Group> distinct = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        for (Group g : query.analyze(queryText, docProcessor))
+            if (g != null && seen.add(Arrays.toString(g.termIDs)))
+                distinct.add(g);
+        query.groups = distinct.toArray(new Group[distinct.size()]);
+        return query;
+    }
+
+    /**
+     * Describes the positional part of a query by its terms: the terms of every phrase with their offsets, and the
+     * distinct groups of terms at the same position in the whole query. Two queries with the same description have
+     * the same phrases and proximity on any index, so it can identify the query in a cache.
+     *
+     * @param queryText    the text of the query.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @return the description.
+     */
+    public static String describe(String queryText, DocumentProcessor docProcessor)
+    {
+        StringBuilder description = new StringBuilder();
+        for (String phrase : getPhrases(queryText)) {
+            TreeMap<Integer, TreeSet<String>> terms = analyzeTerms(phrase, docProcessor);
+            description.append('"');
+            for (Map.Entry<Integer, TreeSet<String>> e : terms.entrySet())
+                description.append(e.getKey() - terms.firstKey()).append(':').append(String.join("\u0001", e.getValue()))
+                        .append('\u0002');
+            description.append('"');
+        }
+        TreeSet<String> groups = new TreeSet<>();
+        for (TreeSet<String> group : analyzeTerms(queryText, docProcessor).values())
+            groups.add(String.join("\u0001", group));
+        return description.append(String.join("\u0002", groups)).toString();
+    }
+
+    /**
+     * Returns the text of the phrases of a query, between pairs of double quotes.
+     */
+    protected static ArrayList<String> getPhrases(String queryText)
+    {
+        ArrayList<String> phrases = new ArrayList<>();
+        for (int start = queryText.indexOf('"'); start >= 0; ) {
+            int end = queryText.indexOf('"', start + 1);
+            if (end < 0)
+                break;
+            phrases.add(queryText.substring(start + 1, end));
+            start = queryText.indexOf('"', end + 1);
+        }
+        return phrases;
+    }
+
+    /**
+     * Extracts the terms of a text by position.
+     */
+    protected static TreeMap<Integer, TreeSet<String>> analyzeTerms(String text, DocumentProcessor docProcessor)
+    {
+        TermOffsets offsets = new TermOffsets();
+        ArrayList<String> terms = docProcessor.processParsed(new Tuple<>("", text), offsets);
+        TreeMap<Integer, TreeSet<String>> byPosition = new TreeMap<>();
+        for (String term : terms == null ? new ArrayList<String>() : new HashSet<>(terms)) {
+            int[] positions = offsets.getPositions(term);
+            for (int i = 0; positions != null && i < positions.length; i++)
+                byPosition.computeIfAbsent(positions[i], p -> new TreeSet<>()).add(term);
+        }
+        return byPosition;
+    }
+
+    /**
+     * Extracts the terms of a text with their positions, grouped by position, with offsets relative to the first
+     * one. A position whose terms are not in the index gets a {@code null} group.
+     */
+    protected Group[] analyze(String text, DocumentProcessor docProcessor)
+    {
+        TreeMap<Integer, TreeSet<String>> byPosition = analyzeTerms(text, docProcessor);
+        Group[] groups = new Group[byPosition.size()];
+        int g = 0;
+        for (Map.Entry<Integer, TreeSet<String>> e : byPosition.entrySet()) {
+            ArrayList<Integer> ids = new ArrayList<>();
+            for (String term : e.getValue()) {
+                Tuple<Integer, Double> t = this.index.getTerm(term);
+                if (t != null && !ids.contains(t.item1))
+                    ids.add(t.item1);
+            }
+            int[] termIDs = new int[ids.size()];
+            for (int t = 0; t < termIDs.length; t++)
+                termIDs[t] = ids.get(t);
+            Arrays.sort(termIDs);
+            groups[g++] = termIDs.length == 0 ? null : new Group(this.index, e.getKey() - byPosition.firstKey(), termIDs);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns whether the query has phrases that documents must match.
+     *
+     * @return {@code true} if the query has phrases.
+     */
+    public boolean hasPhrases()
+    {
+        return !this.phrases.isEmpty();
+    }
+
+    /**
+     * Returns the documents that match all phrases of the query. The retrieval model scores only these documents, as
+     * those of a {@link BooleanQuery}, so that the best ones are found without ranking the whole collection.
+     *
+     * @return the sorted {@code docID}s of the documents, or {@code null} if the query has no phrases.
+     */
+    public int[] getPhraseMatches()
+    {
+        if (!this.hasPhrases() || this.phraseMatches != null)
+            return this.phraseMatches;
+        int[] matches = this.matchPhrase(this.phrases.get(0));
+        for (int p = 1; p < this.phrases.size(); p++)
+            matches = intersect(matches, this.matchPhrase(this.phrases.get(p)));
+        return this.phraseMatches = matches;
+    }
+
+    /**
+     * Returns how many documents the retrieval model must return to be reranked, so that the best {@code k} after
+     * {@link #rerank} are among them. If the query has phrases, the model must only score the documents of
+     * {@link #getPhraseMatches}.
+     *
+     * @param k the number of documents requested.
+     * @return the number of documents to retrieve.
+     */
+    public int getDepth(int k)
+    {
+        return Math.max(k, RERANK_DEPTH);
+    }
+
+    /**
+     * Keeps the results that match all phrases of the query, boosts them by proximity and returns the best ones.
+     *
+     * @param results         the results of the retrieval model, with at least {@link #getDepth} documents if there
+     *                        are that many, among those of {@link #getPhraseMatches} if the query has phrases.
+     * @param proximityWeight the weight of the proximity boost, or {@code 0} not to boost.
+     * @param k               the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the score.
+     */
+    public ArrayList<Tuple<Integer, Double>> rerank(ArrayList<Tuple<Integer, Double>> results, double proximityWeight,
+                                                    int k)
+    {
+        int[] matches = this.getPhraseMatches();
+
+        // Documentos candidatos en orden de docID, para recorrer postings y posiciones hacia delante
+        int numCandidates = 0;
+        int[] candidates = new int[results.size()];
+        for (Tuple<Integer, Double> r : results)
+            if (matches == null || Arrays.binarySearch(matches, r.item1) >= 0)
+                candidates[numCandidates++] = r.item1;
+        candidates = Arrays.copyOf(candidates, numCandidates);
+        Arrays.sort(candidates);
+
+        double[] proximity = new double[numCandidates];
+        if (proximityWeight > 0 && this.groups.length > 1) {
+            Group[] groups = new Group[this.groups.length];
+            for (int g = 0; g < groups.length; g++)
+                groups[g] = new Group(this.index, this.groups[g]);
+            // Solo se reordenan los mejores resultados del modelo
+            int[] boosted = new int[Math.min(RERANK_DEPTH, results.size())];
+            for (int i = 0; i < boosted.length; i++)
+                boosted[i] = results.get(i).item1;
+            Arrays.sort(boosted);
+            for (int i = 0; i < numCandidates; i++)
+                if (Arrays.binarySearch(boosted, candidates[i]) >= 0)
+                    proximity[i] = this.getProximity(groups, candidates[i]);
+        }
+
+        TopKHeap heap = new TopKHeap(Math.min(k, numCandidates));
+        for (Tuple<Integer, Double> r : results) {
+            int i = Arrays.binarySearch(candidates, r.item1);
+            if (i >= 0)
+                heap.offer(r.item1, r.item2 * (1 + proximityWeight * proximity[i]));
+        }
+        return heap.toSortedList();
+    }
+
+    /**
+     * Returns the proximity of the query terms in a document. Documents must be asked in increasing order.
+     */
+    protected double getProximity(Group[] groups, int docID)
+    {
+        ArrayList<int[]> lists = new ArrayList<>();
+        for (Group g : groups)
+            if (g.contains(docID))
+                lists.add(g.positions(docID));
+        int m = lists.size();
+        if (m < 2)
+            return 0;
+        int span = minimumSpan(lists);
+        return (m - 1d) / (groups.length - 1) * (m - 1d) / Math.max(span, m - 1);
+    }
+
+    /**
+     * Returns the span of the shortest window that contains at least one position of every list.
+     */
+    protected static int minimumSpan(ArrayList<int[]> lists)
+    {
+        int[] heads = new int[lists.size()];
+        int best = Integer.MAX_VALUE;
+        while (true) {
+            int min = 0;
+            int max = Integer.MIN_VALUE;
+            for (int l = 0; l < heads.length; l++) {
+                int p = lists.get(l)[heads[l]];
+                if (p < lists.get(min)[heads[min]])
+                    min = l;
+                max = Math.max(max, p);
+            }
+            best = Math.min(best, max - lists.get(min)[heads[min]]);
+            if (++heads[min] == lists.get(min).length)
+                return best;
+        }
+    }
+
+    /**
+     * Returns the sorted {@code docID}s of the documents that match a phrase.
+     */
+    protected int[] matchPhrase(Group[] phrase)
+    {
+        for (Group g : phrase)
+            if (g == null)
+                return new int[0];
+        Group[] groups = new Group[phrase.length];
+        for (int g = 0; g < groups.length; g++)
+            groups[g] = new Group(this.index, phrase[g]);
+        if (groups.length == 0)
+            return new int[0];
+
+        // Recorrer los documentos del grupo con menos postings y buscar los demás con seek
+        Group lead = groups[0];
+        for (Group g : groups)
+            if (g.size() < lead.size())
+                lead = g;
+        int[] docs = new int[0];
+        for (PostingsList p : lead.postings) {
+            int[] ids = new int[p.size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = p.getID(i);
+            docs = docs.length == 0 ? ids : union(docs, ids);
+        }
+
+        int numMatches = 0;
+        int[] matches = new int[Math.min(16, docs.length)];
+        for (int docID : docs) {
+            boolean all = true;
+            for (int g = 0; all && g < groups.length; g++)
+                all = groups[g].contains(docID);
+            if (!all || !matchPositions(groups, docID))
+                continue;
+            if (numMatches == matches.length)
+                matches = Arrays.copyOf(matches, 2 * numMatches);
+            matches[numMatches++] = docID;
+        }
+        return Arrays.copyOf(matches, numMatches);
+    }
+
+    /**
+     * Returns whether the terms of a phrase appear at their relative positions in a document that contains all of
+     * them.
+     */
+    protected static boolean matchPositions(Group[] groups, int docID)
+    {
+        int[][] positions = new int[groups.length][];
+        for (int g = 0; g < groups.length; g++)
+            positions[g] = groups[g].positions(docID);
+        for (int p : positions[0]) {
+            int start = p - groups[0].offset;
+            boolean all = true;
+            for (int g = 1; all && g < groups.length; g++)
+                all = Arrays.binarySearch(positions[g], start + groups[g].offset) >= 0;
+            if (all)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the sorted union of two sorted arrays without repetitions.
+     */
+    protected static int[] union(int[] a, int[] b)
+    {
+        int[] u = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int v = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+            if (n == 0 || u[n - 1] != v)
+                u[n++] = v;
+        }
+        return Arrays.copyOf(u, n);
+    }
+
+    /**
+     * Returns the sorted intersection of two sorted arrays.
+     */
+    protected static int[] intersect(int[] a, int[] b)
+    {
+        int[] r = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                r[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(r, n);
+    }
+}
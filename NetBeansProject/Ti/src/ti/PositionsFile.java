@@ -0,0 +1,231 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An optional file with the positions of every posting of the inverted index, read through a {@link MappedFile}.
+ * <p>
+ * It is kept apart from the postings, so queries that do not use positions do not read it at all. The positions of
+ * each term are stored in the same order as its postings, each list as its length followed by the gaps between
+ * positions, all as variable-length integers. Every {@link #BLOCK_SIZE} postings a skip entry points to the positions
+ * of the next posting, so the positions of any posting are found without decoding more than a block:
+ * <pre>
+ * magic count offset[count+1] (size skip[ceil(size/BLOCK_SIZE)] (length gap[length])[size])[count]
+ * </pre>
+ * where {@code offset} is the position in the file of each term, and {@code skip} is relative to the end of its
+ * skip entries.
+ */
+public class PositionsFile
+{
+    protected static final int MAGIC = 0x54495031; // TIP1
+    public static final int BLOCK_SIZE = 128;
+
+    protected final MappedFile file;
+    protected final int count;
+
+    protected PositionsFile(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        this.file = file;
+        this.count = file.getInt(4);
+    }
+
+    /**
+     * Maps the positions file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the positions file.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static PositionsFile open(File path) throws IOException
+    {
+        return new PositionsFile(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the given positions to the specified path.
+     *
+     * @param path      the path to the file.
+     * @param positions the positions of the postings of each term.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, ArrayList<Builder> positions) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(positions.size());
+            long pos = 8 + 8L * (positions.size() + 1);
+            for (Builder b : positions) {
+                out.writeLong(pos);
+                pos += 4 + 4L * numBlocks(b.size) + b.length;
+            }
+            out.writeLong(pos);
+            for (Builder b : positions) {
+                out.writeInt(b.size);
+                int[] p = {0};
+                for (int i = 0; i < b.size; i++) {
+                    if (i % BLOCK_SIZE == 0)
+                        out.writeInt(p[0]);
+                    int length = TermOffsets.readInt(b.data, p);
+                    for (int j = 0; j < length; j++)
+                        TermOffsets.readInt(b.data, p);
+                }
+                out.write(b.data, 0, b.length);
+            }
+        }
+    }
+
+    protected static int numBlocks(int size)
+    {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Returns a cursor over the positions of the postings of a term.
+     *
+     * @param termID the {@code termID}.
+     * @return the cursor.
+     */
+    public Cursor get(int termID)
+    {
+        return new Cursor(this.file, this.file.getLong(8 + 8L * termID));
+    }
+
+    /**
+     * Reads the positions of the postings of a term, fastest when postings are read in increasing order.
+     */
+    public static class Cursor
+    {
+        protected final MappedFile file;
+        protected final long skipPos;
+        protected final long dataPos;
+        protected final int size;
+        protected int posting;
+        protected long pos;
+
+        protected Cursor(MappedFile file, long termPos)
+        {
+            this.file = file;
+            this.size = file.getInt(termPos);
+            this.skipPos = termPos + 4;
+            this.dataPos = this.skipPos + 4L * numBlocks(this.size);
+            this.pos = this.dataPos;
+        }
+
+        /**
+         * Creates a cursor that reads positions from somewhere else than a file, for subclasses that override
+         * {@link #get}.
+         *
+         * @param size the number of postings of the term.
+         */
+        protected Cursor(int size)
+        {
+            this.file = null;
+            this.size = size;
+            this.skipPos = 0;
+            this.dataPos = 0;
+        }
+
+        /**
+         * Returns the number of postings of the term.
+         *
+         * @return the number of postings.
+         */
+        public int size()
+        {
+            return this.size;
+        }
+
+        /**
+         * Returns the positions of the specified posting.
+         *
+         * @param i the index of the posting in the postings list of the term.
+         * @return the positions, in increasing order.
+         */
+        public int[] get(int i)
+        {
+            // Saltar al bloque de la posting si está detrás o en otro bloque
+            if (i < this.posting || i / BLOCK_SIZE > this.posting / BLOCK_SIZE) {
+                this.posting = i - i % BLOCK_SIZE;
+                this.pos = this.dataPos + this.file.getInt(this.skipPos + 4L * (i / BLOCK_SIZE));
+            }
+            for (; this.posting < i; this.posting++) {
+                int length = this.readInt();
+                for (int j = 0; j < length; j++)
+                    while (this.file.getByte(this.pos++) < 0) ;
+            }
+            int[] positions = new int[this.readInt()];
+            int prev = 0;
+            for (int j = 0; j < positions.length; j++) {
+                prev += this.readInt();
+                positions[j] = prev;
+            }
+            this.posting++;
+            return positions;
+        }
+
+        protected int readInt()
+        {
+            int b = this.file.getByte(this.pos++);
+            int value = b & 0x7f;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = this.file.getByte(this.pos++);
+                value |= (b & 0x7f) << shift;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Accumulates the positions of the postings of a term while the index is built.
+     */
+    public static class Builder
+    {
+        protected byte[] data = new byte[8];
+        protected int length;
+        protected int size;
+
+        /**
+         * Adds the positions of the next posting of the term.
+         *
+         * @param positions the positions, in increasing order.
+         */
+        public void add(int[] positions)
+        {
+            int[] p = {this.length};
+            this.data = TermOffsets.writeInt(this.data, p, positions.length);
+            int prev = 0;
+            for (int position : positions) {
+                this.data = TermOffsets.writeInt(this.data, p, position - prev);
+                prev = position;
+            }
+            this.length = p[0];
+            this.size++;
+        }
+
+        /**
+         * Adds the positions of all the postings of another builder, after the ones of this one.
+         *
+         * @param other the other builder.
+         */
+        public void addAll(Builder other)
+        {
+            if (this.data.length < this.length + other.length)
+                this.data = Arrays.copyOf(this.data, Math.max(2 * this.data.length, this.length + other.length));
+            System.arraycopy(other.data, 0, this.data, this.length, other.length);
+            this.length += other.length;
+            this.size += other.size;
+        }
+    }
+}
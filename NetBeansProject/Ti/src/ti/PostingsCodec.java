@@ -0,0 +1,117 @@
+package ti;
+
+import java.util.Arrays;
+
+/**
+ * The codec for compressed postings lists.
+ * <p>
+ * Postings are encoded in blocks of {@link #BLOCK_SIZE}. Within a block the ids are stored as the differences between
+ * consecutive ids in variable-byte form, followed by the weights quantized to 16 bits. Each list has its own scale,
+ * so that its largest weight maps onto the largest quantized value.
+ * <p>
+ * Postings lists must be sorted by {@code id}.
+ */
+public class PostingsCodec
+{
+    public static final int BLOCK_SIZE = 128;
+    protected static final int WEIGHT_LEVELS = 0xffff;
+
+    /**
+     * Returns the scale to quantize the weights of the specified list.
+     *
+     * @param list the postings list.
+     * @return the weight represented by each quantization step.
+     */
+    public static double getScale(PostingsList list)
+    {
+        double max = 0;
+        for (int i = 0; i < list.size(); i++)
+            max = Math.max(max, list.getWeight(i));
+        return max / WEIGHT_LEVELS;
+    }
+
+    /**
+     * Returns the weight that results from encoding and decoding the given one.
+     *
+     * @param weight the weight.
+     * @param scale  the scale to quantize weights, as returned by {@link #getScale}.
+     * @return the quantized weight.
+     */
+    public static double quantize(double weight, double scale)
+    {
+        return quantizeLevel(weight, scale) * scale;
+    }
+
+    protected static int quantizeLevel(double weight, double scale)
+    {
+        return scale == 0 ? 0 : (int) Math.min(WEIGHT_LEVELS, Math.round(weight / scale));
+    }
+
+    /**
+     * Encodes the specified list.
+     *
+     * @param list  the postings list, sorted by {@code id}.
+     * @param scale the scale to quantize weights, as returned by {@link #getScale}.
+     * @return the encoded bytes.
+     */
+    public static byte[] encode(PostingsList list, double scale)
+    {
+        byte[] data = new byte[16 + 4 * list.size()];
+        int pos = 0;
+        int prev = 0;
+        for (int start = 0; start < list.size(); start += BLOCK_SIZE) {
+            int end = Math.min(list.size(), start + BLOCK_SIZE);
+            if (data.length < pos + 7 * (end - start))
+                data = Arrays.copyOf(data, Math.max(2 * data.length, pos + 7 * (end - start)));
+            for (int i = start; i < end; i++) {
+                int delta = list.getID(i) - prev;
+                prev = list.getID(i);
+                while ((delta & ~0x7f) != 0) {
+                    data[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                data[pos++] = (byte) delta;
+            }
+            for (int i = start; i < end; i++) {
+                int q = quantizeLevel(list.getWeight(i), scale);
+                data[pos++] = (byte) (q >>> 8);
+                data[pos++] = (byte) q;
+            }
+        }
+        return Arrays.copyOf(data, pos);
+    }
+
+    /**
+     * Decodes a list encoded with {@link #encode}.
+     *
+     * @param data  the encoded bytes.
+     * @param size  the number of postings in the list.
+     * @param scale the scale the weights were quantized with.
+     * @return the decoded postings list.
+     */
+    public static ArrayPostingsList decode(byte[] data, int size, double scale)
+    {
+        int[] ids = new int[size];
+        double[] weights = new double[size];
+        int pos = 0;
+        int prev = 0;
+        for (int start = 0; start < size; start += BLOCK_SIZE) {
+            int end = Math.min(size, start + BLOCK_SIZE);
+            for (int i = start; i < end; i++) {
+                int b = data[pos++];
+                int delta = b & 0x7f;
+                for (int shift = 7; b < 0; shift += 7) {
+                    b = data[pos++];
+                    delta |= (b & 0x7f) << shift;
+                }
+                prev += delta;
+                ids[i] = prev;
+            }
+            for (int i = start; i < end; i++) {
+                weights[i] = (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff)) * scale;
+                pos += 2;
+            }
+        }
+        return new ArrayPostingsList(ids, weights, size);
+    }
+}
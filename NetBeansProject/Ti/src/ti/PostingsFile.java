@@ -0,0 +1,196 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A file with a sequence of postings lists, such as the inverted or the direct index, that is read through a
+ * {@link MappedFile}.
+ * <p>
+ * The file starts with a header and a table with the position and size of every list, so any list can be found
+ * without reading the others. Lists are either stored raw, as a column of ids followed by a column of weights that
+ * is read in place, or compressed with the {@link PostingsCodec}, in which case there is also a column with the
+ * quantization scale of every list:
+ * <pre>
+ * magic count codec offset[count+1] size[count] (ids[size] weights[size])[count]
+ * magic count codec offset[count+1] size[count] scale[count] encodedBytes[count]
+ * </pre>
+ */
+public class PostingsFile
+{
+    protected static final int MAGIC = 0x54495032; // TIP2
+    protected static final int CODEC_RAW = 0;
+    protected static final int CODEC_COMPRESSED = 1;
+
+    protected final MappedFile file;
+    protected final int count;
+    protected final int codec;
+    protected final long offsetsPos;
+    protected final long sizesPos;
+    protected final long scalesPos;
+
+    protected PostingsFile(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        this.file = file;
+        this.count = file.getInt(4);
+        this.codec = file.getInt(8);
+        this.offsetsPos = 16;
+        this.sizesPos = this.offsetsPos + 8L * (this.count + 1);
+        this.scalesPos = MappedFile.align(this.sizesPos + 4L * this.count);
+    }
+
+    /**
+     * Maps the postings file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the postings file.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static PostingsFile open(File path) throws IOException
+    {
+        return new PostingsFile(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the given postings lists to the specified path.
+     *
+     * @param path       the path to the file.
+     * @param lists      the postings lists.
+     * @param compressed whether to compress the lists with the {@link PostingsCodec}.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, ArrayList<? extends PostingsList> lists, boolean compressed) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(lists.size());
+            out.writeInt(compressed ? CODEC_COMPRESSED : CODEC_RAW);
+            out.writeInt(0);
+            long pos = MappedFile.align(16 + 8L * (lists.size() + 1) + 4L * lists.size());
+            if (compressed) {
+                pos += 8L * lists.size();
+                double[] scales = new double[lists.size()];
+                ArrayList<byte[]> encoded = new ArrayList<>(lists.size());
+                for (int i = 0; i < lists.size(); i++) {
+                    scales[i] = PostingsCodec.getScale(lists.get(i));
+                    encoded.add(PostingsCodec.encode(lists.get(i), scales[i]));
+                    out.writeLong(pos);
+                    pos += encoded.get(i).length;
+                }
+                out.writeLong(pos);
+                for (PostingsList list : lists)
+                    out.writeInt(list.size());
+                out.align();
+                for (double scale : scales)
+                    out.writeDouble(scale);
+                for (byte[] data : encoded)
+                    out.write(data);
+            } else {
+                for (PostingsList list : lists) {
+                    out.writeLong(pos);
+                    pos = MappedFile.align(pos + 4L * list.size()) + 8L * list.size();
+                }
+                out.writeLong(pos);
+                for (PostingsList list : lists)
+                    out.writeInt(list.size());
+                out.align();
+                for (PostingsList list : lists) {
+                    for (int i = 0; i < list.size(); i++)
+                        out.writeInt(list.getID(i));
+                    out.align();
+                    for (int i = 0; i < list.size(); i++)
+                        out.writeDouble(list.getWeight(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of postings lists in the file.
+     *
+     * @return the number of lists.
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Returns whether the lists in this file are compressed.
+     *
+     * @return {@code true} if the lists are compressed with the {@link PostingsCodec} and {@code false} otherwise.
+     */
+    public boolean isCompressed()
+    {
+        return this.codec == CODEC_COMPRESSED;
+    }
+
+    /**
+     * Returns the {@code i}-th postings list. Raw lists are read in place from the file, and compressed lists are
+     * decoded into a new {@link ArrayPostingsList}.
+     *
+     * @param i the position of the list in the file, that is, its {@code termID} or {@code docID}.
+     * @return the postings list.
+     */
+    public PostingsList get(int i)
+    {
+        long offset = this.file.getLong(this.offsetsPos + 8L * i);
+        int size = this.file.getInt(this.sizesPos + 4L * i);
+        if (this.codec == CODEC_COMPRESSED) {
+            byte[] data = new byte[(int) (this.file.getLong(this.offsetsPos + 8L * (i + 1)) - offset)];
+            this.file.getBytes(offset, data, 0, data.length);
+            return PostingsCodec.decode(data, size, this.file.getDouble(this.scalesPos + 8L * i));
+        }
+        return new MappedPostingsList(this.file, offset, MappedFile.align(offset + 4L * size), size);
+    }
+
+    /**
+     * Returns the total number of postings in the file.
+     *
+     * @return the number of postings in all lists.
+     */
+    public long getNumPostings()
+    {
+        long total = 0;
+        for (int i = 0; i < this.count; i++)
+            total += this.file.getInt(this.sizesPos + 4L * i);
+        return total;
+    }
+
+    /**
+     * Returns the ratio between the size the postings would take raw, with a 4-byte id and an 8-byte weight each,
+     * and the size they actually take in the file.
+     *
+     * @return the compression ratio.
+     */
+    public double getCompressionRatio()
+    {
+        long stored = this.file.getLong(this.offsetsPos + 8L * this.count) - this.file.getLong(this.offsetsPos);
+        return stored == 0 ? 1 : 12d * this.getNumPostings() / stored;
+    }
+
+    /**
+     * Decodes every list in the file and measures the throughput.
+     *
+     * @return the decoding throughput, in MB of raw postings per second.
+     */
+    public double measureDecodeThroughput()
+    {
+        long startTime = System.nanoTime();
+        long postings = 0;
+        for (int i = 0; i < this.count; i++)
+            postings += this.get(i).size();
+        double totalTime = (System.nanoTime() - startTime) / 1e9;
+        return 12d * postings / 1024d / 1024d / totalTime;
+    }
+}
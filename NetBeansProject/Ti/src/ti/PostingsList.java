@@ -0,0 +1,86 @@
+package ti;
+
+import java.util.ArrayList;
+
+/**
+ * This interface defines a list of postings stored in primitive form.
+ * <p>
+ * {@code (id, weight)+}
+ * <p>
+ * In the inverted index the {@code id} of each posting is a {@code docID}, and in the direct index it is a
+ * {@code termID}. Postings are kept sorted by {@code id}.
+ */
+public interface PostingsList
+{
+    /**
+     * Returns the number of postings in the list.
+     *
+     * @return the number of postings.
+     */
+    int size();
+
+    /**
+     * Returns the {@code id} of the {@code i}-th posting.
+     *
+     * @param i the position of the posting in the list.
+     * @return the {@code docID} or {@code termID} of the posting.
+     */
+    int getID(int i);
+
+    /**
+     * Returns the weight of the {@code i}-th posting.
+     *
+     * @param i the position of the posting in the list.
+     * @return the weight of the posting.
+     */
+    double getWeight(int i);
+
+    /**
+     * Finds the first posting at or after position {@code from} whose {@code id} is not lower than {@code target}.
+     * <p>
+     * It gallops forward from {@code from} and then runs a binary search, so skipping over {@code n} postings costs
+     * {@code O(log n)}.
+     *
+     * @param from   the position to start from.
+     * @param target the {@code id} to look for.
+     * @return the position of the posting, or {@link #size()} if all remaining postings have lower ids.
+     */
+    default int seek(int from, int target)
+    {
+        int size = this.size();
+        if (from >= size || this.getID(from) >= target)
+            return from;
+        // Here getID(lo) < target, and getID(hi) >= target unless hi == size
+        int lo = from;
+        int step = 1;
+        int hi = from + 1;
+        while (hi < size && this.getID(hi) < target) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        if (hi > size)
+            hi = size;
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.getID(mid) < target)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return hi;
+    }
+
+    /**
+     * Returns a copy of this list as {@link Tuple}s, as the index used to store them.
+     *
+     * @return a list of {@link Tuple}s where the first item is the {@code id} and the second one the weight.
+     */
+    default ArrayList<Tuple<Integer, Double>> asTuples()
+    {
+        ArrayList<Tuple<Integer, Double>> tuples = new ArrayList<>(this.size());
+        for (int i = 0; i < this.size(); i++)
+            tuples.add(new Tuple<>(this.getID(i), this.getWeight(i)));
+        return tuples;
+    }
+}
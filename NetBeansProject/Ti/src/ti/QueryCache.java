@@ -0,0 +1,295 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of query results bounded by memory, safe to use from several threads.
+ * <p>
+ * Entries are kept in least recently used order. A TinyLFU admission filter estimates how often every key has been
+ * requested with a count-min sketch of 4-bit counters, halved periodically so that old popularity fades. When the cache
+ * is full, a new entry only replaces the least recently used ones if its key has been requested more often, so a burst
+ * of queries that are never repeated does not flush the frequent ones.
+ * <p>
+ * Every entry belongs to an index, identified by its path, and to a generation of that index (see
+ * {@link Index#getGeneration}). The first time a newer generation of an index is seen, all the entries of the older
+ * ones are dropped.
+ */
+public class QueryCache
+{
+    public static final long DEFAULT_CAPACITY = 16L << 20;
+    protected static final int ENTRY_OVERHEAD = 96;
+
+    protected final long capacity;
+    protected long weight;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    protected final HashMap<String, Long> generations = new HashMap<>(); // [index path] -> generation
+    protected final long[] sketch;
+    protected final int sketchMask;
+    protected int sketchAdditions;
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+    protected long rejections;
+    protected long invalidations;
+
+    protected static class Entry
+    {
+        protected final String path;
+        protected final int[] docIDs;
+        protected final double[] scores;
+        protected final long weight;
+
+        protected Entry(String path, int[] docIDs, double[] scores, long weight)
+        {
+            this.path = path;
+            this.docIDs = docIDs;
+            this.scores = scores;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Creates a new cache with the {@link #DEFAULT_CAPACITY}.
+     */
+    public QueryCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new cache that uses up to the specified memory.
+     *
+     * @param capacity the approximate maximum size of the cached entries, in bytes.
+     */
+    public QueryCache(long capacity)
+    {
+        this.capacity = capacity;
+        // Unos 16 contadores de 4 bits por cada entrada de 1 KB que quepa
+        int words = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 24, capacity / 1024)));
+        this.sketch = new long[words];
+        this.sketchMask = words - 1;
+    }
+
+    /**
+     * Returns the cached results of a query.
+     *
+     * @param index the index the query runs on.
+     * @param key   the key of the query, which must identify its results on any generation of the index.
+     * @return a copy of the results, or {@code null} if they are not cached.
+     */
+    public synchronized ArrayList<Tuple<Integer, Double>> get(SearchableIndex index, String key)
+    {
+        this.checkGeneration(index);
+        String fullKey = getFullKey(index, key);
+        this.recordAccess(fullKey);
+        Entry entry = this.entries.get(fullKey);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        ArrayList<Tuple<Integer, Double>> results = new ArrayList<>(entry.docIDs.length);
+        for (int i = 0; i < entry.docIDs.length; i++)
+            results.add(new Tuple<>(entry.docIDs[i], entry.scores[i]));
+        return results;
+    }
+
+    /**
+     * Adds the results of a query to the cache, if the admission policy accepts them.
+     *
+     * @param index   the index the query ran on.
+     * @param key     the key of the query, as given to {@link #get}.
+     * @param results the results of the query.
+     */
+    public synchronized void put(SearchableIndex index, String key, ArrayList<Tuple<Integer, Double>> results)
+    {
+        this.checkGeneration(index);
+        String fullKey = getFullKey(index, key);
+        int[] docIDs = new int[results.size()];
+        double[] scores = new double[results.size()];
+        for (int i = 0; i < docIDs.length; i++) {
+            docIDs[i] = results.get(i).item1;
+            scores[i] = results.get(i).item2;
+        }
+        Entry entry = new Entry(index.getPath(), docIDs, scores, ENTRY_OVERHEAD + 2L * fullKey.length() + 12L * docIDs.length);
+        if (entry.weight > this.capacity)
+            return;
+
+        // Admisión TinyLFU: solo se desalojan entradas menos frecuentes que la nueva
+        int frequency = this.getFrequency(fullKey);
+        Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+        long freed = 0;
+        ArrayList<String> victims = new ArrayList<>();
+        while (this.weight - freed + entry.weight > this.capacity && eldest.hasNext()) {
+            Map.Entry<String, Entry> victim = eldest.next();
+            if (!victim.getKey().equals(fullKey) && this.getFrequency(victim.getKey()) >= frequency) {
+                this.rejections++;
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().weight;
+        }
+        for (String victim : victims) {
+            this.weight -= this.entries.remove(victim).weight;
+            if (!victim.equals(fullKey))
+                this.evictions++;
+        }
+        Entry previous = this.entries.put(fullKey, entry);
+        if (previous != null)
+            this.weight -= previous.weight;
+        this.weight += entry.weight;
+    }
+
+    protected static String getFullKey(SearchableIndex index, String key)
+    {
+        return index.getPath() + '\u0000' + index.getGeneration() + '\u0000' + key;
+    }
+
+    /**
+     * Drops the entries of older generations of the index, the first time a new generation is seen.
+     */
+    protected void checkGeneration(SearchableIndex index)
+    {
+        long generation = index.getGeneration();
+        Long current = this.generations.get(index.getPath());
+        if (current != null && current >= generation)
+            return;
+        this.generations.put(index.getPath(), generation);
+        if (current == null)
+            return;
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.path.equals(index.getPath())) {
+                this.weight -= entry.weight;
+                this.invalidations++;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Counts an access to a key in the sketch. All counters are halved after {@code 10} accesses per word of counters.
+     */
+    protected void recordAccess(String key)
+    {
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < 4; row++) {
+            int h = hash * (2 * row + 1) + row;
+            int word = (h >>> 8) & this.sketchMask;
+            int shift = ((h & 15) << 2);
+            if (((this.sketch[word] >>> shift) & 15) < 15)
+                this.sketch[word] += 1L << shift;
+            hash = spread(hash);
+        }
+        if (++this.sketchAdditions >= 10 * this.sketch.length) {
+            for (int i = 0; i < this.sketch.length; i++)
+                this.sketch[i] = (this.sketch[i] >>> 1) & 0x7777777777777777L;
+            this.sketchAdditions /= 2;
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses to a key: the smallest of its counters.
+     */
+    protected int getFrequency(String key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            int h = hash * (2 * row + 1) + row;
+            int word = (h >>> 8) & this.sketchMask;
+            int shift = ((h & 15) << 2);
+            frequency = Math.min(frequency, (int) ((this.sketch[word] >>> shift) & 15));
+            hash = spread(hash);
+        }
+        return frequency;
+    }
+
+    protected static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    /**
+     * Removes all entries, keeping the counters.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+    /**
+     * Returns the number of entries currently in the cache.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the approximate memory used by the entries.
+     *
+     * @return the size in bytes.
+     */
+    public synchronized long getWeight()
+    {
+        return this.weight;
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * Returns the number of results that were not cached because the admission filter preferred the entries already
+     * in the cache.
+     *
+     * @return the number of rejected entries.
+     */
+    public synchronized long getRejections()
+    {
+        return this.rejections;
+    }
+
+    /**
+     * Returns the number of entries dropped because their index was updated.
+     *
+     * @return the number of invalidated entries.
+     */
+    public synchronized long getInvalidations()
+    {
+        return this.invalidations;
+    }
+
+    /**
+     * Returns the fraction of lookups that found the results in the cache.
+     *
+     * @return the hit rate between {@code 0} and {@code 1}, or {@code 0} if there were no lookups.
+     */
+    public synchronized double getHitRate()
+    {
+        long total = this.hits + this.misses;
+        return total == 0 ? 0 : (double) this.hits / total;
+    }
+}
@@ -0,0 +1,146 @@
+package ti;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregated metrics of the queries run by a search engine: latency histograms of the whole queries and of each of
+ * their stages, and the total work they did, from their {@link QueryStats}. It is safe to record from several threads.
+ * <p>
+ * The stages are only measured while {@link QueryStats#setTiming timing} is enabled; otherwise only the latency of
+ * the whole queries and the counters are recorded.
+ */
+public class QueryMetrics
+{
+    protected final LatencyHistogram total = new LatencyHistogram();
+    protected final LatencyHistogram analysis = new LatencyHistogram();
+    protected final LatencyHistogram vector = new LatencyHistogram();
+    protected final LatencyHistogram scoring = new LatencyHistogram();
+    protected final LatencyHistogram sorting = new LatencyHistogram();
+    protected final LatencyHistogram feedback = new LatencyHistogram();
+    protected final LongAdder queryTerms = new LongAdder();
+    protected final LongAdder feedbackTerms = new LongAdder();
+    protected final LongAdder correctedTerms = new LongAdder();
+    protected final LongAdder postingLists = new LongAdder();
+    protected final LongAdder postingsScored = new LongAdder();
+    protected final LongAdder postingsSkipped = new LongAdder();
+    protected final LongAdder accumulators = new LongAdder();
+
+    /**
+     * Records the counters of a query.
+     *
+     * @param stats the counters, with the {@link QueryStats#totalNanos total time} of the query.
+     */
+    public void record(QueryStats stats)
+    {
+        this.total.record(stats.totalNanos);
+        if (QueryStats.isTiming()) {
+            this.analysis.record(stats.analysisNanos);
+            this.vector.record(stats.vectorNanos);
+            this.scoring.record(stats.scoringNanos);
+            this.sorting.record(stats.sortingNanos);
+            if (stats.feedbackNanos > 0)
+                this.feedback.record(stats.feedbackNanos);
+        }
+        this.queryTerms.add(stats.queryTerms);
+        this.feedbackTerms.add(stats.feedbackTerms);
+        this.correctedTerms.add(stats.correctedTerms);
+        this.postingLists.add(stats.postingLists);
+        this.postingsScored.add(stats.postingsScored);
+        this.postingsSkipped.add(stats.postingsSkipped);
+        this.accumulators.add(stats.accumulators);
+    }
+
+    /**
+     * Returns the number of recorded queries.
+     *
+     * @return the number of queries.
+     */
+    public long getCount()
+    {
+        return this.total.getCount();
+    }
+
+    /**
+     * Returns the histogram of the latency of the whole queries, in nanoseconds.
+     *
+     * @return the latency histogram.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return this.total;
+    }
+
+    /**
+     * Prints the latency percentiles of the queries and their stages, and the average work per query.
+     *
+     * @param out the stream to print to.
+     */
+    public void print(PrintStream out)
+    {
+        long count = this.getCount();
+        if (count == 0)
+            return;
+        DecimalFormat df = new DecimalFormat("#.##");
+        out.println("Query metrics (" + count + " queries, times in ms):");
+        printLatency(out, "  - Latency", this.total);
+        if (this.scoring.getCount() > 0) {
+            printLatency(out, "    - analysis", this.analysis);
+            printLatency(out, "    - vector", this.vector);
+            printLatency(out, "    - scoring", this.scoring);
+            printLatency(out, "    - sorting", this.sorting);
+            printLatency(out, "    - feedback", this.feedback);
+        }
+        out.println("  - Per query: " + df.format((double) this.queryTerms.sum() / count) + " terms, "
+                + df.format((double) this.feedbackTerms.sum() / count) + " feedback terms, "
+                + df.format((double) this.correctedTerms.sum() / count) + " corrected terms, "
+                + df.format((double) this.postingLists.sum() / count) + " postings lists, "
+                + df.format((double) this.postingsScored.sum() / count) + " postings scored, "
+                + df.format((double) this.postingsSkipped.sum() / count) + " skipped, "
+                + df.format((double) this.accumulators.sum() / count) + " accumulators.");
+    }
+
+    protected static void printLatency(PrintStream out, String label, LatencyHistogram histogram)
+    {
+        if (histogram.getCount() == 0)
+            return;
+        DecimalFormat df = new DecimalFormat("#.###");
+        out.println(label + ": mean " + df.format(histogram.getMean() / 1e6)
+                + ", p50 " + df.format(histogram.getPercentile(50) / 1e6)
+                + ", p99 " + df.format(histogram.getPercentile(99) / 1e6)
+                + ", p999 " + df.format(histogram.getPercentile(99.9) / 1e6)
+                + ", max " + df.format(histogram.getMax() / 1e6) + ".");
+    }
+
+    /**
+     * Writes the header of the tab-separated dump of per-query counters written by {@link #write}.
+     *
+     * @param out the writer to write to.
+     * @throws IOException if an error occurs while writing.
+     */
+    public static void writeHeader(Writer out) throws IOException
+    {
+        out.write("query\tterms\tfeedback_terms\tcorrected_terms\tpostings_lists\tpostings_scored\tpostings_skipped\taccumulators"
+                + "\tanalysis_ns\tvector_ns\tscoring_ns\tsorting_ns\tfeedback_ns\ttotal_ns\n");
+    }
+
+    /**
+     * Writes the counters of a query as a line of tab-separated values.
+     *
+     * @param out     the writer to write to.
+     * @param queryId the ID of the query.
+     * @param stats   the counters of the query.
+     * @throws IOException if an error occurs while writing.
+     */
+    public static void write(Writer out, String queryId, QueryStats stats) throws IOException
+    {
+        out.write(queryId + "\t" + stats.queryTerms + "\t" + stats.feedbackTerms + "\t" + stats.correctedTerms
+                + "\t" + stats.postingLists
+                + "\t" + stats.postingsScored + "\t" + stats.postingsSkipped + "\t" + stats.accumulators
+                + "\t" + stats.analysisNanos + "\t" + stats.vectorNanos + "\t" + stats.scoringNanos
+                + "\t" + stats.sortingNanos + "\t" + stats.feedbackNanos + "\t" + stats.totalNanos + "\n");
+    }
+}
@@ -0,0 +1,467 @@
+package ti;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers queries over HTTP with JSON, on the HTTP server of the JDK, for an index loaded once.
+ * <p>
+ * {@code GET /search?q=<query>} runs a query, with the operators of {@link BooleanQuery} and the phrases of
+ * {@link PositionalQuery}, and returns a page of its results. The optional parameters are the {@code model}
+ * ({@code cosine}, {@code okapi} or {@code feedback}), its {@code proximity} weight, the {@code expansion} (a number of
+ * terms or {@code all}), {@code depth}, {@code alpha}, {@code beta} and {@code gamma} of feedback, the maximum edit
+ * distance {@code correct} and number of {@code corrections} of the {@link TermCorrector}, which default to the
+ * corrector of the server if it has one, the number {@code k} of documents to rank, and the {@code page} (from
+ * {@code 1}) and its {@code size}. Clients that page through the results of a query should keep
+ * {@code k}, so that with a {@link QueryCache} the query only runs once. {@code GET /stats} returns the counters of the
+ * server, the latency of the queries of every model and the statistics of the cache.
+ * <p>
+ * At most {@link #getMaxInFlight} queries run at a time, each on its own thread. Requests that arrive while all of
+ * them are running are shed at once with {@code 503 Service Unavailable} and a {@code Retry-After} header, instead of
+ * waiting in a queue, so the latency of the admitted queries stays bounded under overload. A few more threads than
+ * permits are kept, so statistics are answered while the queries run. The pool of threads has no queue either: a
+ * request that arrives while every thread is busy is shed on the thread of the HTTP server that accepted it.
+ */
+public class QueryServer implements Closeable
+{
+    public static final int DEFAULT_K = 100;
+    public static final int MAX_K = 10000;
+    public static final int DEFAULT_PAGE_SIZE = 10;
+    protected static final int SPARE_THREADS = 2;
+    protected static final int MAX_MODELS = 64;
+    protected static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>(); // set while shedding a rejected request
+
+    protected final SearchableIndex index;
+    protected final DocumentProcessor docProcessor;
+    protected final QueryCache cache;
+    protected final int maxInFlight;
+    protected final Semaphore inFlight;
+    protected String defaultModel = "feedback";
+    protected boolean pruning = true;
+    protected double defaultProximity;
+    protected TermCorrector defaultCorrector;
+    protected int defaultExpansion = CosineWithFeedback.DEFAULT_EXPANSION_TERMS;
+    protected final ConcurrentHashMap<String, RetrievalModel> models = new ConcurrentHashMap<>(); // parameters -> model
+    protected final ConcurrentHashMap<String, QueryMetrics> metrics = new ConcurrentHashMap<>(); // model name -> metrics
+    protected final LatencyHistogram latency = new LatencyHistogram();
+    protected final LongAdder requests = new LongAdder();
+    protected final LongAdder shed = new LongAdder();
+    protected final LongAdder errors = new LongAdder();
+    protected final long startTime = System.nanoTime();
+    protected HttpServer server;
+    protected ThreadPoolExecutor executor;
+
+    /**
+     * Creates a new query server.
+     *
+     * @param index        the loaded index, shared by all queries.
+     * @param docProcessor the processor to extract query terms, which must be thread-safe.
+     * @param cache        the cache of query results, or {@code null} not to cache them.
+     * @param maxInFlight  the maximum number of queries running at a time.
+     */
+    public QueryServer(SearchableIndex index, DocumentProcessor docProcessor, QueryCache cache, int maxInFlight)
+    {
+        this.index = index;
+        this.docProcessor = docProcessor;
+        this.cache = cache;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Sets the model, proximity weight, corrector and feedback expansion of the queries that do not specify them, and
+     * whether the models prune.
+     *
+     * @param model     the name of the model: {@code cosine}, {@code okapi} or {@code feedback}.
+     * @param pruning   whether the models skip the documents that can not enter the top {@code k}.
+     * @param proximity the proximity weight.
+     * @param corrector the corrector of query terms, or {@code null} not to correct them.
+     * @param expansion the maximum number of terms that feedback adds, as {@link CosineWithFeedback#setExpansionTerms}.
+     */
+    public void setDefaults(String model, boolean pruning, double proximity, TermCorrector corrector, int expansion)
+    {
+        this.defaultModel = model;
+        this.pruning = pruning;
+        this.defaultProximity = proximity;
+        this.defaultCorrector = corrector;
+        this.defaultExpansion = expansion;
+    }
+
+    /**
+     * Returns the maximum number of queries running at a time.
+     *
+     * @return the maximum number of queries in flight.
+     */
+    public int getMaxInFlight()
+    {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Returns the components of the index used by the models of the server with their default parameters, to load
+     * them in advance.
+     *
+     * @param proximity the default proximity weight.
+     * @param corrector the default corrector of query terms, or {@code null}.
+     * @return the required components.
+     */
+    public static Set<Index.Component> getRequiredComponents(double proximity, TermCorrector corrector)
+    {
+        EnumSet<Index.Component> components = EnumSet.noneOf(Index.Component.class);
+        for (String name : new String[] { "cosine", "okapi", "feedback" }) {
+            HashMap<String, String> params = new HashMap<>();
+            params.put("model", name);
+            params.put("proximity", String.valueOf(proximity));
+            components.addAll(createModel(params, name, true, 0, corrector,
+                    CosineWithFeedback.DEFAULT_EXPANSION_TERMS).getRequiredComponents());
+        }
+        return components;
+    }
+
+    /**
+     * Starts answering requests on the specified address.
+     *
+     * @param address the address and port to listen on.
+     * @throws IOException if the server can not be bound.
+     */
+    public void start(InetSocketAddress address) throws IOException
+    {
+        // Sin Nagle, las respuestas pequeñas no esperan al ACK retrasado del cliente
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(address, 1024);
+        int threads = this.maxInFlight + SPARE_THREADS;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "query-server");
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> {
+            // Sin hilos libres la petición no espera: se contesta con 503 en el hilo que la aceptó
+            SHEDDING.set(true);
+            try {
+                task.run();
+            } finally {
+                SHEDDING.remove();
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/search", this::handleSearch);
+        this.server.createContext("/stats", this::handleStats);
+        this.server.createContext("/", exchange -> send(exchange, 404, error("Unknown path; use /search or /stats.")));
+        this.server.start();
+    }
+
+    /**
+     * Returns the address the server listens on.
+     *
+     * @return the address and port.
+     */
+    public InetSocketAddress getAddress()
+    {
+        return this.server.getAddress();
+    }
+
+    /**
+     * Stops the server, letting the running queries finish for up to a second.
+     */
+    @Override
+    public void close()
+    {
+        this.server.stop(1);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the counters of the server and the metrics of the queries of every model.
+     *
+     * @param out the stream to print to.
+     */
+    public void printStatistics(PrintStream out)
+    {
+        out.println("Server: " + this.requests.sum() + " requests, " + this.shed.sum() + " shed, " + this.errors.sum()
+                + " errors.");
+        for (Map.Entry<String, QueryMetrics> e : this.metrics.entrySet()) {
+            out.print(e.getKey() + ": ");
+            e.getValue().print(out);
+        }
+    }
+
+    protected void handleSearch(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        this.requests.increment();
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Only GET is allowed."));
+            return;
+        }
+        if (SHEDDING.get() != null || !this.inFlight.tryAcquire()) {
+            this.shed.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 503, error("Too many queries in flight."));
+            return;
+        }
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String queryText = params.get("q");
+            if (queryText == null || queryText.trim().isEmpty())
+                throw new IllegalArgumentException("Missing query parameter q.");
+            String name = params.getOrDefault("model", this.defaultModel);
+            int k = getInt(params, "k", DEFAULT_K, MAX_K);
+            int page = getInt(params, "page", 1, Integer.MAX_VALUE);
+            int size = getInt(params, "size", DEFAULT_PAGE_SIZE, MAX_K);
+
+            RetrievalModel model = this.getModel(params, name);
+            ArrayList<Tuple<Integer, Double>> results = model.search(queryText, this.index, this.docProcessor, k);
+
+            StringBuilder json = new StringBuilder(128 + 64 * size);
+            json.append("{\"query\":");
+            appendString(json, queryText);
+            json.append(",\"model\":");
+            appendString(json, model.getParameters());
+            json.append(",\"total\":").append(results.size());
+            json.append(",\"page\":").append(page);
+            json.append(",\"size\":").append(size);
+            json.append(",\"results\":[");
+            long from = (long) (page - 1) * size;
+            for (long i = from; i < Math.min(results.size(), from + size); i++) {
+                Tuple<Integer, Double> result = results.get((int) i);
+                json.append(i == from ? "{" : ",{").append("\"rank\":").append(i + 1);
+                json.append(",\"doc\":");
+                appendString(json, this.index.getDocumentName(result.item1));
+                json.append(",\"score\":").append(result.item2).append('}');
+            }
+            json.append("],\"took_ms\":").append(millis(System.nanoTime() - start)).append('}');
+            send(exchange, 200, json.toString());
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            this.errors.increment();
+            send(exchange, 500, error(String.valueOf(ex)));
+        } finally {
+            this.inFlight.release();
+            this.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    protected void handleStats(HttpExchange exchange) throws IOException
+    {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"uptime_s\":").append((System.nanoTime() - this.startTime) / 1000000000L);
+        json.append(",\"in_flight\":").append(this.maxInFlight - this.inFlight.availablePermits());
+        json.append(",\"max_in_flight\":").append(this.maxInFlight);
+        json.append(",\"requests\":").append(this.requests.sum());
+        json.append(",\"shed\":").append(this.shed.sum());
+        json.append(",\"errors\":").append(this.errors.sum());
+        json.append(",\"latency_ms\":");
+        appendLatency(json, this.latency);
+        json.append(",\"models\":{");
+        boolean first = true;
+        for (Map.Entry<String, QueryMetrics> e : this.metrics.entrySet()) {
+            QueryMetrics m = e.getValue();
+            long count = Math.max(1, m.getCount());
+            json.append(first ? "" : ",");
+            appendString(json, e.getKey());
+            json.append(":{\"queries\":").append(m.getCount());
+            json.append(",\"latency_ms\":");
+            appendLatency(json, m.getLatency());
+            json.append(",\"postings_scored_per_query\":").append(m.postingsScored.sum() / count);
+            json.append(",\"postings_skipped_per_query\":").append(m.postingsSkipped.sum() / count);
+            json.append('}');
+            first = false;
+        }
+        json.append('}');
+        if (this.cache != null) {
+            json.append(",\"cache\":{\"entries\":").append(this.cache.size());
+            json.append(",\"hits\":").append(this.cache.getHits());
+            json.append(",\"misses\":").append(this.cache.getMisses());
+            json.append(",\"evictions\":").append(this.cache.getEvictions());
+            json.append(",\"hit_rate\":").append(this.cache.getHitRate()).append('}');
+        }
+        json.append('}');
+        send(exchange, 200, json.toString());
+    }
+
+    /**
+     * Returns the model to run a query with the specified parameters, reusing the one of a previous query with the
+     * same parameters so that its analyzed queries are reused too.
+     */
+    protected RetrievalModel getModel(Map<String, String> params, String name)
+    {
+        RetrievalModel base = createModel(params, name, this.pruning, this.defaultProximity, this.defaultCorrector,
+                this.defaultExpansion);
+        String key = base.getParameters();
+        RetrievalModel model = this.models.get(key);
+        if (model != null)
+            return model;
+        model = base;
+        if (this.cache != null)
+            model = new CachedRetrievalModel(model, this.cache);
+        model = new MeasuredRetrievalModel(model, this.metrics.computeIfAbsent(name, n -> new QueryMetrics()));
+        // Los parámetros vienen de los clientes, así que solo se guardan los primeros modelos
+        if (this.models.size() < MAX_MODELS) {
+            RetrievalModel previous = this.models.putIfAbsent(key, model);
+            if (previous != null)
+                return previous;
+        }
+        return model;
+    }
+
+    /**
+     * Creates a model from the parameters of a query.
+     *
+     * @throws IllegalArgumentException if the model or a parameter is not valid.
+     */
+    protected static RetrievalModel createModel(Map<String, String> params, String name, boolean pruning,
+            double defaultProximity, TermCorrector defaultCorrector, int defaultExpansion)
+    {
+        double proximity = getDouble(params, "proximity", defaultProximity);
+        TermCorrector corrector = defaultCorrector;
+        if (params.containsKey("correct"))
+            corrector = new TermCorrector(getInt(params, "correct", TermCorrector.DEFAULT_MAX_DISTANCE,
+                    FuzzyTermIndex.MAX_DISTANCE), getInt(params, "corrections", 1, MAX_K), TermCorrector.DEFAULT_MIN_LENGTH);
+        switch (name) {
+            case "cosine":
+                Cosine cosine = new Cosine();
+                cosine.setPruning(pruning);
+                cosine.setProximityWeight(proximity);
+                cosine.setCorrector(corrector);
+                return cosine;
+            case "okapi":
+                Okapi okapi = new Okapi();
+                okapi.setPruning(pruning);
+                okapi.setProximityWeight(proximity);
+                okapi.setCorrector(corrector);
+                return okapi;
+            case "feedback":
+                CosineWithFeedback feedback = new CosineWithFeedback(getInt(params, "depth", 25, MAX_K),
+                        getDouble(params, "alpha", 2), getDouble(params, "beta", 0.25), getDouble(params, "gamma", 0.1));
+                feedback.setPruning(pruning);
+                feedback.setProximityWeight(proximity);
+                feedback.setCorrector(corrector);
+                if ("all".equals(params.get("expansion")))
+                    feedback.setExpansionTerms(CosineWithFeedback.UNBOUNDED_EXPANSION);
+                else
+                    feedback.setExpansionTerms(getInt(params, "expansion", defaultExpansion, Integer.MAX_VALUE));
+                return feedback;
+            default:
+                throw new IllegalArgumentException("Invalid model " + name + "; use cosine, okapi or feedback.");
+        }
+    }
+
+    protected static int getInt(Map<String, String> params, String name, int defaultValue, int max)
+    {
+        String value = params.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0 && n <= max)
+                return n;
+        } catch (NumberFormatException ex) {
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value + "; it must be between 1 and " + max + ".");
+    }
+
+    protected static double getDouble(Map<String, String> params, String name, double defaultValue)
+    {
+        String value = params.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            double x = Double.parseDouble(value);
+            if (x >= 0 && !Double.isInfinite(x))
+                return x;
+        } catch (NumberFormatException ex) {
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value + "; it must be a non-negative number.");
+    }
+
+    protected static Map<String, String> parseQuery(String rawQuery)
+    {
+        HashMap<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        try {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0)
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+        return params;
+    }
+
+    protected static void send(HttpExchange exchange, int status, String json) throws IOException
+    {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    protected static String error(String message)
+    {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        return json.append('}').toString();
+    }
+
+    protected static void appendLatency(StringBuilder json, LatencyHistogram histogram)
+    {
+        json.append("{\"count\":").append(histogram.getCount());
+        json.append(",\"mean\":").append(millis(histogram.getMean()));
+        json.append(",\"p50\":").append(millis(histogram.getPercentile(50)));
+        json.append(",\"p99\":").append(millis(histogram.getPercentile(99)));
+        json.append(",\"p999\":").append(millis(histogram.getPercentile(99.9)));
+        json.append(",\"max\":").append(millis(histogram.getMax())).append('}');
+    }
+
+    protected static double millis(double nanos)
+    {
+        return Math.round(nanos / 1000) / 1000d;
+    }
+
+    // Cadena JSON con las comillas, barras y caracteres de control escapados
+    protected static void appendString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,162 @@
+package ti;
+
+/**
+ * Counters of the work done by the query running in the current thread.
+ * <p>
+ * Retrieval models add to the counters of {@link #current()}, and callers reset them before running a query and read
+ * them afterwards from the same thread. The time of each stage of the query is only measured while timing is enabled
+ * with {@link #setTiming}, so that the models do not call {@link System#nanoTime} otherwise.
+ */
+public class QueryStats
+{
+    protected static final ThreadLocal<QueryStats> STATS = ThreadLocal.withInitial(QueryStats::new);
+    protected static volatile boolean timing;
+
+    /**
+     * Number of query terms found in the index.
+     */
+    public int queryTerms;
+    /**
+     * Number of terms of the query expanded by relevance feedback.
+     */
+    public int feedbackTerms;
+    /**
+     * Number of query terms not in the index that were replaced by their corrections.
+     */
+    public int correctedTerms;
+    /**
+     * Number of postings lists read to score documents.
+     */
+    public int postingLists;
+    /**
+     * Number of postings whose score was computed.
+     */
+    public long postingsScored;
+    /**
+     * Number of postings skipped by dynamic pruning without computing their score.
+     */
+    public long postingsSkipped;
+    /**
+     * Number of documents that got a score: the accumulators used, or with dynamic pruning the candidates fully scored.
+     */
+    public long accumulators;
+    /**
+     * Time to extract the terms and phrases of the query, in nanoseconds.
+     */
+    public long analysisNanos;
+    /**
+     * Time to compute the query vector, in nanoseconds.
+     */
+    public long vectorNanos;
+    /**
+     * Time to score documents, including the proximity rerank, in nanoseconds.
+     */
+    public long scoringNanos;
+    /**
+     * Time to select and sort the best documents, in nanoseconds.
+     */
+    public long sortingNanos;
+    /**
+     * Time to compute the query vector expanded by relevance feedback, in nanoseconds.
+     */
+    public long feedbackNanos;
+    /**
+     * Time to run the whole query, in nanoseconds, as measured by the caller.
+     */
+    public long totalNanos;
+
+    /**
+     * Returns the counters of the current thread.
+     *
+     * @return the query counters.
+     */
+    public static QueryStats current()
+    {
+        return STATS.get();
+    }
+
+    /**
+     * Sets whether retrieval models measure the time of each stage of their queries.
+     *
+     * @param timing {@code true} to measure the stages.
+     */
+    public static void setTiming(boolean timing)
+    {
+        QueryStats.timing = timing;
+    }
+
+    /**
+     * Returns whether retrieval models measure the time of each stage of their queries.
+     *
+     * @return {@code true} if the stages are measured.
+     */
+    public static boolean isTiming()
+    {
+        return timing;
+    }
+
+    /**
+     * Starts measuring a stage of the query.
+     *
+     * @return the current time in nanoseconds, or {@code 0} if timing is disabled.
+     */
+    public static long start()
+    {
+        return timing ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Returns the time elapsed since the start of a stage.
+     *
+     * @param start the value returned by {@link #start}.
+     * @return the elapsed nanoseconds, or {@code 0} if timing was disabled at the start.
+     */
+    public static long elapsed(long start)
+    {
+        return start == 0 ? 0 : System.nanoTime() - start;
+    }
+
+    /**
+     * Sets all counters to zero.
+     */
+    public void reset()
+    {
+        this.queryTerms = 0;
+        this.feedbackTerms = 0;
+        this.correctedTerms = 0;
+        this.postingLists = 0;
+        this.postingsScored = 0;
+        this.postingsSkipped = 0;
+        this.accumulators = 0;
+        this.analysisNanos = 0;
+        this.vectorNanos = 0;
+        this.scoringNanos = 0;
+        this.sortingNanos = 0;
+        this.feedbackNanos = 0;
+        this.totalNanos = 0;
+    }
+
+    /**
+     * Returns a copy of the counters, to keep them after the thread runs another query.
+     *
+     * @return the copy.
+     */
+    public QueryStats copy()
+    {
+        QueryStats copy = new QueryStats();
+        copy.queryTerms = this.queryTerms;
+        copy.feedbackTerms = this.feedbackTerms;
+        copy.correctedTerms = this.correctedTerms;
+        copy.postingLists = this.postingLists;
+        copy.postingsScored = this.postingsScored;
+        copy.postingsSkipped = this.postingsSkipped;
+        copy.accumulators = this.accumulators;
+        copy.analysisNanos = this.analysisNanos;
+        copy.vectorNanos = this.vectorNanos;
+        copy.scoringNanos = this.scoringNanos;
+        copy.sortingNanos = this.sortingNanos;
+        copy.feedbackNanos = this.feedbackNanos;
+        copy.totalNanos = this.totalNanos;
+        return copy;
+    }
+}
@@ -1,6 +1,8 @@
 package ti;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * This interface defines methods implemented by a retrieval model.
@@ -15,5 +17,82 @@ public interface RetrievalModel
 	 * @param docProcessor the {@link DocumentProcessor} to extract query terms.
 	 * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
 	 */
-	ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor);
+	default ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor)
+	{
+		return this.runQuery(queryText, index, docProcessor, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the given query and returns the {@code k} most similar documents, sorted by similarity.
+	 *
+	 * @param queryText    the text of the query.
+	 * @param index        the index to search in.
+	 * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+	 * @param k            the maximum number of documents to return.
+	 * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
+	 */
+	ArrayList<Tuple<Integer, Double>> runQuery(String queryText, Index index, DocumentProcessor docProcessor, int k);
+
+	/**
+	 * Runs the given query on any {@link SearchableIndex}, such as a {@link ShardedIndex}, and returns the {@code k}
+	 * most similar documents, sorted by similarity.
+	 * <p>
+	 * The default implementation lets the index run the model with {@link SearchableIndex#search}. Models that wrap
+	 * another one override it to handle the query once, before the index splits it among its shards.
+	 *
+	 * @param queryText    the text of the query.
+	 * @param index        the index to search in.
+	 * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+	 * @param k            the maximum number of documents to return.
+	 * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
+	 */
+	default ArrayList<Tuple<Integer, Double>> search(String queryText, SearchableIndex index, DocumentProcessor docProcessor, int k)
+	{
+		return index.search(this, queryText, docProcessor, k);
+	}
+
+	/**
+	 * Returns the terms that the model searches for a query, to highlight them in the results.
+	 * <p>
+	 * The default implementation returns the terms extracted by the {@link DocumentProcessor}. Models that rewrite the
+	 * query terms, such as with a {@link TermCorrector}, override it to return the rewritten terms.
+	 *
+	 * @param queryText    the text of the query.
+	 * @param index        the index to search in.
+	 * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+	 * @return the query terms.
+	 */
+	default ArrayList<String> getQueryTerms(String queryText, SearchableIndex index, DocumentProcessor docProcessor)
+	{
+		ArrayList<String> terms = docProcessor.processText(queryText);
+		return terms == null ? new ArrayList<>() : terms;
+	}
+
+	/**
+	 * Returns a description of the model and of the parameters that change its results, such that two models with
+	 * the same description return the same results for the same query and index. {@link CachedRetrievalModel} uses
+	 * it to identify cached results.
+	 * <p>
+	 * The default implementation describes the model object itself, so its results are never shared with other
+	 * models.
+	 *
+	 * @return the description.
+	 */
+	default String getParameters()
+	{
+		return this.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(this));
+	}
+
+	/**
+	 * Returns the components of the index that the model uses to run queries, so that they are opened in advance
+	 * with {@link Index#load(Set)}. Any other component is still opened if the model happens to use it.
+	 * <p>
+	 * The default implementation requires all components.
+	 *
+	 * @return the required components.
+	 */
+	default Set<Index.Component> getRequiredComponents()
+	{
+		return EnumSet.allOf(Index.Component.class);
+	}
 }
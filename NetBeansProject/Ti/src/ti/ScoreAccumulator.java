@@ -0,0 +1,126 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Accumulates the scores of documents for a query and selects the best ones.
+ * <p>
+ * Scores are kept in a dense array indexed by {@code docID}, together with the list of documents touched by the
+ * query, so adding to a score costs an array access and resetting costs as much as the documents actually touched.
+ * Each thread reuses its own accumulator through {@link #get}, so no per-query arrays are allocated.
+ * <p>
+ * The top {@code k} documents are selected with a {@link TopKHeap}, in {@code O(matches log k)}.
+ */
+public class ScoreAccumulator
+{
+    protected static final ThreadLocal<ScoreAccumulator> ACCUMULATORS = ThreadLocal.withInitial(ScoreAccumulator::new);
+
+    protected double[] scores = new double[0];
+    protected boolean[] touched = new boolean[0];
+    protected int[] touchedDocs = new int[16];
+    protected int numTouched;
+
+    /**
+     * Returns the empty accumulator of the current thread, with room for the specified number of documents.
+     * <p>
+     * The accumulator is valid until the next call to this method from the same thread.
+     *
+     * @param numDocuments the number of documents in the index.
+     * @return the accumulator.
+     */
+    public static ScoreAccumulator get(int numDocuments)
+    {
+        ScoreAccumulator acc = ACCUMULATORS.get();
+        acc.reset(numDocuments);
+        return acc;
+    }
+
+    protected void reset(int numDocuments)
+    {
+        for (int i = 0; i < this.numTouched; i++) {
+            this.scores[this.touchedDocs[i]] = 0;
+            this.touched[this.touchedDocs[i]] = false;
+        }
+        this.numTouched = 0;
+        if (this.scores.length < numDocuments) {
+            this.scores = new double[numDocuments];
+            this.touched = new boolean[numDocuments];
+        }
+    }
+
+    /**
+     * Adds to the score of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @param score the score to add.
+     */
+    public void add(int docID, double score)
+    {
+        if (!this.touched[docID]) {
+            this.touched[docID] = true;
+            if (this.numTouched == this.touchedDocs.length)
+                this.touchedDocs = Arrays.copyOf(this.touchedDocs, 2 * this.numTouched);
+            this.touchedDocs[this.numTouched++] = docID;
+        }
+        this.scores[docID] += score;
+    }
+
+    /**
+     * Returns the score of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return the accumulated score, or {@code 0} if the document was not touched.
+     */
+    public double getScore(int docID)
+    {
+        return this.scores[docID];
+    }
+
+    /**
+     * Sets the score of a document already touched by the query.
+     *
+     * @param docID the ID of the document.
+     * @param score the new score.
+     */
+    public void setScore(int docID, double score)
+    {
+        this.scores[docID] = score;
+    }
+
+    /**
+     * Returns the number of documents touched by the query.
+     *
+     * @return the number of documents with a score.
+     */
+    public int size()
+    {
+        return this.numTouched;
+    }
+
+    /**
+     * Returns the {@code i}-th document touched by the query.
+     *
+     * @param i the position of the document, in the order they were first touched.
+     * @return the {@code docID}.
+     */
+    public int getDoc(int i)
+    {
+        return this.touchedDocs[i];
+    }
+
+    /**
+     * Returns the {@code k} documents with the highest score. Ties are broken by {@code docID}.
+     *
+     * @param k the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the score,
+     * sorted by decreasing score.
+     */
+    public ArrayList<Tuple<Integer, Double>> topK(int k)
+    {
+        TopKHeap heap = new TopKHeap(Math.min(k, this.numTouched));
+        for (int i = 0; i < this.numTouched; i++)
+            heap.offer(this.touchedDocs[i], this.scores[this.touchedDocs[i]]);
+        return heap.toSortedList();
+    }
+}
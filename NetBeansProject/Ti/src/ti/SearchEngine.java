@@ -1,6 +1,14 @@
 package ti;
 
 import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class is the main entry point to run the search engine.
@@ -8,6 +16,8 @@ import java.io.File;
  */
 public class SearchEngine
 {
+    protected static final double DEFAULT_PROXIMITY_WEIGHT = 0.25;
+
     /**
      * Run the indexing process with the given command-line arguments.
      *
@@ -16,6 +26,8 @@ public class SearchEngine
      */
     protected static void doIndex(String[] args) throws Exception
     {
+        HashMap<String, String> options = new HashMap<>();
+        args = SearchEngine.parseOptions(args, options, "compress", "positions", "threads", "pipeline", "queue", "shards");
         if (args.length < 3 || args.length > 4) {
             SearchEngine.printUsage();
             System.exit(1);
@@ -41,10 +53,136 @@ public class SearchEngine
         // Build index
         DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
         
-        Indexer indexer = new Indexer(pathToIndex, pathToCollection, docProcessor);
+        int threads = SearchEngine.getThreadsOption(options);
+        Indexer indexer;
+        if (options.containsKey("shards")) {
+            // Un hilo por shard
+            if (options.containsKey("pipeline") || options.containsKey("threads")) {
+                System.err.println("A sharded index is built with one thread per shard; use -shards=<n> alone.");
+                SearchEngine.printUsage();
+                System.exit(1);
+            }
+            indexer = new ShardedIndexer(pathToIndex, pathToCollection, docProcessor,
+                    SearchEngine.parsePositive(options.get("shards"), "number of shards"));
+        } else if (options.containsKey("pipeline")) {
+            // -pipeline=<read>,<parse>,<analyze> threads per stage; by default one reader and the rest for the CPU
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int[] stageThreads = { 1, cpus, cpus };
+            String[] values = options.get("pipeline").isEmpty() ? new String[0] : options.get("pipeline").split(",");
+            if (values.length > stageThreads.length || options.containsKey("threads")) {
+                System.err.println("Invalid pipeline option; use -pipeline=<read>,<parse>,<analyze>.");
+                SearchEngine.printUsage();
+                System.exit(1);
+            }
+            for (int i = 0; i < values.length; i++)
+                stageThreads[i] = SearchEngine.parsePositive(values[i], "number of threads");
+            int queue = options.containsKey("queue") ? SearchEngine.parsePositive(options.get("queue"), "queue capacity") : 64;
+            indexer = new PipelineIndexer(pathToIndex, pathToCollection, docProcessor,
+                    stageThreads[0], stageThreads[1], stageThreads[2], queue);
+        } else if (threads > 1) {
+            indexer = new ParallelIndexer(pathToIndex, pathToCollection, docProcessor, threads);
+        } else {
+            indexer = new Indexer(pathToIndex, pathToCollection, docProcessor);
+        }
+        indexer.setCompress(options.containsKey("compress"));
+        indexer.setPositional(options.containsKey("positions"));
         indexer.run();
     }
 
+    /**
+     * Add documents to an existing index with the given command-line arguments, without rebuilding it.
+     *
+     * @param args the raw command-line arguments.
+     * @throws Exception if an error occurs during the process.
+     */
+    protected static void doAdd(String[] args) throws Exception
+    {
+        if (args.length < 3 || args.length > 4) {
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        File pathToIndex = new File(args[1]);
+        File pathToDocuments = new File(args[2]);
+        File pathToStopWords = args.length == 4 ? new File(args[3]) : null;
+
+        // Check console arguments
+        if (!pathToIndex.exists() || pathToIndex.isFile()) {
+            System.err.println("Index directory does not exist.");
+            System.exit(1);
+        }
+        if (!pathToDocuments.exists()) {
+            System.err.println("Invalid path to documents.");
+            System.exit(1);
+        }
+        if (pathToStopWords != null && (!pathToStopWords.exists() || !pathToStopWords.isFile())) {
+            System.err.println("Invalid path to list of stop words.");
+            System.exit(1);
+        }
+
+        if (ShardedIndex.exists(pathToIndex)) {
+            System.err.println("A sharded index can not be updated; index the collection again.");
+            System.exit(1);
+        }
+
+        // Add a new segment, and wait for the merges it triggers
+        ArrayList<File> docFiles = new ArrayList<>();
+        SearchEngine.listDocuments(pathToDocuments, docFiles);
+        DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
+        try (IncrementalIndexer indexer = new IncrementalIndexer(pathToIndex, docProcessor)) {
+            indexer.add(docFiles);
+        }
+    }
+
+    /**
+     * Delete documents from an existing index with the given command-line arguments.
+     *
+     * @param args the raw command-line arguments.
+     * @throws Exception if an error occurs during the process.
+     */
+    protected static void doDelete(String[] args) throws Exception
+    {
+        if (args.length < 3) {
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        File pathToIndex = new File(args[1]);
+        if (!pathToIndex.exists() || pathToIndex.isFile()) {
+            System.err.println("Index directory does not exist.");
+            System.exit(1);
+        }
+
+        if (ShardedIndex.exists(pathToIndex)) {
+            System.err.println("A sharded index can not be updated; index the collection again.");
+            System.exit(1);
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 2; i < args.length; i++)
+            names.add(new File(args[i]).getName().replaceAll(".html", ""));
+        try (IncrementalIndexer indexer = new IncrementalIndexer(pathToIndex, null)) {
+            int deleted = indexer.delete(names);
+            System.err.println("Deleted " + deleted + " of " + names.size() + " documents.");
+        }
+    }
+
+    /**
+     * Adds to a list the HTML files in the specified path, which may be a file or a directory.
+     *
+     * @param path  the path.
+     * @param files the list to add the files to.
+     */
+    protected static void listDocuments(File path, ArrayList<File> files)
+    {
+        if (path.isDirectory()) {
+            for (File file : path.listFiles()) {
+                if (!file.getName().startsWith("."))
+                    SearchEngine.listDocuments(file, files);
+            }
+        } else if (path.getPath().endsWith(".html")) {
+            files.add(path);
+        }
+    }
+
     /**
      * Run the retrieval process in batch mode with the given command-line arguments.
      *
@@ -53,6 +191,9 @@ public class SearchEngine
      */
     protected static void doBatch(String[] args) throws Exception
     {
+        HashMap<String, String> options = new HashMap<>();
+        args = SearchEngine.parseOptions(args, options, "exhaustive", "threads", "model", "proximity", "expansion", "cache",
+                "metrics", "remote", "correct", "corrections");
         if (args.length < 3 || args.length > 4) {
             SearchEngine.printUsage();
             System.exit(1);
@@ -71,19 +212,32 @@ public class SearchEngine
             System.exit(1);
         }
 
-        // Read index
+        // Instantiate retriever
+        RetrievalModel retriever = SearchEngine.getModelOption(options); // P4
+
+        // Read index, with the components that the retriever uses
         System.err.print("Loading index...");
-        Index ind = new Index(pathToIndex.getPath());
-        ind.load();
+        SearchableIndex ind = SearchEngine.openIndex(pathToIndex, options, retriever.getRequiredComponents());
         System.err.println("done. Statistics:");
         ind.printStatistics();
+        SearchEngine.printLoadTimes(ind);
 
-        // Instantiate retriever and run
+        // Run
         DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
-                
-        RetrievalModel cosine = new CosineWithFeedback(25, 2, 0.25, 0.1); // P4
-        Batch batch = new Batch(pathToQueries, cosine, ind, docProcessor);
+        QueryCache cache = SearchEngine.getCacheOption(options);
+        RetrievalModel model = cache == null ? retriever : new CachedRetrievalModel(retriever, cache);
+        QueryMetrics metrics = options.containsKey("metrics") ? new QueryMetrics() : null;
+        if (metrics != null)
+            model = new MeasuredRetrievalModel(model, metrics);
+        Batch batch = new Batch(pathToQueries, model, ind, docProcessor);
+        batch.setThreads(SearchEngine.getThreadsOption(options));
+        batch.setPrintQueryStats(metrics != null);
+        if (metrics != null && !options.get("metrics").isEmpty())
+            batch.setMetricsOutput(new File(options.get("metrics")));
         batch.run();
+        SearchEngine.printCacheStatistics(cache);
+        if (metrics != null)
+            metrics.print(System.err);
     }
 
     /**
@@ -94,6 +248,9 @@ public class SearchEngine
      */
     protected static void doInteractive(String[] args) throws Exception
     {
+        HashMap<String, String> options = new HashMap<>();
+        args = SearchEngine.parseOptions(args, options, "model", "proximity", "expansion", "cache", "metrics", "remote",
+                "correct", "corrections");
         if (args.length < 2 || args.length > 3) {
             SearchEngine.printUsage();
             System.exit(1);
@@ -107,40 +264,440 @@ public class SearchEngine
             System.exit(1);
         }
 
-        // Read index
+        // Instantiate retriever
+        RetrievalModel retriever = SearchEngine.getModelOption(options); // P4
+
+        // Read index, with the components that the retriever uses
         System.err.print("Loading index...");
-        Index ind = new Index(pathToIndex.getPath());
-        ind.load();
+        SearchableIndex ind = SearchEngine.openIndex(pathToIndex, options, retriever.getRequiredComponents());
         System.err.println("done. Statistics:");
         ind.printStatistics();
+        SearchEngine.printLoadTimes(ind);
 
-        // Instantiate retriever and run
+        // Run
         DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
-        
-        RetrievalModel cosine = new CosineWithFeedback(25, 2, 0.25, 0.1); // P4
-        Interactive inter = new Interactive(cosine, ind, docProcessor);
+        QueryCache cache = SearchEngine.getCacheOption(options);
+        RetrievalModel model = cache == null ? retriever : new CachedRetrievalModel(retriever, cache);
+        QueryMetrics metrics = options.containsKey("metrics") ? new QueryMetrics() : null;
+        if (metrics != null)
+            model = new MeasuredRetrievalModel(model, metrics);
+        Interactive inter = new Interactive(model, ind, docProcessor);
         inter.run();
+        SearchEngine.printCacheStatistics(cache);
+        if (metrics != null)
+            metrics.print(System.err);
     }
 
-    public static void main(String[] args) throws Exception
+    /**
+     * Serve one shard of a sharded index to its coordinator with the given command-line arguments, until the process
+     * is killed.
+     *
+     * @param args the raw command-line arguments.
+     * @throws Exception if an error occurs during the process.
+     */
+    protected static void doShard(String[] args) throws Exception
     {
-        if (args.length < 1) {
+        HashMap<String, String> options = new HashMap<>();
+        args = SearchEngine.parseOptions(args, options, "port", "bind", "exhaustive", "model", "proximity", "expansion",
+                "correct", "corrections");
+        if (args.length < 2 || args.length > 3) {
             SearchEngine.printUsage();
             System.exit(1);
         }
-        switch (args[0].toLowerCase()) {
-            case "index":
-                SearchEngine.doIndex(args);
-                break;
-            case "batch":
-                SearchEngine.doBatch(args);
-                break;
-            case "interactive":
-                SearchEngine.doInteractive(args);
-                break;
+        File pathToShard = new File(args[1]);
+        File pathToStopWords = args.length == 3 ? new File(args[2]) : null;
+
+        // Check console arguments
+        if (!pathToShard.exists() || pathToShard.isFile()) {
+            System.err.println("Shard directory does not exist.");
+            System.exit(1);
+        }
+        int port = options.containsKey("port") ? SearchEngine.parsePositive(options.get("port"), "port") : 0;
+        InetAddress address = options.containsKey("bind") ? InetAddress.getByName(options.get("bind"))
+                : InetAddress.getLoopbackAddress();
+
+        // Read shard
+        RetrievalModel retriever = SearchEngine.getModelOption(options); // P4
+        System.err.print("Loading shard...");
+        Index ind = Index.open(pathToShard.getPath(), retriever.getRequiredComponents());
+        System.err.println("done. Statistics:");
+        ind.printStatistics();
+        SearchEngine.printLoadTimes(ind);
+
+        // Serve
+        DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
+        try (ShardServer server = new ShardServer(ind, retriever, docProcessor)) {
+            server.bind(address, port);
+            InetSocketAddress bound = server.getAddress();
+            System.err.println("Serving shard on " + bound.getAddress().getHostAddress() + ":" + bound.getPort() + ".");
+            server.run();
+        }
+    }
+
+    /**
+     * Serve queries over HTTP with the given command-line arguments, until the process is killed.
+     *
+     * @param args the raw command-line arguments.
+     * @throws Exception if an error occurs during the process.
+     */
+    protected static void doServe(String[] args) throws Exception
+    {
+        HashMap<String, String> options = new HashMap<>();
+        args = SearchEngine.parseOptions(args, options, "port", "bind", "max-in-flight", "exhaustive", "model", "proximity",
+                "expansion", "cache", "remote", "correct", "corrections");
+        if (args.length < 2 || args.length > 3) {
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        File pathToIndex = new File(args[1]);
+        File pathToStopWords = args.length == 3 ? new File(args[2]) : null;
+
+        // Check console arguments
+        if (!pathToIndex.exists() || pathToIndex.isFile()) {
+            System.err.println("Index directory does not exist.");
+            System.exit(1);
+        }
+        int port = options.containsKey("port") ? SearchEngine.parsePositive(options.get("port"), "port") : 8080;
+        InetAddress address = options.containsKey("bind") ? InetAddress.getByName(options.get("bind"))
+                : InetAddress.getLoopbackAddress();
+        int maxInFlight = options.containsKey("max-in-flight")
+                ? SearchEngine.parsePositive(options.get("max-in-flight"), "maximum number of queries in flight")
+                : 2 * Runtime.getRuntime().availableProcessors();
+        String model = options.getOrDefault("model", "feedback");
+        RetrievalModel defaults = SearchEngine.getModelOption(options); // Check the default model
+        int expansion = defaults instanceof CosineWithFeedback ? ((CosineWithFeedback) defaults).getExpansionTerms()
+                : CosineWithFeedback.DEFAULT_EXPANSION_TERMS;
+        double proximity = SearchEngine.getProximityOption(options);
+        TermCorrector corrector = SearchEngine.getCorrectorOption(options);
+
+        // Read index, with the components that any of the models uses
+        System.err.print("Loading index...");
+        SearchableIndex ind = SearchEngine.openIndex(pathToIndex, options,
+                QueryServer.getRequiredComponents(proximity, corrector));
+        System.err.println("done. Statistics:");
+        ind.printStatistics();
+        SearchEngine.printLoadTimes(ind);
+
+        // Serve
+        DocumentProcessor docProcessor = new HtmlProcessor(pathToStopWords); // P3
+        QueryCache cache = SearchEngine.getCacheOption(options);
+        QueryServer server = new QueryServer(ind, docProcessor, cache, maxInFlight);
+        server.setDefaults(model, !options.containsKey("exhaustive"), proximity, corrector, expansion);
+        server.start(new InetSocketAddress(address, port));
+        InetSocketAddress bound = server.getAddress();
+        System.err.println("Serving queries on http://" + bound.getAddress().getHostAddress() + ":" + bound.getPort()
+                + "/search?q=<query> with up to " + maxInFlight + " in flight.");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            server.printStatistics(System.err);
+            SearchEngine.printCacheStatistics(cache);
+        }));
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Loads the index in the specified directory with the components that the retrieval models require. The shards of
+     * a sharded index are reached through the servers given with the {@code -remote} option, if any.
+     *
+     * @param pathToIndex the directory of the index.
+     * @param options     the options of the command, as returned by {@link #parseOptions}.
+     * @param components  the components to load in advance.
+     * @return the loaded index.
+     * @throws Exception if an error occurs while loading the index.
+     */
+    protected static SearchableIndex openIndex(File pathToIndex, HashMap<String, String> options, Set<Index.Component> components)
+            throws Exception
+    {
+        if (!options.containsKey("remote"))
+            return SearchableIndex.open(pathToIndex.getPath(), components);
+        if (!ShardedIndex.exists(pathToIndex)) {
+            System.err.println("The -remote option only applies to sharded indexes.");
+            System.exit(1);
+        }
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        for (String value : options.get("remote").split(",")) {
+            int colon = value.lastIndexOf(':');
+            int port = colon < 0 ? -1 : SearchEngine.parsePositive(value.substring(colon + 1), "port");
+            if (colon <= 0 || port > 65535) {
+                System.err.println("Invalid shard server " + value + "; use -remote=<host>:<port>,...");
+                SearchEngine.printUsage();
+                System.exit(1);
+            }
+            addresses.add(new InetSocketAddress(value.substring(0, colon), port));
+        }
+        ShardedIndex index = new ShardedIndex(pathToIndex.getPath());
+        index.setRemoteShards(addresses);
+        index.load(components);
+        return index;
+    }
+
+    /**
+     * Separates the options from the positional arguments of a command.
+     * Options may appear anywhere after the command, as {@code -name} or {@code -name=value}.
+     * If an option is not among the allowed ones, it prints the usage and exits.
+     *
+     * @param args    the raw command-line arguments.
+     * @param options the map to store the options in, from name to value ({@code ""} if no value was given).
+     * @param allowed the names of the options allowed for the command.
+     * @return the positional arguments, starting with the command.
+     */
+    protected static String[] parseOptions(String[] args, HashMap<String, String> options, String... allowed)
+    {
+        ArrayList<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (i == 0 || !args[i].startsWith("-") || args[i].length() == 1) {
+                positional.add(args[i]);
+                continue;
+            }
+            String option = args[i].substring(1);
+            int eq = option.indexOf('=');
+            String name = eq < 0 ? option : option.substring(0, eq);
+            if (!Arrays.asList(allowed).contains(name)) {
+                System.err.println("Unknown option -" + name + ".");
+                SearchEngine.printUsage();
+                System.exit(1);
+            }
+            options.put(name, eq < 0 ? "" : option.substring(eq + 1));
+        }
+        return positional.toArray(new String[positional.size()]);
+    }
+
+    /**
+     * Returns the number of threads given with the {@code -threads} option.
+     * If the option has no value it uses one thread per available processor. If the value is not a positive number,
+     * it prints the usage and exits.
+     *
+     * @param options the options of the command, as returned by {@link #parseOptions}.
+     * @return the number of threads, or {@code 1} if the option was not given.
+     */
+    protected static int getThreadsOption(HashMap<String, String> options)
+    {
+        String value = options.get("threads");
+        if (value == null)
+            return 1;
+        if (value.isEmpty())
+            return Runtime.getRuntime().availableProcessors();
+        return SearchEngine.parsePositive(value, "number of threads");
+    }
+
+    /**
+     * Returns the retrieval model given with the {@code -model} option, {@code feedback} by default, configured with
+     * the {@code -exhaustive}, {@code -proximity}, {@code -expansion}, {@code -correct} and {@code -corrections}
+     * options. If the model is unknown, or the expansion is given for a model without feedback, it prints the usage and
+     * exits.
+     *
+     * @param options the options of the command, as returned by {@link #parseOptions}.
+     * @return the retrieval model.
+     */
+    protected static RetrievalModel getModelOption(HashMap<String, String> options)
+    {
+        String name = options.getOrDefault("model", "feedback");
+        boolean pruning = !options.containsKey("exhaustive");
+        double proximity = SearchEngine.getProximityOption(options);
+        TermCorrector corrector = SearchEngine.getCorrectorOption(options);
+        if (options.containsKey("expansion") && !name.equals("feedback")) {
+            System.err.println("The -expansion option only applies to the feedback model.");
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        switch (name) {
+            case "cosine":
+                Cosine cosine = new Cosine();
+                cosine.setPruning(pruning);
+                cosine.setProximityWeight(proximity);
+                cosine.setCorrector(corrector);
+                return cosine;
+            case "okapi":
+                Okapi okapi = new Okapi();
+                okapi.setPruning(pruning);
+                okapi.setProximityWeight(proximity);
+                okapi.setCorrector(corrector);
+                return okapi;
+            case "feedback":
+                CosineWithFeedback feedback = new CosineWithFeedback(25, 2, 0.25, 0.1);
+                feedback.setPruning(pruning);
+                feedback.setProximityWeight(proximity);
+                feedback.setCorrector(corrector);
+                if (options.containsKey("expansion"))
+                    feedback.setExpansionTerms(options.get("expansion").equals("all")
+                            ? CosineWithFeedback.UNBOUNDED_EXPANSION
+                            : SearchEngine.parsePositive(options.get("expansion"), "number of expansion terms"));
+                return feedback;
             default:
+                System.err.println("Invalid model: " + name + "; use cosine, okapi or feedback.");
                 SearchEngine.printUsage();
                 System.exit(1);
+                return null;
+        }
+    }
+
+    /**
+     * Prints the time it took to open each component of an index loaded so far.
+     *
+     * @param index the index.
+     */
+    protected static void printLoadTimes(SearchableIndex index)
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        StringBuilder times = new StringBuilder();
+        for (Map.Entry<Index.Component, Long> e : index.getLoadTimes().entrySet())
+            times.append(times.length() == 0 ? "" : ", ").append(e.getKey().fileName).append(' ')
+                    .append(df.format(e.getValue() / 1e6)).append(" ms");
+        if (times.length() > 0)
+            System.err.println("  - Load times: " + times + ".");
+    }
+
+    /**
+     * Returns the corrector of query terms given with the {@code -correct} option, whose value is the maximum edit
+     * distance, {@link TermCorrector#DEFAULT_MAX_DISTANCE} by default, and the {@code -corrections} option, the number
+     * of terms that replace a term not in the index, {@code 1} by default. If a value is not valid, it prints the usage
+     * and exits.
+     *
+     * @param options the options of the command, as returned by {@link #parseOptions}.
+     * @return the corrector, or {@code null} if the {@code -correct} option was not given.
+     */
+    protected static TermCorrector getCorrectorOption(HashMap<String, String> options)
+    {
+        if (!options.containsKey("correct")) {
+            if (options.containsKey("corrections")) {
+                System.err.println("The -corrections option requires the -correct option.");
+                SearchEngine.printUsage();
+                System.exit(1);
+            }
+            return null;
+        }
+        String value = options.get("correct");
+        int distance = value.isEmpty() ? TermCorrector.DEFAULT_MAX_DISTANCE
+                : SearchEngine.parsePositive(value, "edit distance");
+        if (distance > FuzzyTermIndex.MAX_DISTANCE) {
+            System.err.println("Invalid edit distance: " + value + "; the maximum is " + FuzzyTermIndex.MAX_DISTANCE + ".");
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        int corrections = options.containsKey("corrections")
+                ? SearchEngine.parsePositive(options.get("corrections"), "number of corrections") : 1;
+        return new TermCorrector(distance, corrections, TermCorrector.DEFAULT_MIN_LENGTH);
+    }
+
+    /**
+     * Returns the weight of the proximity boost given with the {@code -proximity} option.
+     * If the option has no value it uses {@link #DEFAULT_PROXIMITY_WEIGHT}. If the value is not a positive number, it
+     * prints the usage and exits.
+     *
+     * @param options the options of the command, as returned by {@link #parseOptions}.
+     * @return the weight, or {@code 0} if the option was not given.
+     */
+    protected static double getProximityOption(HashMap<String, String> options)
+    {
+        String value = options.get("proximity");
+        if (value == null)
+            return 0;
+        if (value.isEmpty())
+            return DEFAULT_PROXIMITY_WEIGHT;
+        try {
+            double weight = Double.parseDouble(value);
+            if (weight > 0)
+                return weight;
+        } catch (NumberFormatException ex) {
+        }
+        System.err.println("Invalid proximity weight: " + value + ".");
+        SearchEngine.printUsage();
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * Returns the cache of query results given with the {@code -cache} option.
+     * If the option has no value it uses {@link QueryCache#DEFAULT_CAPACITY}, otherwise the value is the capacity in
+     * megabytes. If the value is not a positive number, it prints the usage and exits.
+     *
+     * @param options the options of the command, as returned by {@link #parseOptions}.
+     * @return the cache, or {@code null} if the option was not given.
+     */
+    protected static QueryCache getCacheOption(HashMap<String, String> options)
+    {
+        String value = options.get("cache");
+        if (value == null)
+            return null;
+        if (value.isEmpty())
+            return new QueryCache();
+        return new QueryCache((long) SearchEngine.parsePositive(value, "cache size") << 20);
+    }
+
+    /**
+     * Prints the statistics of a cache of query results, if there is one.
+     *
+     * @param cache the cache, or {@code null}.
+     */
+    protected static void printCacheStatistics(QueryCache cache)
+    {
+        if (cache == null)
+            return;
+        DecimalFormat df = new DecimalFormat("#.##");
+        System.err.println("  - Query cache: " + df.format(100 * cache.getHitRate()) + "% hits (" + cache.getHits()
+                + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions() + " evictions, "
+                + cache.getRejections() + " rejected).");
+    }
+
+    /**
+     * Parses the value of a numeric option. If it is not a positive number, it prints the usage and exits.
+     *
+     * @param value the value of the option.
+     * @param what  what the value is, for the error message.
+     * @return the value.
+     */
+    protected static int parsePositive(String value, String what)
+    {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        } catch (NumberFormatException ex) {
+        }
+        System.err.println("Invalid " + what + ": " + value + ".");
+        SearchEngine.printUsage();
+        System.exit(1);
+        return 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1) {
+            SearchEngine.printUsage();
+            System.exit(1);
+        }
+        try {
+            switch (args[0].toLowerCase()) {
+                case "index":
+                    SearchEngine.doIndex(args);
+                    break;
+                case "add":
+                    SearchEngine.doAdd(args);
+                    break;
+                case "delete":
+                    SearchEngine.doDelete(args);
+                    break;
+                case "batch":
+                    SearchEngine.doBatch(args);
+                    break;
+                case "interactive":
+                    SearchEngine.doInteractive(args);
+                    break;
+                case "shard":
+                    SearchEngine.doShard(args);
+                    break;
+                case "serve":
+                    SearchEngine.doServe(args);
+                    break;
+                default:
+                    SearchEngine.printUsage();
+                    System.exit(1);
+            }
+        } catch (IndexFormatException ex) {
+            // The index was built by an older version, so there is nothing to do but rebuild it
+            System.err.println();
+            System.err.println(ex.getMessage());
+            System.exit(1);
         }
     }
 
@@ -149,8 +706,19 @@ public class SearchEngine
         System.err.println("Usage: ti.SearchEngine <command> <options>");
         System.err.println();
         System.err.println("where <command> and <options> are one of:");
-        System.err.println("  - index <path-to-index> <path-to-collection> [<path-to-stopwords>]");
-        System.err.println("  - batch <path-to-index> <path-to-queries>");
-        System.err.println("  - interactive <path-to-index>");
+        System.err.println("  - index [-compress] [-positions] [-threads[=<n>]] <path-to-index> <path-to-collection> [<path-to-stopwords>]");
+        System.err.println("          [-pipeline[=<read>,<parse>,<analyze>] [-queue=<n>]] [-shards=<n>]");
+        System.err.println("  - add <path-to-index> <path-to-documents> [<path-to-stopwords>]");
+        System.err.println("  - delete <path-to-index> <document-name>...");
+        System.err.println("  - batch [-exhaustive] [-threads[=<n>]] [-proximity[=<weight>]] [-cache[=<MB>]] <path-to-index> <path-to-queries>");
+        System.err.println("          [-model=<cosine|okapi|feedback>] [-expansion=<n|all>] [-metrics[=<path-to-per-query-metrics>]]");
+        System.err.println("          [-remote=<host>:<port>,...] [-correct[=<distance>] [-corrections=<n>]]");
+        System.err.println("  - interactive [-model=<cosine|okapi|feedback>] [-proximity[=<weight>]] [-expansion=<n|all>] [-cache[=<MB>]] [-metrics]");
+        System.err.println("          [-remote=<host>:<port>,...] [-correct[=<distance>] [-corrections=<n>]] <path-to-index>");
+        System.err.println("  - shard [-port=<n>] [-bind=<address>] [-exhaustive] [-model=<cosine|okapi|feedback>] [-proximity[=<weight>]]");
+        System.err.println("          [-expansion=<n|all>] [-correct[=<distance>] [-corrections=<n>]] <path-to-shard> [<path-to-stopwords>]");
+        System.err.println("  - serve [-port=<n>] [-bind=<address>] [-max-in-flight=<n>] [-exhaustive] [-model=<cosine|okapi|feedback>]");
+        System.err.println("          [-proximity[=<weight>]] [-cache[=<MB>]] [-remote=<host>:<port>,...] [-correct[=<distance>] [-corrections=<n>]]");
+        System.err.println("          [-expansion=<n|all>] <path-to-index> [<path-to-stopwords>]");
     }
 }
\ No newline at end of file
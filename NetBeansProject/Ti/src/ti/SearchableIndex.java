@@ -0,0 +1,153 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Set;
+
+/**
+ * This interface defines an index that can be searched with a {@link RetrievalModel} and whose results can be shown,
+ * without access to its postings.
+ * <p>
+ * An {@link Index} is searched by running the model on it. A {@link ShardedIndex} has no postings of its own: it runs
+ * the model on every shard and merges their results, so it is only an index in this sense. Code that shows results,
+ * like {@link Batch}, {@link Interactive} and {@link QueryServer}, works with any searchable index, while retrieval
+ * models work with the postings of an {@link Index}.
+ */
+public interface SearchableIndex
+{
+    /**
+     * Runs a query on the index and returns the {@code k} most similar documents, sorted by similarity.
+     * Callers usually go through {@link RetrievalModel#search}, so that wrapping models see the query once.
+     *
+     * @param model        the model to run the query with.
+     * @param queryText    the text of the query.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @param k            the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
+     */
+    ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText, DocumentProcessor docProcessor,
+                                             int k);
+
+    /**
+     * Looks up the specified term in the vocabulary.
+     *
+     * @param term the term.
+     * @return a {@link Tuple} containing the {@code termID} and its IDF score, or {@code null} if the term is not in
+     * the vocabulary.
+     */
+    Tuple<Integer, Double> getTerm(String term);
+
+    /**
+     * Returns the terms of the vocabulary from {@code from}, inclusive, to {@code to}, exclusive, in the order of the
+     * {@link TermDictionary}.
+     *
+     * @param from the first term of the range, which does not need to be in the vocabulary.
+     * @param to   the end of the range, or {@code null} for no end.
+     * @return the terms in the range.
+     */
+    ArrayList<String> getTermsInRange(String from, String to);
+
+    /**
+     * Returns the terms of the vocabulary within the specified edit distance of a term, as
+     * {@link Index#getSimilarTerms}.
+     *
+     * @param term        the term.
+     * @param maxDistance the maximum edit distance, up to {@link FuzzyTermIndex#MAX_DISTANCE}.
+     * @return the terms found, the nearest first and, at the same distance, the most frequent first.
+     */
+    ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance);
+
+    /**
+     * Returns the number of terms in the vocabulary.
+     *
+     * @return the number of terms.
+     */
+    int getNumTerms();
+
+    /**
+     * Returns the number of documents in the index.
+     *
+     * @return the number of documents.
+     */
+    int getNumDocuments();
+
+    /**
+     * Returns the name of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return the document name.
+     */
+    String getDocumentName(int docID);
+
+    /**
+     * Returns whether the index has the positions of its postings, for phrase and proximity queries.
+     *
+     * @return {@code true} if the index is positional.
+     */
+    boolean isPositional();
+
+    /**
+     * Returns the cached version of the specified document.
+     *
+     * @param docID the ID of the document.
+     * @return a {@link Tuple} containing the document title and its body.
+     * @throws IOException if an error occurs while accessing the cache, or if the document is not in the cache.
+     */
+    Tuple<String, String> getCachedDocument(int docID) throws IOException;
+
+    /**
+     * Returns the offsets of the terms of the specified document, recorded when it was indexed.
+     *
+     * @param docID the ID of the document.
+     * @return the {@link TermOffsets} of the document, or {@code null} if they are not available.
+     * @throws IOException if an error occurs while accessing the cache.
+     */
+    TermOffsets getCachedTermOffsets(int docID) throws IOException;
+
+    /**
+     * Returns the directory of the index.
+     *
+     * @return the directory.
+     */
+    String getPath();
+
+    /**
+     * Returns the generation of the index, as {@link Index#getGeneration}.
+     *
+     * @return the generation.
+     */
+    long getGeneration();
+
+    /**
+     * Returns the time it took to open each component of the index that has been opened so far.
+     *
+     * @return a map from each opened component to the time it took to open it, in nanoseconds.
+     */
+    EnumMap<Index.Component, Long> getLoadTimes();
+
+    /**
+     * Prints statistics about the index to {@link System#err}.
+     */
+    void printStatistics();
+
+    /**
+     * Loads the index in the specified directory, as a {@link ShardedIndex} if it was built by the
+     * {@link ShardedIndexer}, or as {@link Index#open(String, Set)} otherwise.
+     *
+     * @param path       the directory of the index.
+     * @param components the components to open besides the {@link Index#CORE_COMPONENTS}, in the index or in every
+     *                   shard.
+     * @return the loaded index.
+     * @throws Exception if an error occurs while loading the index.
+     */
+    static SearchableIndex open(String path, Set<Index.Component> components) throws Exception
+    {
+        if (!ShardedIndex.exists(new File(path)))
+            return Index.open(path, components);
+        ShardedIndex index = new ShardedIndex(path);
+        index.load(components);
+        return index;
+    }
+}
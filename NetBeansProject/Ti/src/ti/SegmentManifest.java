@@ -0,0 +1,205 @@
+package ti;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The list of segments of an index that is updated incrementally, with the documents deleted from each of them.
+ * <p>
+ * Every segment is a complete index in a subdirectory of the index, written once by the {@link IncrementalIndexer} and
+ * never modified. The index built by {@code SearchEngine index} is the first segment, named {@code "."}. Deleted
+ * documents stay in their segment, and the manifest keeps their {@code docID}s as tombstones until a merge drops them:
+ * <pre>
+ * magic generation nextSegment count (name numDocuments numDeleted deleted[numDeleted])[count]
+ * </pre>
+ * The manifest is replaced atomically, so every version of it is a consistent view of the index, and readers that
+ * opened the segments of an older version are not affected by later updates. Indexing the collection again with the
+ * {@link Indexer} removes the manifest and all segments, and starts over with just the new base segment.
+ */
+public class SegmentManifest
+{
+    protected static final int MAGIC = 0x54494D31; // TIM1
+    public static final String FILE_NAME = "segments";
+    public static final String BASE_SEGMENT = ".";
+    public static final String SEGMENT_PREFIX = "segment";
+
+    /**
+     * The number of times the manifest has been written.
+     */
+    public long generation;
+    /**
+     * The number to name the next segment with.
+     */
+    public int nextSegment;
+    /**
+     * The segments of the index, in the order their documents are numbered.
+     */
+    public final ArrayList<Segment> segments = new ArrayList<>();
+
+    /**
+     * Returns whether the specified index directory has a manifest, that is, whether it has been updated
+     * incrementally.
+     *
+     * @param directory the index directory.
+     * @return {@code true} if the manifest exists.
+     */
+    public static boolean exists(File directory)
+    {
+        return new File(directory, FILE_NAME).exists();
+    }
+
+    /**
+     * Removes the manifest of the specified index directory, the subdirectories of all segments but the base one,
+     * including those of merges that did not finish, and the statistics of the {@link SegmentedIndex}, so that the
+     * index has no incremental updates.
+     *
+     * @param directory the index directory.
+     */
+    public static void clear(File directory)
+    {
+        new File(directory, FILE_NAME).delete();
+        new File(directory, FILE_NAME + ".tmp").delete();
+        SegmentedIndex.clearStatistics(directory, -1);
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory() && file.getName().matches(SEGMENT_PREFIX + "\\d+"))
+                IncrementalIndexer.deleteDirectory(file);
+        }
+    }
+
+    /**
+     * Reads the manifest of the specified index directory. If the index has never been updated, it returns a
+     * manifest with just the base segment.
+     *
+     * @param directory the index directory.
+     * @return the manifest.
+     * @throws IOException if an error occurs while reading the manifest or the base segment.
+     */
+    public static SegmentManifest read(File directory) throws IOException
+    {
+        SegmentManifest manifest = new SegmentManifest();
+        if (!exists(directory)) {
+            manifest.nextSegment = 1;
+            DocumentTable documents = DocumentTable.open(new File(directory, "documents"));
+            int numDocuments;
+            try {
+                numDocuments = documents.size();
+            } finally {
+                documents.close();
+            }
+            manifest.segments.add(new Segment(BASE_SEGMENT, numDocuments, new BitSet()));
+            return manifest;
+        }
+        byte[] data = Files.readAllBytes(new File(directory, FILE_NAME).toPath());
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid segments file in " + directory + ".");
+            manifest.generation = in.readLong();
+            manifest.nextSegment = in.readInt();
+            int count = in.readInt();
+            for (int s = 0; s < count; s++) {
+                String name = in.readUTF();
+                int numDocuments = in.readInt();
+                BitSet deleted = new BitSet(numDocuments);
+                for (int i = in.readInt(); i > 0; i--)
+                    deleted.set(in.readInt());
+                manifest.segments.add(new Segment(name, numDocuments, deleted));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes a new generation of the manifest to the specified index directory, replacing the current one atomically.
+     *
+     * @param directory the index directory.
+     * @throws IOException if an error occurs while writing the manifest.
+     */
+    public void write(File directory) throws IOException
+    {
+        this.generation++;
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        try (IndexOutput out = new IndexOutput(temp)) {
+            out.writeInt(MAGIC);
+            out.writeLong(this.generation);
+            out.writeInt(this.nextSegment);
+            out.writeInt(this.segments.size());
+            for (Segment segment : this.segments) {
+                out.writeUTF(segment.name);
+                out.writeInt(segment.numDocuments);
+                out.writeInt(segment.deleted.cardinality());
+                for (int docID = segment.deleted.nextSetBit(0); docID >= 0; docID = segment.deleted.nextSetBit(docID + 1))
+                    out.writeInt(docID);
+            }
+        }
+        Files.move(temp.toPath(), new File(directory, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the directory of a segment.
+     *
+     * @param directory the index directory.
+     * @param segment   the segment.
+     * @return the directory of the segment.
+     */
+    public static File getDirectory(File directory, Segment segment)
+    {
+        return segment.name.equals(BASE_SEGMENT) ? directory : new File(directory, segment.name);
+    }
+
+    /**
+     * Returns the number of documents of all segments that have not been deleted.
+     *
+     * @return the number of documents.
+     */
+    public int getNumLiveDocuments()
+    {
+        int count = 0;
+        for (Segment segment : this.segments)
+            count += segment.getNumLiveDocuments();
+        return count;
+    }
+
+    /**
+     * A segment of the index.
+     */
+    public static class Segment
+    {
+        /**
+         * The name of the subdirectory of the segment.
+         */
+        public final String name;
+        /**
+         * The number of documents in the segment, deleted or not.
+         */
+        public final int numDocuments;
+        /**
+         * The {@code docID}s of the deleted documents, local to the segment.
+         */
+        public final BitSet deleted;
+
+        public Segment(String name, int numDocuments, BitSet deleted)
+        {
+            this.name = name;
+            this.numDocuments = numDocuments;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Returns the number of documents in the segment that have not been deleted.
+         *
+         * @return the number of documents.
+         */
+        public int getNumLiveDocuments()
+        {
+            return this.numDocuments - this.deleted.cardinality();
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.lang.Math.log;
+import static java.lang.Math.sqrt;
+
+/**
+ * A read-only view of an index updated incrementally, made of the segments listed in its {@link SegmentManifest}.
+ * <p>
+ * Documents are numbered across segments, in the order of the manifest, so the {@code docID} of a document is its
+ * local {@code docID} plus the number of documents in the previous segments. Terms keep the {@code termID} of the
+ * first segment, and the terms that only appear in later segments are numbered after them.
+ * <p>
+ * The IDF and weights stored in each segment only account for the documents of that segment, so they are not used.
+ * The IDF of every term over the documents that have not been deleted, the norms of the documents and the statistics
+ * of the collection are computed from the raw frequencies of all segments. Postings lists are then built on demand
+ * with the weights of those IDFs, without the deleted documents, so the scores are the ones of an index built from
+ * scratch with the same documents.
+ * <p>
+ * Computing the statistics reads every posting of the index, so the {@link IncrementalIndexer} writes them once for
+ * the generation of the manifest it leaves, in the directory {@code stats<generation>}:
+ * <pre>
+ * weights:    magic numTerms numDocuments idf[numTerms] norm[numDocuments]
+ * termstats:  as {@link TermStatistics}
+ * collection: as {@link CollectionStatistics}
+ * </pre>
+ * Loading the index reads them if they are those of its generation, and only computes them otherwise.
+ */
+public class SegmentedIndex extends Index
+{
+    public static final String STATISTICS_PREFIX = "stats";
+    protected static final int MAGIC = 0x54494731; // TIG1
+
+    protected SegmentManifest manifest;
+    protected Index[] segments;
+    protected BitSet[] deleted; // [segment] -> deleted local docIDs
+    protected int[] docBase; // [segment] -> first docID, and the number of docIDs at the end
+    protected int[][] globalTermIDs; // [segment][local termID] -> termID
+    protected int[][] localTermIDs; // [segment][termID] -> local termID, or -1
+    protected int numTerms;
+    protected double[] idf;
+    protected double[] norms;
+
+    /**
+     * Creates a new segmented index to be loaded from the specified directory.
+     * @param path the directory of the index, with its {@link SegmentManifest}.
+     */
+    public SegmentedIndex(String path)
+    {
+        super(path);
+    }
+
+    @Override
+    public Tuple<Integer, Double> getTerm(String term)
+    {
+        for (int s = 0; s < this.segments.length; s++) {
+            Tuple<Integer, Double> local = this.segments[s].getTerm(term);
+            if (local != null) {
+                int termID = this.globalTermIDs[s][local.item1];
+                return this.idf[termID] == 0 ? null : new Tuple<>(termID, this.idf[termID]);
+            }
+        }
+        return null;
+    }
+    @Override
+    public ArrayList<String> getTermsInRange(String from, String to)
+    {
+        // Los términos de todos los segmentos, sin los que ya no aparecen en ningún documento
+        TreeSet<String> terms = new TreeSet<>(TermDictionary.ORDER);
+        for (Index segment : this.segments)
+            terms.addAll(segment.getTermsInRange(from, to));
+        ArrayList<String> result = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            if (this.getTerm(term) != null)
+                result.add(term);
+        }
+        return result;
+    }
+    @Override
+    public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance)
+    {
+        ArrayList<FuzzyTermIndex.Suggestion> suggestions = new ArrayList<>();
+        for (Index segment : this.segments) {
+            for (FuzzyTermIndex.Suggestion s : segment.getSimilarTerms(term, maxDistance)) {
+                if (this.getTerm(s.term) != null)
+                    suggestions.add(s);
+            }
+        }
+        return FuzzyTermIndex.merge(suggestions);
+    }
+    @Override
+    public int getNumTerms()
+    {
+        return this.numTerms;
+    }
+    /**
+     * Returns the number of {@code docID}s of the index, including the ones of deleted documents.
+     * @return the number of documents.
+     */
+    @Override
+    public int getNumDocuments()
+    {
+        return this.docBase[this.segments.length];
+    }
+    /**
+     * Returns whether the specified document has been deleted. Deleted documents have no postings.
+     * @param docID the ID of the document.
+     * @return {@code true} if the document is deleted.
+     */
+    public boolean isDeleted(int docID)
+    {
+        int s = this.getSegment(docID);
+        return this.deleted[s].get(docID - this.docBase[s]);
+    }
+    @Override
+    public String getDocumentName(int docID)
+    {
+        int s = this.getSegment(docID);
+        return this.segments[s].getDocumentName(docID - this.docBase[s]);
+    }
+    @Override
+    public double getDocumentNorm(int docID)
+    {
+        return this.norms[docID];
+    }
+    @Override
+    public PostingsList getInvertedPostings(int termID)
+    {
+        ArrayPostingsList postings = new ArrayPostingsList(this.getCollectionStatistics().documentFrequencies[termID]);
+        for (int s = 0; s < this.segments.length; s++) {
+            int local = this.localTermIDs[s][termID];
+            if (local < 0)
+                continue;
+            PostingsList tf = this.segments[s].getFrequencyPostings(local);
+            for (int i = 0; i < tf.size(); i++) {
+                int docID = tf.getID(i);
+                if (!this.deleted[s].get(docID))
+                    postings.add(this.docBase[s] + docID, this.idf[termID] * (1 + log(tf.getWeight(i))));
+            }
+        }
+        return postings;
+    }
+    @Override
+    public PostingsList getDirectPostings(int docID)
+    {
+        int s = this.getSegment(docID);
+        Index segment = this.segments[s];
+        PostingsList local = segment.getDirectPostings(docID - this.docBase[s]);
+        // Los pesos del segmento son (1 + log tf) * IDF del segmento; cambiar el IDF y ordenar por termID global
+        long[] keys = new long[local.size()];
+        double[] tfWeights = new double[local.size()];
+        for (int i = 0; i < local.size(); i++) {
+            int localID = local.getID(i);
+            tfWeights[i] = local.getWeight(i) / segment.termDictionary.getIDF(localID);
+            keys[i] = ((long) this.globalTermIDs[s][localID] << 32) | i;
+        }
+        Arrays.sort(keys);
+        ArrayPostingsList postings = new ArrayPostingsList(keys.length);
+        for (long key : keys) {
+            int termID = (int) (key >>> 32);
+            postings.add(termID, this.idf[termID] * tfWeights[(int) key]);
+        }
+        return postings;
+    }
+    @Override
+    public PostingsList getFrequencyPostings(int termID)
+    {
+        ArrayPostingsList postings = new ArrayPostingsList(this.getCollectionStatistics().documentFrequencies[termID]);
+        for (int s = 0; s < this.segments.length; s++) {
+            int local = this.localTermIDs[s][termID];
+            if (local < 0)
+                continue;
+            PostingsList tf = this.segments[s].getFrequencyPostings(local);
+            for (int i = 0; i < tf.size(); i++) {
+                int docID = tf.getID(i);
+                if (!this.deleted[s].get(docID))
+                    postings.add(this.docBase[s] + docID, tf.getWeight(i));
+            }
+        }
+        return postings;
+    }
+    @Override
+    public boolean isPositional()
+    {
+        for (Index segment : this.segments) {
+            if (!segment.isPositional())
+                return false;
+        }
+        return true;
+    }
+    @Override
+    public PositionsFile.Cursor getPositions(int termID)
+    {
+        if (!this.isPositional())
+            return null;
+        int size = this.getCollectionStatistics().documentFrequencies[termID];
+        PositionsFile.Cursor[] cursors = new PositionsFile.Cursor[this.segments.length];
+        int[] segmentOf = new int[size];
+        int[] localOf = new int[size];
+        int n = 0;
+        for (int s = 0; s < this.segments.length; s++) {
+            int local = this.localTermIDs[s][termID];
+            if (local < 0)
+                continue;
+            cursors[s] = this.segments[s].getPositions(local);
+            PostingsList postings = this.segments[s].getInvertedPostings(local);
+            for (int i = 0; i < postings.size(); i++) {
+                if (!this.deleted[s].get(postings.getID(i))) {
+                    segmentOf[n] = s;
+                    localOf[n++] = i;
+                }
+            }
+        }
+        return new SegmentedCursor(cursors, segmentOf, localOf);
+    }
+    @Override
+    public long getGeneration()
+    {
+        return this.manifest.generation;
+    }
+    @Override
+    public Tuple<String, String> getCachedDocument(int docID) throws IOException
+    {
+        int s = this.getSegment(docID);
+        return this.segments[s].getCachedDocument(docID - this.docBase[s]);
+    }
+    @Override
+    public TermOffsets getCachedTermOffsets(int docID) throws IOException
+    {
+        int s = this.getSegment(docID);
+        return this.segments[s].getCachedTermOffsets(docID - this.docBase[s]);
+    }
+    @Override
+    public void setCachedDocument(int docID, Tuple<String, String> docText) throws IOException
+    {
+        throw new IOException("Segments can not be modified.");
+    }
+
+    /**
+     * Returns the segment of the specified document.
+     */
+    protected int getSegment(int docID)
+    {
+        int s = Arrays.binarySearch(this.docBase, docID);
+        if (s < 0)
+            return -s - 2;
+        // Saltar segmentos vacíos con el mismo primer docID
+        while (this.docBase[s + 1] == docID)
+            s++;
+        return s;
+    }
+
+    /**
+     * Loads the segments listed in the manifest of the index, and reads the IDFs, document norms and statistics of the
+     * whole index written for its generation. If they were not written, or belong to another generation, it computes
+     * them, reading all the postings once, so that unlike {@link Index#load} it takes time proportional to the size of
+     * the index.
+     * <p>
+     * The frequencies of the segments are always opened, and so are the specified components that the segments
+     * provide: the direct index and the positions. The load time of the statistics of the index is the time to merge
+     * the vocabularies of the segments and read or compute them, and the load time of the other components is the sum
+     * over all segments.
+     * @param components the components to open besides the {@link #CORE_COMPONENTS}.
+     * @throws Exception if an error occurs while loading the index.
+     */
+    @Override
+    public void load(Set<Component> components) throws Exception
+    {
+        EnumSet<Component> segmentComponents = EnumSet.of(Component.FREQUENCIES);
+        for (Component component : EnumSet.of(Component.DIRECT, Component.POSITIONS, Component.FUZZY_TERMS)) {
+            if (components.contains(component))
+                segmentComponents.add(component);
+        }
+        if (this.segments != null) {
+            // Ya cargado: solo abrir los componentes que falten en los segmentos
+            for (Index segment : this.segments)
+                segment.load(segmentComponents);
+            this.sumLoadTimes();
+            return;
+        }
+        File directory = new File(this.path);
+        this.manifest = SegmentManifest.read(directory);
+        int count = this.manifest.segments.size();
+        this.segments = new Index[count];
+        this.deleted = new BitSet[count];
+        this.docBase = new int[count + 1];
+        for (int s = 0; s < count; s++) {
+            SegmentManifest.Segment segment = this.manifest.segments.get(s);
+            this.segments[s] = new Index(SegmentManifest.getDirectory(directory, segment).getPath());
+            this.segments[s].load(segmentComponents);
+            this.deleted[s] = segment.deleted;
+            this.docBase[s + 1] = this.docBase[s] + this.segments[s].getNumDocuments();
+        }
+        this.sumLoadTimes();
+        long start = System.nanoTime();
+
+        // Los términos del primer segmento conservan su termID; los nuevos se numeran detrás
+        this.globalTermIDs = new int[count][];
+        this.numTerms = 0;
+        for (int s = 0; s < count; s++) {
+            String[] terms = s == 0 ? null : this.segments[s].termDictionary.getTerms();
+            this.globalTermIDs[s] = new int[this.segments[s].getNumTerms()];
+            for (int local = 0; local < this.globalTermIDs[s].length; local++) {
+                int termID = -1;
+                for (int prev = 0; prev < s && termID < 0; prev++) {
+                    Tuple<Integer, Double> t = this.segments[prev].getTerm(terms[local]);
+                    if (t != null)
+                        termID = this.globalTermIDs[prev][t.item1];
+                }
+                this.globalTermIDs[s][local] = termID < 0 ? this.numTerms++ : termID;
+            }
+        }
+        this.localTermIDs = new int[count][this.numTerms];
+        for (int s = 0; s < count; s++) {
+            Arrays.fill(this.localTermIDs[s], -1);
+            for (int local = 0; local < this.globalTermIDs[s].length; local++)
+                this.localTermIDs[s][this.globalTermIDs[s][local]] = local;
+        }
+
+        if (!this.readStatistics())
+            this.computeStatistics();
+        synchronized (this.loadTimes) {
+            this.loadTimes.put(Component.TERM_STATISTICS, System.nanoTime() - start);
+            this.loadTimes.put(Component.COLLECTION_STATISTICS, System.nanoTime() - start);
+        }
+        this.loaded = true;
+    }
+
+    /**
+     * Unmaps the files of all segments, as {@link Index#close}.
+     * @throws IOException if an error occurs while closing a segment.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for (Index segment : this.segments == null ? new Index[0] : this.segments)
+            segment.close();
+    }
+
+    // Tiempos de carga de cada componente, sumados sobre todos los segmentos
+    protected void sumLoadTimes()
+    {
+        synchronized (this.loadTimes) {
+            for (Component component : EnumSet.complementOf(EnumSet.of(Component.TERM_STATISTICS,
+                    Component.COLLECTION_STATISTICS)))
+                this.loadTimes.remove(component);
+            for (Index segment : this.segments) {
+                for (Map.Entry<Component, Long> e : segment.getLoadTimes().entrySet())
+                    this.loadTimes.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+        }
+    }
+
+    /**
+     * Computes the IDFs, document norms and statistics over the documents that have not been deleted, from the raw
+     * frequencies of all segments, as {@link Indexer#secondPass} and {@link Index#save} do for a new index.
+     */
+    protected void computeStatistics()
+    {
+        int numDocuments = this.getNumDocuments();
+        int numLiveDocuments = this.manifest.getNumLiveDocuments();
+        int[] lengths = new int[numDocuments];
+        int[] df = new int[this.numTerms];
+        long[] cf = new long[this.numTerms];
+        for (int s = 0; s < this.segments.length; s++) {
+            for (int local = 0; local < this.globalTermIDs[s].length; local++) {
+                int termID = this.globalTermIDs[s][local];
+                PostingsList tf = this.segments[s].getFrequencyPostings(local);
+                for (int i = 0; i < tf.size(); i++) {
+                    int docID = tf.getID(i);
+                    if (this.deleted[s].get(docID))
+                        continue;
+                    df[termID]++;
+                    cf[termID] += (long) tf.getWeight(i);
+                    lengths[this.docBase[s] + docID] += (int) tf.getWeight(i);
+                }
+            }
+        }
+        this.collectionStatistics = new CollectionStatistics(lengths, numLiveDocuments, df, cf);
+
+        double nd = numLiveDocuments;
+        this.idf = new double[this.numTerms];
+        for (int termID = 0; termID < this.numTerms; termID++)
+            this.idf[termID] = df[termID] == 0 ? 0 : log(1 + (nd / df[termID]));
+
+        this.norms = new double[numDocuments];
+        this.forEachWeight((termID, docID, tf, weight) -> this.norms[docID] += weight * weight);
+        for (int docID = 0; docID < numDocuments; docID++)
+            this.norms[docID] = sqrt(this.norms[docID]);
+
+        TermStatistics stats = new TermStatistics(this.numTerms);
+        this.forEachWeight((termID, docID, tf, weight) -> {
+            stats.maxNormWeight[termID] = Math.max(stats.maxNormWeight[termID], weight / this.norms[docID]);
+            stats.maxTF[termID] = Math.max(stats.maxTF[termID], tf);
+            stats.weightSum[termID] += weight;
+        });
+        this.termStatistics = stats;
+    }
+
+    /**
+     * Returns the directory of the statistics of the specified generation of an index.
+     *
+     * @param directory  the index directory.
+     * @param generation the generation of the manifest.
+     * @return the directory of the statistics.
+     */
+    public static File getStatisticsDirectory(File directory, long generation)
+    {
+        return new File(directory, STATISTICS_PREFIX + generation);
+    }
+
+    /**
+     * Removes the statistics of all generations of the specified index directory, but the given one.
+     *
+     * @param directory  the index directory.
+     * @param generation the generation to keep, or {@code -1} to remove them all.
+     */
+    public static void clearStatistics(File directory, long generation)
+    {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory() && file.getName().matches(STATISTICS_PREFIX + "\\d+(\\.tmp)?")
+                    && !file.getName().equals(STATISTICS_PREFIX + generation))
+                IncrementalIndexer.deleteDirectory(file);
+        }
+    }
+
+    /**
+     * Computes the statistics of the current generation of the index in the specified directory and writes them, so
+     * that loading the index reads them instead of computing them again, and removes those of other generations. It
+     * does nothing if the index has not been updated incrementally or its statistics are already written.
+     *
+     * @param directory the index directory.
+     * @throws IOException if an error occurs while reading the index or writing the statistics.
+     */
+    public static void writeStatistics(File directory) throws IOException
+    {
+        if (!SegmentManifest.exists(directory))
+            return;
+        SegmentedIndex index = new SegmentedIndex(directory.getPath());
+        try {
+            index.load(EnumSet.noneOf(Component.class));
+            File stats = getStatisticsDirectory(directory, index.manifest.generation);
+            if (!stats.isDirectory()) {
+                File temp = new File(directory, stats.getName() + ".tmp");
+                IncrementalIndexer.deleteDirectory(temp);
+                if (!temp.mkdir())
+                    throw new IOException("Can not create " + temp + ".");
+                try (IndexOutput out = new IndexOutput(new File(temp, "weights"))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(index.numTerms);
+                    out.writeInt(index.norms.length);
+                    out.align();
+                    for (double idf : index.idf)
+                        out.writeDouble(idf);
+                    for (double norm : index.norms)
+                        out.writeDouble(norm);
+                }
+                index.termStatistics.write(new File(temp, "termstats"));
+                index.collectionStatistics.write(new File(temp, "collection"));
+                Files.move(temp.toPath(), stats.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            clearStatistics(directory, index.manifest.generation);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Can not compute the statistics of " + directory + ": " + ex.getMessage(), ex);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Reads the statistics written for the generation of the manifest, if they exist and match the segments.
+     *
+     * @return whether the statistics were read.
+     */
+    protected boolean readStatistics()
+    {
+        File stats = getStatisticsDirectory(new File(this.path), this.manifest.generation);
+        if (!stats.isDirectory())
+            return false;
+        int numDocuments = this.getNumDocuments();
+        // Un indexador puede borrarlas mientras tanto si deja otra generación; entonces se calculan
+        try (MappedFile file = new MappedFile(new File(stats, "weights"))) {
+            file.checkMagic(0, MAGIC);
+            if (file.getInt(4) != this.numTerms || file.getInt(8) != numDocuments)
+                return false;
+            double[] idf = new double[this.numTerms];
+            double[] norms = new double[numDocuments];
+            long pos = 16;
+            for (int i = 0; i < idf.length; i++, pos += 8)
+                idf[i] = file.getDouble(pos);
+            for (int i = 0; i < norms.length; i++, pos += 8)
+                norms[i] = file.getDouble(pos);
+            TermStatistics termStatistics = TermStatistics.load(new File(stats, "termstats"));
+            CollectionStatistics collectionStatistics = CollectionStatistics.load(new File(stats, "collection"));
+            this.idf = idf;
+            this.norms = norms;
+            this.termStatistics = termStatistics;
+            this.collectionStatistics = collectionStatistics;
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    protected interface WeightConsumer
+    {
+        void accept(int termID, int docID, double tf, double weight);
+    }
+
+    // Recorre todas las postings de documentos no borrados con su peso TFxIDF
+    protected void forEachWeight(WeightConsumer consumer)
+    {
+        for (int s = 0; s < this.segments.length; s++) {
+            for (int local = 0; local < this.globalTermIDs[s].length; local++) {
+                int termID = this.globalTermIDs[s][local];
+                PostingsList tf = this.segments[s].getFrequencyPostings(local);
+                for (int i = 0; i < tf.size(); i++) {
+                    int docID = tf.getID(i);
+                    if (!this.deleted[s].get(docID))
+                        consumer.accept(termID, this.docBase[s] + docID, tf.getWeight(i),
+                                this.idf[termID] * (1 + log(tf.getWeight(i))));
+                }
+            }
+        }
+    }
+
+    /**
+     * A segmented index can not be saved; it is updated with the {@link IncrementalIndexer}.
+     * @throws IOException always.
+     */
+    @Override
+    public void save() throws IOException
+    {
+        throw new IOException("A segmented index is updated with the incremental indexer.");
+    }
+
+    @Override
+    public void printStatistics(boolean measureDecoding)
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        System.err.println("  - Vocabulary: " + this.getNumTerms() + " terms.");
+        System.err.println("  - Documents: " + this.manifest.getNumLiveDocuments() + " documents ("
+                + (this.getNumDocuments() - this.manifest.getNumLiveDocuments()) + " deleted).");
+        System.err.println("  - Segments: " + this.segments.length + " (generation " + this.manifest.generation + ").");
+        for (int s = 0; s < this.segments.length; s++) {
+            SegmentManifest.Segment segment = this.manifest.segments.get(s);
+            long length = 0;
+            File[] files = new File(this.segments[s].path).listFiles();
+            for (File file : files == null ? new File[0] : files)
+                length += file.isFile() ? file.length() : 0;
+            System.err.println("    - " + segment.name + ": " + segment.numDocuments + " documents, "
+                    + segment.deleted.cardinality() + " deleted, " + this.segments[s].getNumTerms() + " terms ("
+                    + df.format(length / 1024d / 1024d) + " MB without cache).");
+        }
+    }
+
+    /**
+     * Reads the positions of the postings of a term from the cursors of the segments.
+     */
+    protected static class SegmentedCursor extends PositionsFile.Cursor
+    {
+        protected final PositionsFile.Cursor[] cursors;
+        protected final int[] segmentOf;
+        protected final int[] localOf;
+
+        protected SegmentedCursor(PositionsFile.Cursor[] cursors, int[] segmentOf, int[] localOf)
+        {
+            super(segmentOf.length);
+            this.cursors = cursors;
+            this.segmentOf = segmentOf;
+            this.localOf = localOf;
+        }
+
+        @Override
+        public int[] get(int i)
+        {
+            return this.cursors[this.segmentOf[i]].get(this.localOf[i]);
+        }
+    }
+}
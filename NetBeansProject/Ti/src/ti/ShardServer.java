@@ -0,0 +1,263 @@
+package ti;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves one shard of a {@link ShardedIndex} to the coordinator of the index in another process, over a socket.
+ * <p>
+ * The coordinator keeps persistent connections to the server, and each connection is served by its own thread, one
+ * request at a time. Every request is an operation code followed by its arguments, and every response is a status
+ * followed by the result, or by an error message:
+ * <pre>
+ * INFO                   -> OK parameters numDocuments numTerms positional
+ * SEARCH k queryText     -> OK n (docID score)[n]
+ * NAME docID             -> OK name
+ * TERM term              -> OK found [termID idf]
+ * RANGE from hasTo [to]  -> OK n term[n]
+ * SIMILAR term distance  -> OK n (term distance df)[n]
+ * DOCUMENT docID         -> OK found [title body]
+ * </pre>
+ * Queries are run with the retrieval model of the server, whose {@link RetrievalModel#getParameters parameters} the
+ * coordinator checks against its own model. The server binds to the loopback address unless told otherwise.
+ */
+public class ShardServer implements Closeable
+{
+    protected static final byte INFO = 'I';
+    protected static final byte SEARCH = 'S';
+    protected static final byte NAME = 'N';
+    protected static final byte TERM = 'T';
+    protected static final byte DOCUMENT = 'D';
+    protected static final byte RANGE = 'R';
+    protected static final byte SIMILAR = 'F';
+    protected static final byte OK = 0;
+    protected static final byte ERROR = 1;
+
+    protected final Index index;
+    protected final RetrievalModel model;
+    protected final DocumentProcessor docProcessor;
+    protected ServerSocket serverSocket;
+    protected ExecutorService workers;
+
+    /**
+     * Creates a new server for a loaded shard.
+     *
+     * @param index        the shard.
+     * @param model        the retrieval model to run queries.
+     * @param docProcessor the processor to extract query terms.
+     */
+    public ShardServer(Index index, RetrievalModel model, DocumentProcessor docProcessor)
+    {
+        this.index = index;
+        this.model = model;
+        this.docProcessor = docProcessor;
+    }
+
+    /**
+     * Binds the server to the specified address and port. Connections are not accepted until {@link #run} is called.
+     *
+     * @param address the address to listen on, usually {@link InetAddress#getLoopbackAddress}.
+     * @param port    the port, or {@code 0} for any free port.
+     * @throws IOException if the server can not be bound.
+     */
+    public void bind(InetAddress address, int port) throws IOException
+    {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(address, port));
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shard-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the address the server is bound to.
+     *
+     * @return the address and port.
+     */
+    public InetSocketAddress getAddress()
+    {
+        return (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Accepts connections until the server is {@link #close closed}.
+     *
+     * @throws IOException if an error occurs while accepting a connection.
+     */
+    public void run() throws IOException
+    {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException ex) {
+                if (this.serverSocket.isClosed())
+                    return;
+                throw ex;
+            }
+            socket.setTcpNoDelay(true);
+            this.workers.execute(() -> this.serve(socket));
+        }
+    }
+
+    /**
+     * Stops accepting connections. Open connections are closed when their clients close them.
+     *
+     * @throws IOException if an error occurs while closing the server socket.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.serverSocket.close();
+        this.workers.shutdown();
+    }
+
+    // Atiende las peticiones de una conexión hasta que el cliente la cierra
+    protected void serve(Socket socket)
+    {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+                try {
+                    this.handle(op, in, out);
+                } catch (RuntimeException ex) {
+                    out.writeByte(ERROR);
+                    writeString(out, String.valueOf(ex));
+                }
+                out.flush();
+            }
+        } catch (IOException ex) {
+            // The connection was lost; the client opens a new one
+        }
+    }
+
+    protected void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException
+    {
+        switch (op) {
+            case INFO:
+                out.writeByte(OK);
+                writeString(out, this.model.getParameters());
+                out.writeInt(this.index.getNumDocuments());
+                out.writeInt(this.index.getNumTerms());
+                out.writeBoolean(this.index.isPositional());
+                break;
+            case SEARCH: {
+                int k = in.readInt();
+                String queryText = readString(in);
+                ArrayList<Tuple<Integer, Double>> results = this.model.runQuery(queryText, this.index, this.docProcessor, k);
+                out.writeByte(OK);
+                out.writeInt(results.size());
+                for (Tuple<Integer, Double> result : results) {
+                    out.writeInt(result.item1);
+                    out.writeDouble(result.item2);
+                }
+                break;
+            }
+            case NAME: {
+                String name = this.index.getDocumentName(in.readInt());
+                out.writeByte(OK);
+                writeString(out, name);
+                break;
+            }
+            case TERM: {
+                Tuple<Integer, Double> term = this.index.getTerm(readString(in));
+                out.writeByte(OK);
+                out.writeBoolean(term != null);
+                if (term != null) {
+                    out.writeInt(term.item1);
+                    out.writeDouble(term.item2);
+                }
+                break;
+            }
+            case RANGE: {
+                String from = readString(in);
+                String to = in.readBoolean() ? readString(in) : null;
+                ArrayList<String> terms = this.index.getTermsInRange(from, to);
+                out.writeByte(OK);
+                out.writeInt(terms.size());
+                for (String term : terms)
+                    writeString(out, term);
+                break;
+            }
+            case SIMILAR: {
+                String term = readString(in);
+                ArrayList<FuzzyTermIndex.Suggestion> suggestions = this.index.getSimilarTerms(term, in.readInt());
+                out.writeByte(OK);
+                out.writeInt(suggestions.size());
+                for (FuzzyTermIndex.Suggestion s : suggestions) {
+                    writeString(out, s.term);
+                    out.writeInt(s.distance);
+                    out.writeInt(s.df);
+                }
+                break;
+            }
+            case DOCUMENT: {
+                int docID = in.readInt();
+                Tuple<String, String> doc;
+                try {
+                    doc = this.index.getCachedDocument(docID);
+                } catch (IOException ex) {
+                    doc = null;
+                }
+                out.writeByte(OK);
+                out.writeBoolean(doc != null);
+                if (doc != null) {
+                    writeString(out, doc.item1);
+                    writeString(out, doc.item2);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op + ".");
+        }
+    }
+
+    /**
+     * Reads the status of a response, and the error message if it failed.
+     *
+     * @param in the stream to read from.
+     * @throws IOException if the request failed or the stream can not be read.
+     */
+    protected static void readStatus(DataInputStream in) throws IOException
+    {
+        if (in.readByte() != OK)
+            throw new IOException("The shard server failed: " + readString(in));
+    }
+
+    // Las cadenas se escriben en UTF-8 precedidas de su longitud, sin el límite de 64 KB de writeUTF
+    protected static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,703 @@
+package ti;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An index whose documents are partitioned in shards, each of them a complete index built by the
+ * {@link ShardedIndexer} in a subdirectory, listed in a manifest:
+ * <pre>
+ * magic count numDocuments[count]
+ * </pre>
+ * Documents are numbered across shards, in order, as in a {@link SegmentedIndex}. The shards are built with the IDFs,
+ * the vocabulary and the statistics of the whole collection, so a query scores every document of a shard as it would
+ * score it in an index with all the documents.
+ * <p>
+ * A sharded index has no postings of its own, so it is not an {@link Index} but a {@link SearchableIndex}. It is
+ * searched with {@link #search}, usually through {@link RetrievalModel#search}: the query is run on every shard at the
+ * same time and the top {@code k} documents of each shard are merged. Models whose score only
+ * depends on the query and the document, like {@link Cosine} and {@link Okapi}, return the same results as on an
+ * unsharded index. {@link CosineWithFeedback} takes the feedback documents of every shard from its own results, with
+ * the weight sums of the whole collection.
+ * <p>
+ * Shards are loaded in this process by default. With {@link #setRemoteShards} they are reached instead through a
+ * {@link ShardServer} each, usually in other processes, so the index does not have to fit in one heap. A shard server
+ * that does not accept a connection within {@link #CONNECT_TIMEOUT} milliseconds, or does not answer a request within
+ * {@link #READ_TIMEOUT}, fails the query instead of blocking it.
+ */
+public class ShardedIndex implements SearchableIndex, Closeable
+{
+    public static final String MANIFEST = "shards";
+    public static final String SHARD_PREFIX = "shard";
+    protected static final int MAGIC = 0x54494831; // TIH1
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final int READ_TIMEOUT = 30000;
+
+    protected final String path;
+    protected final EnumMap<Index.Component, Long> loadTimes = new EnumMap<>(Index.Component.class);
+    protected Shard[] shards;
+    protected int[] docBase; // [shard] -> first docID, and the number of docIDs at the end
+    protected List<InetSocketAddress> remoteShards;
+    protected ExecutorService executor;
+
+    /**
+     * Creates a new sharded index to be loaded from the specified directory.
+     * @param path the directory of the index, with its manifest.
+     */
+    public ShardedIndex(String path)
+    {
+        this.path = path;
+    }
+
+    /**
+     * Sets the addresses of the servers of the shards, so they are not loaded in this process.
+     * It must be called before loading the index.
+     * @param addresses the address of the {@link ShardServer} of every shard, in the order of the manifest.
+     */
+    public void setRemoteShards(List<InetSocketAddress> addresses)
+    {
+        this.remoteShards = addresses;
+    }
+
+    /**
+     * Returns whether the specified directory holds a sharded index.
+     * @param directory the index directory.
+     * @return {@code true} if the manifest exists.
+     */
+    public static boolean exists(File directory)
+    {
+        return new File(directory, MANIFEST).exists();
+    }
+
+    /**
+     * Removes the manifest and the shards of a sharded index in the specified directory, if any, so that a new index
+     * can be built in it.
+     * @param directory the index directory.
+     */
+    public static void clear(File directory)
+    {
+        new File(directory, MANIFEST).delete();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory() && file.getName().matches(SHARD_PREFIX + "\\d+"))
+                IncrementalIndexer.deleteDirectory(file);
+        }
+    }
+
+    /**
+     * Writes the manifest of a sharded index.
+     * @param directory    the index directory.
+     * @param numDocuments the number of documents of every shard.
+     * @throws IOException if an error occurs while writing the manifest.
+     */
+    public static void writeManifest(File directory, int[] numDocuments) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(new File(directory, MANIFEST))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numDocuments.length);
+            for (int n : numDocuments)
+                out.writeInt(n);
+        }
+    }
+
+    /**
+     * Loads the shards listed in the manifest, in parallel, or connects to their servers.
+     * @param components the components to open in every local shard besides the {@link Index#CORE_COMPONENTS}.
+     * @throws Exception if an error occurs while loading a shard, or if a shard does not match the manifest.
+     */
+    public void load(Set<Index.Component> components) throws Exception
+    {
+        if (this.shards != null)
+            return;
+        File directory = new File(this.path);
+        byte[] data = Files.readAllBytes(new File(directory, MANIFEST).toPath());
+        int[] numDocuments;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid shards file in " + directory + ".");
+            numDocuments = new int[in.readInt()];
+            for (int s = 0; s < numDocuments.length; s++)
+                numDocuments[s] = in.readInt();
+        }
+        if (this.remoteShards != null && this.remoteShards.size() != numDocuments.length)
+            throw new IOException("The index has " + numDocuments.length + " shards, but " + this.remoteShards.size()
+                    + " servers were given.");
+
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shard-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayList<Future<Shard>> futures = new ArrayList<>();
+        for (int s = 0; s < numDocuments.length; s++) {
+            File shardDirectory = new File(directory, SHARD_PREFIX + s);
+            InetSocketAddress address = this.remoteShards == null ? null : this.remoteShards.get(s);
+            futures.add(this.executor.submit(() -> address == null
+                    ? new LocalShard(Index.open(shardDirectory.getPath(), components))
+                    : new RemoteShard(address)));
+        }
+        this.shards = new Shard[numDocuments.length];
+        this.docBase = new int[numDocuments.length + 1];
+        try {
+            for (int s = 0; s < this.shards.length; s++) {
+                this.shards[s] = futures.get(s).get();
+                if (this.shards[s].getNumDocuments() != numDocuments[s])
+                    throw new IOException("Shard " + s + " has " + this.shards[s].getNumDocuments()
+                            + " documents instead of " + numDocuments[s] + ".");
+                this.docBase[s + 1] = this.docBase[s] + numDocuments[s];
+            }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+        // Tiempos de carga de cada componente, sumados sobre los shards locales
+        synchronized (this.loadTimes) {
+            for (Shard shard : this.shards) {
+                if (shard instanceof LocalShard) {
+                    for (Map.Entry<Index.Component, Long> e : ((LocalShard) shard).index.getLoadTimes().entrySet())
+                        this.loadTimes.merge(e.getKey(), e.getValue(), Long::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a query on all shards at the same time and merges their results.
+     * @param model        the model to run the query on local shards; remote shards run it with their own model,
+     *                     which must have the same {@link RetrievalModel#getParameters parameters}.
+     * @param queryText    the text of the query.
+     * @param docProcessor the {@link DocumentProcessor} to extract query terms.
+     * @param k            the maximum number of documents to return.
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the similarity score.
+     */
+    @Override
+    public ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText,
+                                                    DocumentProcessor docProcessor, int k)
+    {
+        // El primer shard se consulta en este hilo mientras los demás lo hacen en el executor
+        ArrayList<Future<ArrayList<Tuple<Integer, Double>>>> futures = new ArrayList<>();
+        for (int s = 1; s < this.shards.length; s++) {
+            Shard shard = this.shards[s];
+            futures.add(this.executor.submit(() -> shard.search(model, queryText, docProcessor, k)));
+        }
+        TopKHeap heap = new TopKHeap(k);
+        try {
+            for (int s = 0; s < this.shards.length; s++) {
+                ArrayList<Tuple<Integer, Double>> results = s == 0
+                        ? this.shards[0].search(model, queryText, docProcessor, k)
+                        : futures.get(s - 1).get();
+                for (Tuple<Integer, Double> result : results)
+                    heap.offer(this.docBase[s] + result.item1, result.item2);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while querying the shards."));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw new UncheckedIOException((IOException) ex.getCause());
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause()
+                    : new IllegalStateException(ex.getCause());
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(false);
+        }
+        return heap.toSortedList();
+    }
+
+    /**
+     * Returns the number of shards of the index.
+     * @return the number of shards.
+     */
+    public int getNumShards()
+    {
+        return this.shards.length;
+    }
+
+    @Override
+    public String getPath()
+    {
+        return this.path;
+    }
+    /**
+     * A sharded index is never updated incrementally.
+     * @return {@code 0}.
+     */
+    @Override
+    public long getGeneration()
+    {
+        return 0;
+    }
+    @Override
+    public EnumMap<Index.Component, Long> getLoadTimes()
+    {
+        synchronized (this.loadTimes) {
+            return new EnumMap<>(this.loadTimes);
+        }
+    }
+
+    @Override
+    public Tuple<Integer, Double> getTerm(String term)
+    {
+        // Todos los shards tienen el vocabulario y los IDF de la colección completa
+        try {
+            return this.shards[0].getTerm(term);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    @Override
+    public ArrayList<String> getTermsInRange(String from, String to)
+    {
+        try {
+            return this.shards[0].getTermsInRange(from, to);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    @Override
+    public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance)
+    {
+        try {
+            return this.shards[0].getSimilarTerms(term, maxDistance);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    @Override
+    public int getNumTerms()
+    {
+        return this.shards[0].getNumTerms();
+    }
+    @Override
+    public int getNumDocuments()
+    {
+        return this.docBase[this.shards.length];
+    }
+    @Override
+    public String getDocumentName(int docID)
+    {
+        int s = this.getShard(docID);
+        try {
+            return this.shards[s].getDocumentName(docID - this.docBase[s]);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    @Override
+    public boolean isPositional()
+    {
+        for (Shard shard : this.shards) {
+            if (!shard.isPositional())
+                return false;
+        }
+        return true;
+    }
+    @Override
+    public Tuple<String, String> getCachedDocument(int docID) throws IOException
+    {
+        int s = this.getShard(docID);
+        return this.shards[s].getCachedDocument(docID - this.docBase[s]);
+    }
+    @Override
+    public TermOffsets getCachedTermOffsets(int docID) throws IOException
+    {
+        int s = this.getShard(docID);
+        return this.shards[s].getCachedTermOffsets(docID - this.docBase[s]);
+    }
+
+    /**
+     * Prints the size of the index and where each of its shards is to {@link System#err}.
+     */
+    @Override
+    public void printStatistics()
+    {
+        System.err.println("  - Vocabulary: " + this.getNumTerms() + " terms.");
+        System.err.println("  - Documents: " + this.getNumDocuments() + " documents.");
+        System.err.println("  - Shards: " + this.shards.length + ".");
+        for (int s = 0; s < this.shards.length; s++) {
+            System.err.println("    - " + SHARD_PREFIX + s + ": " + this.shards[s].getNumDocuments() + " documents ("
+                    + (this.shards[s] instanceof RemoteShard ? "at " + ((RemoteShard) this.shards[s]).address : "local")
+                    + ").");
+        }
+    }
+
+    /**
+     * Closes the connections to remote shards.
+     * @throws IOException if an error occurs while closing a connection.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.executor != null)
+            this.executor.shutdownNow();
+        for (Shard shard : this.shards == null ? new Shard[0] : this.shards)
+            shard.close();
+    }
+
+    /**
+     * Returns the shard of the specified document.
+     */
+    protected int getShard(int docID)
+    {
+        int s = Arrays.binarySearch(this.docBase, docID);
+        if (s < 0)
+            return -s - 2;
+        // Saltar shards vacíos con el mismo primer docID
+        while (this.docBase[s + 1] == docID)
+            s++;
+        return s;
+    }
+
+    /**
+     * A shard of the index, with its own {@code docID}s.
+     */
+    public interface Shard extends Closeable
+    {
+        /**
+         * Runs a query on the shard.
+         * @return the {@code k} best documents of the shard, by local {@code docID}, sorted by score.
+         * @throws IOException if the shard can not be reached.
+         */
+        ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText, DocumentProcessor docProcessor,
+                                                 int k) throws IOException;
+        int getNumDocuments();
+        int getNumTerms();
+        boolean isPositional();
+        String getDocumentName(int docID) throws IOException;
+        Tuple<Integer, Double> getTerm(String term) throws IOException;
+        ArrayList<String> getTermsInRange(String from, String to) throws IOException;
+        ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance) throws IOException;
+        Tuple<String, String> getCachedDocument(int docID) throws IOException;
+        TermOffsets getCachedTermOffsets(int docID) throws IOException;
+    }
+
+    /**
+     * A shard loaded in this process.
+     */
+    protected static class LocalShard implements Shard
+    {
+        protected final Index index;
+
+        protected LocalShard(Index index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText,
+                                                        DocumentProcessor docProcessor, int k)
+        {
+            return model.runQuery(queryText, this.index, docProcessor, k);
+        }
+        @Override
+        public int getNumDocuments()
+        {
+            return this.index.getNumDocuments();
+        }
+        @Override
+        public int getNumTerms()
+        {
+            return this.index.getNumTerms();
+        }
+        @Override
+        public boolean isPositional()
+        {
+            return this.index.isPositional();
+        }
+        @Override
+        public String getDocumentName(int docID)
+        {
+            return this.index.getDocumentName(docID);
+        }
+        @Override
+        public Tuple<Integer, Double> getTerm(String term)
+        {
+            return this.index.getTerm(term);
+        }
+        @Override
+        public ArrayList<String> getTermsInRange(String from, String to)
+        {
+            return this.index.getTermsInRange(from, to);
+        }
+        @Override
+        public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance)
+        {
+            return this.index.getSimilarTerms(term, maxDistance);
+        }
+        @Override
+        public Tuple<String, String> getCachedDocument(int docID) throws IOException
+        {
+            return this.index.getCachedDocument(docID);
+        }
+        @Override
+        public TermOffsets getCachedTermOffsets(int docID) throws IOException
+        {
+            return this.index.getCachedTermOffsets(docID);
+        }
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * A shard served by a {@link ShardServer}, with a pool of persistent connections to it.
+     * <p>
+     * The offsets of the terms of its documents are not transferred, so snippets of its documents are not
+     * highlighted.
+     */
+    protected static class RemoteShard implements Shard
+    {
+        protected final InetSocketAddress address;
+        protected final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+        protected String parameters;
+        protected int numDocuments;
+        protected int numTerms;
+        protected boolean positional;
+
+        protected RemoteShard(InetSocketAddress address) throws IOException
+        {
+            this.address = address;
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.INFO);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                this.parameters = ShardServer.readString(connection.in);
+                this.numDocuments = connection.in.readInt();
+                this.numTerms = connection.in.readInt();
+                this.positional = connection.in.readBoolean();
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+            this.idle.push(connection);
+        }
+
+        @Override
+        public ArrayList<Tuple<Integer, Double>> search(RetrievalModel model, String queryText,
+                                                        DocumentProcessor docProcessor, int k) throws IOException
+        {
+            if (!model.getParameters().equals(this.parameters))
+                throw new IOException("The shard at " + this.address + " runs " + this.parameters + " instead of "
+                        + model.getParameters() + ".");
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.SEARCH);
+                connection.out.writeInt(k);
+                ShardServer.writeString(connection.out, queryText);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                int n = connection.in.readInt();
+                ArrayList<Tuple<Integer, Double>> results = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    results.add(new Tuple<>(connection.in.readInt(), connection.in.readDouble()));
+                this.idle.push(connection);
+                return results;
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+        }
+        @Override
+        public int getNumDocuments()
+        {
+            return this.numDocuments;
+        }
+        @Override
+        public int getNumTerms()
+        {
+            return this.numTerms;
+        }
+        @Override
+        public boolean isPositional()
+        {
+            return this.positional;
+        }
+        @Override
+        public String getDocumentName(int docID) throws IOException
+        {
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.NAME);
+                connection.out.writeInt(docID);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                String name = ShardServer.readString(connection.in);
+                this.idle.push(connection);
+                return name;
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+        }
+        @Override
+        public Tuple<Integer, Double> getTerm(String term) throws IOException
+        {
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.TERM);
+                ShardServer.writeString(connection.out, term);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                Tuple<Integer, Double> result = connection.in.readBoolean()
+                        ? new Tuple<>(connection.in.readInt(), connection.in.readDouble()) : null;
+                this.idle.push(connection);
+                return result;
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+        }
+        @Override
+        public ArrayList<String> getTermsInRange(String from, String to) throws IOException
+        {
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.RANGE);
+                ShardServer.writeString(connection.out, from);
+                connection.out.writeBoolean(to != null);
+                if (to != null)
+                    ShardServer.writeString(connection.out, to);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                int n = connection.in.readInt();
+                ArrayList<String> terms = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    terms.add(ShardServer.readString(connection.in));
+                this.idle.push(connection);
+                return terms;
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+        }
+        @Override
+        public ArrayList<FuzzyTermIndex.Suggestion> getSimilarTerms(String term, int maxDistance) throws IOException
+        {
+            Connection connection = this.acquire();
+            try {
+                connection.out.writeByte(ShardServer.SIMILAR);
+                ShardServer.writeString(connection.out, term);
+                connection.out.writeInt(maxDistance);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                int n = connection.in.readInt();
+                ArrayList<FuzzyTermIndex.Suggestion> suggestions = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    suggestions.add(new FuzzyTermIndex.Suggestion(ShardServer.readString(connection.in),
+                            connection.in.readInt(), connection.in.readInt()));
+                this.idle.push(connection);
+                return suggestions;
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+        }
+        @Override
+        public Tuple<String, String> getCachedDocument(int docID) throws IOException
+        {
+            Connection connection = this.acquire();
+            Tuple<String, String> doc;
+            try {
+                connection.out.writeByte(ShardServer.DOCUMENT);
+                connection.out.writeInt(docID);
+                connection.out.flush();
+                ShardServer.readStatus(connection.in);
+                doc = connection.in.readBoolean()
+                        ? new Tuple<>(ShardServer.readString(connection.in), ShardServer.readString(connection.in))
+                        : null;
+                this.idle.push(connection);
+            } catch (IOException ex) {
+                throw connection.fail(ex);
+            }
+            if (doc == null)
+                throw new IOException("Document " + docID + " is not in the cache of the shard at " + this.address + ".");
+            return doc;
+        }
+        @Override
+        public TermOffsets getCachedTermOffsets(int docID)
+        {
+            return null;
+        }
+        @Override
+        public void close()
+        {
+            for (Connection connection = this.idle.poll(); connection != null; connection = this.idle.poll())
+                connection.close();
+        }
+
+        // Reutiliza una conexión libre, o abre una nueva si todas están en uso
+        protected Connection acquire() throws IOException
+        {
+            Connection connection = this.idle.poll();
+            return connection != null ? connection : new Connection(this.address);
+        }
+    }
+
+    /**
+     * A persistent connection to a {@link ShardServer}.
+     */
+    protected static class Connection
+    {
+        protected final InetSocketAddress address;
+        protected final Socket socket;
+        protected final DataInputStream in;
+        protected final DataOutputStream out;
+
+        protected Connection(InetSocketAddress address) throws IOException
+        {
+            this.address = address;
+            this.socket = new Socket();
+            try {
+                this.socket.setTcpNoDelay(true);
+                this.socket.setSoTimeout(READ_TIMEOUT);
+                this.socket.connect(address, CONNECT_TIMEOUT);
+                this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+            } catch (IOException ex) {
+                throw this.fail(ex);
+            }
+        }
+
+        /**
+         * Closes the connection after an error, which can not be reused because its stream may be left in the middle
+         * of a response, and returns the error to throw, with the address of the shard if it timed out.
+         */
+        protected IOException fail(IOException ex)
+        {
+            this.close();
+            if (!(ex instanceof SocketTimeoutException))
+                return ex;
+            return new IOException("The shard at " + this.address + " did not answer in "
+                    + (this.socket.isConnected() ? READ_TIMEOUT : CONNECT_TIMEOUT) + " ms.", ex);
+        }
+
+        protected void close()
+        {
+            try {
+                this.socket.close();
+            } catch (IOException ex) {
+                // Nothing else to release
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a {@link ShardedIndex}: the documents of the collection are partitioned in {@code N} shards, and each shard
+ * is a complete index in a subdirectory, built on its own thread.
+ * <p>
+ * The documents are split in contiguous ranges in the order the sequential indexer visits them, so the global
+ * {@code docID} of a document is the same as in an index built from scratch. The shards are built in three steps:
+ * <ol>
+ * <li>The first pass of every shard runs in parallel, as in the {@link Indexer}.</li>
+ * <li>The document frequencies of all shards are added up, and every shard gets the terms of the whole collection, so
+ * that the IDFs, weights and norms of its second pass, and the vectors of queries, are the ones of the whole
+ * collection.</li>
+ * <li>The shards are saved in parallel, with the {@link CollectionStatistics} and the weight sums of the
+ * {@link TermStatistics} of the whole collection.</li>
+ * </ol>
+ * The shards share the {@link DocumentProcessor}, so it must be thread-safe, as {@link HtmlProcessor} is.
+ */
+public class ShardedIndexer extends Indexer
+{
+    protected int numShards;
+    protected HashMap<String, Integer> globalTermIDs; // term -> ID in the whole collection
+    protected ArrayList<Integer> globalDF; // [global termID] -> df
+    protected ArrayList<Long> globalCF; // [global termID] -> cf
+    protected int numDocuments;
+    protected long totalLength;
+
+    /**
+     * Creates a new sharded indexer with the given paths, document processor and number of shards.
+     * @param pathToIndex path to the index directory, where the shards are written in subdirectories.
+     * @param pathToCollection path to the original documents directory.
+     * @param docProcessor document processor to extract terms, shared by all shards.
+     * @param numShards the number of shards.
+     */
+    public ShardedIndexer(File pathToIndex, File pathToCollection, DocumentProcessor docProcessor, int numShards)
+    {
+        super(pathToIndex, pathToCollection, docProcessor);
+        this.numShards = numShards;
+    }
+
+    /**
+     * Runs the indexing process, builds the shards and writes the manifest of the sharded index.
+     * Any previous index in the same directory, sharded or not, is removed first.
+     * @throws IOException if an error occurs while indexing.
+     */
+    @Override
+    public void run() throws IOException
+    {
+        DecimalFormat df = new DecimalFormat("#.##");
+        long startTime = System.currentTimeMillis();
+        if (!this.pathToIndex.exists())
+            this.pathToIndex.mkdirs();
+        // El índice anterior del directorio, con o sin shards, se sustituye entero
+        ShardedIndex.clear(this.pathToIndex);
+        SegmentManifest.clear(this.pathToIndex);
+        for (Index.Component component : Index.Component.values())
+            new File(this.pathToIndex, component.fileName).delete();
+        IncrementalIndexer.deleteDirectory(new File(this.pathToIndex, "docstore"));
+
+        ArrayList<File> docFiles = new ArrayList<>();
+        long totalBytesDocuments = 0;
+        for (File subDir : this.pathToCollection.listFiles()) {
+            if (!subDir.getName().startsWith(".")) {
+                for (File docFile : subDir.listFiles()) {
+                    if (docFile.getPath().endsWith(".html")) {
+                        docFiles.add(docFile);
+                        totalBytesDocuments += docFile.length();
+                    }
+                }
+            }
+        }
+        ShardIndexer[] shards = new ShardIndexer[this.numShards];
+        for (int s = 0; s < this.numShards; s++) {
+            List<File> range = docFiles.subList((int) ((long) s * docFiles.size() / this.numShards),
+                    (int) ((long) (s + 1) * docFiles.size() / this.numShards));
+            shards[s] = new ShardIndexer(new File(this.pathToIndex, ShardedIndex.SHARD_PREFIX + s), range);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.numShards);
+        try {
+            System.err.println("Running first pass on " + this.numShards + " shards...");
+            this.runAll(executor, shards, shard -> shard.firstPhase());
+            this.computeGlobalStatistics(shards);
+            System.err.println("  - Documents: " + this.numDocuments + " (" + df.format(totalBytesDocuments / 1024d / 1024d)
+                    + " MB), " + this.globalTermIDs.size() + " terms.");
+
+            // La segunda pasada de cada shard escribe su progreso, así que se ejecutan de una en una
+            for (ShardIndexer shard : shards)
+                shard.secondPhase();
+            this.setGlobalWeightSums(shards);
+
+            System.err.print("Saving shards...");
+            this.runAll(executor, shards, shard -> shard.save());
+            int[] numDocuments = new int[shards.length];
+            for (int s = 0; s < shards.length; s++)
+                numDocuments[s] = shards[s].index.documents.size();
+            ShardedIndex.writeManifest(this.pathToIndex, numDocuments);
+            System.err.println("done.");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long endTime = System.currentTimeMillis();
+        System.err.println("  - Time: " + df.format((endTime - startTime) / 1000d) + " seconds.");
+        System.err.println("Index statistics:");
+        for (ShardIndexer shard : shards) {
+            System.err.println("Shard " + shard.pathToIndex.getName() + ":");
+            shard.index.printStatistics(this.compress);
+            shard.index = null;
+        }
+    }
+
+    protected interface ShardTask
+    {
+        void run(ShardIndexer shard) throws IOException;
+    }
+
+    // Ejecuta la tarea en todos los shards a la vez y espera a que terminen
+    protected void runAll(ExecutorService executor, ShardIndexer[] shards, ShardTask task) throws IOException
+    {
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for (final ShardIndexer shard : shards) {
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    task.run(shard);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing.", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error while indexing: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * Adds up the number of documents, the length and the document and collection frequencies of the terms of all
+     * shards, after their first pass.
+     * @param shards the shards.
+     */
+    protected void computeGlobalStatistics(ShardIndexer[] shards)
+    {
+        this.globalTermIDs = new HashMap<>();
+        this.globalDF = new ArrayList<>();
+        this.globalCF = new ArrayList<>();
+        this.numDocuments = 0;
+        this.totalLength = 0;
+        for (ShardIndexer shard : shards) {
+            Index ind = shard.index;
+            this.numDocuments += ind.documents.size();
+            for (Map.Entry<String, Tuple<Integer, Double>> e : ind.vocabulary.entrySet()) {
+                Integer termID = this.globalTermIDs.get(e.getKey());
+                if (termID == null) {
+                    termID = this.globalDF.size();
+                    this.globalTermIDs.put(e.getKey(), termID);
+                    this.globalDF.add(0);
+                    this.globalCF.add(0L);
+                }
+                // Antes de la segunda pasada los pesos de las postings son las frecuencias
+                ArrayPostingsList postings = ind.invertedIndex.get(e.getValue().item1);
+                long cf = 0;
+                for (int i = 0; i < postings.size(); i++)
+                    cf += (long) postings.getWeight(i);
+                this.globalDF.set(termID, this.globalDF.get(termID) + postings.size());
+                this.globalCF.set(termID, this.globalCF.get(termID) + cf);
+                this.totalLength += cf;
+            }
+        }
+    }
+
+    /**
+     * Replaces the weight sums of the term statistics of every shard with the sums over the whole collection, after
+     * their second pass.
+     * @param shards the shards.
+     */
+    protected void setGlobalWeightSums(ShardIndexer[] shards)
+    {
+        double[] weightSum = new double[this.globalDF.size()];
+        for (ShardIndexer shard : shards) {
+            shard.index.setCompressed(this.compress);
+            shard.index.termStatistics = TermStatistics.compute(shard.index, this.compress);
+            for (Map.Entry<String, Tuple<Integer, Double>> e : shard.index.vocabulary.entrySet())
+                weightSum[this.globalTermIDs.get(e.getKey())] += shard.index.termStatistics.weightSum[e.getValue().item1];
+        }
+        for (ShardIndexer shard : shards) {
+            for (Map.Entry<String, Tuple<Integer, Double>> e : shard.index.vocabulary.entrySet())
+                shard.index.termStatistics.weightSum[e.getValue().item1] = weightSum[this.globalTermIDs.get(e.getKey())];
+        }
+    }
+
+    /**
+     * Builds one shard of the index with the statistics of the whole collection.
+     */
+    protected class ShardIndexer extends Indexer
+    {
+        protected List<File> docFiles;
+        protected Index index;
+
+        protected ShardIndexer(File pathToShard, List<File> docFiles)
+        {
+            super(pathToShard, null, ShardedIndexer.this.docProcessor);
+            this.docFiles = docFiles;
+            this.compress = ShardedIndexer.this.compress;
+            this.positional = ShardedIndexer.this.positional;
+        }
+
+        /**
+         * Runs the first pass of the shard, storing its documents in its own {@link DocumentStore}.
+         * @throws IOException if an error occurs while creating the document store.
+         */
+        protected void firstPhase() throws IOException
+        {
+            this.index = new Index(this.pathToIndex.getPath());
+            this.index.setPositional(this.positional);
+            this.documentStore = DocumentStore.create(new File(this.pathToIndex, "docstore"));
+            this.firstPass(this.index);
+            for (int docID = 0; docID < this.index.documentEntries.size(); docID++)
+                this.documentStore.setDocument(docID, this.index.documentEntries.get(docID));
+        }
+
+        @Override
+        protected void firstPass(Index ind) throws IOException
+        {
+            int failed = 0;
+            for (File docFile : this.docFiles) {
+                try {
+                    this.processDocument(docFile, ind);
+                } catch (IOException ex) {
+                    System.err.println("  Exception indexing file " + docFile.getName() + ": " + ex.getMessage());
+                    failed++;
+                }
+            }
+            System.err.println("  Indexed shard " + this.pathToIndex.getName() + ": " + (this.docFiles.size() - failed)
+                    + " documents, " + ind.vocabulary.size() + " terms.");
+        }
+
+        /**
+         * Adds the terms of the whole collection that do not appear in the shard, and runs its second pass.
+         */
+        protected void secondPhase()
+        {
+            for (String term : ShardedIndexer.this.globalTermIDs.keySet()) {
+                if (!this.index.vocabulary.containsKey(term)) {
+                    this.index.vocabulary.put(term, new Tuple<>(this.index.vocabulary.size(), 0.0));
+                    this.index.invertedIndex.add(new ArrayPostingsList());
+                    if (this.index.positions != null)
+                        this.index.positions.add(new PositionsFile.Builder());
+                }
+            }
+            this.secondPass(this.index);
+        }
+
+        /**
+         * Returns the IDF of a term in the whole collection.
+         */
+        @Override
+        protected double getIDF(String term, int df, double numDocuments)
+        {
+            ShardedIndexer global = ShardedIndexer.this;
+            return super.getIDF(term, global.globalDF.get(global.globalTermIDs.get(term)), global.numDocuments);
+        }
+
+        /**
+         * Saves the shard with the collection statistics of the whole collection.
+         * @throws IOException if an error occurs while saving the shard.
+         */
+        protected void save() throws IOException
+        {
+            ShardedIndexer global = ShardedIndexer.this;
+            CollectionStatistics local = CollectionStatistics.compute(this.index);
+            int[] df = new int[this.index.vocabulary.size()];
+            long[] cf = new long[df.length];
+            for (Map.Entry<String, Tuple<Integer, Double>> e : this.index.vocabulary.entrySet()) {
+                int termID = global.globalTermIDs.get(e.getKey());
+                df[e.getValue().item1] = global.globalDF.get(termID);
+                cf[e.getValue().item1] = global.globalCF.get(termID);
+            }
+            this.index.collectionStatistics = new CollectionStatistics(local.documentLengths, global.numDocuments,
+                    global.totalLength, df, cf);
+            this.index.setDocumentStore(this.documentStore);
+            this.index.save();
+            this.documentStore.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package ti;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Builds query-biased snippets of the documents in the cache of an index.
+ * <p>
+ * The occurrences of the query terms are read from the {@link TermOffsets} recorded when the documents were indexed,
+ * so a document is never tokenized again. The snippet is the window of the body, of about {@link #length} characters,
+ * that contains the query terms with the highest total IDF, counting each term once; the number of occurrences breaks
+ * ties. Query terms are highlighted in the snippet and in the title.
+ */
+public class SnippetGenerator
+{
+    public static final int DEFAULT_LENGTH = 240;
+
+    protected SearchableIndex index;
+    protected DocumentProcessor docProcessor;
+    protected int length;
+    protected String highlightStart;
+    protected String highlightEnd;
+
+    /**
+     * Creates a new snippet generator for the given index.
+     *
+     * @param index          the index, with its cache of documents.
+     * @param docProcessor   the processor to extract query terms.
+     * @param length         the approximate length of the snippets, in characters.
+     * @param highlightStart the text to insert before every highlighted term.
+     * @param highlightEnd   the text to insert after every highlighted term.
+     */
+    public SnippetGenerator(SearchableIndex index, DocumentProcessor docProcessor, int length, String highlightStart,
+                            String highlightEnd)
+    {
+        this.index = index;
+        this.docProcessor = docProcessor;
+        this.length = length;
+        this.highlightStart = highlightStart;
+        this.highlightEnd = highlightEnd;
+    }
+
+    /**
+     * Extracts the distinct terms of a query, as the retrieval models do.
+     *
+     * @param queryText the query.
+     * @return the query terms.
+     */
+    public ArrayList<String> getQueryTerms(String queryText)
+    {
+        ArrayList<String> terms = this.docProcessor.processText(queryText);
+        return terms == null ? new ArrayList<>() : new ArrayList<>(new LinkedHashSet<>(terms));
+    }
+
+    /**
+     * Builds the snippet of a document for the given query terms.
+     *
+     * @param docID      the ID of the document.
+     * @param queryTerms the terms of the query, as returned by {@link #getQueryTerms}.
+     * @return a {@link Tuple} with the highlighted title and the highlighted snippet.
+     * @throws IOException if an error occurs while reading the document from the cache.
+     */
+    public Tuple<String, String> getSnippet(int docID, Collection<String> queryTerms) throws IOException
+    {
+        Tuple<String, String> doc = this.index.getCachedDocument(docID);
+        TermOffsets offsets = this.index.getCachedTermOffsets(docID);
+        String title = doc.item1;
+        String body = doc.item2;
+        int bodyStart = title.length() + 1;
+
+        // Ocurrencias de los términos de la consulta: (start, end, término) en el título y en el cuerpo
+        int numTerms = queryTerms.size();
+        double[] weights = new double[numTerms];
+        int[] titleSpans = new int[0];
+        int[] spans = new int[0];
+        int numTitle = 0;
+        int numBody = 0;
+        if (offsets != null) {
+            int q = 0;
+            for (String term : queryTerms) {
+                Tuple<Integer, Double> t = this.index.getTerm(term);
+                weights[q] = t == null ? 0 : t.item2;
+                int[] s = offsets.get(term);
+                for (int i = 0; s != null && i < s.length; i += 2) {
+                    if (s[i] < bodyStart) {
+                        titleSpans = add(titleSpans, numTitle++, s[i], s[i + 1], q);
+                    } else {
+                        spans = add(spans, numBody++, s[i] - bodyStart, s[i + 1] - bodyStart, q);
+                    }
+                }
+                q++;
+            }
+        }
+        sortByStart(spans, numBody);
+
+        // Ventana deslizante sobre las ocurrencias ordenadas
+        int[] counts = new int[numTerms];
+        double score = 0;
+        double bestScore = -1;
+        int bestFirst = 0;
+        int bestLast = -1;
+        for (int first = 0, last = 0; last < numBody; last++) {
+            int q = spans[3 * last + 2];
+            if (counts[q]++ == 0)
+                score += weights[q] + 1;
+            while (first < last && spans[3 * last + 1] - spans[3 * first] > this.length) {
+                int f = spans[3 * first + 2];
+                if (--counts[f] == 0)
+                    score -= weights[f] + 1;
+                first++;
+            }
+            double windowScore = score + 1e-3 * (last - first + 1);
+            if (windowScore > bestScore) {
+                bestScore = windowScore;
+                bestFirst = first;
+                bestLast = last;
+            }
+        }
+
+        // Centrar la ventana en las ocurrencias y ajustarla a palabras completas
+        int start = 0;
+        if (bestLast >= 0) {
+            int covered = spans[3 * bestLast + 1] - spans[3 * bestFirst];
+            start = Math.max(0, spans[3 * bestFirst] - Math.max(0, this.length - covered) / 2);
+        }
+        int end = Math.min(body.length(), start + this.length);
+        start = Math.max(0, Math.min(start, end - this.length));
+        if (start > 0) {
+            int space = body.indexOf(' ', start);
+            if (space >= 0 && space < end && (bestLast < 0 || space < spans[3 * bestFirst]))
+                start = space + 1;
+        }
+        if (end < body.length()) {
+            int space = body.lastIndexOf(' ', end);
+            if (space > start && (bestLast < 0 || space >= spans[3 * bestLast + 1]))
+                end = space;
+        }
+
+        StringBuilder snippet = new StringBuilder(end - start + 32);
+        if (start > 0)
+            snippet.append("...");
+        this.highlight(body, start, end, spans, numBody, snippet);
+        if (end < body.length())
+            snippet.append("...");
+
+        sortByStart(titleSpans, numTitle);
+        StringBuilder highlightedTitle = new StringBuilder(title.length() + 16);
+        this.highlight(title, 0, title.length(), titleSpans, numTitle, highlightedTitle);
+        return new Tuple<>(highlightedTitle.toString(), snippet.toString());
+    }
+
+    /**
+     * Appends a range of a text with the given spans highlighted, merging spans that overlap and turning line breaks
+     * into spaces.
+     */
+    protected void highlight(String text, int start, int end, int[] spans, int numSpans, StringBuilder out)
+    {
+        int pos = start;
+        for (int i = 0; i < numSpans; i++) {
+            int s = Math.max(spans[3 * i], pos);
+            int e = spans[3 * i + 1];
+            if (e <= s || s >= end)
+                continue;
+            for (; i + 1 < numSpans && spans[3 * (i + 1)] <= e; i++)
+                e = Math.max(e, spans[3 * (i + 1) + 1]);
+            e = Math.min(e, end);
+            appendText(text, pos, s, out);
+            out.append(this.highlightStart);
+            appendText(text, s, e, out);
+            out.append(this.highlightEnd);
+            pos = e;
+        }
+        appendText(text, pos, end, out);
+    }
+
+    protected static void appendText(String text, int start, int end, StringBuilder out)
+    {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            out.append(c == '\n' || c == '\r' || c == '\t' ? ' ' : c);
+        }
+    }
+
+    /**
+     * Adds a span {@code (start, end, term)} at position {@code i} of an array of spans, growing it if needed.
+     */
+    protected static int[] add(int[] spans, int i, int start, int end, int term)
+    {
+        if (spans.length < 3 * i + 3)
+            spans = Arrays.copyOf(spans, Math.max(48, 2 * spans.length));
+        spans[3 * i] = start;
+        spans[3 * i + 1] = end;
+        spans[3 * i + 2] = term;
+        return spans;
+    }
+
+    /**
+     * Sorts an array of spans by their start.
+     */
+    protected static void sortByStart(int[] spans, int numSpans)
+    {
+        long[] keys = new long[numSpans];
+        for (int i = 0; i < numSpans; i++)
+            keys[i] = ((long) spans[3 * i] << 32) | i;
+        Arrays.sort(keys);
+        int[] sorted = Arrays.copyOf(spans, 3 * numSpans);
+        for (int i = 0; i < numSpans; i++) {
+            int from = (int) keys[i];
+            spans[3 * i] = sorted[3 * from];
+            spans[3 * i + 1] = sorted[3 * from + 1];
+            spans[3 * i + 2] = sorted[3 * from + 2];
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ti;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache from terms to their stems, safe to use from several threads.
+ * <p>
+ * Lookups go to a {@link ConcurrentHashMap} without any lock, so they cost less than stemming the term again. When
+ * the cache grows past its capacity, an arbitrary eighth of its terms is evicted; frequent terms are soon added back,
+ * so the cache keeps mostly the frequent ones without tracking recency on every lookup. Stems are computed with
+ * {@link Stemmer#stemWord}.
+ */
+public class StemCache
+{
+    protected final int capacity;
+    protected final ConcurrentHashMap<String, String> stems;
+    protected final AtomicBoolean evicting = new AtomicBoolean();
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache with room for the specified number of terms.
+     *
+     * @param capacity the maximum number of terms in the cache.
+     */
+    public StemCache(int capacity)
+    {
+        this.capacity = capacity;
+        this.stems = new ConcurrentHashMap<>(2 * capacity);
+    }
+
+    /**
+     * Returns the stem of the given term, from the cache if possible.
+     *
+     * @param term the term to stem.
+     * @return the stem of the term.
+     */
+    public String stem(String term)
+    {
+        String stem = this.stems.get(term);
+        if (stem != null) {
+            this.hits.increment();
+            return stem;
+        }
+        this.misses.increment();
+        stem = Stemmer.stemWord(term);
+        this.stems.put(term, stem);
+        if (this.stems.size() > this.capacity && this.evicting.compareAndSet(false, true)) {
+            try {
+                int evict = this.stems.size() - this.capacity + this.capacity / 8;
+                int evicted = 0;
+                Iterator<String> it = this.stems.keySet().iterator();
+                for (; evicted < evict && it.hasNext(); evicted++) {
+                    it.next();
+                    it.remove();
+                }
+                this.evictions.add(evicted);
+            } finally {
+                this.evicting.set(false);
+            }
+        }
+        return stem;
+    }
+
+    /**
+     * Returns the number of terms currently in the cache.
+     *
+     * @return the number of terms.
+     */
+    public int size()
+    {
+        return this.stems.size();
+    }
+
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups that found the term in the cache.
+     *
+     * @return the hit rate between {@code 0} and {@code 1}, or {@code 0} if there were no lookups.
+     */
+    public double getHitRate()
+    {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -51,6 +51,7 @@ public class Stemmer
                j, k;
    private static final int INC = 50;
                      /* unit of size whereby b is increased */
+   private static final ThreadLocal<Stemmer> STEMMERS = ThreadLocal.withInitial(Stemmer::new);
    public Stemmer()
    {  b = new char[INC];
       i = 0;
@@ -86,6 +87,40 @@ public class Stemmer
       for (int c = 0; c < wLen; c++) b[i++] = w[c];
    }
 
+   /** Stems len characters of w starting at off, reusing the buffer of
+    * this stemmer. This is like add(char) for every character followed by
+    * stem() and toString(), but without intermediate arrays.
+    */
+
+   public String stem(char[] w, int off, int len)
+   {  if (len + 1 >= b.length) b = new char[len+INC];
+      System.arraycopy(w, off, b, 0, len);
+      i = len;
+      stem();
+      return toString();
+   }
+
+   /** Stems the given word, reusing the buffer of this stemmer, as
+    * stem(char[], int, int).
+    */
+
+   public String stem(CharSequence word)
+   {  int len = word.length();
+      if (len + 1 >= b.length) b = new char[len+INC];
+      for (int c = 0; c < len; c++) b[c] = word.charAt(c);
+      i = len;
+      stem();
+      return toString();
+   }
+
+   /** Stems the given word with a stemmer owned by the current thread, so
+    * it is safe to call from several threads and allocates only the result.
+    */
+
+   public static String stemWord(CharSequence word)
+   {  return STEMMERS.get().stem(word);
+   }
+
    /**
     * After a word has been stemmed, it can be retrieved by toString(),
     * or a reference to the internal buffer can be retrieved by getResultBuffer
@@ -0,0 +1,91 @@
+package ti;
+
+import java.util.ArrayList;
+
+/**
+ * Replaces the query terms that are not in the vocabulary of an index with the nearest terms that are, found with its
+ * {@link FuzzyTermIndex}, so that a typo does not drop a term from the query.
+ * <p>
+ * How aggressively terms are corrected is set by the maximum edit distance, the number of nearest terms that replace a
+ * term, and the minimum length of the terms to correct, since short terms are within a small distance of too many
+ * others. A term is replaced by the terms at the smallest distance found, the most frequent first, so with one
+ * correction it gets the most frequent of the nearest terms. The distance is widened one edit at a time, so terms with
+ * a near correction, the common case, are resolved with the cheaper lookups. Terms that are in the vocabulary are never changed.
+ */
+public class TermCorrector
+{
+    public static final int DEFAULT_MAX_DISTANCE = 2;
+    public static final int DEFAULT_MIN_LENGTH = 4;
+
+    protected final int maxDistance;
+    protected final int maxCorrections;
+    protected final int minLength;
+
+    /**
+     * Creates a new corrector.
+     *
+     * @param maxDistance    the maximum edit distance of a correction, from {@code 1} to
+     *                       {@link FuzzyTermIndex#MAX_DISTANCE}.
+     * @param maxCorrections the maximum number of terms that replace a term.
+     * @param minLength      the minimum length of the terms to correct.
+     */
+    public TermCorrector(int maxDistance, int maxCorrections, int minLength)
+    {
+        if (maxDistance < 1 || maxDistance > FuzzyTermIndex.MAX_DISTANCE)
+            throw new IllegalArgumentException("The maximum distance must be between 1 and "
+                    + FuzzyTermIndex.MAX_DISTANCE + ".");
+        if (maxCorrections < 1)
+            throw new IllegalArgumentException("The number of corrections must be positive.");
+        this.maxDistance = maxDistance;
+        this.maxCorrections = maxCorrections;
+        this.minLength = minLength;
+    }
+
+    /**
+     * Returns the parameters of the corrector, to be included in the {@link RetrievalModel#getParameters parameters}
+     * of a model, since they change its results.
+     *
+     * @return a description of the parameters.
+     */
+    public String getParameters()
+    {
+        return "distance=" + this.maxDistance + ", corrections=" + this.maxCorrections + ", minLength=" + this.minLength;
+    }
+
+    /**
+     * Replaces the terms that are not in the index with their corrections. A term without any correction is kept, and
+     * is then ignored by the models as before.
+     *
+     * @param terms the terms of a query, as extracted by the {@link DocumentProcessor}.
+     * @param index the index.
+     * @return the corrected terms, or {@code terms} itself if none was corrected.
+     */
+    public ArrayList<String> correct(ArrayList<String> terms, SearchableIndex index)
+    {
+        ArrayList<String> corrected = null;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            ArrayList<FuzzyTermIndex.Suggestion> suggestions = null;
+            if (term.length() >= this.minLength && index.getTerm(term) == null) {
+                // Se amplía la distancia de uno en uno: a menor distancia hay muchos menos candidatos que verificar
+                for (int d = 1; d <= this.maxDistance && (suggestions == null || suggestions.isEmpty()); d++)
+                    suggestions = index.getSimilarTerms(term, d);
+            }
+            if (suggestions == null || suggestions.isEmpty()) {
+                if (corrected != null)
+                    corrected.add(term);
+                continue;
+            }
+            if (corrected == null)
+                corrected = new ArrayList<>(terms.subList(0, i));
+            // Solo los términos a la menor distancia encontrada
+            int distance = suggestions.get(0).distance;
+            for (int c = 0; c < this.maxCorrections && c < suggestions.size(); c++) {
+                if (suggestions.get(c).distance == distance)
+                    corrected.add(suggestions.get(c).term);
+            }
+            QueryStats.current().correctedTerms++;
+        }
+        return corrected == null ? terms : corrected;
+    }
+}
@@ -0,0 +1,439 @@
+package ti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The vocabulary of a loaded index, read in place from a {@link MappedFile}.
+ * <p>
+ * {@code [term] -> (termID, IDF)}
+ * <p>
+ * Terms are stored as UTF-8 bytes sorted in byte order and front-coded in blocks of {@link #BLOCK_SIZE} terms: the
+ * first term of a block is stored whole, and every other term as the length of the prefix it shares with the previous
+ * one and the rest of its bytes. A term is found with a binary search over the first terms of the blocks and a scan of
+ * one block, and no per-term objects are created when the index is opened:
+ * <pre>
+ * magic count numBlocks blockSize blockOffset[numBlocks+1] termID[count] IDF[count] blocks
+ * block: length bytes (shared length bytes)[blockSize-1]
+ * </pre>
+ * Lengths are variable-byte integers. The {@code termID} column follows the sort order of the terms, while the IDF
+ * column is indexed by {@code termID}. Since terms are sorted, the ones in a range or with a common prefix, such as
+ * {@code youtube.}, are enumerated in order with a {@link Cursor}.
+ */
+public class TermDictionary
+{
+    protected static final int MAGIC = 0x54495632; // TIV2
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * Orders terms as the dictionary does: by their UTF-8 bytes, which is the order of their code points.
+     */
+    public static final Comparator<String> ORDER = (s1, s2) -> compare(s1.getBytes(StandardCharsets.UTF_8),
+            s2.getBytes(StandardCharsets.UTF_8));
+
+    protected final MappedFile file;
+    protected final int count;
+    protected final int numBlocks;
+    protected final long offsetsPos;
+    protected final long termIDsPos;
+    protected final long idfPos;
+    protected final long bytesPos;
+
+    protected TermDictionary(MappedFile file) throws IOException
+    {
+        file.checkMagic(0, MAGIC);
+        if (file.getInt(12) != BLOCK_SIZE)
+            throw new IOException("Unsupported block size " + file.getInt(12) + " in vocabulary file.");
+        this.file = file;
+        this.count = file.getInt(4);
+        this.numBlocks = file.getInt(8);
+        this.offsetsPos = 16;
+        this.termIDsPos = this.offsetsPos + 8L * (this.numBlocks + 1);
+        this.idfPos = MappedFile.align(this.termIDsPos + 4L * this.count);
+        this.bytesPos = this.idfPos + 8L * this.count;
+    }
+
+    /**
+     * Maps the vocabulary file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the term dictionary.
+     * @throws IOException if an error occurs while mapping the file.
+     */
+    public static TermDictionary open(File path) throws IOException
+    {
+        return new TermDictionary(new MappedFile(path));
+    }
+
+    /**
+     * Unmaps the file, as {@link MappedFile#close}.
+     */
+    public void close()
+    {
+        this.file.close();
+    }
+
+    /**
+     * Writes the given vocabulary to the specified path.
+     *
+     * @param path       the path to the file.
+     * @param vocabulary the vocabulary, mapping each term onto its {@code termID} and IDF.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public static void write(File path, HashMap<String, Tuple<Integer, Double>> vocabulary) throws IOException
+    {
+        ArrayList<Tuple<byte[], Tuple<Integer, Double>>> terms = new ArrayList<>(vocabulary.size());
+        for (Map.Entry<String, Tuple<Integer, Double>> entry : vocabulary.entrySet())
+            terms.add(new Tuple<>(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        terms.sort((t1, t2) -> compare(t1.item1, t2.item1));
+
+        double[] idf = new double[terms.size()];
+        for (Tuple<byte[], Tuple<Integer, Double>> term : terms)
+            idf[term.item2.item1] = term.item2.item2;
+
+        // Los bloques se codifican antes para conocer sus posiciones
+        int numBlocks = (terms.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long[] blockOffsets = new long[numBlocks + 1];
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        byte[] previous = null;
+        for (int pos = 0; pos < terms.size(); pos++) {
+            byte[] term = terms.get(pos).item1;
+            int shared = 0;
+            if (pos % BLOCK_SIZE == 0)
+                blockOffsets[pos / BLOCK_SIZE] = blocks.size();
+            else {
+                while (shared < previous.length && shared < term.length && previous[shared] == term[shared])
+                    shared++;
+                writeVInt(blocks, shared);
+            }
+            writeVInt(blocks, term.length - shared);
+            blocks.write(term, shared, term.length - shared);
+            previous = term;
+        }
+        blockOffsets[numBlocks] = blocks.size();
+
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(terms.size());
+            out.writeInt(numBlocks);
+            out.writeInt(BLOCK_SIZE);
+            for (long offset : blockOffsets)
+                out.writeLong(offset);
+            for (Tuple<byte[], Tuple<Integer, Double>> term : terms)
+                out.writeInt(term.item2.item1);
+            out.align();
+            for (double d : idf)
+                out.writeDouble(d);
+            blocks.writeTo(out);
+        }
+    }
+
+    /**
+     * Returns the number of terms in the dictionary.
+     *
+     * @return the number of terms.
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Looks up the specified term.
+     *
+     * @param term the term.
+     * @return a {@link Tuple} containing the {@code termID} and its IDF score, or {@code null} if the term is not in the
+     * dictionary.
+     */
+    public Tuple<Integer, Double> get(String term)
+    {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int block = this.findBlock(key);
+        if (block < 0)
+            return null;
+        Cursor cursor = new Cursor(block);
+        for (int i = 0; i < BLOCK_SIZE && cursor.next(); i++) {
+            int cmp = cursor.compareTo(key);
+            if (cmp == 0)
+                return new Tuple<>(cursor.getTermID(), cursor.getIDF());
+            if (cmp > 0)
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the IDF of the specified term.
+     *
+     * @param termID the ID of the term.
+     * @return the IDF score of the term.
+     */
+    public double getIDF(int termID)
+    {
+        return this.file.getDouble(this.idfPos + 8L * termID);
+    }
+
+    /**
+     * Reads all the terms of the dictionary.
+     *
+     * @return an array with every term at the position of its {@code termID}.
+     */
+    public String[] getTerms()
+    {
+        String[] terms = new String[this.count];
+        Cursor cursor = new Cursor(0);
+        while (cursor.next())
+            terms[cursor.getTermID()] = cursor.getTerm();
+        return terms;
+    }
+
+    /**
+     * Returns a cursor over the terms in order, starting at the first term that is not less than the specified one.
+     *
+     * @param from the term to start at, which does not need to be in the dictionary.
+     * @return the cursor, positioned before its first term.
+     */
+    public Cursor seek(String from)
+    {
+        byte[] key = from.getBytes(StandardCharsets.UTF_8);
+        Cursor cursor = new Cursor(Math.max(0, this.findBlock(key)));
+        while (cursor.next()) {
+            if (cursor.compareTo(key) >= 0) {
+                cursor.pending = true;
+                break;
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the terms that start with the specified prefix, in order.
+     *
+     * @param prefix the prefix.
+     * @return the terms with the prefix.
+     */
+    public ArrayList<String> getTermsWithPrefix(String prefix)
+    {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        ArrayList<String> terms = new ArrayList<>();
+        Cursor cursor = this.seek(prefix);
+        while (cursor.next() && cursor.startsWith(key))
+            terms.add(cursor.getTerm());
+        return terms;
+    }
+
+    /**
+     * Returns the terms from {@code from}, inclusive, to {@code to}, exclusive, in order.
+     *
+     * @param from the first term of the range.
+     * @param to   the end of the range, or {@code null} to return all the terms from {@code from}.
+     * @return the terms in the range.
+     */
+    public ArrayList<String> getTermsInRange(String from, String to)
+    {
+        byte[] end = to == null ? null : to.getBytes(StandardCharsets.UTF_8);
+        ArrayList<String> terms = new ArrayList<>();
+        Cursor cursor = this.seek(from);
+        while (cursor.next() && (end == null || cursor.compareTo(end) < 0))
+            terms.add(cursor.getTerm());
+        return terms;
+    }
+
+    /**
+     * Returns the first term after all the terms that start with the specified prefix, in the order of the
+     * dictionary, so that they are the range from the prefix to it.
+     *
+     * @param prefix the prefix.
+     * @return the end of the range of the prefix, or {@code null} if no term goes after them.
+     */
+    public static String getPrefixEnd(String prefix)
+    {
+        // Se incrementa el último carácter, saltando los surrogates, o se quita si ya es el máximo
+        int end = prefix.length();
+        while (end > 0) {
+            int c = prefix.codePointBefore(end);
+            end -= Character.charCount(c);
+            if (c < Character.MAX_CODE_POINT) {
+                c = c + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : c + 1;
+                return new StringBuilder(prefix.substring(0, end)).appendCodePoint(c).toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the last block whose first term is not greater than the key.
+     *
+     * @return the block, or {@code -1} if the key goes before the first term.
+     */
+    protected int findBlock(byte[] key)
+    {
+        int lo = 0;
+        int hi = this.numBlocks - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.compareFirst(key, mid) >= 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return hi;
+    }
+
+    // Compara la clave con el primer término del bloque, que se guarda entero, sin copiarlo
+    protected int compareFirst(byte[] key, int block)
+    {
+        long pos = this.bytesPos + this.file.getLong(this.offsetsPos + 8L * block);
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.file.getByte(pos++);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        for (int i = 0; i < key.length && i < length; i++) {
+            int cmp = (key[i] & 0xff) - (this.file.getByte(pos + i) & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return key.length - length;
+    }
+
+    protected static int compare(byte[] b1, byte[] b2)
+    {
+        for (int i = 0; i < b1.length && i < b2.length; i++) {
+            int cmp = (b1[i] & 0xff) - (b2[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return b1.length - b2.length;
+    }
+
+    protected static void writeVInt(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Walks the terms of the dictionary in order, decoding them block by block. The bytes of the current term are
+     * kept in a buffer that is reused, so only the terms that are asked for with {@link #getTerm} become strings.
+     */
+    public class Cursor
+    {
+        protected int pos; // posición del término actual en el orden del diccionario
+        protected long next; // posición en el fichero del término siguiente
+        protected byte[] term = new byte[64];
+        protected int length;
+        protected boolean pending; // si la próxima llamada a next() devuelve el término actual
+
+        protected Cursor(int block)
+        {
+            this.pos = block * BLOCK_SIZE - 1;
+            this.next = TermDictionary.this.bytesPos + TermDictionary.this.file.getLong(
+                    TermDictionary.this.offsetsPos + 8L * block);
+        }
+
+        /**
+         * Moves to the next term.
+         *
+         * @return {@code true} if there is a next term, or {@code false} if all the terms have been walked.
+         */
+        public boolean next()
+        {
+            if (this.pending) {
+                this.pending = false;
+                return true;
+            }
+            if (this.pos + 1 >= TermDictionary.this.count) {
+                this.pos = TermDictionary.this.count;
+                return false;
+            }
+            this.pos++;
+            int shared = this.pos % BLOCK_SIZE == 0 ? 0 : this.readVInt();
+            int suffix = this.readVInt();
+            if (this.term.length < shared + suffix)
+                this.term = Arrays.copyOf(this.term, 2 * (shared + suffix));
+            TermDictionary.this.file.getBytes(this.next, this.term, shared, suffix);
+            this.next += suffix;
+            this.length = shared + suffix;
+            return true;
+        }
+
+        /**
+         * Returns the current term.
+         *
+         * @return the term.
+         */
+        public String getTerm()
+        {
+            return new String(this.term, 0, this.length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the ID of the current term.
+         *
+         * @return the {@code termID}.
+         */
+        public int getTermID()
+        {
+            return TermDictionary.this.file.getInt(TermDictionary.this.termIDsPos + 4L * this.pos);
+        }
+
+        /**
+         * Returns the IDF of the current term.
+         *
+         * @return the IDF score.
+         */
+        public double getIDF()
+        {
+            return TermDictionary.this.getIDF(this.getTermID());
+        }
+
+        // Compara el término actual con la clave, como compare(term, key)
+        protected int compareTo(byte[] key)
+        {
+            for (int i = 0; i < key.length && i < this.length; i++) {
+                int cmp = (this.term[i] & 0xff) - (key[i] & 0xff);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return this.length - key.length;
+        }
+
+        protected boolean startsWith(byte[] prefix)
+        {
+            if (this.length < prefix.length)
+                return false;
+            for (int i = 0; i < prefix.length; i++) {
+                if (this.term[i] != prefix[i])
+                    return false;
+            }
+            return true;
+        }
+
+        protected int readVInt()
+        {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = TermDictionary.this.file.getByte(this.next++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ti;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The character offsets where every index term of a document occurs, recorded while the document is analyzed so
+ * snippets can be built without tokenizing it again.
+ * <p>
+ * Offsets refer to the title of the document followed by a newline and its body, so body offsets start at
+ * {@code title.length() + 1}. Offsets are recorded as a map from terms to their spans, and stored in the
+ * {@link DocumentStore} with the document as:
+ * <pre>
+ * numTerms (termLength term count (startDelta length)[count])[numTerms]
+ * </pre>
+ * where all numbers are variable-length integers and {@code term} is in UTF-8. An encoded object is not decoded
+ * whole; {@link #get} scans the bytes for the requested term.
+ * <p>
+ * While recording, every occurrence also has a position, the ordinal of its token in the document, which the
+ * {@link Indexer} writes to the {@link PositionsFile}. Positions are not stored with the offsets.
+ */
+public class TermOffsets
+{
+    protected LinkedHashMap<String, int[]> spans; // [term] -> (count (start end position)*)
+    protected byte[] data;
+    protected int dataStart;
+    protected int dataEnd;
+
+    /**
+     * Creates a new empty object to record offsets.
+     */
+    public TermOffsets()
+    {
+        this.spans = new LinkedHashMap<>();
+    }
+
+    protected TermOffsets(byte[] data, int start, int end)
+    {
+        this.data = data;
+        this.dataStart = start;
+        this.dataEnd = end;
+    }
+
+    /**
+     * Reads offsets encoded with {@link #toByteArray}.
+     *
+     * @param data  the buffer with the encoded offsets.
+     * @param start the position of the encoded offsets in the buffer.
+     * @param end   the end of the encoded offsets in the buffer.
+     * @return the offsets, which share the buffer.
+     */
+    public static TermOffsets fromByteArray(byte[] data, int start, int end)
+    {
+        return new TermOffsets(data, start, end);
+    }
+
+    /**
+     * Records an occurrence of a term. Occurrences should be recorded in order of their start, as they are found in
+     * the text; an occurrence with the same start as the previous one of the term is ignored.
+     *
+     * @param term     the term.
+     * @param start    the offset of the first character of the occurrence.
+     * @param end      the offset after the last character of the occurrence.
+     * @param position the position of the occurrence, increasing with {@code start}.
+     */
+    public void add(String term, int start, int end, int position)
+    {
+        int[] s = this.spans.get(term);
+        if (s == null) {
+            s = new int[10];
+            this.spans.put(term, s);
+        } else if (s[3 * s[0] - 2] == start) {
+            return;
+        } else if (s.length < 3 * s[0] + 4) {
+            s = Arrays.copyOf(s, 2 * s.length + 1);
+            this.spans.put(term, s);
+        }
+        s[3 * s[0] + 1] = start;
+        s[3 * s[0] + 2] = end;
+        s[3 * s[0] + 3] = position;
+        s[0]++;
+    }
+
+    /**
+     * Returns the spans where the given term occurs.
+     *
+     * @param term the term.
+     * @return an array with the start and end of every occurrence, in order, or {@code null} if the term does not
+     * occur.
+     */
+    public int[] get(String term)
+    {
+        if (this.spans != null) {
+            int[] s = this.spans.get(term);
+            if (s == null)
+                return null;
+            int[] pairs = new int[2 * s[0]];
+            for (int i = 0; i < s[0]; i++) {
+                pairs[2 * i] = s[3 * i + 1];
+                pairs[2 * i + 1] = s[3 * i + 2];
+            }
+            return pairs;
+        }
+        byte[] target = term.getBytes(StandardCharsets.UTF_8);
+        int[] pos = {this.dataStart};
+        int numTerms = readInt(this.data, pos);
+        for (int t = 0; t < numTerms; t++) {
+            int length = readInt(this.data, pos);
+            boolean found = length == target.length;
+            for (int i = 0; found && i < length; i++)
+                found = this.data[pos[0] + i] == target[i];
+            pos[0] += length;
+            int count = readInt(this.data, pos);
+            if (found) {
+                int[] s = new int[2 * count];
+                int prev = 0;
+                for (int i = 0; i < count; i++) {
+                    prev += readInt(this.data, pos);
+                    s[2 * i] = prev;
+                    s[2 * i + 1] = prev + readInt(this.data, pos);
+                }
+                return s;
+            }
+            // Saltar las ocurrencias sin decodificarlas
+            for (int i = 0; i < 2 * count; i++)
+                while (this.data[pos[0]++] < 0) ;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the positions where the given term occurs. Only available while recording.
+     *
+     * @param term the term.
+     * @return the positions in increasing order, or {@code null} if the term does not occur or the offsets were
+     * decoded from bytes.
+     */
+    public int[] getPositions(String term)
+    {
+        int[] s = this.spans == null ? null : this.spans.get(term);
+        if (s == null)
+            return null;
+        int[] positions = new int[s[0]];
+        for (int i = 0; i < s[0]; i++)
+            positions[i] = s[3 * i + 3];
+        return positions;
+    }
+
+    /**
+     * Encodes the recorded offsets.
+     *
+     * @return the encoded bytes.
+     */
+    public byte[] toByteArray()
+    {
+        if (this.spans == null)
+            return Arrays.copyOfRange(this.data, this.dataStart, this.dataEnd);
+        byte[] out = new byte[64];
+        int[] pos = {0};
+        out = writeInt(out, pos, this.spans.size());
+        for (Map.Entry<String, int[]> e : this.spans.entrySet()) {
+            byte[] term = e.getKey().getBytes(StandardCharsets.UTF_8);
+            int[] s = e.getValue();
+            out = writeInt(out, pos, term.length);
+            if (out.length < pos[0] + term.length)
+                out = Arrays.copyOf(out, 2 * (pos[0] + term.length));
+            System.arraycopy(term, 0, out, pos[0], term.length);
+            pos[0] += term.length;
+            out = writeInt(out, pos, s[0]);
+            int prev = 0;
+            for (int i = 0; i < s[0]; i++) {
+                out = writeInt(out, pos, s[3 * i + 1] - prev);
+                out = writeInt(out, pos, s[3 * i + 2] - s[3 * i + 1]);
+                prev = s[3 * i + 1];
+            }
+        }
+        return Arrays.copyOf(out, pos[0]);
+    }
+
+    protected static byte[] writeInt(byte[] out, int[] pos, int value)
+    {
+        if (out.length < pos[0] + 5)
+            out = Arrays.copyOf(out, 2 * out.length + 5);
+        while ((value & ~0x7f) != 0) {
+            out[pos[0]++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos[0]++] = (byte) value;
+        return out;
+    }
+
+    protected static int readInt(byte[] data, int[] pos)
+    {
+        int b = data[pos[0]++];
+        int value = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+}
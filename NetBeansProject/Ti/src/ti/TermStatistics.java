@@ -0,0 +1,116 @@
+package ti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Per-term statistics computed when the index is saved, indexed by {@code termID}.
+ * <p>
+ * They hold the upper bounds that retrieval models need for dynamic pruning (see {@link MaxScore}), and the sums of
+ * weights that give the centroid of the collection for relevance feedback (see {@link CosineWithFeedback}):
+ * <pre>
+ * magic count maxNormWeight[count] maxTF[count] weightSum[count]
+ * </pre>
+ */
+public class TermStatistics
+{
+    protected static final int MAGIC = 0x54495333; // TIS3
+
+    /**
+     * The maximum weight of each term in any document, divided by the norm of that document.
+     * It bounds the contribution of the term to the cosine similarity.
+     */
+    public final double[] maxNormWeight;
+    /**
+     * The maximum raw frequency of each term in any document.
+     */
+    public final double[] maxTF;
+    /**
+     * The sum of the weights of each term in all documents, as stored in the inverted index.
+     */
+    public final double[] weightSum;
+
+    /**
+     * Creates new empty statistics for the specified number of terms.
+     *
+     * @param numTerms the number of terms.
+     */
+    public TermStatistics(int numTerms)
+    {
+        this.maxNormWeight = new double[numTerms];
+        this.maxTF = new double[numTerms];
+        this.weightSum = new double[numTerms];
+    }
+
+    /**
+     * Computes the statistics of an index whose structures are in the heap.
+     *
+     * @param index     the index.
+     * @param quantized whether the postings will be compressed, so that the bounds hold for the quantized weights.
+     * @return the term statistics.
+     */
+    public static TermStatistics compute(Index index, boolean quantized)
+    {
+        TermStatistics stats = new TermStatistics(index.vocabulary.size());
+        for (Map.Entry<String, Tuple<Integer, Double>> entry : index.vocabulary.entrySet()) {
+            int termID = entry.getValue().item1;
+            ArrayPostingsList postings = index.invertedIndex.get(termID);
+            int[] tf = index.frequencies.get(termID);
+            double scale = quantized ? PostingsCodec.getScale(postings) : 0;
+            for (int i = 0; i < postings.size(); i++) {
+                double weight = quantized ? PostingsCodec.quantize(postings.getWeight(i), scale) : postings.getWeight(i);
+                stats.maxNormWeight[termID] = Math.max(stats.maxNormWeight[termID],
+                        weight / index.documents.get(postings.getID(i)).item2);
+                stats.maxTF[termID] = Math.max(stats.maxTF[termID], tf[i]);
+                stats.weightSum[termID] += weight;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Reads the statistics from the file in the specified path.
+     *
+     * @param path the path to the file.
+     * @return the term statistics.
+     * @throws IOException if an error occurs while reading the file.
+     */
+    public static TermStatistics load(File path) throws IOException
+    {
+        // Se lee entero, así que el fichero se libera en cuanto se ha leído
+        try (MappedFile file = new MappedFile(path)) {
+            file.checkMagic(0, MAGIC);
+            int count = file.getInt(4);
+            TermStatistics stats = new TermStatistics(count);
+            long pos = 8;
+            for (int i = 0; i < count; i++, pos += 8)
+                stats.maxNormWeight[i] = file.getDouble(pos);
+            for (int i = 0; i < count; i++, pos += 8)
+                stats.maxTF[i] = file.getDouble(pos);
+            for (int i = 0; i < count; i++, pos += 8)
+                stats.weightSum[i] = file.getDouble(pos);
+            return stats;
+        }
+    }
+
+    /**
+     * Writes the statistics to the specified path.
+     *
+     * @param path the path to the file.
+     * @throws IOException if an error occurs while writing the file.
+     */
+    public void write(File path) throws IOException
+    {
+        try (IndexOutput out = new IndexOutput(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(this.maxNormWeight.length);
+            for (double d : this.maxNormWeight)
+                out.writeDouble(d);
+            for (double d : this.maxTF)
+                out.writeDouble(d);
+            for (double d : this.weightSum)
+                out.writeDouble(d);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A bounded min-heap that keeps the {@code k} best documents offered to it.
+ * <p>
+ * A document ranks above another if it has a higher score or, with equal scores, a lower {@code docID}.
+ */
+public class TopKHeap
+{
+    protected final int capacity;
+    protected int[] docs;
+    protected double[] scores;
+    protected int size;
+
+    /**
+     * Creates a new empty heap.
+     *
+     * @param k the maximum number of documents to keep.
+     */
+    public TopKHeap(int k)
+    {
+        this.capacity = k;
+        this.docs = new int[Math.min(k, 64)];
+        this.scores = new double[this.docs.length];
+    }
+
+    /**
+     * Offers a document to the heap. It is kept if the heap is not full or if it ranks above the worst document kept,
+     * which is then discarded.
+     *
+     * @param doc   the ID of the document.
+     * @param score the score of the document.
+     * @return {@code true} if the document was kept.
+     */
+    public boolean offer(int doc, double score)
+    {
+        if (this.size < this.capacity) {
+            if (this.size == this.docs.length) {
+                int length = (int) Math.min(this.capacity, 2L * this.size);
+                this.docs = Arrays.copyOf(this.docs, length);
+                this.scores = Arrays.copyOf(this.scores, length);
+            }
+            // Sift up the new document
+            int pos = this.size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!worse(score, doc, this.scores[parent], this.docs[parent]))
+                    break;
+                this.docs[pos] = this.docs[parent];
+                this.scores[pos] = this.scores[parent];
+                pos = parent;
+            }
+            this.docs[pos] = doc;
+            this.scores[pos] = score;
+            return true;
+        }
+        if (this.size > 0 && worse(this.scores[0], this.docs[0], score, doc)) {
+            this.siftDown(doc, score);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the heap holds {@code k} documents already.
+     *
+     * @return {@code true} if the heap is full.
+     */
+    public boolean isFull()
+    {
+        return this.size == this.capacity;
+    }
+
+    /**
+     * Returns the score of the worst document kept, which a new document must improve to enter a full heap.
+     *
+     * @return the minimum score in the heap.
+     */
+    public double getMinScore()
+    {
+        return this.scores[0];
+    }
+
+    /**
+     * Empties the heap and returns its documents.
+     *
+     * @return a list of {@link Tuple}s where the first item is the {@code docID} and the second one the score,
+     * sorted by decreasing score.
+     */
+    public ArrayList<Tuple<Integer, Double>> toSortedList()
+    {
+        // Pop the worst document until the heap is empty
+        Tuple<Integer, Double>[] sorted = newTupleArray(this.size);
+        while (this.size > 0) {
+            sorted[this.size - 1] = new Tuple<>(this.docs[0], this.scores[0]);
+            this.size--;
+            if (this.size > 0)
+                this.siftDown(this.docs[this.size], this.scores[this.size]);
+        }
+        return new ArrayList<>(Arrays.asList(sorted));
+    }
+
+    // Places the given document at the root of the heap and sifts it down.
+    protected void siftDown(int doc, double score)
+    {
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= this.size)
+                break;
+            if (child + 1 < this.size && worse(this.scores[child + 1], this.docs[child + 1], this.scores[child], this.docs[child]))
+                child++;
+            if (!worse(this.scores[child], this.docs[child], score, doc))
+                break;
+            this.docs[pos] = this.docs[child];
+            this.scores[pos] = this.scores[child];
+            pos = child;
+        }
+        this.docs[pos] = doc;
+        this.scores[pos] = score;
+    }
+
+    // Whether the first document ranks below the second one.
+    protected static boolean worse(double score1, int doc1, double score2, int doc2)
+    {
+        return score1 < score2 || (score1 == score2 && doc1 > doc2);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected static Tuple<Integer, Double>[] newTupleArray(int size)
+    {
+        return (Tuple<Integer, Double>[]) new Tuple[size];
+    }
+}